@@ -0,0 +1,11 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+
+# compile the java program
+javac -d $DIR/../classes -cp $DIR/../lib/pg73jdbc3.jar $DIR/../src/*.java
+
+#run a benchmark scenario, e.g. ./bench.sh orderids 1,2,4,8
+#or every user-facing operation on a seeded database, keeping results for comparison:
+#JAVA_TOOL_OPTIONS="-Dbench.seedOrders=1000000 -Dbench.results=results.csv" ./bench.sh app $USER"_project_phase_3_DB" $PGPORT $USER
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar PizzaStoreBench "$@"
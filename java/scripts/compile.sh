@@ -3,9 +3,10 @@ DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 
 
 # compile the java program
-javac -d $DIR/../classes $DIR/../src/PizzaStore.java
+javac -d $DIR/../classes -cp $DIR/../lib/pg73jdbc3.jar $DIR/../src/*.java
 
 #run the java program
 #Use your database name, port number and login
+#add -Dpizzastore.metrics.file=metrics.prom to keep a Prometheus text dump of the latency metrics
 java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar PizzaStore $USER"_project_phase_3_DB" $PGPORT $USER
 
@@ -0,0 +1,10 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+
+# compile the java program
+javac -d $DIR/../classes -cp $DIR/../lib/pg73jdbc3.jar $DIR/../src/*.java
+
+#generate a synthetic dataset, e.g. ./generate.sh 10000000 /tmp/pizzastore_data
+#or straight into the database: ./generate.sh 10000000 $USER"_project_phase_3_DB" $PGPORT $USER
+java -Dpizzastore.gen.menu=$DIR/../../data/items.csv -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar DataGenerator "$@"
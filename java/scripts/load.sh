@@ -0,0 +1,9 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+
+# compile the java program
+javac -d $DIR/../classes -cp $DIR/../lib/pg73jdbc3.jar $DIR/../src/*.java
+
+#load data/*.csv into the database, e.g. ./load.sh $USER"_project_phase_3_DB" $PGPORT $USER
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar BulkLoader "$@" $DIR/../../data $DIR/../../sql/src
@@ -0,0 +1,10 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+
+# compile the java program
+javac -d $DIR/../classes -cp $DIR/../lib/pg73jdbc3.jar $DIR/../src/*.java
+
+#drive the application with simulated sessions, e.g.
+#JAVA_TOOL_OPTIONS="-Dworkload.sessions=5000 -Dpizzastore.pool.maxSize=32" ./workload.sh $USER"_project_phase_3_DB" $PGPORT $USER
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar WorkloadDriver "$@"
@@ -0,0 +1,222 @@
+import java.lang.reflect.Method;
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class runs independent queries at the same time and hands back
+ * CompletableFutures, so a flow that needs several lookups waits for the
+ * slowest one instead of their sum.
+ *
+ * Each query runs as its own task on a virtual thread when the JVM has
+ * them (Java 21 and later), otherwise on a cached pool of daemon threads.
+ * Choose with -Dpizzastore.async.executor=virtual|platform. Tasks still
+ * borrow pooled connections; at most maxConcurrent of them use one
+ * database at a time (-Dpizzastore.async.maxConcurrent, default the
+ * pool's maxSize), the rest wait for a permit rather than time out
+ * waiting for a connection.
+ */
+public class AsyncQueries {
+
+   private final ExecutorService _executor;
+   private final boolean _virtual;
+   private final int _maxConcurrent;
+
+   // database (a ConnectionPool, or any key) -> its permits.
+   private final ConcurrentHashMap<Object, Semaphore> _permits = new ConcurrentHashMap<Object, Semaphore>();
+
+   /**
+    * @param executor runs the tasks; shut down by close()
+    * @param virtual whether the executor runs each task on a virtual thread
+    * @param maxConcurrent tasks allowed on one database at a time, 0 for the pool size
+    */
+   public AsyncQueries(ExecutorService executor, boolean virtual, int maxConcurrent) {
+      this._executor = executor;
+      this._virtual = virtual;
+      this._maxConcurrent = maxConcurrent;
+   }//end AsyncQueries
+
+   /**
+    * Returns an instance configured by -Dpizzastore.async.executor and
+    * -Dpizzastore.async.maxConcurrent.
+    */
+   public static AsyncQueries fromSystemProperties() {
+      String kind = System.getProperty("pizzastore.async.executor", "virtual");
+      int maxConcurrent = Integer.getInteger("pizzastore.async.maxConcurrent", 0);
+      if (!kind.equals("platform")) {
+         ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+         if (virtual != null) {
+            return new AsyncQueries(virtual, true, maxConcurrent);
+         }
+         if (kind.equals("virtual") && System.getProperty("pizzastore.async.executor") != null) {
+            System.err.println("Warning - virtual threads need Java 21, running queries on platform threads");
+         }
+      }
+      return new AsyncQueries(newPlatformExecutor(), false, maxConcurrent);
+   }//end fromSystemProperties
+
+   /**
+    * Runs the work on a connection borrowed from the pool, on its own
+    * thread.
+    */
+   public <T> CompletableFuture<T> execute(final ConnectionPool pool, final ConnectionPool.Work<T> work) {
+      return submit(pool, pool.getSettings().maxSize, new Callable<T>() {
+         public T call() throws SQLException {
+            return pool.execute(work);
+         }
+      });
+   }//end execute
+
+   /**
+    * Runs read-only work where the router sends the user's reads, on its
+    * own thread. If a replica's connection fails, the replica is marked
+    * down and the work retried elsewhere; see ReplicaRouter.readOn().
+    */
+   public <T> CompletableFuture<T> read(final ReplicaRouter router, final String login, final ConnectionPool.Work<T> work) {
+      final ConnectionPool pool = router.route(login);
+      return submit(pool, pool.getSettings().maxSize, new Callable<T>() {
+         public T call() throws SQLException {
+            return router.readOn(pool, login, work);
+         }
+      });
+   }//end read
+
+   /**
+    * Runs a task that uses the pool's connections, e.g. a cache reload,
+    * on its own thread.
+    */
+   public <T> CompletableFuture<T> submit(ConnectionPool pool, Callable<T> task) {
+      return submit(pool, pool.getSettings().maxSize, task);
+   }//end submit
+
+   /**
+    * Runs the task on its own thread once the database has a free permit.
+    *
+    * @param database identifies the database the task uses
+    * @param size the permits to create the first time the database is seen, if no cap is configured
+    */
+   <T> CompletableFuture<T> submit(Object database, int size, final Callable<T> task) {
+      final Semaphore permits = permits(database, size);
+      final CompletableFuture<T> future = new CompletableFuture<T>();
+      try {
+         this._executor.execute(new Runnable() {
+            public void run() {
+               try {
+                  permits.acquire();
+               } catch (InterruptedException e) {
+                  future.completeExceptionally(e);
+                  return;
+               }
+               try {
+                  future.complete(task.call());
+               } catch (Throwable e) {
+                  future.completeExceptionally(e);
+               } finally {
+                  permits.release();
+               }
+            }
+         });
+      } catch (RuntimeException e) {
+         // rejected: the executor is shut down
+         future.completeExceptionally(e);
+      }
+      return future;
+   }//end submit
+
+   /**
+    * Waits for a future and rethrows its failure the way the synchronous
+    * helpers throw it.
+    *
+    * @throws java.sql.SQLException when the query failed
+    */
+   public static <T> T join(CompletableFuture<T> future) throws SQLException {
+      try {
+         return future.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting for a query");
+      } catch (ExecutionException e) {
+         Throwable cause = e.getCause();
+         if (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+         }
+         if (cause instanceof SQLException) {
+            throw (SQLException) cause;
+         }
+         if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+         }
+         if (cause instanceof Error) {
+            throw (Error) cause;
+         }
+         SQLException wrapped = new SQLException(String.valueOf(cause.getMessage()));
+         wrapped.initCause(cause);
+         throw wrapped;
+      }
+   }//end join
+
+   /**
+    * Returns true when tasks run on virtual threads.
+    */
+   public boolean isVirtual() {
+      return this._virtual;
+   }
+
+   /**
+    * Stops accepting tasks and waits briefly for running ones.
+    */
+   public void close() {
+      this._executor.shutdown();
+      try {
+         this._executor.awaitTermination(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }//end close
+
+   public String toString() {
+      return (this._virtual ? "virtual" : "platform") + " threads, maxConcurrent="
+         + (this._maxConcurrent > 0 ? String.valueOf(this._maxConcurrent) : "pool size");
+   }
+
+   private Semaphore permits(Object database, int size) {
+      Semaphore permits = this._permits.get(database);
+      if (permits == null) {
+         Semaphore created = new Semaphore(this._maxConcurrent > 0 ? this._maxConcurrent : Math.max(1, size));
+         permits = this._permits.putIfAbsent(database, created);
+         if (permits == null)
+            permits = created;
+      }
+      return permits;
+   }//end permits
+
+   // Executors.newVirtualThreadPerTaskExecutor(), or null before Java 21.
+   static ExecutorService newVirtualThreadPerTaskExecutor() {
+      try {
+         Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+         return (ExecutorService) factory.invoke(null);
+      } catch (Exception e) {
+         return null;
+      }
+   }//end newVirtualThreadPerTaskExecutor
+
+   static ExecutorService newPlatformExecutor() {
+      final AtomicInteger count = new AtomicInteger();
+      return Executors.newCachedThreadPool(new ThreadFactory() {
+         public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "pizzastore-async-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+   }//end newPlatformExecutor
+}//end AsyncQueries
@@ -0,0 +1,421 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class loads the data/*.csv files into the database through JDBC,
+ * so any machine that can reach the database can seed it; no server-side
+ * file path or psql wrapper is needed.
+ *
+ * Each file is streamed through a CsvReader and inserted as multi-row
+ * INSERT statements of chunkSize rows, each committed on its own, by a
+ * few writer connections in parallel. Tables load in foreign key order:
+ * Users, Items and Store side by side, then FoodOrder, then ItemsInOrder.
+ * The indexes of create_indexes.sql are dropped before the load and built
+ * after it, then the sales summaries are rebuilt and the tables analyzed.
+ *
+ * Usage: java BulkLoader <dbname> <port> <user> [dataDir] [sqlDir]
+ *
+ *   -Dpizzastore.load.chunkSize=N    rows per INSERT (default 2000)
+ *   -Dpizzastore.load.writers=N      writer connections (default 4)
+ *   -Dpizzastore.load.createTables=true
+ *                                    drop and recreate every table first
+ */
+public class BulkLoader {
+
+   static final int DEFAULT_CHUNK_SIZE = 2000;
+   static final int DEFAULT_WRITERS = 4;
+
+   // bind parameters one statement may carry in the wire protocol.
+   static final int MAX_PARAMETERS = 32767;
+
+   /**
+    * One table and the file it is loaded from. Tables of the same phase
+    * have no foreign keys between them and load side by side.
+    */
+   static final class Table {
+      final String name;
+      final String file;
+      final int phase;
+
+      Table(String name, String file, int phase) {
+         this.name = name;
+         this.file = file;
+         this.phase = phase;
+      }
+   }//end Table
+
+   static final Table[] TABLES = {
+      new Table("Users", "users.csv", 0),
+      new Table("Items", "items.csv", 0),
+      new Table("Store", "store.csv", 0),
+      new Table("FoodOrder", "foodorder.csv", 1),
+      new Table("ItemsInOrder", "itemsinorder.csv", 2),
+   };
+
+   // rebuilt from the loaded orders, as load_data.sql does. Orders placed
+   // by older versions say 'incompete' and are corrected first.
+   static final String[] SUMMARIES = {
+      "UPDATE FoodOrder SET orderStatus = 'incomplete' WHERE orderStatus = 'incompete'",
+      "DELETE FROM SalesByStoreDay",
+      "DELETE FROM SalesByItem",
+      "DELETE FROM OrdersByStatus",
+      "INSERT INTO SalesByStoreDay (storeID, day, orderCount, revenue) "
+         + "SELECT storeID, CAST(orderTimestamp AS date), COUNT(*), SUM(totalPrice) "
+         + "FROM FoodOrder GROUP BY storeID, CAST(orderTimestamp AS date)",
+      "INSERT INTO SalesByItem (itemName, quantity) SELECT itemName, SUM(quantity) FROM ItemsInOrder GROUP BY itemName",
+      "INSERT INTO OrdersByStatus (orderStatus, orderCount) "
+         + "SELECT COALESCE(orderStatus, ''), COUNT(*) FROM FoodOrder GROUP BY COALESCE(orderStatus, '')",
+   };
+
+   private final ConnectionPool _pool;
+   private final File _dataDir;
+   private final File _sqlDir;
+   private final int _chunkSize;
+   private final int _writers;
+
+   // the first failure of any writer; loading stops once it is set.
+   private final AtomicReference<Exception> _failure = new AtomicReference<Exception>();
+
+   public BulkLoader(ConnectionPool pool, File dataDir, File sqlDir, int chunkSize, int writers) {
+      this._pool = pool;
+      this._dataDir = dataDir;
+      this._sqlDir = sqlDir;
+      this._chunkSize = chunkSize;
+      this._writers = writers;
+   }//end BulkLoader
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println(
+            "Usage: java [-classpath <classpath>] " + BulkLoader.class.getName()
+            + " <dbname> <port> <user> [dataDir] [sqlDir]");
+         return;
+      }
+      int chunkSize = Integer.getInteger("pizzastore.load.chunkSize", DEFAULT_CHUNK_SIZE);
+      int writers = Integer.getInteger("pizzastore.load.writers", DEFAULT_WRITERS);
+      ConnectionPool pool = connect(args[0], args[1], args[2], writers);
+      try {
+         BulkLoader loader = new BulkLoader(pool, new File(args.length > 3 ? args[3] : "data"),
+                                            new File(args.length > 4 ? args[4] : "sql/src"), chunkSize, writers);
+         loader.run(Boolean.getBoolean("pizzastore.load.createTables"));
+      } catch (Exception e) {
+         System.err.println("Load failed: " + e.getMessage());
+         System.exit(1);
+      } finally {
+         pool.close();
+      }
+   }//end main
+
+   /**
+    * Opens a pool on the local database with a connection per writer and
+    * one for DDL and metadata.
+    */
+   static ConnectionPool connect(String dbname, String port, String user, int writers) throws Exception {
+      Class.forName("org.postgresql.Driver");
+      ConnectionPool.Settings settings = ConnectionPool.Settings.fromSystemProperties(
+         "jdbc:postgresql://localhost:" + port + "/" + dbname, user, "");
+      settings.maxSize = Math.max(settings.maxSize, writers + 1);
+      return new ConnectionPool(settings);
+   }//end connect
+
+   /**
+    * Loads every table, then builds indexes and summaries.
+    *
+    * @param createTables run create_tables.sql first, dropping existing data
+    */
+   public void run(boolean createTables) throws Exception {
+      long start = System.nanoTime();
+      prepare(createTables);
+      ExecutorService writers = Executors.newFixedThreadPool(this._writers);
+      try {
+         for (int phase = 0; phase <= 2; ++phase) {
+            List<Thread> readers = new ArrayList<Thread>();
+            for (final Table table : TABLES) {
+               if (table.phase != phase) {
+                  continue;
+               }
+               final ExecutorService pool = writers;
+               Thread reader = new Thread(new Runnable() {
+                  public void run() {
+                     try {
+                        load(table, pool);
+                     } catch (Exception e) {
+                        fail(new Exception(table.name + ": " + e.getMessage(), e));
+                     }
+                  }
+               }, "pizzastore-load-" + table.name);
+               reader.start();
+               readers.add(reader);
+            }
+            for (Thread reader : readers) {
+               reader.join();
+            }
+            if (this._failure.get() != null) {
+               throw this._failure.get();
+            }
+         }//end for
+      } finally {
+         writers.shutdown();
+         writers.awaitTermination(1, TimeUnit.MINUTES);
+      }
+
+      finish();
+      System.out.println(String.format("%-14s %.1f s", "total", (System.nanoTime() - start) / 1e9));
+   }//end run
+
+   /**
+    * Gets the tables ready for inserts: creates them if asked, and drops
+    * the indexes of create_indexes.sql.
+    *
+    * @param createTables run create_tables.sql first, dropping existing data
+    */
+   public void prepare(boolean createTables) throws Exception {
+      if (createTables) {
+         runScript(new File(this._sqlDir, "create_tables.sql"));
+      }
+      for (String index : indexStatements()) {
+         executeUpdate("DROP INDEX IF EXISTS " + indexName(index));
+      }
+   }//end prepare
+
+   /**
+    * Builds the indexes and the sales summaries, and analyzes the tables,
+    * once every row is in.
+    */
+   public void finish() throws Exception {
+      List<String> indexes = indexStatements();
+      long indexStart = System.nanoTime();
+      for (String index : indexes) {
+         executeUpdate(index);
+      }
+      System.out.println(String.format("%-14s %d built in %.1f s", "indexes", indexes.size(), (System.nanoTime() - indexStart) / 1e9));
+      long summaryStart = System.nanoTime();
+      for (String sql : SUMMARIES) {
+         executeUpdate(sql);
+      }
+      System.out.println(String.format("%-14s rebuilt in %.1f s", "summaries", (System.nanoTime() - summaryStart) / 1e9));
+      for (Table table : TABLES) {
+         executeUpdate("ANALYZE " + table.name);
+      }
+   }//end finish
+
+   /**
+    * Streams one file into its table: this thread parses, the writers
+    * insert. At most two chunks per writer are parsed ahead.
+    */
+   void load(final Table table, ExecutorService writers) throws Exception {
+      long start = System.nanoTime();
+      final AtomicLong rows = new AtomicLong();
+      final Semaphore ahead = new Semaphore(2 * this._writers);
+      CsvReader csv = new CsvReader(new BufferedReader(new InputStreamReader(
+         new FileInputStream(new File(this._dataDir, table.file)), StandardCharsets.UTF_8), 1 << 16));
+      try {
+         String[] header = csv.next();
+         if (header == null) {
+            throw new IOException(table.file + " is empty");
+         }
+         final String[] casts = columnTypes(table.name, header);
+         int perStatement = rowsPerStatement(header.length);
+
+         List<String[]> chunk = new ArrayList<String[]>(perStatement);
+         String[] record;
+         while (this._failure.get() == null && (record = csv.next()) != null) {
+            if (record.length != header.length) {
+               throw new IOException(table.file + " line " + (csv.line() - 1) + " has " + record.length
+                                     + " fields, expected " + header.length);
+            }
+            chunk.add(record);
+            if (chunk.size() == perStatement) {
+               submit(writers, ahead, table.name, header, casts, chunk, rows);
+               chunk = new ArrayList<String[]>(perStatement);
+            }
+         }
+         if (!chunk.isEmpty()) {
+            submit(writers, ahead, table.name, header, casts, chunk, rows);
+         }
+         // every chunk is written once all permits are back
+         ahead.acquire(2 * this._writers);
+      } finally {
+         csv.close();
+      }
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.println(String.format("%-14s %,d rows in %.1f s, %,.0f rows/s", table.name, rows.get(), seconds,
+                                       rows.get() / Math.max(seconds, 1e-9)));
+   }//end load
+
+   private void submit(ExecutorService writers, final Semaphore ahead, final String table, final String[] header,
+                       final String[] casts, final List<String[]> chunk, final AtomicLong rows) throws InterruptedException {
+      ahead.acquire();
+      writers.execute(new Runnable() {
+         public void run() {
+            try {
+               if (_failure.get() == null) {
+                  insert(table, header, casts, chunk);
+                  rows.addAndGet(chunk.size());
+               }
+            } catch (Exception e) {
+               fail(new Exception(table + ": " + e.getMessage(), e));
+            } finally {
+               ahead.release();
+            }
+         }
+      });
+   }//end submit
+
+   /**
+    * Returns how many rows of this many columns go in one INSERT.
+    */
+   int rowsPerStatement(int columns) {
+      return Math.max(1, Math.min(this._chunkSize, MAX_PARAMETERS / columns));
+   }
+
+   /**
+    * Inserts the rows with as few multi-row INSERTs as the chunk size
+    * allows, each in its own transaction.
+    */
+   void insertAll(String table, String[] header, String[] casts, List<String[]> rows) throws SQLException {
+      int perStatement = rowsPerStatement(header.length);
+      for (int from = 0; from < rows.size(); from += perStatement) {
+         insert(table, header, casts, rows.subList(from, Math.min(rows.size(), from + perStatement)));
+      }
+   }//end insertAll
+
+   /**
+    * Inserts the rows with one multi-row INSERT in its own transaction.
+    * Values are sent as text and cast to the column types.
+    */
+   void insert(String table, String[] header, String[] casts, final List<String[]> chunk) throws SQLException {
+      StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+      for (int c = 0; c < header.length; ++c) {
+         sql.append(c == 0 ? "" : ", ").append(header[c]);
+      }
+      sql.append(") VALUES ");
+      StringBuilder row = new StringBuilder("(");
+      for (int c = 0; c < header.length; ++c) {
+         row.append(c == 0 ? "" : ", ").append("CAST(? AS ").append(casts[c]).append(")");
+      }
+      row.append(")");
+      for (int r = 0; r < chunk.size(); ++r) {
+         sql.append(r == 0 ? "" : ", ").append(row);
+      }
+      final String statement = sql.toString();
+      final Object[] params = new Object[chunk.size() * header.length];
+      int i = 0;
+      for (String[] record : chunk) {
+         for (String value : record) {
+            params[i++] = value;
+         }
+      }
+      this._pool.execute(new ConnectionPool.Work<Integer>() {
+         public Integer run(PooledConnection conn) throws SQLException {
+            return conn.executeUpdate(statement, params);
+         }
+      });
+   }//end insert
+
+   /**
+    * Returns the type of each CSV column's table column, for the casts.
+    *
+    * @throws java.sql.SQLException when a header names an unknown column
+    */
+   String[] columnTypes(String table, String[] header) throws SQLException {
+      final StringBuilder sql = new StringBuilder("SELECT ");
+      for (int c = 0; c < header.length; ++c) {
+         sql.append(c == 0 ? "" : ", ").append(header[c]);
+      }
+      sql.append(" FROM ").append(table).append(" WHERE FALSE");
+      return this._pool.execute(new ConnectionPool.Work<String[]>() {
+         public String[] run(PooledConnection conn) throws SQLException {
+            ResultSet rs = conn.prepare(sql.toString()).executeQuery();
+            try {
+               ResultSetMetaData meta = rs.getMetaData();
+               String[] types = new String[meta.getColumnCount()];
+               for (int c = 0; c < types.length; ++c) {
+                  types[c] = meta.getColumnTypeName(c + 1);
+               }
+               return types;
+            } finally {
+               rs.close();
+            }
+         }
+      });
+   }//end columnTypes
+
+   /**
+    * Returns the CREATE INDEX statements of create_indexes.sql.
+    */
+   List<String> indexStatements() throws IOException {
+      List<String> indexes = new ArrayList<String>();
+      for (String statement : statements(new File(this._sqlDir, "create_indexes.sql"))) {
+         if (statement.toUpperCase(Locale.ROOT).startsWith("CREATE INDEX")) {
+            indexes.add(statement);
+         }
+      }
+      return indexes;
+   }//end indexStatements
+
+   // "CREATE INDEX name ON ..." -> name
+   static String indexName(String createIndex) {
+      return createIndex.trim().split("\\s+")[2];
+   }
+
+   /**
+    * Splits a script into statements on semicolons, dropping -- comments.
+    * Good enough for the scripts in sql/src, which quote no semicolons.
+    */
+   static List<String> statements(File script) throws IOException {
+      StringBuilder text = new StringBuilder();
+      for (String line : Files.readAllLines(script.toPath(), StandardCharsets.UTF_8)) {
+         int comment = line.indexOf("--");
+         text.append(comment >= 0 ? line.substring(0, comment) : line).append('\n');
+      }
+      List<String> statements = new ArrayList<String>();
+      for (String statement : text.toString().split(";")) {
+         if (!statement.trim().isEmpty()) {
+            statements.add(statement.trim());
+         }
+      }
+      return statements;
+   }//end statements
+
+   private void runScript(File script) throws Exception {
+      for (String statement : statements(script)) {
+         executeUpdate(statement);
+      }
+   }
+
+   private void executeUpdate(final String sql) throws SQLException {
+      this._pool.execute(new ConnectionPool.Work<Integer>() {
+         public Integer run(PooledConnection conn) throws SQLException {
+            // one-off statements, not worth a cached PreparedStatement
+            java.sql.Statement stmt = conn.getConnection().createStatement();
+            try {
+               return stmt.executeUpdate(sql);
+            } finally {
+               stmt.close();
+            }
+         }
+      });
+   }//end executeUpdate
+
+   private void fail(Exception e) {
+      this._failure.compareAndSet(null, e);
+   }
+}//end BulkLoader
@@ -0,0 +1,598 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class is a small fixed-bound pool of PostgreSQL connections. It keeps
+ * between Settings.minSize and Settings.maxSize physical connections open,
+ * hands them out one borrower at a time, and takes care of
+ *
+ *  - waiting at most Settings.borrowTimeoutMs for a free connection,
+ *  - validating connections that sat idle before handing them out,
+ *  - closing connections idle longer than Settings.idleTimeoutMs,
+ *  - logging the borrowing thread when a connection is held longer than
+ *    Settings.leakThresholdMs, with its stack if Settings.leakTrace is set.
+ *
+ * Callers normally go through execute() so a connection can never be
+ * forgotten; borrow() and release() are there for longer units of work.
+ */
+public class ConnectionPool {
+
+   /**
+    * Pool tuning knobs. The defaults suit a handful of terminal sessions; every
+    * value can be overridden with a -Dpizzastore.pool.<name>=<value> flag.
+    */
+   public static class Settings {
+      public String url;
+      public String user;
+      public String password;
+      public int minSize = 1;
+      public int maxSize = 8;
+      public long borrowTimeoutMs = 5000;
+      public long idleTimeoutMs = 60000;
+      public long validateAfterIdleMs = 1000;
+      public long leakThresholdMs = 30000;
+      // capture the borrower's stack on every borrow, for leak reports
+      public boolean leakTrace = false;
+      public long housekeepingMs = 1000;
+      public int statementCacheSize = 64;
+
+      public Settings(String url, String user, String password) {
+         this.url = url;
+         this.user = user;
+         this.password = password;
+      }
+
+      /**
+       * Returns the default settings with any -Dpizzastore.pool.* overrides.
+       */
+      public static Settings fromSystemProperties(String url, String user, String password) {
+         Settings s = new Settings(url, user, password);
+         s.minSize = Integer.getInteger("pizzastore.pool.minSize", s.minSize);
+         s.maxSize = Integer.getInteger("pizzastore.pool.maxSize", s.maxSize);
+         s.borrowTimeoutMs = Long.getLong("pizzastore.pool.borrowTimeoutMs", s.borrowTimeoutMs);
+         s.idleTimeoutMs = Long.getLong("pizzastore.pool.idleTimeoutMs", s.idleTimeoutMs);
+         s.validateAfterIdleMs = Long.getLong("pizzastore.pool.validateAfterIdleMs", s.validateAfterIdleMs);
+         s.leakThresholdMs = Long.getLong("pizzastore.pool.leakThresholdMs", s.leakThresholdMs);
+         s.leakTrace = Boolean.getBoolean("pizzastore.pool.leakTrace");
+         s.housekeepingMs = Long.getLong("pizzastore.pool.housekeepingMs", s.housekeepingMs);
+         s.statementCacheSize = Integer.getInteger("pizzastore.pool.statementCacheSize", s.statementCacheSize);
+         return s;
+      }
+   }//end Settings
+
+   /**
+    * A piece of work run on one borrowed connection.
+    */
+   public interface Work<T> {
+      T run(PooledConnection conn) throws SQLException;
+   }
+
+   /**
+    * A point-in-time copy of the pool counters.
+    */
+   public static class Stats {
+      public int active;
+      public int idle;
+      public int total;
+      public int waiters;
+      public long borrows;
+      public long timeouts;
+      public long created;
+      public long destroyed;
+      public long validationFailures;
+      public long leaksReported;
+      public long statementHits;
+      public long statementMisses;
+      public long statementEvictions;
+
+      public String toString() {
+         return "active=" + active + " idle=" + idle + " total=" + total + " waiters=" + waiters
+            + " borrows=" + borrows + " timeouts=" + timeouts
+            + " created=" + created + " destroyed=" + destroyed
+            + " validationFailures=" + validationFailures + " leaks=" + leaksReported
+            + " statementHits=" + statementHits + " statementMisses=" + statementMisses
+            + " statementEvictions=" + statementEvictions;
+      }
+   }//end Stats
+
+   private final Settings _settings;
+
+   // guards every field below it.
+   private final ReentrantLock _lock = new ReentrantLock();
+   private final Condition _available = this._lock.newCondition();
+
+   // idle connections, most recently used first.
+   private final ArrayDeque<PooledConnection> _idle = new ArrayDeque<PooledConnection>();
+   private final Map<PooledConnection, Boolean> _borrowed = new IdentityHashMap<PooledConnection, Boolean>();
+
+   // open connections plus the ones being opened right now.
+   private int _total = 0;
+   private int _waiters = 0;
+   private boolean _closed = false;
+
+   private final AtomicLong _borrows = new AtomicLong();
+   private final AtomicLong _timeouts = new AtomicLong();
+   private final AtomicLong _created = new AtomicLong();
+   private final AtomicLong _destroyed = new AtomicLong();
+   private final AtomicLong _validationFailures = new AtomicLong();
+   private final AtomicLong _leaksReported = new AtomicLong();
+
+   // time spent inside borrow(), whether the wait succeeded or not.
+   private final LatencyHistogram _waitTimes = new LatencyHistogram();
+
+   private final Thread _housekeeper;
+
+   /**
+    * Creates the pool and opens Settings.minSize connections right away, so
+    * a wrong URL or password is reported at startup.
+    *
+    * @param settings the pool configuration
+    * @throws java.sql.SQLException when the initial connections cannot be opened
+    */
+   public ConnectionPool(Settings settings) throws SQLException {
+      if (settings.minSize < 0 || settings.maxSize < 1 || settings.minSize > settings.maxSize) {
+         throw new IllegalArgumentException("invalid pool size: min=" + settings.minSize + " max=" + settings.maxSize);
+      }
+      this._settings = settings;
+
+      List<PooledConnection> initial = new ArrayList<PooledConnection>();
+      try {
+         for (int i = 0; i < settings.minSize; ++i) {
+            initial.add(open());
+         }
+      } catch (SQLException e) {
+         for (PooledConnection conn : initial) {
+            conn.close();
+         }
+         throw e;
+      }
+      this._lock.lock();
+      try {
+         this._idle.addAll(initial);
+         this._total = initial.size();
+      } finally {
+         this._lock.unlock();
+      }
+
+      this._housekeeper = new Thread(new Runnable() {
+         public void run() {
+            housekeep();
+         }
+      }, "pizzastore-pool-housekeeper");
+      this._housekeeper.setDaemon(true);
+      this._housekeeper.start();
+   }//end ConnectionPool
+
+   public Settings getSettings() {
+      return this._settings;
+   }
+
+   /**
+    * Runs the work on a borrowed connection and always returns it afterwards.
+    *
+    * @param work the statements to run
+    * @return whatever the work returns
+    * @throws java.sql.SQLException when borrowing or the work fails
+    */
+   public <T> T execute(Work<T> work) throws SQLException {
+      PooledConnection conn = borrow();
+      try {
+         return work.run(conn);
+      } finally {
+         release(conn);
+      }
+   }//end execute
+
+   /**
+    * Runs the work as one transaction on a borrowed connection: it is
+    * committed when the work returns and rolled back when it throws.
+    *
+    * @param work the statements to run
+    * @return whatever the work returns
+    * @throws java.sql.SQLException when borrowing, the work or the commit fails
+    */
+   public <T> T executeInTransaction(final Work<T> work) throws SQLException {
+      return execute(new Work<T>() {
+         public T run(PooledConnection conn) throws SQLException {
+            Connection c = conn.getConnection();
+            c.setAutoCommit(false);
+            boolean committed = false;
+            try {
+               T result = work.run(conn);
+               c.commit();
+               committed = true;
+               return result;
+            } finally {
+               if (!committed) {
+                  try {
+                     c.rollback();
+                  } catch (SQLException e) {
+                     // the original failure is more interesting.
+                  }
+               }
+               c.setAutoCommit(true);
+            }
+         }
+      });
+   }//end executeInTransaction
+
+   /**
+    * Borrows a connection, waiting up to Settings.borrowTimeoutMs when all
+    * of them are in use. Every borrow must be paired with a release().
+    *
+    * @return a validated connection in auto-commit mode
+    * @throws java.sql.SQLException on timeout, interruption or when no new
+    *         connection can be opened
+    */
+   public PooledConnection borrow() throws SQLException {
+      long start = System.nanoTime();
+      long deadline = start + TimeUnit.MILLISECONDS.toNanos(this._settings.borrowTimeoutMs);
+      try {
+         while (true) {
+            PooledConnection candidate = null;
+            boolean create = false;
+
+            this._lock.lock();
+            try {
+               while (candidate == null && !create) {
+                  if (this._closed) {
+                     throw new SQLException("Connection pool is closed");
+                  }
+                  candidate = this._idle.pollFirst();
+                  if (candidate == null) {
+                     if (this._total < this._settings.maxSize) {
+                        // reserve the slot now, open the connection outside the lock
+                        this._total++;
+                        create = true;
+                     } else {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                           this._timeouts.incrementAndGet();
+                           throw new SQLException("Timed out after " + this._settings.borrowTimeoutMs
+                              + " ms waiting for a database connection (" + statsLocked() + ")");
+                        }
+                        this._waiters++;
+                        try {
+                           this._available.awaitNanos(remaining);
+                        } catch (InterruptedException e) {
+                           Thread.currentThread().interrupt();
+                           throw new SQLException("Interrupted while waiting for a database connection");
+                        } finally {
+                           this._waiters--;
+                        }
+                     }
+                  }
+               }//end while
+            } finally {
+               this._lock.unlock();
+            }
+
+            if (create) {
+               try {
+                  candidate = open();
+               } catch (SQLException e) {
+                  forget();
+                  throw e;
+               }
+            } else if (!validate(candidate)) {
+               this._validationFailures.incrementAndGet();
+               destroy(candidate);
+               continue;
+            }
+
+            candidate.borrowedAt = System.nanoTime();
+            candidate.leakReported = false;
+            candidate.borrowedBy = Thread.currentThread().getName();
+            candidate.borrowTrace = this._settings.leakThresholdMs > 0 && this._settings.leakTrace
+               ? new Throwable("connection borrowed by " + candidate.borrowedBy)
+               : null;
+            this._lock.lock();
+            try {
+               this._borrowed.put(candidate, Boolean.TRUE);
+            } finally {
+               this._lock.unlock();
+            }
+            this._borrows.incrementAndGet();
+            return candidate;
+         }//end while
+      } finally {
+         this._waitTimes.recordSince(start);
+      }
+   }//end borrow
+
+   /**
+    * Returns a borrowed connection to the pool. A transaction left open by
+    * the borrower is rolled back; a broken connection is closed instead of
+    * being pooled.
+    *
+    * @param conn the connection obtained from borrow()
+    */
+   public void release(PooledConnection conn) {
+      if (conn == null) {
+         return;
+      }
+      boolean healthy = true;
+      try {
+         Connection c = conn.getConnection();
+         if (c.isClosed()) {
+            healthy = false;
+         } else if (!c.getAutoCommit()) {
+            c.rollback();
+            c.setAutoCommit(true);
+         }
+      } catch (SQLException e) {
+         healthy = false;
+      }
+
+      boolean pooled = false;
+      this._lock.lock();
+      try {
+         if (this._borrowed.remove(conn) == null) {
+            // released twice, or never ours.
+            return;
+         }
+         conn.borrowedBy = null;
+         conn.borrowTrace = null;
+         conn.lastUsedAt = System.nanoTime();
+         if (healthy && !this._closed) {
+            this._idle.addFirst(conn);
+            this._available.signal();
+            pooled = true;
+         }
+      } finally {
+         this._lock.unlock();
+      }
+      if (!pooled) {
+         destroy(conn);
+      }
+   }//end release
+
+   /**
+    * Closes every idle connection and stops handing out new ones.
+    * Connections still borrowed are closed when they are released.
+    */
+   public void close() {
+      List<PooledConnection> idle;
+      this._lock.lock();
+      try {
+         if (this._closed) {
+            return;
+         }
+         this._closed = true;
+         idle = new ArrayList<PooledConnection>(this._idle);
+         this._idle.clear();
+         this._available.signalAll();
+      } finally {
+         this._lock.unlock();
+      }
+      this._housekeeper.interrupt();
+      for (PooledConnection conn : idle) {
+         destroy(conn);
+      }
+   }//end close
+
+   /**
+    * Returns a copy of the pool counters.
+    */
+   public Stats getStats() {
+      this._lock.lock();
+      try {
+         return statsLocked();
+      } finally {
+         this._lock.unlock();
+      }
+   }//end getStats
+
+   /**
+    * Returns the histogram of time spent in borrow(), in nanoseconds.
+    */
+   public LatencyHistogram getWaitTimes() {
+      return this._waitTimes;
+   }
+
+   /**
+    * Returns the pool counters and borrow() wait times as Metrics gauges,
+    * so saturation shows on the metrics screen and in the dump.
+    */
+   public Metrics.Gauges gauges() {
+      return new Metrics.Gauges() {
+         public Map<String, Number> read() {
+            Stats s = getStats();
+            LatencyHistogram waits = getWaitTimes();
+            Map<String, Number> gauges = new LinkedHashMap<String, Number>();
+            gauges.put("active", s.active);
+            gauges.put("idle", s.idle);
+            gauges.put("total", s.total);
+            gauges.put("maxSize", _settings.maxSize);
+            gauges.put("waiters", s.waiters);
+            gauges.put("borrows", s.borrows);
+            gauges.put("timeouts", s.timeouts);
+            gauges.put("created", s.created);
+            gauges.put("destroyed", s.destroyed);
+            gauges.put("validationFailures", s.validationFailures);
+            gauges.put("leaks", s.leaksReported);
+            gauges.put("statementHits", s.statementHits);
+            gauges.put("statementMisses", s.statementMisses);
+            gauges.put("statementEvictions", s.statementEvictions);
+            gauges.put("waitP50Nanos", waits.percentile(50));
+            gauges.put("waitP99Nanos", waits.percentile(99));
+            gauges.put("waitMaxNanos", waits.max());
+            return gauges;
+         }
+      };
+   }//end gauges
+
+   private Stats statsLocked() {
+      Stats s = new Stats();
+      s.active = this._borrowed.size();
+      s.idle = this._idle.size();
+      s.total = this._total;
+      s.waiters = this._waiters;
+      s.borrows = this._borrows.get();
+      s.timeouts = this._timeouts.get();
+      s.created = this._created.get();
+      s.destroyed = this._destroyed.get();
+      s.validationFailures = this._validationFailures.get();
+      s.leaksReported = this._leaksReported.get();
+      for (PooledConnection conn : this._idle) {
+         addStatementStats(s, conn);
+      }
+      for (PooledConnection conn : this._borrowed.keySet()) {
+         addStatementStats(s, conn);
+      }
+      return s;
+   }//end statsLocked
+
+   private static void addStatementStats(Stats s, PooledConnection conn) {
+      StatementCache cache = conn.getStatementCache();
+      s.statementHits += cache.hits();
+      s.statementMisses += cache.misses();
+      s.statementEvictions += cache.evictions();
+   }
+
+   private PooledConnection open() throws SQLException {
+      Connection c = DriverManager.getConnection(this._settings.url, this._settings.user, this._settings.password);
+      this._created.incrementAndGet();
+      return new PooledConnection(c, this._settings.statementCacheSize);
+   }//end open
+
+   /**
+    * Checks a connection that sat idle for a while with a trivial query.
+    */
+   private boolean validate(PooledConnection conn) {
+      long idleNanos = System.nanoTime() - conn.lastUsedAt;
+      if (idleNanos < TimeUnit.MILLISECONDS.toNanos(this._settings.validateAfterIdleMs)) {
+         return true;
+      }
+      try {
+         if (conn.getConnection().isClosed()) {
+            return false;
+         }
+         ResultSet rs = conn.prepare("SELECT 1").executeQuery();
+         try {
+            return rs.next();
+         } finally {
+            rs.close();
+         }
+      } catch (SQLException e) {
+         return false;
+      }
+   }//end validate
+
+   private void destroy(PooledConnection conn) {
+      conn.close();
+      this._destroyed.incrementAndGet();
+      forget();
+   }//end destroy
+
+   // gives up the slot of a connection that is gone and wakes one waiter.
+   private void forget() {
+      this._lock.lock();
+      try {
+         this._total--;
+         this._available.signal();
+      } finally {
+         this._lock.unlock();
+      }
+   }//end forget
+
+   /**
+    * Background loop: evicts idle connections, tops the pool back up to
+    * Settings.minSize and reports leaked connections.
+    */
+   private void housekeep() {
+      while (true) {
+         try {
+            Thread.sleep(this._settings.housekeepingMs);
+         } catch (InterruptedException e) {
+            return;
+         }
+
+         List<PooledConnection> expired = new ArrayList<PooledConnection>();
+         List<PooledConnection> leaked = new ArrayList<PooledConnection>();
+         int missing;
+         long now = System.nanoTime();
+         long idleTimeout = TimeUnit.MILLISECONDS.toNanos(this._settings.idleTimeoutMs);
+         long leakThreshold = TimeUnit.MILLISECONDS.toNanos(this._settings.leakThresholdMs);
+
+         this._lock.lock();
+         try {
+            if (this._closed) {
+               return;
+            }
+            // the least recently used connections sit at the tail
+            int removable = this._total - this._settings.minSize;
+            Iterator<PooledConnection> it = this._idle.descendingIterator();
+            while (removable > 0 && it.hasNext()) {
+               PooledConnection conn = it.next();
+               if (now - conn.lastUsedAt < idleTimeout) {
+                  break;
+               }
+               it.remove();
+               expired.add(conn);
+               removable--;
+            }
+            if (this._settings.leakThresholdMs > 0) {
+               for (PooledConnection conn : this._borrowed.keySet()) {
+                  if (!conn.leakReported && now - conn.borrowedAt > leakThreshold) {
+                     conn.leakReported = true;
+                     leaked.add(conn);
+                  }
+               }
+            }
+            missing = this._settings.minSize - (this._total - expired.size());
+            if (missing > 0) {
+               this._total += missing;
+            }
+         } finally {
+            this._lock.unlock();
+         }
+
+         for (PooledConnection conn : expired) {
+            destroy(conn);
+         }
+         for (PooledConnection conn : leaked) {
+            Throwable where = conn.borrowTrace;
+            this._leaksReported.incrementAndGet();
+            System.err.println("Warning - database connection held for "
+               + TimeUnit.NANOSECONDS.toMillis(now - conn.borrowedAt) + " ms by " + conn.borrowedBy + ", possible leak"
+               + (where != null ? ":" : " (-Dpizzastore.pool.leakTrace=true shows where)"));
+            if (where != null) {
+               where.printStackTrace();
+            }
+         }
+         for (int i = 0; i < missing; ++i) {
+            try {
+               PooledConnection conn = open();
+               this._lock.lock();
+               try {
+                  if (this._closed) {
+                     conn.close();
+                     this._total--;
+                  } else {
+                     this._idle.addLast(conn);
+                     this._available.signal();
+                  }
+               } finally {
+                  this._lock.unlock();
+               }
+            } catch (SQLException e) {
+               forget();
+            }
+         }//end for
+      }//end while
+   }//end housekeep
+}//end ConnectionPool
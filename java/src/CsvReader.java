@@ -0,0 +1,131 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class reads CSV records one at a time from a stream, the way
+ * PostgreSQL's COPY ... CSV reads them:
+ *
+ *  - fields are separated by commas and records by LF or CRLF,
+ *  - a quoted field may hold commas, line breaks and doubled quotes,
+ *  - an empty unquoted field is NULL, an empty quoted one is "".
+ *
+ * Unlike COPY it also forgives the padding in data/items.csv: spaces
+ * around a field, and before or after its quotes, are dropped.
+ */
+public class CsvReader {
+
+   private final Reader _in;
+   private final char[] _buffer = new char[1 << 16];
+   private int _pos = 0;
+   private int _end = 0;
+   private long _line = 1;
+
+   private final StringBuilder _field = new StringBuilder();
+   private final List<String> _record = new ArrayList<String>();
+
+   public CsvReader(Reader in) {
+      this._in = in;
+   }
+
+   /**
+    * Returns the next record's fields, or null at the end of the input.
+    * Blank lines are skipped.
+    *
+    * @throws java.io.IOException when reading fails or a quote is never closed
+    */
+   public String[] next() throws IOException {
+      this._record.clear();
+      int c = read();
+      while (c == '\r' || c == '\n') {
+         c = read();
+      }
+      if (c < 0) {
+         return null;
+      }
+      long startLine = this._line;
+      while (true) {
+         // one field
+         this._field.setLength(0);
+         while (c == ' ' || c == '\t') {
+            c = read();
+         }
+         boolean quoted = c == '"';
+         if (quoted) {
+            while (true) {
+               c = read();
+               if (c < 0) {
+                  throw new IOException("Unclosed quote in the record starting on line " + startLine);
+               }
+               if (c == '"') {
+                  c = read();
+                  if (c != '"') {
+                     break;
+                  }
+               }
+               this._field.append((char) c);
+            }
+            while (c == ' ' || c == '\t') {
+               c = read();
+            }
+            this._record.add(this._field.toString());
+         } else {
+            while (c >= 0 && c != ',' && c != '\n' && c != '\r') {
+               this._field.append((char) c);
+               c = read();
+            }
+            int n = this._field.length();
+            while (n > 0 && (this._field.charAt(n - 1) == ' ' || this._field.charAt(n - 1) == '\t')) {
+               --n;
+            }
+            this._record.add(n == 0 ? null : this._field.substring(0, n));
+         }
+         if (c == ',') {
+            c = read();
+            continue;
+         }
+         if (c == '\r') {
+            c = read();
+            if (c != '\n' && c >= 0) {
+               unread();
+            }
+         } else if (c >= 0 && c != '\n') {
+            throw new IOException("Unexpected '" + (char) c + "' after a quoted field on line " + this._line);
+         }
+         return this._record.toArray(new String[this._record.size()]);
+      }//end while
+   }//end next
+
+   /**
+    * Returns the line the reader is on, for error messages.
+    */
+   public long line() {
+      return this._line;
+   }
+
+   public void close() throws IOException {
+      this._in.close();
+   }
+
+   private int read() throws IOException {
+      if (this._pos == this._end) {
+         this._end = this._in.read(this._buffer, 0, this._buffer.length);
+         this._pos = 0;
+         if (this._end <= 0) {
+            this._end = 0;
+            return -1;
+         }
+      }
+      char c = this._buffer[this._pos++];
+      if (c == '\n') {
+         ++this._line;
+      }
+      return c;
+   }//end read
+
+   // steps back over the character just read; it is never a line feed.
+   private void unread() {
+      --this._pos;
+   }
+}//end CsvReader
@@ -0,0 +1,630 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class generates a synthetic PizzaStore dataset of any size, either
+ * as the five data/*.csv files or straight into the database through
+ * BulkLoader.
+ *
+ * The data is skewed the way real orders are:
+ *
+ *  - users and stores are picked from Zipf distributions, so a few
+ *    heavy users and hot stores take a large share of the orders,
+ *  - items follow a Zipf mix over a shuffled menu,
+ *  - order times cluster around lunch and dinner, and orderIDs grow
+ *    with time over the covered days,
+ *  - totalPrice is the sum of price * quantity of the order's lines.
+ *
+ * Rows are generated in partitions of PARTITION_ROWS, each from its own
+ * random stream derived from the seed and its number, so the output is
+ * the same whatever the thread count. Partitions run in parallel, and at
+ * most two per thread are held in memory at once.
+ *
+ * Usage: java DataGenerator <orders> <outDir>
+ *        java DataGenerator <orders> <dbname> <port> <user> [sqlDir]
+ *
+ *   -Dpizzastore.gen.seed=N        random seed (default 166)
+ *   -Dpizzastore.gen.users=N       users (default orders / 10)
+ *   -Dpizzastore.gen.stores=N      stores (default orders / 10000, at least 10)
+ *   -Dpizzastore.gen.days=N        days of orders, ending 2024-12-31 (default 730)
+ *   -Dpizzastore.gen.menu=FILE     the menu to order from (default data/items.csv)
+ *   -Dpizzastore.gen.threads=N     generating threads (default the CPU count)
+ *
+ * The database is loaded with BulkLoader's -Dpizzastore.load.* settings;
+ * its tables should be empty, e.g. -Dpizzastore.load.createTables=true.
+ */
+public class DataGenerator {
+
+   static final int PARTITION_ROWS = 10000;
+   static final long DEFAULT_SEED = 166;
+   static final int DEFAULT_DAYS = 730;
+   static final LocalDate LAST_DAY = LocalDate.of(2024, 12, 31);
+
+   // skew of each choice; 0 is uniform, higher is more concentrated.
+   static final double USER_SKEW = 0.8;
+   static final double STORE_SKEW = 1.0;
+   static final double ITEM_SKEW = 1.1;
+
+   static final String[] USERS_HEADER = {"login", "password", "role", "favoriteItems", "phoneNum"};
+   static final String[] ITEMS_HEADER = {"itemName", "ingredients", "typeOfItem", "price", "description"};
+   static final String[] STORE_HEADER = {"storeID", "address", "city", "state", "isOpen", "reviewScore"};
+   static final String[] ORDER_HEADER = {"orderID", "login", "storeID", "totalPrice", "orderTimestamp", "orderStatus"};
+   static final String[] LINES_HEADER = {"orderID", "itemName", "quantity"};
+
+   static final String[] STATUSES = {"incomplete", "preparing", "out for delivery", "complete"};
+
+   static final String[][] CITIES = {
+      {"Los Angeles", "California"}, {"San Diego", "California"}, {"Riverside", "California"},
+      {"San Jose", "California"}, {"Houston", "Texas"}, {"Dallas", "Texas"}, {"Austin", "Texas"},
+      {"Miami", "Florida"}, {"Orlando", "Florida"}, {"New York City", "New York"}, {"Buffalo", "New York"},
+      {"Chicago", "Illinois"}, {"Phoenix", "Arizona"}, {"Seattle", "Washington"}, {"Denver", "Colorado"},
+      {"Atlanta", "Georgia"},
+   };
+   static final String[] STREETS = {"Main", "Oak", "Pine", "Maple", "Cedar", "Elm", "Washington", "Lake", "Hill", "Park"};
+   static final String[] SUFFIXES = {"Street", "Avenue", "Road", "Boulevard", "Lane", "Drive", "Court"};
+
+   /**
+    * Picks 1..n with probability proportional to 1 / k^skew, in constant
+    * time and memory, by rejection-inversion (Hoermann and Derflinger).
+    */
+   static final class Zipf {
+      private final int n;
+      private final double skew;
+      private final double hIntegralX1;
+      private final double hIntegralN;
+      private final double s;
+
+      Zipf(int n, double skew) {
+         this.n = n;
+         this.skew = skew;
+         this.hIntegralX1 = hIntegral(1.5) - 1;
+         this.hIntegralN = hIntegral(n + 0.5);
+         this.s = 2 - hIntegralInverse(hIntegral(2.5) - h(2));
+      }
+
+      int next(SplittableRandom random) {
+         while (true) {
+            double u = this.hIntegralN + random.nextDouble() * (this.hIntegralX1 - this.hIntegralN);
+            double x = hIntegralInverse(u);
+            int k = (int) (x + 0.5);
+            if (k < 1) {
+               k = 1;
+            } else if (k > this.n) {
+               k = this.n;
+            }
+            if (k - x <= this.s || u >= hIntegral(k + 0.5) - h(k)) {
+               return k;
+            }
+         }
+      }//end next
+
+      private double h(double x) {
+         return Math.exp(-this.skew * Math.log(x));
+      }
+
+      private double hIntegral(double x) {
+         double logX = Math.log(x);
+         return helper2((1 - this.skew) * logX) * logX;
+      }
+
+      private double hIntegralInverse(double x) {
+         double t = x * (1 - this.skew);
+         if (t < -1) {
+            t = -1;
+         }
+         return Math.exp(helper1(t) * x);
+      }
+
+      // log(1 + x) / x, and (exp(x) - 1) / x, accurate near 0
+      private static double helper1(double x) {
+         return Math.abs(x) > 1e-8 ? Math.log1p(x) / x : 1 - x * (0.5 - x * (1 / 3.0 - 0.25 * x));
+      }
+
+      private static double helper2(double x) {
+         return Math.abs(x) > 1e-8 ? Math.expm1(x) / x : 1 + x * 0.5 * (1 + x / 3 * (1 + 0.25 * x));
+      }
+   }//end Zipf
+
+   /**
+    * The rows of one partition. For orders, lines holds their
+    * ItemsInOrder rows.
+    */
+   static final class Chunk {
+      final List<String[]> rows = new ArrayList<String[]>();
+      final List<String[]> lines = new ArrayList<String[]>();
+   }//end Chunk
+
+   private final long _seed;
+   private final long _orders;
+   private final int _users;
+   private final int _stores;
+   private final int _days;
+   private final int _threads;
+
+   // the menu: names, the row written to Items, prices in cents.
+   private final List<String[]> _items;
+   private final String[] _itemNames;
+   private final long[] _itemCents;
+
+   private final Zipf _userZipf;
+   private final Zipf _storeZipf;
+   private final Zipf _itemZipf;
+
+   // item rank - 1 -> menu position, a seeded shuffle.
+   private final int[] _itemByRank;
+
+   // day number -> "yyyy-MM-dd ".
+   private final String[] _dayPrefixes;
+
+   public DataGenerator(long seed, long orders, int users, int stores, int days, List<String[]> items, int threads) {
+      this._seed = seed;
+      this._orders = orders;
+      this._users = users;
+      this._stores = stores;
+      this._days = days;
+      this._threads = threads;
+      this._items = items;
+      this._itemNames = new String[items.size()];
+      this._itemCents = new long[items.size()];
+      for (int i = 0; i < items.size(); ++i) {
+         this._itemNames[i] = items.get(i)[0];
+         this._itemCents[i] = Math.round(Double.parseDouble(items.get(i)[3]) * 100);
+      }
+      this._userZipf = new Zipf(users, USER_SKEW);
+      this._storeZipf = new Zipf(stores, STORE_SKEW);
+      this._itemZipf = new Zipf(items.size(), ITEM_SKEW);
+
+      this._itemByRank = new int[items.size()];
+      SplittableRandom shuffle = random(-1, 0);
+      for (int i = 0; i < this._itemByRank.length; ++i) {
+         int j = shuffle.nextInt(i + 1);
+         this._itemByRank[i] = this._itemByRank[j];
+         this._itemByRank[j] = i;
+      }
+      this._dayPrefixes = new String[days];
+      LocalDate first = LAST_DAY.minusDays(days - 1);
+      for (int d = 0; d < days; ++d) {
+         this._dayPrefixes[d] = first.plusDays(d) + " ";
+      }
+   }//end DataGenerator
+
+   public static void main(String[] args) throws Exception {
+      if (args.length != 2 && args.length < 4) {
+         System.err.println(
+            "Usage: java [-classpath <classpath>] " + DataGenerator.class.getName() + " <orders> <outDir>\n"
+            + "       java [-classpath <classpath>] " + DataGenerator.class.getName()
+            + " <orders> <dbname> <port> <user> [sqlDir]");
+         return;
+      }
+      long orders = Long.parseLong(args[0]);
+      List<String[]> menu = readMenu(new File(System.getProperty("pizzastore.gen.menu", "data/items.csv")));
+      DataGenerator generator = new DataGenerator(
+         Long.getLong("pizzastore.gen.seed", DEFAULT_SEED), orders,
+         Integer.getInteger("pizzastore.gen.users", (int) Math.max(1, Math.min(Integer.MAX_VALUE, orders / 10))),
+         Integer.getInteger("pizzastore.gen.stores", (int) Math.max(10, Math.min(Integer.MAX_VALUE, orders / 10000))),
+         Integer.getInteger("pizzastore.gen.days", DEFAULT_DAYS), menu,
+         Integer.getInteger("pizzastore.gen.threads", Runtime.getRuntime().availableProcessors()));
+      try {
+         if (args.length == 2) {
+            generator.writeCsv(new File(args[1]));
+            return;
+         }
+         int chunkSize = Integer.getInteger("pizzastore.load.chunkSize", BulkLoader.DEFAULT_CHUNK_SIZE);
+         int writers = Integer.getInteger("pizzastore.load.writers", BulkLoader.DEFAULT_WRITERS);
+         ConnectionPool pool = BulkLoader.connect(args[1], args[2], args[3], writers);
+         try {
+            BulkLoader loader = new BulkLoader(pool, null, new File(args.length > 4 ? args[4] : "sql/src"), chunkSize, writers);
+            generator.load(loader, writers, Boolean.getBoolean("pizzastore.load.createTables"));
+         } finally {
+            pool.close();
+         }
+      } catch (Exception e) {
+         System.err.println("Generation failed: " + e.getMessage());
+         System.exit(1);
+      }
+   }//end main
+
+   /**
+    * Reads the menu rows from an items.csv.
+    */
+   static List<String[]> readMenu(File file) throws IOException {
+      CsvReader csv = new CsvReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+      try {
+         List<String[]> items = new ArrayList<String[]>();
+         csv.next();
+         String[] record;
+         while ((record = csv.next()) != null) {
+            items.add(record);
+         }
+         if (items.isEmpty()) {
+            throw new IOException(file + " has no items");
+         }
+         return items;
+      } finally {
+         csv.close();
+      }
+   }//end readMenu
+
+   /**
+    * Writes users.csv, items.csv, store.csv, foodorder.csv and
+    * itemsinorder.csv into the directory, in the layout BulkLoader and
+    * load_data.sql read.
+    */
+   public void writeCsv(File dir) throws Exception {
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+         throw new IOException("Cannot create " + dir);
+      }
+      long start = System.nanoTime();
+      Writer items = open(new File(dir, "items.csv"), ITEMS_HEADER);
+      try {
+         for (String[] item : this._items) {
+            writeRow(items, item);
+         }
+      } finally {
+         items.close();
+      }
+      ExecutorService threads = newExecutor(this._threads);
+      try {
+         writeTable(threads, 'u', this._users, new File(dir, "users.csv"), USERS_HEADER, null, null);
+         writeTable(threads, 's', this._stores, new File(dir, "store.csv"), STORE_HEADER, null, null);
+         writeTable(threads, 'o', this._orders, new File(dir, "foodorder.csv"), ORDER_HEADER,
+                    new File(dir, "itemsinorder.csv"), LINES_HEADER);
+      } finally {
+         threads.shutdownNow();
+      }
+      System.out.println(String.format("%-14s %.1f s", "total", (System.nanoTime() - start) / 1e9));
+   }//end writeCsv
+
+   // generates the table's partitions in parallel, writing them in order.
+   private void writeTable(ExecutorService threads, final char table, long count, File file, String[] header,
+                           File linesFile, String[] linesHeader) throws Exception {
+      long start = System.nanoTime();
+      long rows = 0;
+      long lines = 0;
+      Writer out = open(file, header);
+      Writer linesOut = linesFile == null ? null : open(linesFile, linesHeader);
+      try {
+         ArrayDeque<Future<Chunk>> ahead = new ArrayDeque<Future<Chunk>>();
+         long partitions = (count + PARTITION_ROWS - 1) / PARTITION_ROWS;
+         for (long p = 0; p < partitions || !ahead.isEmpty(); ) {
+            if (p < partitions && ahead.size() < 2 * this._threads) {
+               final long partition = p++;
+               ahead.add(threads.submit(new Callable<Chunk>() {
+                  public Chunk call() {
+                     return generate(table, partition);
+                  }
+               }));
+               continue;
+            }
+            Chunk chunk = get(ahead.poll());
+            for (String[] row : chunk.rows) {
+               writeRow(out, row);
+            }
+            for (String[] line : chunk.lines) {
+               writeRow(linesOut, line);
+            }
+            rows += chunk.rows.size();
+            lines += chunk.lines.size();
+         }//end for
+      } finally {
+         out.close();
+         if (linesOut != null) {
+            linesOut.close();
+         }
+      }
+      report(file.getName(), rows, start);
+      if (linesFile != null) {
+         report(linesFile.getName(), lines, start);
+      }
+   }//end writeTable
+
+   /**
+    * Inserts the dataset through the loader: Items, Users and Store, then
+    * the orders, each partition's FoodOrder rows before its ItemsInOrder
+    * rows. Indexes and summaries are built at the end.
+    */
+   public void load(final BulkLoader loader, int writers, boolean createTables) throws Exception {
+      long start = System.nanoTime();
+      loader.prepare(createTables);
+      final String[] itemCasts = loader.columnTypes("Items", ITEMS_HEADER);
+      final String[] userCasts = loader.columnTypes("Users", USERS_HEADER);
+      final String[] storeCasts = loader.columnTypes("Store", STORE_HEADER);
+      final String[] orderCasts = loader.columnTypes("FoodOrder", ORDER_HEADER);
+      final String[] lineCasts = loader.columnTypes("ItemsInOrder", LINES_HEADER);
+      loader.insertAll("Items", ITEMS_HEADER, itemCasts, this._items);
+
+      ExecutorService threads = newExecutor(writers);
+      try {
+         final AtomicLong users = new AtomicLong();
+         final AtomicLong stores = new AtomicLong();
+         long phaseStart = System.nanoTime();
+         insertPartitions(threads, writers, 'u', this._users, new Sink() {
+            public void write(Chunk chunk) throws SQLException {
+               loader.insertAll("Users", USERS_HEADER, userCasts, chunk.rows);
+               users.addAndGet(chunk.rows.size());
+            }
+         });
+         insertPartitions(threads, writers, 's', this._stores, new Sink() {
+            public void write(Chunk chunk) throws SQLException {
+               loader.insertAll("Store", STORE_HEADER, storeCasts, chunk.rows);
+               stores.addAndGet(chunk.rows.size());
+            }
+         });
+         report("Users", users.get(), phaseStart);
+         report("Store", stores.get(), phaseStart);
+
+         final AtomicLong orders = new AtomicLong();
+         final AtomicLong lines = new AtomicLong();
+         phaseStart = System.nanoTime();
+         insertPartitions(threads, writers, 'o', this._orders, new Sink() {
+            public void write(Chunk chunk) throws SQLException {
+               loader.insertAll("FoodOrder", ORDER_HEADER, orderCasts, chunk.rows);
+               loader.insertAll("ItemsInOrder", LINES_HEADER, lineCasts, chunk.lines);
+               orders.addAndGet(chunk.rows.size());
+               lines.addAndGet(chunk.lines.size());
+            }
+         });
+         report("FoodOrder", orders.get(), phaseStart);
+         report("ItemsInOrder", lines.get(), phaseStart);
+      } finally {
+         threads.shutdownNow();
+      }
+      loader.finish();
+      System.out.println(String.format("%-14s %.1f s", "total", (System.nanoTime() - start) / 1e9));
+   }//end load
+
+   /**
+    * Takes a generated partition, e.g. to insert it.
+    */
+   interface Sink {
+      void write(Chunk chunk) throws Exception;
+   }
+
+   // generates and writes every partition of the table, a few at a time,
+   // in no particular order; returns when all are written.
+   private void insertPartitions(ExecutorService threads, int parallel, final char table, long count, final Sink sink) throws Exception {
+      final Semaphore running = new Semaphore(parallel);
+      final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+      long partitions = (count + PARTITION_ROWS - 1) / PARTITION_ROWS;
+      for (long p = 0; p < partitions && failure.get() == null; ++p) {
+         final long partition = p;
+         running.acquire();
+         threads.execute(new Runnable() {
+            public void run() {
+               try {
+                  if (failure.get() == null) {
+                     sink.write(generate(table, partition));
+                  }
+               } catch (Exception e) {
+                  failure.compareAndSet(null, e);
+               } finally {
+                  running.release();
+               }
+            }
+         });
+      }//end for
+      running.acquire(parallel);
+      running.release(parallel);
+      if (failure.get() != null) {
+         throw failure.get();
+      }
+   }//end insertPartitions
+
+   /**
+    * Generates partition p of a table: 'u' users, 's' stores, 'o' orders
+    * with their lines.
+    */
+   Chunk generate(char table, long p) {
+      SplittableRandom random = random(table, p);
+      long from = p * PARTITION_ROWS;
+      long to = Math.min(from + PARTITION_ROWS, table == 'u' ? this._users : table == 's' ? this._stores : this._orders);
+      Chunk chunk = new Chunk();
+      for (long i = from; i < to; ++i) {
+         if (table == 'u') {
+            chunk.rows.add(user(i, random));
+         } else if (table == 's') {
+            chunk.rows.add(store(i, random));
+         } else {
+            order(i, random, chunk);
+         }
+      }
+      return chunk;
+   }//end generate
+
+   private String[] user(long i, SplittableRandom random) {
+      int role = random.nextInt(1000);
+      return new String[] {
+         login(i),
+         Long.toHexString(random.nextLong() & 0xFFFFFFFFFFL),
+         role < 5 ? "manager" : role < 25 ? "driver" : "customer",
+         this._itemNames[item(random)],
+         (200 + random.nextInt(800)) + "-" + (200 + random.nextInt(800)) + "-" + (1000 + random.nextInt(9000)),
+      };
+   }//end user
+
+   private String[] store(long i, SplittableRandom random) {
+      String[] city = CITIES[random.nextInt(CITIES.length)];
+      return new String[] {
+         String.valueOf(i + 1),
+         (1 + random.nextInt(9999)) + " " + STREETS[random.nextInt(STREETS.length)] + " "
+            + SUFFIXES[random.nextInt(SUFFIXES.length)],
+         city[0],
+         city[1],
+         random.nextInt(10) == 0 ? "no" : "yes",
+         String.valueOf(1 + random.nextInt(5)),
+      };
+   }//end store
+
+   private void order(long i, SplittableRandom random, Chunk chunk) {
+      String orderID = String.valueOf(i + 1);
+      // 1 to 6 distinct items, mostly 1 to 3
+      int count = 1;
+      while (count < 6 && random.nextInt(100) < 45) {
+         ++count;
+      }
+      int[] picked = new int[count];
+      long cents = 0;
+      for (int n = 0; n < count; ++n) {
+         int item;
+         do {
+            item = item(random);
+         } while (contains(picked, n, item));
+         picked[n] = item;
+         int q = random.nextInt(10);
+         int quantity = q < 7 ? 1 : q < 9 ? 2 : 3;
+         cents += this._itemCents[item] * quantity;
+         chunk.lines.add(new String[] {orderID, this._itemNames[item], String.valueOf(quantity)});
+      }
+      // orders spread evenly over the days, so IDs grow with time
+      int day = (int) (i * this._days / Math.max(1, this._orders));
+      int second = secondOfDay(random);
+      // only the last day's orders are still on their way
+      String status = day == this._days - 1 ? STATUSES[random.nextInt(STATUSES.length)] : "complete";
+      chunk.rows.add(new String[] {
+         orderID,
+         login(scatter(this._userZipf.next(random), this._users)),
+         String.valueOf(1 + scatter(this._storeZipf.next(random), this._stores)),
+         money(cents),
+         this._dayPrefixes[day] + twoDigits(second / 3600) + ":" + twoDigits(second / 60 % 60) + ":" + twoDigits(second % 60),
+         status,
+      });
+   }//end order
+
+   // a lunch peak around 12:30, a larger dinner peak around 18:45, and
+   // a thin spread over opening hours.
+   private static int secondOfDay(SplittableRandom random) {
+      int mix = random.nextInt(100);
+      double hour;
+      if (mix < 35) {
+         hour = 12.5 + gaussian(random) * 1.0;
+      } else if (mix < 80) {
+         hour = 18.75 + gaussian(random) * 1.25;
+      } else {
+         hour = 10 + random.nextDouble() * 13;
+      }
+      int second = (int) (hour * 3600);
+      return Math.max(0, Math.min(86399, second));
+   }//end secondOfDay
+
+   private int item(SplittableRandom random) {
+      return this._itemByRank[this._itemZipf.next(random) - 1];
+   }
+
+   // spreads ranks 1..n over 0..n-1, so the heaviest users or stores are
+   // not simply the first ones. 2654435761 is prime, so this is a
+   // permutation for any n below it.
+   static int scatter(int rank, int n) {
+      return (int) ((rank - 1) * 2654435761L % n);
+   }
+
+   static String login(long i) {
+      return "user" + i;
+   }
+
+   // one stream per partition of each table; -1 for the menu shuffle.
+   private SplittableRandom random(long table, long partition) {
+      return new SplittableRandom(this._seed * 0x9E3779B97F4A7C15L + table * 0xBF58476D1CE4E5B9L + partition);
+   }
+
+   private static double gaussian(SplittableRandom random) {
+      // Box-Muller; SplittableRandom has no nextGaussian before Java 17
+      double u = 1 - random.nextDouble();
+      return Math.sqrt(-2 * Math.log(u)) * Math.cos(2 * Math.PI * random.nextDouble());
+   }
+
+   private static boolean contains(int[] values, int size, int value) {
+      for (int i = 0; i < size; ++i) {
+         if (values[i] == value) {
+            return true;
+         }
+      }
+      return false;
+   }//end contains
+
+   static String money(long cents) {
+      return cents / 100 + "." + twoDigits((int) (cents % 100));
+   }
+
+   private static String twoDigits(int n) {
+      return n < 10 ? "0" + n : String.valueOf(n);
+   }
+
+   private static Writer open(File file, String[] header) throws IOException {
+      Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 16);
+      writeRow(out, header);
+      return out;
+   }//end open
+
+   /**
+    * Writes one CSV record; fields holding a comma, quote or line break
+    * are quoted, and null is written as an empty field.
+    */
+   static void writeRow(Writer out, String[] row) throws IOException {
+      for (int c = 0; c < row.length; ++c) {
+         if (c > 0) {
+            out.write(',');
+         }
+         String value = row[c];
+         if (value == null) {
+            continue;
+         }
+         if (value.isEmpty() || value.indexOf(',') >= 0 || value.indexOf('"') >= 0
+             || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+            out.write('"');
+            out.write(value.replace("\"", "\"\""));
+            out.write('"');
+         } else {
+            out.write(value);
+         }
+      }//end for
+      out.write('\n');
+   }//end writeRow
+
+   private static void report(String table, long rows, long start) {
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.println(String.format("%-14s %,d rows in %.1f s, %,.0f rows/s", table, rows, seconds,
+                                       rows / Math.max(seconds, 1e-9)));
+   }//end report
+
+   private static <T> T get(Future<T> future) throws Exception {
+      try {
+         return future.get();
+      } catch (ExecutionException e) {
+         throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+      }
+   }//end get
+
+   private static ExecutorService newExecutor(int threads) {
+      final AtomicInteger count = new AtomicInteger();
+      return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+         public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "pizzastore-gen-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+   }//end newExecutor
+}//end DataGenerator
@@ -0,0 +1,393 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class suggests items when a customer starts an order: the items
+ * they order most ("your usual") and the items most often ordered
+ * together with those.
+ *
+ * Everything comes from the real purchase history in ItemsInOrder, read
+ * in one streaming pass when the application starts and kept current as
+ * orders commit. Counts live in int arrays indexed by item ordinal, so a
+ * suggestion is a few array scans:
+ *
+ *  - together[a][b] is the number of orders containing both a and b,
+ *  - each user has a small array of ordinal and quantity pairs,
+ *  - popular[a] is the quantity ordered of a, for new customers.
+ *
+ * Until the first pass is done suggest() returns nothing rather than
+ * make the customer wait. Orders committed meanwhile are held back and
+ * counted afterwards, unless the pass already saw them. An order is
+ * reported after its commit, so the pass can see it before it reaches
+ * orderPlaced(); the orderIDs the pass saw are remembered until
+ * SEEN_RETENTION_MS after it ends, so such orders are not counted twice.
+ */
+public class ItemRecommender {
+
+   static final int DEFAULT_SUGGESTIONS = 5;
+   static final int LOAD_FETCH_SIZE = 10000;
+
+   // how long orderPlaced() still checks the orderIDs the pass saw; far
+   // longer than a commit takes to be reported.
+   static final long SEEN_RETENTION_MS = 60000;
+
+   /**
+    * What to show a customer starting an order.
+    */
+   public static final class Suggestions {
+      // the customer's most ordered items, most first.
+      public final List<String> usual;
+
+      // items often ordered with the usual ones, or the most popular
+      // items for a customer without history.
+      public final List<String> together;
+
+      Suggestions(List<String> usual, List<String> together) {
+         this.usual = usual;
+         this.together = together;
+      }
+
+      public boolean isEmpty() {
+         return this.usual.isEmpty() && this.together.isEmpty();
+      }
+   }//end Suggestions
+
+   static final Suggestions NONE = new Suggestions(Collections.<String>emptyList(), Collections.<String>emptyList());
+
+   // items one customer ordered: ordinals[i] was ordered quantities[i] times.
+   private static final class History {
+      int[] ordinals = new int[4];
+      int[] quantities = new int[4];
+      int size;
+
+      void add(int ordinal, int quantity) {
+         for (int i = 0; i < this.size; ++i) {
+            if (this.ordinals[i] == ordinal) {
+               this.quantities[i] += quantity;
+               return;
+            }
+         }
+         if (this.size == this.ordinals.length) {
+            this.ordinals = Arrays.copyOf(this.ordinals, this.size * 2);
+            this.quantities = Arrays.copyOf(this.quantities, this.size * 2);
+         }
+         this.ordinals[this.size] = ordinal;
+         this.quantities[this.size] = quantity;
+         ++this.size;
+      }//end add
+   }//end History
+
+   // all state below is guarded by this.
+
+   // itemName -> ordinal, and back.
+   private final Map<String, Integer> _ordinals = new HashMap<String, Integer>();
+   private String[] _names = new String[64];
+   private int _items = 0;
+
+   // together[a][b]: orders with both a and b; square, _names.length wide.
+   private int[][] _together = new int[64][64];
+   private int[] _popular = new int[64];
+
+   private final Map<String, History> _users = new HashMap<String, History>();
+   private long _orders = 0;
+
+   // orderID -> order committed while the first pass runs.
+   private Map<Integer, PlacedOrder> _heldBack = null;
+
+   // orderIDs the first pass counted, until _seenUntil (currentTimeMillis).
+   private BitSet _seen = null;
+   private long _seenUntil = 0;
+
+   private volatile boolean _ready = false;
+
+   /**
+    * Returns a recommender that reads ItemsInOrder on a background thread.
+    */
+   public static ItemRecommender forDatabase(final ConnectionPool pool) {
+      final ItemRecommender recommender = new ItemRecommender();
+      recommender.beginLoad();
+      Thread loader = new Thread(new Runnable() {
+         public void run() {
+            recommender.load(pool);
+         }
+      }, "pizzastore-recommender-load");
+      loader.setDaemon(true);
+      loader.start();
+      return recommender;
+   }//end forDatabase
+
+   /**
+    * Streams every order line, grouped by order, into the counts.
+    */
+   void load(ConnectionPool pool) {
+      boolean loaded = false;
+      try {
+         pool.execute(new ConnectionPool.Work<Void>() {
+            public Void run(PooledConnection conn) throws SQLException {
+               OrderLines lines = new OrderLines();
+               conn.executeQueryStreaming(
+                  "SELECT i.orderID, f.login, i.itemName, i.quantity FROM ItemsInOrder i "
+                     + "JOIN FoodOrder f ON f.orderID = i.orderID ORDER BY i.orderID",
+                  LOAD_FETCH_SIZE, lines);
+               lines.flush();
+               return null;
+            }
+         });
+         loaded = true;
+      } catch (Exception e) {
+         System.err.println("Unable to read order history, no item suggestions: " + e.getMessage());
+      } finally {
+         endLoad(loaded);
+      }
+   }//end load
+
+   // collects consecutive rows of one order and counts them together.
+   private final class OrderLines implements PooledConnection.RowHandler {
+      int orderID = -1;
+      String login = null;
+      String[] names = new String[16];
+      int[] quantities = new int[16];
+      int size = 0;
+
+      public void row(ResultSet rs) throws SQLException {
+         int id = rs.getInt(1);
+         if (id != this.orderID) {
+            flush();
+            this.orderID = id;
+            this.login = rs.getString(2);
+         }
+         if (this.size == this.names.length) {
+            this.names = Arrays.copyOf(this.names, this.size * 2);
+            this.quantities = Arrays.copyOf(this.quantities, this.size * 2);
+         }
+         this.names[this.size] = rs.getString(3);
+         this.quantities[this.size] = rs.getInt(4);
+         ++this.size;
+      }//end row
+
+      void flush() {
+         if (this.size > 0) {
+            loadedOrder(this.orderID, this.login, this.names, this.quantities, this.size);
+         }
+         this.size = 0;
+      }
+   }//end OrderLines
+
+   /**
+    * Starts holding back committed orders until endLoad().
+    */
+   synchronized void beginLoad() {
+      this._heldBack = new HashMap<Integer, PlacedOrder>();
+      this._seen = new BitSet();
+      this._seenUntil = Long.MAX_VALUE;
+   }
+
+   /**
+    * Counts one order read by the first pass.
+    */
+   synchronized void loadedOrder(int orderID, String login, String[] names, int[] quantities, int size) {
+      if (this._heldBack != null) {
+         // committed before the pass started reading, so counted here
+         this._heldBack.remove(orderID);
+      }
+      if (this._seen != null && orderID >= 0) {
+         this._seen.set(orderID);
+      }
+      count(login, names, quantities, size);
+   }//end loadedOrder
+
+   /**
+    * Counts the held back orders and, if the pass succeeded, starts
+    * answering suggest().
+    */
+   synchronized void endLoad(boolean loaded) {
+      Map<Integer, PlacedOrder> heldBack = this._heldBack;
+      this._heldBack = null;
+      if (heldBack != null) {
+         for (PlacedOrder order : heldBack.values()) {
+            if (!seenByLoad(order.orderID)) {
+               countOrder(order);
+            }
+         }
+      }
+      this._seenUntil = System.currentTimeMillis() + SEEN_RETENTION_MS;
+      this._ready = loaded;
+   }//end endLoad
+
+   /**
+    * Counts a committed order.
+    */
+   public synchronized void orderPlaced(PlacedOrder order) {
+      if (seenByLoad(order.orderID)) {
+         // the pass read it after the commit, before this call
+         return;
+      }
+      if (this._heldBack != null) {
+         this._heldBack.put(order.orderID, order);
+      } else {
+         countOrder(order);
+      }
+   }//end orderPlaced
+
+   // true when the first pass counted the order; forgets the orderIDs
+   // once SEEN_RETENTION_MS have passed since the end of the pass.
+   private boolean seenByLoad(int orderID) {
+      if (this._seen == null) {
+         return false;
+      }
+      if (this._heldBack == null && System.currentTimeMillis() > this._seenUntil) {
+         this._seen = null;
+         return false;
+      }
+      return orderID >= 0 && this._seen.get(orderID);
+   }//end seenByLoad
+
+   /**
+    * Returns up to k usual items of the customer and up to k items often
+    * ordered with them; nothing while the history is still being read.
+    */
+   public synchronized Suggestions suggest(String login, int k) {
+      if (!this._ready || k <= 0) {
+         return NONE;
+      }
+      History history = this._users.get(login);
+      int[] usual = history == null ? new int[0] : top(history.quantities, history.ordinals, history.size, k, null);
+
+      boolean[] skip = new boolean[this._items];
+      int[] scores;
+      if (usual.length == 0) {
+         scores = this._popular;
+      } else {
+         scores = new int[this._items];
+         for (int a : usual) {
+            skip[a] = true;
+            int[] row = this._together[a];
+            for (int b = 0; b < this._items; ++b) {
+               scores[b] += row[b];
+            }
+         }
+      }
+      int[] together = top(scores, null, this._items, k, skip);
+      return new Suggestions(names(usual), names(together));
+   }//end suggest
+
+   /**
+    * Returns true once the order history has been read.
+    */
+   public boolean isReady() {
+      return this._ready;
+   }
+
+   public synchronized String toString() {
+      return String.format("items=%d orders=%d users=%d ready=%b", this._items, this._orders, this._users.size(), this._ready);
+   }
+
+   private void countOrder(PlacedOrder order) {
+      int size = order.itemNames.size();
+      String[] names = order.itemNames.toArray(new String[size]);
+      int[] quantities = new int[size];
+      for (int i = 0; i < size; ++i) {
+         quantities[i] = order.quantities.get(i);
+      }
+      count(order.login, names, quantities, size);
+   }//end countOrder
+
+   // names are distinct within an order, as ItemsInOrder's key makes them.
+   private void count(String login, String[] names, int[] quantities, int size) {
+      int[] ordinals = new int[size];
+      for (int i = 0; i < size; ++i) {
+         ordinals[i] = ordinal(names[i]);
+      }
+      History history = this._users.get(login);
+      if (history == null) {
+         history = new History();
+         this._users.put(login, history);
+      }
+      for (int i = 0; i < size; ++i) {
+         int a = ordinals[i];
+         history.add(a, quantities[i]);
+         this._popular[a] += quantities[i];
+         int[] row = this._together[a];
+         for (int j = 0; j < size; ++j) {
+            if (j != i) {
+               ++row[ordinals[j]];
+            }
+         }
+      }
+      ++this._orders;
+   }//end count
+
+   private int ordinal(String name) {
+      String key = name.trim();
+      Integer ordinal = this._ordinals.get(key);
+      if (ordinal != null) {
+         return ordinal;
+      }
+      if (this._items == this._names.length) {
+         int capacity = this._items * 2;
+         this._names = Arrays.copyOf(this._names, capacity);
+         this._popular = Arrays.copyOf(this._popular, capacity);
+         int[][] together = new int[capacity][];
+         for (int a = 0; a < capacity; ++a) {
+            together[a] = a < this._items ? Arrays.copyOf(this._together[a], capacity) : new int[capacity];
+         }
+         this._together = together;
+      }
+      this._names[this._items] = key;
+      this._ordinals.put(key, this._items);
+      return this._items++;
+   }//end ordinal
+
+   // the ordinals of the k largest positive values, largest first; ties
+   // go to the lower ordinal. ordinals maps a position to its ordinal,
+   // null when positions are ordinals.
+   private static int[] top(int[] values, int[] ordinals, int size, int k, boolean[] skip) {
+      int[] best = new int[k];
+      int found = 0;
+      for (int p = 0; p < size; ++p) {
+         int ordinal = ordinals == null ? p : ordinals[p];
+         int value = values[p];
+         if (value <= 0 || (skip != null && skip[ordinal])) {
+            continue;
+         }
+         // insertion into the short sorted list of positions
+         int at = found;
+         while (at > 0 && better(values, ordinals, p, best[at - 1])) {
+            --at;
+         }
+         if (at >= k) {
+            continue;
+         }
+         System.arraycopy(best, at, best, at + 1, Math.min(found, k - 1) - at);
+         best[at] = p;
+         found = Math.min(found + 1, k);
+      }//end for
+      int[] top = new int[found];
+      for (int i = 0; i < found; ++i) {
+         top[i] = ordinals == null ? best[i] : ordinals[best[i]];
+      }
+      return top;
+   }//end top
+
+   private static boolean better(int[] values, int[] ordinals, int p, int q) {
+      if (values[p] != values[q]) {
+         return values[p] > values[q];
+      }
+      return (ordinals == null ? p : ordinals[p]) < (ordinals == null ? q : ordinals[q]);
+   }
+
+   private List<String> names(int[] ordinals) {
+      List<String> names = new ArrayList<String>(ordinals.length);
+      for (int ordinal : ordinals) {
+         names.add(this._names[ordinal]);
+      }
+      return names;
+   }//end names
+}//end ItemRecommender
@@ -0,0 +1,184 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class records durations into a fixed set of log-linear buckets, in
+ * the spirit of an HDR histogram. Every power of two is split into
+ * SUB_BUCKETS linear steps, so any reported value is within 1/SUB_BUCKETS
+ * of the recorded one. Recording is a couple of atomic adds and never
+ * locks or allocates, so it can sit on hot paths shared by many threads.
+ *
+ * Values are nanoseconds unless the caller decides otherwise.
+ */
+public class LatencyHistogram {
+
+   // linear steps per power of two; must be a power of two itself. 64
+   // keeps percentiles within 1.6% (30 KB of counts per histogram).
+   static final int SUB_BUCKET_BITS = 6;
+   static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+   // one row of sub buckets per possible bit length of a long.
+   private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+   private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+   private final AtomicLong _count = new AtomicLong();
+   private final AtomicLong _sum = new AtomicLong();
+   private final AtomicLong _max = new AtomicLong();
+
+   /**
+    * Records one value. Negative values are recorded as zero.
+    *
+    * @param value the value to record
+    */
+   public void record(long value) {
+      if (value < 0) {
+         value = 0;
+      }
+      this._counts.incrementAndGet(bucketOf(value));
+      this._count.incrementAndGet();
+      this._sum.addAndGet(value);
+
+      long max = this._max.get();
+      while (value > max && !this._max.compareAndSet(max, value)) {
+         max = this._max.get();
+      }
+   }//end record
+
+   /**
+    * Records the time elapsed since a System.nanoTime() reading.
+    *
+    * @param startNanos the reading taken when the operation started
+    * @return the recorded duration in nanoseconds
+    */
+   public long recordSince(long startNanos) {
+      long elapsed = System.nanoTime() - startNanos;
+      record(elapsed);
+      return elapsed;
+   }//end recordSince
+
+   public long count() {
+      return this._count.get();
+   }
+
+   public long sum() {
+      return this._sum.get();
+   }
+
+   public long max() {
+      return this._max.get();
+   }
+
+   public double mean() {
+      long count = count();
+      return count == 0 ? 0.0 : (double) sum() / count;
+   }
+
+   /**
+    * Returns the value at the given percentile, i.e. the upper bound of the
+    * bucket holding that rank. Concurrent recording may make the answer
+    * slightly stale but never inconsistent.
+    *
+    * @param percentile a value between 0 and 100
+    * @return the value at that percentile, or 0 when nothing was recorded
+    */
+   public long percentile(double percentile) {
+      long total = 0;
+      for (int i = 0; i < BUCKETS; ++i) {
+         total += this._counts.get(i);
+      }
+      if (total == 0) {
+         return 0;
+      }
+
+      long rank = (long) Math.ceil(total * Math.min(100.0, Math.max(0.0, percentile)) / 100.0);
+      if (rank < 1) {
+         rank = 1;
+      }
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; ++i) {
+         seen += this._counts.get(i);
+         if (seen >= rank) {
+            return Math.min(upperBoundOf(i), max());
+         }
+      }//end for
+      return max();
+   }//end percentile
+
+   /**
+    * Calls the visitor once per non-empty bucket, in increasing order.
+    *
+    * @param visitor receives the bucket's upper bound and its count
+    */
+   public void forEachBucket(BucketVisitor visitor) {
+      for (int i = 0; i < BUCKETS; ++i) {
+         long count = this._counts.get(i);
+         if (count != 0) {
+            visitor.visit(upperBoundOf(i), count);
+         }
+      }
+   }//end forEachBucket
+
+   /**
+    * Clears every recorded value.
+    */
+   public void reset() {
+      for (int i = 0; i < BUCKETS; ++i) {
+         this._counts.set(i, 0);
+      }
+      this._count.set(0);
+      this._sum.set(0);
+      this._max.set(0);
+   }//end reset
+
+   /**
+    * Formats the usual summary assuming the values are nanoseconds.
+    */
+   public String toString() {
+      return "count=" + count()
+         + " mean=" + formatNanos((long) mean())
+         + " p50=" + formatNanos(percentile(50))
+         + " p90=" + formatNanos(percentile(90))
+         + " p99=" + formatNanos(percentile(99))
+         + " p99.9=" + formatNanos(percentile(99.9))
+         + " max=" + formatNanos(max());
+   }
+
+   public static String formatNanos(long nanos) {
+      if (nanos < TimeUnit.MICROSECONDS.toNanos(10)) {
+         return nanos + "ns";
+      } else if (nanos < TimeUnit.MILLISECONDS.toNanos(10)) {
+         return (nanos / 1000) + "us";
+      } else if (nanos < TimeUnit.SECONDS.toNanos(10)) {
+         return (nanos / 1000000) + "ms";
+      }
+      return (nanos / 1000000000) + "s";
+   }//end formatNanos
+
+   /**
+    * Receives the buckets of a histogram, see forEachBucket().
+    */
+   public interface BucketVisitor {
+      void visit(long upperBound, long count);
+   }
+
+   static int bucketOf(long value) {
+      if (value < SUB_BUCKETS) {
+         return (int) value;
+      }
+      int magnitude = 63 - Long.numberOfLeadingZeros(value);
+      int shift = magnitude - SUB_BUCKET_BITS;
+      int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+      return (shift + 1) * SUB_BUCKETS + sub;
+   }//end bucketOf
+
+   static long upperBoundOf(int bucket) {
+      if (bucket < SUB_BUCKETS) {
+         return bucket;
+      }
+      int shift = bucket / SUB_BUCKETS - 1;
+      long sub = bucket % SUB_BUCKETS;
+      long lower = (SUB_BUCKETS + sub) << shift;
+      return lower + (1L << shift) - 1;
+   }//end upperBoundOf
+}//end LatencyHistogram
@@ -0,0 +1,229 @@
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class keeps the whole Items table in memory so browsing the menu
+ * costs no database calls. The menu is small and only changes through the
+ * manager's Update Menu actions, which call reload() after writing.
+ *
+ * Readers work on an immutable Snapshot fetched with one volatile read, so
+ * they never lock and never see a half-built menu. reload() builds the next
+ * snapshot aside and publishes it in one step.
+ */
+public class MenuCatalog {
+
+   /**
+    * One immutable version of the menu.
+    */
+   public static final class Snapshot {
+
+      // every item, cheapest first; ties broken by name.
+      private final MenuItem[] _byPrice;
+
+      // _byPrice[i].priceCents, for binary searches.
+      private final long[] _cents;
+
+      // trimmed typeOfItem -> items of that type, cheapest first.
+      private final Map<String, MenuItem[]> _byType;
+
+      // ingredient and keyword search over _byPrice.
+      private final MenuSearchIndex _search;
+
+      public final long loadedAt;
+
+      Snapshot(List<MenuItem> items) {
+         MenuItem[] sorted = items.toArray(new MenuItem[items.size()]);
+         Arrays.sort(sorted, BY_PRICE);
+         this._byPrice = sorted;
+         this._cents = new long[sorted.length];
+         for (int i = 0; i < sorted.length; ++i) {
+            this._cents[i] = sorted[i].priceCents;
+         }
+
+         Map<String, List<MenuItem>> groups = new HashMap<String, List<MenuItem>>();
+         for (MenuItem item : sorted) {
+            List<MenuItem> group = groups.get(item.type());
+            if (group == null) {
+               group = new ArrayList<MenuItem>();
+               groups.put(item.type(), group);
+            }
+            group.add(item);
+         }
+         Map<String, MenuItem[]> byType = new HashMap<String, MenuItem[]>();
+         for (Map.Entry<String, List<MenuItem>> e : groups.entrySet()) {
+            byType.put(e.getKey(), e.getValue().toArray(new MenuItem[e.getValue().size()]));
+         }
+         this._byType = byType;
+         this._search = new MenuSearchIndex(sorted);
+         this.loadedAt = System.currentTimeMillis();
+      }//end Snapshot
+
+      public int size() {
+         return this._byPrice.length;
+      }
+
+      /**
+       * Returns every item ordered by price.
+       */
+      public List<MenuItem> all(boolean ascending) {
+         return new Range(this._byPrice, 0, this._byPrice.length, ascending);
+      }
+
+      /**
+       * Returns the items costing at most maxPrice, ordered by price.
+       */
+      public List<MenuItem> atMost(BigDecimal maxPrice, boolean ascending) {
+         long cents = maxPrice.setScale(2, RoundingMode.FLOOR).movePointRight(2).longValue();
+         // first index whose price is above the bound
+         int lo = 0;
+         int hi = this._cents.length;
+         while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (this._cents[mid] <= cents) {
+               lo = mid + 1;
+            } else {
+               hi = mid;
+            }
+         }
+         return new Range(this._byPrice, 0, lo, ascending);
+      }//end atMost
+
+      /**
+       * Returns the items of one type, ordered by price. The type is matched
+       * exactly, ignoring surrounding spaces.
+       */
+      public List<MenuItem> ofType(String type, boolean ascending) {
+         MenuItem[] items = this._byType.get(type.trim());
+         if (items == null) {
+            return Collections.emptyList();
+         }
+         return new Range(items, 0, items.length, ascending);
+      }//end ofType
+
+      /**
+       * Returns the ingredient and keyword index of this menu; results
+       * come ordered by price like the other lookups.
+       */
+      public MenuSearchIndex search() {
+         return this._search;
+      }
+
+      /**
+       * Returns the item with the given name, or null.
+       */
+      public MenuItem find(String itemName) {
+         for (MenuItem item : this._byPrice) {
+            if (item.itemName.equals(itemName)) {
+               return item;
+            }
+         }
+         return null;
+      }//end find
+   }//end Snapshot
+
+   static final Comparator<MenuItem> BY_PRICE = new Comparator<MenuItem>() {
+      public int compare(MenuItem a, MenuItem b) {
+         int c = Long.compare(a.priceCents, b.priceCents);
+         return c != 0 ? c : a.itemName.compareTo(b.itemName);
+      }
+   };
+
+   // read-only view of part of a sorted array, in either direction.
+   private static final class Range extends AbstractList<MenuItem> {
+      private final MenuItem[] _items;
+      private final int _from;
+      private final int _to;
+      private final boolean _ascending;
+
+      Range(MenuItem[] items, int from, int to, boolean ascending) {
+         this._items = items;
+         this._from = from;
+         this._to = to;
+         this._ascending = ascending;
+      }
+
+      public MenuItem get(int index) {
+         if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size());
+         }
+         return this._ascending ? this._items[this._from + index] : this._items[this._to - 1 - index];
+      }
+
+      public int size() {
+         return this._to - this._from;
+      }
+   }//end Range
+
+   private final ConnectionPool _pool;
+   private final AtomicReference<Snapshot> _current = new AtomicReference<Snapshot>();
+
+   public MenuCatalog(ConnectionPool pool) {
+      this._pool = pool;
+   }
+
+   /**
+    * Returns the current menu, loading it on first use.
+    *
+    * @return the latest published snapshot
+    * @throws java.sql.SQLException when the first load fails
+    */
+   public Snapshot snapshot() throws SQLException {
+      Snapshot snapshot = this._current.get();
+      return snapshot != null ? snapshot : reload();
+   }//end snapshot
+
+   /**
+    * Reads Items again and publishes the result as the current snapshot.
+    * Reloads are serialized, so a reload started after a write commits
+    * always publishes last and the write is never lost.
+    *
+    * @return the newly published snapshot
+    * @throws java.sql.SQLException when Items cannot be read
+    */
+   public synchronized Snapshot reload() throws SQLException {
+      List<MenuItem> items = this._pool.execute(new ConnectionPool.Work<List<MenuItem>>() {
+         public List<MenuItem> run(PooledConnection conn) throws SQLException {
+            List<MenuItem> items = new ArrayList<MenuItem>();
+            ResultSet rs = conn.prepare("SELECT itemName, ingredients, typeOfItem, price, description FROM Items").executeQuery();
+            try {
+               while (rs.next()) {
+                  items.add(new MenuItem(rs.getString(1), rs.getString(2), rs.getString(3),
+                                         rs.getBigDecimal(4), rs.getString(5)));
+               }
+            } finally {
+               rs.close();
+            }
+            return items;
+         }
+      });
+      Snapshot snapshot = new Snapshot(items);
+      this._current.set(snapshot);
+      return snapshot;
+   }//end reload
+
+   /**
+    * Returns the display rows of the given items, for printformatted().
+    */
+   public static List<List<String>> rows(final List<MenuItem> items) {
+      return new AbstractList<List<String>>() {
+         public List<String> get(int index) {
+            return items.get(index).row;
+         }
+
+         public int size() {
+            return items.size();
+         }
+      };
+   }//end rows
+}//end MenuCatalog
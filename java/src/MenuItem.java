@@ -0,0 +1,44 @@
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class is one immutable row of the Items table.
+ */
+public class MenuItem {
+
+   public final String itemName;
+   public final String ingredients;
+   public final String typeOfItem;
+   public final BigDecimal price;
+   public final String description;
+
+   // price in cents, for cheap comparisons.
+   public final long priceCents;
+
+   // the row as printformatted() expects it, built once.
+   public final List<String> row;
+
+   MenuItem(String itemName, String ingredients, String typeOfItem, BigDecimal price, String description) {
+      this.itemName = itemName;
+      this.ingredients = ingredients;
+      this.typeOfItem = typeOfItem;
+      this.price = price;
+      this.description = description;
+      this.priceCents = price.movePointRight(2).longValue();
+      this.row = Collections.unmodifiableList(Arrays.asList(
+         itemName, ingredients, typeOfItem, price.toPlainString(), description));
+   }//end MenuItem
+
+   /**
+    * Returns the item type without the padding some rows were loaded with.
+    */
+   public String type() {
+      return this.typeOfItem.trim();
+   }
+
+   public String toString() {
+      return this.itemName + " (" + type() + ", " + this.price + ")";
+   }
+}//end MenuItem
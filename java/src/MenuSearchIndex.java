@@ -0,0 +1,181 @@
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * This class answers ingredient and keyword searches over one menu
+ * snapshot without scanning it. Each ingredient and each description word
+ * maps to the set of items that have it, as a BitSet of the items'
+ * positions in the snapshot; a search is a few AND / AND NOT operations
+ * over those sets.
+ *
+ * Ingredients are the comma-separated parts of Items.ingredients and
+ * match whole, ignoring case and surrounding spaces: "cheese" finds
+ * "Cheese" but not "Goat Cheese". Keywords are the words of the
+ * description, letters and digits only, also ignoring case.
+ *
+ * The index is immutable and built with its MenuCatalog.Snapshot, so it
+ * is rebuilt whenever the menu is reloaded after a change.
+ */
+public class MenuSearchIndex {
+
+   private final MenuItem[] _items;
+
+   // ingredient key -> items with that ingredient.
+   private final Map<String, BitSet> _ingredients;
+
+   // description word -> items whose description has it.
+   private final Map<String, BitSet> _words;
+
+   // ingredient key -> the name as first seen, for listing.
+   private final Map<String, String> _ingredientNames;
+
+   /**
+    * @param items the menu; an item's position is its bit in every set
+    */
+   MenuSearchIndex(MenuItem[] items) {
+      this._items = items;
+      Map<String, BitSet> ingredients = new HashMap<String, BitSet>();
+      Map<String, BitSet> words = new HashMap<String, BitSet>();
+      Map<String, String> names = new HashMap<String, String>();
+      for (int i = 0; i < items.length; ++i) {
+         if (items[i].ingredients != null) {
+            for (String ingredient : items[i].ingredients.split(",")) {
+               String key = key(ingredient);
+               if (key.isEmpty()) {
+                  continue;
+               }
+               set(ingredients, key, i);
+               if (!names.containsKey(key)) {
+                  names.put(key, ingredient.trim());
+               }
+            }
+         }
+         if (items[i].description != null) {
+            for (String word : words(items[i].description)) {
+               set(words, word, i);
+            }
+         }
+      }//end for
+      this._ingredients = ingredients;
+      this._words = words;
+      this._ingredientNames = names;
+   }//end MenuSearchIndex
+
+   /**
+    * Returns the items that have every ingredient in with, none of the
+    * ingredients in without, and every word in keywords.
+    *
+    * @return the matching items in snapshot order (cheapest first), or reversed
+    */
+   public List<MenuItem> search(Collection<String> with, Collection<String> without,
+                                Collection<String> keywords, boolean ascending) {
+      return items(matches(with, without, keywords), ascending);
+   }//end search
+
+   /**
+    * Returns the positions of the matching items, see search().
+    */
+   public BitSet matches(Collection<String> with, Collection<String> without, Collection<String> keywords) {
+      BitSet result = new BitSet(this._items.length);
+      result.set(0, this._items.length);
+      for (String ingredient : with) {
+         if (!and(result, this._ingredients.get(key(ingredient)))) {
+            return result;
+         }
+      }
+      for (String keyword : keywords) {
+         for (String word : words(keyword)) {
+            if (!and(result, this._words.get(word))) {
+               return result;
+            }
+         }
+      }
+      for (String ingredient : without) {
+         BitSet items = this._ingredients.get(key(ingredient));
+         if (items != null) {
+            result.andNot(items);
+         }
+      }
+      return result;
+   }//end matches
+
+   /**
+    * Returns the known ingredients, sorted ignoring case.
+    */
+   public List<String> ingredients() {
+      List<String> names = new ArrayList<String>(this._ingredientNames.values());
+      Collections.sort(names, String.CASE_INSENSITIVE_ORDER);
+      return names;
+   }//end ingredients
+
+   /**
+    * Returns the items whose bits are set, as a read-only list.
+    */
+   public List<MenuItem> items(BitSet positions, final boolean ascending) {
+      final int[] found = new int[positions.cardinality()];
+      int n = 0;
+      for (int i = positions.nextSetBit(0); i >= 0; i = positions.nextSetBit(i + 1)) {
+         found[n++] = i;
+      }
+      return new AbstractList<MenuItem>() {
+         public MenuItem get(int index) {
+            return _items[found[ascending ? index : found.length - 1 - index]];
+         }
+
+         public int size() {
+            return found.length;
+         }
+      };
+   }//end items
+
+   /**
+    * Returns the index key of an ingredient: trimmed, lower case.
+    */
+   static String key(String ingredient) {
+      return ingredient.trim().toLowerCase(Locale.ROOT);
+   }
+
+   /**
+    * Splits text into lower-cased words of letters and digits.
+    */
+   static List<String> words(String text) {
+      List<String> words = new ArrayList<String>();
+      int start = -1;
+      for (int i = 0; i <= text.length(); ++i) {
+         boolean inWord = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+         if (inWord && start < 0) {
+            start = i;
+         } else if (!inWord && start >= 0) {
+            words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+            start = -1;
+         }
+      }
+      return words;
+   }//end words
+
+   // result &= items; false once nothing can match.
+   private static boolean and(BitSet result, BitSet items) {
+      if (items == null) {
+         result.clear();
+         return false;
+      }
+      result.and(items);
+      return !result.isEmpty();
+   }//end and
+
+   private static void set(Map<String, BitSet> index, String key, int position) {
+      BitSet items = index.get(key);
+      if (items == null) {
+         items = new BitSet();
+         index.put(key, items);
+      }
+      items.set(position);
+   }//end set
+}//end MenuSearchIndex
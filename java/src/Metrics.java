@@ -0,0 +1,445 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class keeps a latency histogram, a row count and an error count
+ * per logical operation (LogIn, placeOrder, viewAllOrders, ...) and per
+ * SQL shape, i.e. per statement text with its '?' placeholders.
+ *
+ * Recording is a few atomic adds into a LatencyHistogram and two
+ * LongAdders, lock-free and allocation-free; looking a metric up is one
+ * ConcurrentHashMap get. Metrics are process-wide, so code as deep as
+ * PooledConnection can record without being handed anything. Turn them
+ * off with -Dpizzastore.metrics=false.
+ *
+ * Things that are not timed per call, such as the connection pool,
+ * register Gauges instead; their current values are read whenever the
+ * metrics are shown or dumped.
+ *
+ * The counts can be written as Prometheus text or JSON, and a Dumper
+ * rewrites a file with them periodically:
+ *
+ *   -Dpizzastore.metrics.file=FILE    where to write (default: no dump)
+ *   -Dpizzastore.metrics.format=prometheus|json
+ *                                     default json for *.json, else prometheus
+ *   -Dpizzastore.metrics.dumpMs=N     how often (default 10000)
+ */
+public class Metrics {
+
+   static final boolean ENABLED = !"false".equals(System.getProperty("pizzastore.metrics"));
+
+   // distinct SQL texts tracked; the rest are counted under OTHER_SQL.
+   static final int MAX_SQL_SHAPES = 1000;
+   static final String OTHER_SQL = "(other)";
+
+   static final long DEFAULT_DUMP_MS = 10000;
+   static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+   /**
+    * The numbers of one operation or SQL shape.
+    */
+   public static final class Metric {
+      public final String name;
+      final LatencyHistogram latencies = new LatencyHistogram();
+      final LongAdder rows = new LongAdder();
+      final LongAdder errors = new LongAdder();
+
+      Metric(String name) {
+         this.name = name;
+      }
+
+      /**
+       * Records one call that started at the System.nanoTime() reading.
+       *
+       * @param rows rows the call returned or changed
+       * @param ok false when the call threw; its time is still recorded
+       */
+      public void record(long startNanos, long rows, boolean ok) {
+         if (!ENABLED) {
+            return;
+         }
+         this.latencies.recordSince(startNanos);
+         if (ok) {
+            this.rows.add(rows);
+         } else {
+            this.errors.increment();
+         }
+      }//end record
+
+      public LatencyHistogram latencies() {
+         return this.latencies;
+      }
+
+      public long rows() {
+         return this.rows.sum();
+      }
+
+      public long errors() {
+         return this.errors.sum();
+      }
+   }//end Metric
+
+   /**
+    * The current values of one source, e.g. a connection pool.
+    */
+   public interface Gauges {
+      /**
+       * Returns name -> value, in display order. Names ending in Nanos
+       * are durations in nanoseconds.
+       */
+      Map<String, Number> read();
+   }
+
+   private static final ConcurrentHashMap<String, Metric> OPERATIONS = new ConcurrentHashMap<String, Metric>();
+   private static final ConcurrentHashMap<String, Metric> SQL = new ConcurrentHashMap<String, Metric>();
+
+   // source name -> its gauges, in name order.
+   private static final ConcurrentSkipListMap<String, Gauges> GAUGES = new ConcurrentSkipListMap<String, Gauges>();
+
+   private Metrics() {
+   }
+
+   /**
+    * Returns the metric of a logical operation, creating it on first use.
+    */
+   public static Metric operation(String name) {
+      Metric metric = OPERATIONS.get(name);
+      return metric != null ? metric : register(OPERATIONS, name);
+   }//end operation
+
+   /**
+    * Returns the metric of a SQL text, creating it on first use, or the
+    * shared one for OTHER_SQL once MAX_SQL_SHAPES texts are tracked.
+    */
+   public static Metric sql(String sql) {
+      Metric metric = SQL.get(sql);
+      if (metric != null) {
+         return metric;
+      }
+      return register(SQL, SQL.size() < MAX_SQL_SHAPES ? sql : OTHER_SQL);
+   }//end sql
+
+   private static Metric register(ConcurrentHashMap<String, Metric> metrics, String name) {
+      Metric created = new Metric(name);
+      Metric metric = metrics.putIfAbsent(name, created);
+      return metric == null ? created : metric;
+   }//end register
+
+   /**
+    * Returns the operations, the one with the most total time first.
+    */
+   public static List<Metric> operations() {
+      return byTotalTime(OPERATIONS);
+   }
+
+   /**
+    * Returns the SQL shapes, the one with the most total time first.
+    */
+   public static List<Metric> sqlShapes() {
+      return byTotalTime(SQL);
+   }
+
+   /**
+    * Shows the source's gauges with the metrics from now on, replacing any
+    * registered under the same name.
+    *
+    * @param source a camelCase name such as "pool"
+    */
+   public static void gauges(String source, Gauges gauges) {
+      GAUGES.put(source, gauges);
+   }
+
+   /**
+    * Reads every registered source, in source name order.
+    */
+   public static Map<String, Map<String, Number>> gauges() {
+      Map<String, Map<String, Number>> values = new LinkedHashMap<String, Map<String, Number>>();
+      for (Map.Entry<String, Gauges> e : GAUGES.entrySet()) {
+         values.put(e.getKey(), e.getValue().read());
+      }
+      return values;
+   }//end gauges
+
+   private static List<Metric> byTotalTime(ConcurrentHashMap<String, Metric> metrics) {
+      List<Metric> sorted = new ArrayList<Metric>(metrics.values());
+      Collections.sort(sorted, new Comparator<Metric>() {
+         public int compare(Metric a, Metric b) {
+            return Long.compare(b.latencies.sum(), a.latencies.sum());
+         }
+      });
+      return sorted;
+   }//end byTotalTime
+
+   /**
+    * Forgets every recorded value.
+    */
+   public static void reset() {
+      OPERATIONS.clear();
+      SQL.clear();
+   }
+
+   /**
+    * Returns one row per metric for printformatted(): name, count,
+    * errors, rows, mean, p50, p99, max.
+    *
+    * @param width how much of the name to show
+    */
+   public static List<List<String>> rows(List<Metric> metrics, int width) {
+      List<List<String>> rows = new ArrayList<List<String>>(metrics.size());
+      for (Metric metric : metrics) {
+         String name = metric.name.replaceAll("\\s+", " ").trim();
+         List<String> row = new ArrayList<String>(8);
+         row.add(name.length() > width ? name.substring(0, width - 3) + "..." : name);
+         row.add(String.valueOf(metric.latencies.count()));
+         row.add(String.valueOf(metric.errors()));
+         row.add(String.valueOf(metric.rows()));
+         row.add(LatencyHistogram.formatNanos((long) metric.latencies.mean()));
+         row.add(LatencyHistogram.formatNanos(metric.latencies.percentile(50)));
+         row.add(LatencyHistogram.formatNanos(metric.latencies.percentile(99)));
+         row.add(LatencyHistogram.formatNanos(metric.latencies.max()));
+         rows.add(row);
+      }
+      return rows;
+   }//end rows
+
+   /**
+    * Returns one row per gauge for printformatted(): name, value.
+    */
+   public static List<List<String>> gaugeRows(Map<String, Number> gauges) {
+      List<List<String>> rows = new ArrayList<List<String>>(gauges.size());
+      for (Map.Entry<String, Number> e : gauges.entrySet()) {
+         List<String> row = new ArrayList<String>(2);
+         row.add(e.getKey());
+         row.add(e.getKey().endsWith("Nanos") ? LatencyHistogram.formatNanos(e.getValue().longValue()) : format(e.getValue()));
+         rows.add(row);
+      }
+      return rows;
+   }//end gaugeRows
+
+   /**
+    * Returns every metric in the Prometheus text exposition format, as
+    * summaries in seconds plus row and error counters, followed by the
+    * gauges as pizzastore_<source>_<name>, durations in seconds.
+    */
+   public static String prometheus() {
+      StringBuilder out = new StringBuilder();
+      prometheus(out, "pizzastore_operation", "operation", operations());
+      prometheus(out, "pizzastore_sql", "sql", sqlShapes());
+      for (Map.Entry<String, Map<String, Number>> source : gauges().entrySet()) {
+         for (Map.Entry<String, Number> gauge : source.getValue().entrySet()) {
+            String name = gauge.getKey();
+            boolean nanos = name.endsWith("Nanos");
+            String metric = "pizzastore_" + snakeCase(source.getKey()) + "_"
+               + (nanos ? snakeCase(name.substring(0, name.length() - 5)) + "_seconds" : snakeCase(name));
+            out.append("# TYPE ").append(metric).append(" gauge\n");
+            out.append(metric).append(' ')
+               .append(nanos ? seconds(gauge.getValue().longValue()) : format(gauge.getValue())).append('\n');
+         }
+      }
+      return out.toString();
+   }//end prometheus
+
+   private static void prometheus(StringBuilder out, String prefix, String label, List<Metric> metrics) {
+      out.append("# TYPE ").append(prefix).append("_seconds summary\n");
+      for (Metric metric : metrics) {
+         String name = label + "=\"" + escapePrometheus(metric.name) + "\"";
+         for (double q : QUANTILES) {
+            out.append(prefix).append("_seconds{").append(name).append(",quantile=\"").append(q).append("\"} ")
+               .append(seconds(metric.latencies.percentile(q * 100))).append('\n');
+         }
+         out.append(prefix).append("_seconds_sum{").append(name).append("} ").append(seconds(metric.latencies.sum())).append('\n');
+         out.append(prefix).append("_seconds_count{").append(name).append("} ").append(metric.latencies.count()).append('\n');
+      }
+      out.append("# TYPE ").append(prefix).append("_rows_total counter\n");
+      for (Metric metric : metrics) {
+         out.append(prefix).append("_rows_total{").append(label).append("=\"").append(escapePrometheus(metric.name))
+            .append("\"} ").append(metric.rows()).append('\n');
+      }
+      out.append("# TYPE ").append(prefix).append("_errors_total counter\n");
+      for (Metric metric : metrics) {
+         out.append(prefix).append("_errors_total{").append(label).append("=\"").append(escapePrometheus(metric.name))
+            .append("\"} ").append(metric.errors()).append('\n');
+      }
+   }//end prometheus
+
+   /**
+    * Returns every metric as a JSON object with "operations" and "sql"
+    * members, each mapping a name to its numbers, and a "gauges" member
+    * mapping each source to its gauges; times in nanoseconds.
+    */
+   public static String json() {
+      StringBuilder out = new StringBuilder("{\n");
+      json(out, "operations", operations());
+      out.append(",\n");
+      json(out, "sql", sqlShapes());
+      out.append(",\n  \"gauges\": {");
+      boolean first = true;
+      for (Map.Entry<String, Map<String, Number>> source : gauges().entrySet()) {
+         out.append(first ? "\n" : ",\n").append("    \"").append(escapeJson(source.getKey())).append("\": {");
+         boolean firstGauge = true;
+         for (Map.Entry<String, Number> gauge : source.getValue().entrySet()) {
+            out.append(firstGauge ? "" : ", ").append('"').append(escapeJson(gauge.getKey())).append("\": ")
+               .append(format(gauge.getValue()));
+            firstGauge = false;
+         }
+         out.append('}');
+         first = false;
+      }
+      out.append(first ? "}" : "\n  }");
+      return out.append("\n}\n").toString();
+   }//end json
+
+   private static void json(StringBuilder out, String member, List<Metric> metrics) {
+      out.append("  \"").append(member).append("\": {");
+      for (int i = 0; i < metrics.size(); ++i) {
+         Metric metric = metrics.get(i);
+         LatencyHistogram l = metric.latencies;
+         out.append(i == 0 ? "\n" : ",\n").append("    \"").append(escapeJson(metric.name)).append("\": {")
+            .append("\"count\": ").append(l.count())
+            .append(", \"errors\": ").append(metric.errors())
+            .append(", \"rows\": ").append(metric.rows())
+            .append(", \"sumNanos\": ").append(l.sum())
+            .append(", \"meanNanos\": ").append((long) l.mean())
+            .append(", \"p50Nanos\": ").append(l.percentile(50))
+            .append(", \"p90Nanos\": ").append(l.percentile(90))
+            .append(", \"p99Nanos\": ").append(l.percentile(99))
+            .append(", \"p999Nanos\": ").append(l.percentile(99.9))
+            .append(", \"maxNanos\": ").append(l.max())
+            .append('}');
+      }//end for
+      out.append(metrics.isEmpty() ? "}" : "\n  }");
+   }//end json
+
+   /**
+    * Writes the metrics to the file, replacing it in one step so readers
+    * never see half a dump.
+    *
+    * @param json JSON when true, Prometheus text otherwise
+    */
+   public static void write(File file, boolean json) throws IOException {
+      File dir = file.getAbsoluteFile().getParentFile();
+      File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+      try {
+         Writer out = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8);
+         try {
+            out.write(json ? json() : prometheus());
+         } finally {
+            out.close();
+         }
+         Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+         tmp.delete();
+      }
+   }//end write
+
+   /**
+    * Rewrites a file with the metrics every few seconds on a daemon
+    * thread, and once more when closed.
+    */
+   public static final class Dumper {
+      public final File file;
+      public final boolean json;
+      private final Thread _thread;
+      private volatile boolean _closed = false;
+
+      Dumper(File file, boolean json, final long intervalMs) {
+         this.file = file;
+         this.json = json;
+         this._thread = new Thread(new Runnable() {
+            public void run() {
+               while (!_closed) {
+                  try {
+                     Thread.sleep(intervalMs);
+                  } catch (InterruptedException e) {
+                     return;
+                  }
+                  dump();
+               }
+            }
+         }, "pizzastore-metrics-dump");
+         this._thread.setDaemon(true);
+         this._thread.start();
+      }//end Dumper
+
+      void dump() {
+         try {
+            write(this.file, this.json);
+         } catch (IOException e) {
+            System.err.println("Unable to write metrics to " + this.file + ": " + e.getMessage());
+         }
+      }//end dump
+
+      public void close() {
+         this._closed = true;
+         this._thread.interrupt();
+         dump();
+      }
+   }//end Dumper
+
+   /**
+    * Starts the dump configured by -Dpizzastore.metrics.file, or returns
+    * null when it is not set or metrics are off.
+    */
+   public static Dumper dumperFromSystemProperties() {
+      String file = System.getProperty("pizzastore.metrics.file");
+      if (!ENABLED || file == null || file.trim().isEmpty()) {
+         return null;
+      }
+      String format = System.getProperty("pizzastore.metrics.format",
+                                         file.toLowerCase(Locale.ROOT).endsWith(".json") ? "json" : "prometheus");
+      return new Dumper(new File(file.trim()), format.equalsIgnoreCase("json"),
+                        Long.getLong("pizzastore.metrics.dumpMs", DEFAULT_DUMP_MS));
+   }//end dumperFromSystemProperties
+
+   private static String seconds(long nanos) {
+      return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+   }
+
+   // integers as they are, fractions with a few digits.
+   private static String format(Number value) {
+      if (value instanceof Double || value instanceof Float) {
+         return String.format(Locale.ROOT, "%.4f", value.doubleValue());
+      }
+      return String.valueOf(value.longValue());
+   }//end format
+
+   // statementHits -> statement_hits.
+   private static String snakeCase(String name) {
+      return name.replaceAll("([a-z0-9])([A-Z])", "$1_$2").toLowerCase(Locale.ROOT);
+   }
+
+   private static String escapePrometheus(String value) {
+      return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+   }
+
+   private static String escapeJson(String value) {
+      StringBuilder s = new StringBuilder(value.length() + 8);
+      for (int i = 0; i < value.length(); ++i) {
+         char c = value.charAt(i);
+         if (c == '"' || c == '\\') {
+            s.append('\\').append(c);
+         } else if (c < 0x20) {
+            s.append(String.format("\\u%04x", (int) c));
+         } else {
+            s.append(c);
+         }
+      }
+      return s.toString();
+   }//end escapeJson
+}//end Metrics
@@ -0,0 +1,81 @@
+import java.math.BigDecimal;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class is one order with its line items, as returned by
+ * PizzaStore.fetchOrderDetail(). Prices are the items' current menu
+ * prices, which may differ from what was paid (order.totalPrice).
+ */
+public class OrderDetail {
+
+   public final OrderSummary order;
+
+   // line items ordered by item name.
+   public final List<String> itemNames;
+   public final List<Integer> quantities;
+   public final List<BigDecimal> prices;
+
+   OrderDetail(OrderSummary order, List<String> itemNames, List<Integer> quantities, List<BigDecimal> prices) {
+      this.order = order;
+      this.itemNames = Collections.unmodifiableList(itemNames);
+      this.quantities = Collections.unmodifiableList(quantities);
+      this.prices = Collections.unmodifiableList(prices);
+   }//end OrderDetail
+
+   /**
+    * Reads a FoodOrder row joined with its items: the FoodOrder columns in
+    * table order, then itemName, quantity and price, one row per item. An
+    * order without items has one row with NULL item columns.
+    *
+    * @return the order, or null when the table is empty
+    */
+   static OrderDetail fromTable(ResultTable table) {
+      if (table.rowCount() == 0) {
+         return null;
+      }
+      List<String> names = new ArrayList<String>();
+      List<Integer> quantities = new ArrayList<Integer>();
+      List<BigDecimal> prices = new ArrayList<BigDecimal>();
+      for (int r = 0; r < table.rowCount(); ++r) {
+         if (table.isNull(r, 6)) {
+            continue;
+         }
+         names.add(table.getString(r, 6));
+         quantities.add(table.getInt(r, 7));
+         prices.add(table.getBigDecimal(r, 8));
+      }
+      return new OrderDetail(OrderSummary.fromTable(table, 0), names, quantities, prices);
+   }//end fromTable
+
+   /**
+    * Returns true once the order is complete; its rows no longer change.
+    */
+   public boolean isComplete() {
+      return this.order.orderStatus != null && this.order.orderStatus.trim().equalsIgnoreCase("complete");
+   }
+
+   /**
+    * Returns the line items as display rows: name, quantity, current price.
+    */
+   public List<List<String>> itemRows() {
+      return new AbstractList<List<String>>() {
+         public List<String> get(int index) {
+            BigDecimal price = prices.get(index);
+            return Arrays.asList(itemNames.get(index), String.valueOf(quantities.get(index)),
+                                 price == null ? null : price.toPlainString());
+         }
+
+         public int size() {
+            return itemNames.size();
+         }
+      };
+   }//end itemRows
+
+   public String toString() {
+      return this.order + ", " + this.itemNames.size() + " item(s)";
+   }
+}//end OrderDetail
@@ -0,0 +1,181 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class hands out FoodOrder.orderID values without a database round
+ * trip per order. It uses the hi/lo scheme: a database sequence hands out
+ * block numbers ("hi"), and each block covers blockSize consecutive IDs
+ * ("lo") that are given away from memory with an atomic counter. Only the
+ * thread that finds the current block exhausted goes back to the sequence.
+ *
+ * Since every process reserves whole blocks from the same sequence, IDs
+ * never collide across sessions. IDs left in a block when the process
+ * exits are simply skipped.
+ *
+ * The sequence counts IDs in steps of the block size: its INCREMENT BY is
+ * the block size, and nextval() returns the first ID of a block. Every
+ * process must use that size, so a different -Dpizzastore.orderIdBlockSize
+ * fails at startup instead of handing out overlapping blocks.
+ */
+public class OrderIdAllocator {
+
+   // sequence whose values start blocks, see create_tables.sql.
+   static final String ORDER_BLOCK_SEQUENCE = "foodorder_block_seq";
+
+   // pg_advisory_xact_lock() key held while a process seeds the sequence.
+   static final long SEED_LOCK = ORDER_BLOCK_SEQUENCE.hashCode();
+
+   static final int DEFAULT_BLOCK_SIZE = 50;
+
+   /**
+    * Reserves the next block number, normally nextval() on the sequence.
+    */
+   public interface BlockSource {
+      long nextBlock() throws SQLException;
+   }
+
+   // one reserved range of IDs: [next, end).
+   private static final class Block {
+      final AtomicLong next;
+      final long end;
+
+      Block(long first, long end) {
+         this.next = new AtomicLong(first);
+         this.end = end;
+      }
+   }//end Block
+
+   private final BlockSource _source;
+   private final int _blockSize;
+   private final Object _refillLock = new Object();
+   private volatile Block _current = null;
+
+   private final AtomicLong _blocksReserved = new AtomicLong();
+
+   /**
+    * Creates a new allocator
+    *
+    * @param source where block numbers come from
+    * @param blockSize how many IDs each block covers
+    */
+   public OrderIdAllocator(BlockSource source, int blockSize) {
+      if (blockSize <= 0) {
+         throw new IllegalArgumentException("blockSize must be positive: " + blockSize);
+      }
+      this._source = source;
+      this._blockSize = blockSize;
+   }//end OrderIdAllocator
+
+   /**
+    * Returns a new, never used order ID.
+    *
+    * @return the order ID
+    * @throws java.sql.SQLException when a new block cannot be reserved
+    */
+   public int next() throws SQLException {
+      while (true) {
+         Block block = this._current;
+         if (block != null) {
+            long id = block.next.getAndIncrement();
+            if (id < block.end) {
+               return (int) id;
+            }
+         }
+         refill(block);
+      }
+   }//end next
+
+   public int getBlockSize() {
+      return this._blockSize;
+   }
+
+   public long getBlocksReserved() {
+      return this._blocksReserved.get();
+   }
+
+   // replaces the exhausted block, unless another thread already did.
+   private void refill(Block exhausted) throws SQLException {
+      synchronized (this._refillLock) {
+         if (this._current != exhausted) {
+            return;
+         }
+         long hi = this._source.nextBlock();
+         long first = hi * this._blockSize;
+         long end = first + this._blockSize;
+         if (hi < 0 || end - 1 > Integer.MAX_VALUE) {
+            throw new SQLException("Order ID block " + hi + " is outside the orderID integer range");
+         }
+         this._blocksReserved.incrementAndGet();
+         this._current = new Block(first, end);
+      }
+   }//end refill
+
+   /**
+    * Creates an allocator backed by the order block sequence. The sequence
+    * is created when missing and moved past the highest orderID already in
+    * FoodOrder, so IDs written before the allocator existed are never
+    * reused. Processes starting together seed it one at a time, and it is
+    * only ever moved forward.
+    *
+    * @param pool where the sequence lives
+    * @param blockSize how many IDs each block covers
+    * @return the seeded allocator
+    * @throws java.sql.SQLException when the sequence cannot be prepared, or
+    *         its INCREMENT BY is not blockSize
+    */
+   public static OrderIdAllocator forDatabase(final ConnectionPool pool, final int blockSize) throws SQLException {
+      if (blockSize <= 0) {
+         throw new IllegalArgumentException("blockSize must be positive: " + blockSize);
+      }
+      pool.executeInTransaction(new ConnectionPool.Work<Void>() {
+         public Void run(PooledConnection conn) throws SQLException {
+            // released by the commit
+            queryLong(conn, "SELECT 0 FROM (SELECT pg_advisory_xact_lock(?)) l", SEED_LOCK);
+            conn.executeUpdate("CREATE SEQUENCE IF NOT EXISTS " + ORDER_BLOCK_SEQUENCE
+               + " INCREMENT BY " + blockSize + " MINVALUE 0 START WITH " + blockSize);
+            long increment = queryLong(conn, "SELECT seqincrement FROM pg_sequence WHERE seqrelid = CAST(? AS regclass)",
+               ORDER_BLOCK_SEQUENCE);
+            if (increment != blockSize) {
+               throw new SQLException(ORDER_BLOCK_SEQUENCE + " hands out blocks of " + increment
+                  + " order IDs, but -Dpizzastore.orderIdBlockSize is " + blockSize + "; use " + increment
+                  + ", or ALTER SEQUENCE " + ORDER_BLOCK_SEQUENCE + " INCREMENT BY " + blockSize
+                  + " while no session is running");
+            }
+            // the next nextval() must land strictly after the block holding
+            // MAX(orderID). Never moved back: other processes may be using it.
+            long last = queryLong(conn, "SELECT COALESCE(MAX(orderID), 0) / ? * ? FROM FoodOrder", blockSize, blockSize);
+            long next = queryLong(conn, "SELECT CASE WHEN is_called THEN last_value + ? ELSE last_value END FROM "
+               + ORDER_BLOCK_SEQUENCE, blockSize);
+            if (next < last + blockSize) {
+               queryLong(conn, "SELECT setval(CAST(? AS regclass), ?)", ORDER_BLOCK_SEQUENCE, last);
+            }
+            return null;
+         }
+      });
+
+      return new OrderIdAllocator(new BlockSource() {
+         public long nextBlock() throws SQLException {
+            return pool.execute(new ConnectionPool.Work<Long>() {
+               public Long run(PooledConnection conn) throws SQLException {
+                  // the first ID of the block, a multiple of blockSize
+                  return queryLong(conn, "SELECT nextval(CAST(? AS regclass))", ORDER_BLOCK_SEQUENCE) / blockSize;
+               }
+            });
+         }
+      }, blockSize);
+   }//end forDatabase
+
+   // the first column of the query's only row.
+   private static long queryLong(PooledConnection conn, String query, Object... params) throws SQLException {
+      ResultSet rs = conn.prepare(query, params).executeQuery();
+      try {
+         if (!rs.next()) {
+            throw new SQLException("No row from " + query);
+         }
+         return rs.getLong(1);
+      } finally {
+         rs.close();
+      }
+   }//end queryLong
+}//end OrderIdAllocator
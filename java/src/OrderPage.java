@@ -0,0 +1,67 @@
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Base64;
+
+/**
+ * This class is one page of order history, newest first, as returned by
+ * PizzaStore.fetchOrderPage(). Pages are addressed by keyset: a
+ * continuation token remembers the (orderTimestamp, orderID) of the row
+ * the page boundary sits on, so fetching page 1000 costs the same index
+ * seek as page 1 instead of skipping 999 pages with OFFSET.
+ *
+ * Tokens are opaque to callers; they only pass back what they received.
+ */
+public class OrderPage {
+
+   // FoodOrder rows of this page, newest first.
+   public final ResultTable orders;
+
+   // token for the older rows after this page, or null on the last page.
+   public final String nextToken;
+
+   // token for the newer rows before this page, or null on the first page.
+   public final String prevToken;
+
+   OrderPage(ResultTable orders, String nextToken, String prevToken) {
+      this.orders = orders;
+      this.nextToken = nextToken;
+      this.prevToken = prevToken;
+   }//end OrderPage
+
+   /**
+    * A decoded continuation token: where to seek and in which direction.
+    */
+   static final class Cursor {
+      // true to read rows older than the key, false for newer ones.
+      final boolean older;
+      final Timestamp orderTimestamp;
+      final int orderID;
+
+      Cursor(boolean older, Timestamp orderTimestamp, int orderID) {
+         this.older = older;
+         this.orderTimestamp = orderTimestamp;
+         this.orderID = orderID;
+      }
+   }//end Cursor
+
+   static String encode(boolean older, Timestamp orderTimestamp, int orderID) {
+      String raw = (older ? "N" : "P") + "|" + orderTimestamp.getTime() + "|" + orderTimestamp.getNanos() + "|" + orderID;
+      return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+   }//end encode
+
+   static Cursor decode(String token) throws SQLException {
+      try {
+         String raw = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+         String[] parts = raw.split("\\|");
+         if (parts.length != 4 || !(parts[0].equals("N") || parts[0].equals("P"))) {
+            throw new IllegalArgumentException(raw);
+         }
+         Timestamp ts = new Timestamp(Long.parseLong(parts[1]));
+         ts.setNanos(Integer.parseInt(parts[2]));
+         return new Cursor(parts[0].equals("N"), ts, Integer.parseInt(parts[3]));
+      } catch (IllegalArgumentException e) {
+         throw new SQLException("Invalid page token: " + token);
+      }
+   }//end decode
+}//end OrderPage
@@ -0,0 +1,304 @@
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class writes order status changes behind the caller's back. During
+ * a rush drivers update statuses constantly; instead of one autocommitted
+ * UPDATE each, changes are queued in memory and a background flusher
+ * writes them as one JDBC batch and one commit every flushMs, or sooner
+ * once batchSize orders are waiting.
+ *
+ * Repeated changes to the same order before a flush are coalesced, only
+ * the last status is written. pendingStatus() lets readers see a change
+ * that is queued or being written but not yet committed.
+ *
+ * When a batch fails because the database is unreachable, it is queued
+ * again and retried with the next flush. When the database rejects it,
+ * its changes are written one at a time and the ones rejected on their
+ * own are dropped and reported, so one bad change cannot hold back the
+ * others.
+ *
+ * close() writes whatever is left; it is called by PizzaStore.cleanup()
+ * and, should the program be killed, by a shutdown hook.
+ */
+public class OrderStatusWriter {
+
+   static final long DEFAULT_FLUSH_MS = 200;
+   static final int DEFAULT_BATCH_SIZE = 100;
+
+   /**
+    * Writes one batch of status changes in one transaction.
+    */
+   public interface Sink {
+      /**
+       * @param statuses orderID -> new status, in the order they were queued
+       */
+      void write(Map<Integer, String> statuses) throws SQLException;
+   }
+
+   private final Sink _sink;
+   private final long _flushNanos;
+   private final int _batchSize;
+
+   // orderID -> status not yet handed to the sink; guarded by _lock.
+   private LinkedHashMap<Integer, String> _pending = new LinkedHashMap<Integer, String>();
+
+   // the batch being written, still visible to readers; guarded by _lock.
+   private Map<Integer, String> _inFlight = Collections.emptyMap();
+
+   private final ReentrantLock _lock = new ReentrantLock();
+   private final Condition _full = this._lock.newCondition();
+
+   // held while a batch is written, so batches commit in the order they were taken.
+   private final Object _writeLock = new Object();
+
+   private boolean _closed = false;
+   private final Thread _flusher;
+   private final Thread _shutdownHook;
+
+   private final AtomicLong _submitted = new AtomicLong();
+   private final AtomicLong _coalesced = new AtomicLong();
+   private final AtomicLong _written = new AtomicLong();
+   private final AtomicLong _batches = new AtomicLong();
+   private final AtomicLong _failures = new AtomicLong();
+   private final AtomicLong _dropped = new AtomicLong();
+
+   /**
+    * Creates a new writer and starts its flusher thread.
+    *
+    * @param sink where batches are written
+    * @param flushMs the longest a change waits before it is written
+    * @param batchSize how many waiting orders trigger an early flush
+    */
+   public OrderStatusWriter(Sink sink, long flushMs, int batchSize) {
+      if (flushMs <= 0 || batchSize <= 0) {
+         throw new IllegalArgumentException("flushMs and batchSize must be positive: " + flushMs + ", " + batchSize);
+      }
+      this._sink = sink;
+      this._flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMs);
+      this._batchSize = batchSize;
+
+      this._flusher = new Thread(new Runnable() {
+         public void run() {
+            flushLoop();
+         }
+      }, "pizzastore-status-flusher");
+      this._flusher.setDaemon(true);
+      this._flusher.start();
+
+      this._shutdownHook = new Thread(new Runnable() {
+         public void run() {
+            close();
+         }
+      }, "pizzastore-status-shutdown");
+      Runtime.getRuntime().addShutdownHook(this._shutdownHook);
+   }//end OrderStatusWriter
+
+   /**
+    * Queues a status change. It replaces a change to the same order that
+    * has not been written yet.
+    *
+    * @throws java.lang.IllegalStateException when the writer is closed
+    */
+   public void submit(int orderID, String orderStatus) {
+      this._lock.lock();
+      try {
+         if (this._closed) {
+            throw new IllegalStateException("Order status writer is closed");
+         }
+         this._submitted.incrementAndGet();
+         if (this._pending.put(orderID, orderStatus) != null) {
+            this._coalesced.incrementAndGet();
+         }
+         if (this._pending.size() >= this._batchSize) {
+            this._full.signal();
+         }
+      } finally {
+         this._lock.unlock();
+      }
+   }//end submit
+
+   /**
+    * Returns the status an order will have once queued changes are
+    * written, or null when none is queued or being written.
+    */
+   public String pendingStatus(int orderID) {
+      this._lock.lock();
+      try {
+         String status = this._pending.get(orderID);
+         return status != null ? status : this._inFlight.get(orderID);
+      } finally {
+         this._lock.unlock();
+      }
+   }//end pendingStatus
+
+   /**
+    * Writes every queued change now and returns once they are committed.
+    *
+    * @throws java.sql.SQLException when the database is unreachable; the changes stay queued
+    */
+   public void flush() throws SQLException {
+      synchronized (this._writeLock) {
+         Map<Integer, String> batch = take();
+         if (!batch.isEmpty()) {
+            write(batch);
+         }
+      }
+   }//end flush
+
+   /**
+    * Stops the flusher and writes what is left. Safe to call twice.
+    */
+   public void close() {
+      this._lock.lock();
+      try {
+         if (this._closed) {
+            return;
+         }
+         this._closed = true;
+         this._full.signal();
+      } finally {
+         this._lock.unlock();
+      }
+      try {
+         this._flusher.join();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      try {
+         flush();
+      } catch (SQLException e) {
+         System.err.println("Lost " + queued() + " order status update(s): " + e.getMessage());
+      }
+      if (Thread.currentThread() != this._shutdownHook) {
+         try {
+            Runtime.getRuntime().removeShutdownHook(this._shutdownHook);
+         } catch (IllegalStateException e) {
+            // already shutting down.
+         }
+      }
+   }//end close
+
+   /**
+    * Returns how many orders have a change waiting to be written.
+    */
+   public int queued() {
+      this._lock.lock();
+      try {
+         return this._pending.size() + this._inFlight.size();
+      } finally {
+         this._lock.unlock();
+      }
+   }//end queued
+
+   public String toString() {
+      long batches = this._batches.get();
+      return String.format("submitted=%d coalesced=%d written=%d commits=%d (%.1f rows/commit) failures=%d dropped=%d queued=%d",
+                           this._submitted.get(), this._coalesced.get(), this._written.get(), batches,
+                           batches == 0 ? 0.0 : (double) this._written.get() / batches, this._failures.get(),
+                           this._dropped.get(), queued());
+   }//end toString
+
+   // swaps out the pending changes; they stay readable as _inFlight.
+   private Map<Integer, String> take() {
+      this._lock.lock();
+      try {
+         Map<Integer, String> batch = this._pending;
+         this._pending = new LinkedHashMap<Integer, String>();
+         this._inFlight = batch;
+         return batch;
+      } finally {
+         this._lock.unlock();
+      }
+   }//end take
+
+   private void write(Map<Integer, String> batch) throws SQLException {
+      // the changes to queue again when the database cannot be reached
+      Map<Integer, String> unwritten = batch;
+      try {
+         try {
+            writeBatch(batch);
+            unwritten = Collections.emptyMap();
+         } catch (SQLException e) {
+            this._failures.incrementAndGet();
+            if (ReplicaRouter.isConnectionFailure(e)) {
+               throw e;
+            }
+            // rejected: write the changes one at a time, dropping the ones rejected on their own
+            unwritten = new LinkedHashMap<Integer, String>(batch);
+            Iterator<Map.Entry<Integer, String>> changes = unwritten.entrySet().iterator();
+            while (changes.hasNext()) {
+               Map.Entry<Integer, String> change = changes.next();
+               try {
+                  writeBatch(Collections.singletonMap(change.getKey(), change.getValue()));
+               } catch (SQLException single) {
+                  if (ReplicaRouter.isConnectionFailure(single)) {
+                     throw single;
+                  }
+                  drop(change, single);
+               }
+               changes.remove();
+            }//end while
+         }
+      } finally {
+         this._lock.lock();
+         try {
+            this._inFlight = Collections.emptyMap();
+            // put the rest back, behind nothing: newer changes win
+            for (Map.Entry<Integer, String> e : unwritten.entrySet()) {
+               if (!this._pending.containsKey(e.getKey())) {
+                  this._pending.put(e.getKey(), e.getValue());
+               }
+            }
+         } finally {
+            this._lock.unlock();
+         }
+      }
+   }//end write
+
+   private void writeBatch(Map<Integer, String> batch) throws SQLException {
+      this._sink.write(Collections.unmodifiableMap(batch));
+      this._written.addAndGet(batch.size());
+      this._batches.incrementAndGet();
+   }//end writeBatch
+
+   private void drop(Map.Entry<Integer, String> change, SQLException e) {
+      this._dropped.incrementAndGet();
+      System.err.println("Dropped status '" + change.getValue() + "' of order " + change.getKey() + ": " + e.getMessage());
+   }//end drop
+
+   private void flushLoop() {
+      while (true) {
+         this._lock.lock();
+         try {
+            long deadline = System.nanoTime() + this._flushNanos;
+            long remaining = this._flushNanos;
+            while (!this._closed && this._pending.size() < this._batchSize && remaining > 0) {
+               try {
+                  remaining = this._full.awaitNanos(remaining);
+               } catch (InterruptedException e) {
+                  // nobody interrupts the flusher; keep waiting out the interval
+                  remaining = deadline - System.nanoTime();
+               }
+            }
+            if (this._closed) {
+               return;
+            }
+         } finally {
+            this._lock.unlock();
+         }
+         try {
+            flush();
+         } catch (Exception e) {
+            System.err.println("Unable to write order status updates, will retry: " + e.getMessage());
+         }
+      }//end while
+   }//end flushLoop
+}//end OrderStatusWriter
@@ -0,0 +1,82 @@
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class is one immutable row of the FoodOrder table, without its
+ * line items.
+ */
+public class OrderSummary {
+
+   public final int orderID;
+   public final String login;
+   public final int storeID;
+   public final BigDecimal totalPrice;
+   public final Timestamp orderTimestamp;
+   public final String orderStatus;
+
+   // the row as printformatted() expects it, built once.
+   public final List<String> row;
+
+   OrderSummary(int orderID, String login, int storeID, BigDecimal totalPrice, Timestamp orderTimestamp, String orderStatus) {
+      this.orderID = orderID;
+      this.login = login;
+      this.storeID = storeID;
+      this.totalPrice = totalPrice;
+      this.orderTimestamp = orderTimestamp;
+      this.orderStatus = orderStatus;
+      this.row = Collections.unmodifiableList(Arrays.asList(
+         String.valueOf(orderID), login, String.valueOf(storeID), totalPrice.toPlainString(),
+         ResultTable.formatTimestamp(orderTimestamp), orderStatus));
+   }//end OrderSummary
+
+   OrderSummary(PlacedOrder order) {
+      this(order.orderID, order.login, order.storeID, order.totalPrice, order.orderTimestamp, order.orderStatus);
+   }
+
+   /**
+    * Reads row r of a table with the FoodOrder columns in table order.
+    */
+   static OrderSummary fromTable(ResultTable table, int r) {
+      return new OrderSummary(table.getInt(r, 0), table.getString(r, 1), table.getInt(r, 2),
+                              table.getBigDecimal(r, 3), table.getTimestamp(r, 4), table.getString(r, 5));
+   }//end fromTable
+
+   /**
+    * Returns a copy of this order with another status.
+    */
+   public OrderSummary withStatus(String orderStatus) {
+      return new OrderSummary(this.orderID, this.login, this.storeID, this.totalPrice, this.orderTimestamp, orderStatus);
+   }
+
+   /**
+    * Returns true when this order sorts before the other one in history
+    * order: newest timestamp first, then highest ID.
+    */
+   boolean newerThan(OrderSummary other) {
+      int c = this.orderTimestamp.compareTo(other.orderTimestamp);
+      return c != 0 ? c > 0 : this.orderID > other.orderID;
+   }
+
+   /**
+    * Returns the display rows of the given orders, for printformatted().
+    */
+   public static List<List<String>> rows(final List<OrderSummary> orders) {
+      return new AbstractList<List<String>>() {
+         public List<String> get(int index) {
+            return orders.get(index).row;
+         }
+
+         public int size() {
+            return orders.size();
+         }
+      };
+   }//end rows
+
+   public String toString() {
+      return "order " + this.orderID + " by " + this.login + " (" + this.orderStatus + ")";
+   }
+}//end OrderSummary
@@ -11,18 +11,29 @@
  */
 
 
-import java.sql.DriverManager;
-import java.sql.Connection;
-import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.time.LocalDate;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.lang.Math;
 
 /**
@@ -32,14 +43,78 @@ import java.lang.Math;
  */
 public class PizzaStore {
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // rows fetched per round trip by executeQueryStreaming().
+   static final int STREAMING_FETCH_SIZE = Integer.getInteger("pizzastore.fetchSize", 500);
+
+   // orders shown per page of order history.
+   static final int ORDER_PAGE_SIZE = Integer.getInteger("pizzastore.pageSize", 20);
+
+   // longest orderStatus the FoodOrder table takes, varchar(50).
+   static final int ORDER_STATUS_LENGTH = 50;
+
+   // complete orders whose details are kept in memory.
+   static final int COMPLETED_ORDER_CACHE_SIZE = Integer.getInteger("pizzastore.completedOrderCacheSize", 256);
+
+   // indexes the queries below are written for, from sql/src/create_indexes.sql.
+   static final String[] EXPECTED_INDEXES = {
+      "index_foodorder_login_timestamp_id",   // a customer's orders, newest first
+      "index_foodorder_timestamp_id",         // every order, newest first
+      "index_items_type",                     // items by type
+      "index_itemsinorder_orderID"            // items of an order
+   };
+
+   // pool of physical database connections, borrowed per call or unit of work.
+   private ConnectionPool _pool = null;
+
+   // sends read-only queries to replicas when there are any.
+   private ReplicaRouter _router = null;
+
+   // runs independent queries side by side.
+   private AsyncQueries _async = null;
+
+   // hands out new FoodOrder.orderID values, a block at a time.
+   private OrderIdAllocator _orderIds = null;
+
+   // in-memory copy of the Items table, reloaded by the menu mutators.
+   private MenuCatalog _menu = null;
+
+   // in-memory copy of the Store table, indexed by city and state.
+   private StoreDirectory _stores = null;
+
+   // newest orders per user, for View Past 5 Order IDs.
+   private RecentOrdersCache _recentOrders = null;
+
+   // queues status changes in write-behind mode, otherwise null.
+   private OrderStatusWriter _statusWriter = null;
+
+   // sales figures for the manager reports, null when turned off.
+   private SalesAggregator _sales = null;
+
+   // "your usual" suggestions from the order history.
+   private ItemRecommender _recommender = null;
+
+   // rewrites -Dpizzastore.metrics.file periodically, otherwise null.
+   private Metrics.Dumper _metricsDumper = null;
+
+   // orderID -> detail of complete orders, which no longer change; least
+   // recently used first, guarded by itself.
+   private final LinkedHashMap<Integer, OrderDetail> _completedOrders = new LinkedHashMap<Integer, OrderDetail>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<Integer, OrderDetail> eldest) {
+         return size() > COMPLETED_ORDER_CACHE_SIZE;
+      }
+   };
+
+   // login -> number of times its role was changed by this process.
+   private final ConcurrentHashMap<String, AtomicLong> _roleVersions = new ConcurrentHashMap<String, AtomicLong>();
 
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
                                 new InputStreamReader(System.in));
 
+   // tables are printed through one buffered writer on standard out.
+   static final TableRenderer table = TableRenderer.stdout();
+
    /**
     * Creates a new instance of PizzaStore
     *
@@ -50,16 +125,62 @@ public class PizzaStore {
     * @throws java.sql.SQLException when failed to make a connection.
     */
    public PizzaStore(String dbname, String dbport, String user, String passwd) throws SQLException {
+      this(ConnectionPool.Settings.fromSystemProperties(
+              "jdbc:postgresql://localhost:" + dbport + "/" + dbname, user, passwd));
+   }//end PizzaStore
+
+   /**
+    * Creates a new instance of PizzaStore backed by a connection pool,
+    * reading from the replicas listed in -Dpizzastore.replicas if any
+    *
+    * @param settings the connection URL, credentials and pool sizing
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public PizzaStore(ConnectionPool.Settings settings) throws SQLException {
+      this(settings, ReplicaRouter.replicaUrlsFromSystemProperties());
+   }//end PizzaStore
+
+   /**
+    * Creates a new instance of PizzaStore backed by a connection pool on
+    * the primary and one on each read replica
+    *
+    * @param settings the primary's URL, credentials and pool sizing
+    * @param replicaUrls the replicas' URLs, possibly none
+    * @throws java.sql.SQLException when failed to make a connection.
+    */
+   public PizzaStore(ConnectionPool.Settings settings, List<String> replicaUrls) throws SQLException {
 
       System.out.print("Connecting to database...");
       try{
-         // constructs the connection URL
-         String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
-         System.out.println ("Connection URL: " + url + "\n");
-
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         System.out.println ("Connection URL: " + settings.url + "\n");
+
+         // opens the pool's initial physical connections
+         this._pool = new ConnectionPool(settings);
+         this._router = ReplicaRouter.forUrls(this._pool, replicaUrls);
+         this._async = AsyncQueries.fromSystemProperties();
+         this._orderIds = OrderIdAllocator.forDatabase(this._pool,
+            Integer.getInteger("pizzastore.orderIdBlockSize", OrderIdAllocator.DEFAULT_BLOCK_SIZE));
+         this._menu = new MenuCatalog(this._pool);
+         this._stores = new StoreDirectory(this._pool);
+         this._recentOrders = RecentOrdersCache.forDatabase(this._pool);
+         if (Boolean.getBoolean("pizzastore.statusWriteBehind")) {
+            this._statusWriter = new OrderStatusWriter(new OrderStatusWriter.Sink() {
+               public void write(Map<Integer, String> statuses) throws SQLException {
+                  writeStatuses(statuses);
+               }
+            }, Long.getLong("pizzastore.statusFlushMs", OrderStatusWriter.DEFAULT_FLUSH_MS),
+               Integer.getInteger("pizzastore.statusBatchSize", OrderStatusWriter.DEFAULT_BATCH_SIZE));
+         }
+         if (!"false".equals(System.getProperty("pizzastore.salesAggregator"))) {
+            this._sales = SalesAggregator.forDatabase(this._pool);
+         }
+         // the history pass is the biggest read there is
+         this._recommender = ItemRecommender.forDatabase(this._router.route(null));
+         Metrics.gauges("pool", this._pool.gauges());
+         Metrics.gauges("recentOrders", this._recentOrders.gauges());
+         this._metricsDumper = Metrics.dumperFromSystemProperties();
          System.out.println("Done");
+         warmUp();
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
          System.out.println("Make sure you started postgres on this machine");
@@ -67,65 +188,644 @@ public class PizzaStore {
       }//end catch
    }//end PizzaStore
 
+   /**
+    * Returns the names of the EXPECTED_INDEXES that do not exist in the
+    * database, e.g. because create_indexes.sql was never run.
+    *
+    * @return the missing index names, empty when all are there
+    * @throws java.sql.SQLException when the catalog cannot be read
+    */
+   public List<String> missingIndexes () throws SQLException {
+      Collection<String> present = new HashSet<String> ();
+      for (List<String> row : executeQueryAndReturnResult ("SELECT indexname FROM pg_indexes WHERE schemaname = current_schema()"))
+         present.add (row.get (0));
+      List<String> missing = new ArrayList<String> ();
+      for (String index : EXPECTED_INDEXES) {
+         // unquoted names are folded to lower case by PostgreSQL
+         if (!present.contains (index.toLowerCase ()))
+            missing.add (index);
+      }
+      return missing;
+   }//end missingIndexes
+
+   // loads the menu and the stores while the indexes are checked, so the
+   // start up waits for the slowest of the three; never fails it.
+   private void warmUp () {
+      CompletableFuture<MenuCatalog.Snapshot> menu = this._async.submit (this._pool, new Callable<MenuCatalog.Snapshot>() {
+         public MenuCatalog.Snapshot call () throws SQLException {
+            return _menu.reload ();
+         }
+      });
+      CompletableFuture<StoreDirectory.Snapshot> stores = this._async.submit (this._pool, new Callable<StoreDirectory.Snapshot>() {
+         public StoreDirectory.Snapshot call () throws SQLException {
+            return _stores.reload ();
+         }
+      });
+      warnMissingIndexes ();
+      try {
+         AsyncQueries.join (menu);
+         AsyncQueries.join (stores);
+      } catch (SQLException e) {
+         // they load again on first use
+         System.err.println ("Warning - unable to load the menu and stores: " + e.getMessage ());
+      }
+   }//end warmUp
+
+   // prints a warning for missing indexes; never fails the start up.
+   private void warnMissingIndexes () {
+      try {
+         List<String> missing = missingIndexes ();
+         if (!missing.isEmpty ()) {
+            System.err.println ("Warning - missing indexes " + missing
+               + ", order history and menu lookups will scan whole tables. Run sql/src/create_indexes.sql.");
+         }
+      } catch (SQLException e) {
+         System.err.println ("Warning - unable to check indexes: " + e.getMessage ());
+      }
+   }//end warnMissingIndexes
+
+   /**
+    * Returns the connection pool, e.g. to read its statistics or to run
+    * several statements on one connection.
+    */
+   public ConnectionPool getPool () {
+      return this._pool;
+   }//end getPool
+
+   /**
+    * Returns the router between the primary and the read replicas.
+    */
+   public ReplicaRouter getRouter () {
+      return this._router;
+   }//end getRouter
+
+   /**
+    * Returns the in-memory menu. Browsing it costs no database calls.
+    */
+   public MenuCatalog getMenu () {
+      return this._menu;
+   }//end getMenu
+
+   /**
+    * Returns the in-memory store directory, for finding stores by city.
+    */
+   public StoreDirectory getStores () {
+      return this._stores;
+   }//end getStores
+
+   /**
+    * Returns the cache of each user's newest orders, e.g. to read its
+    * hit ratio.
+    */
+   public RecentOrdersCache getRecentOrders () {
+      return this._recentOrders;
+   }//end getRecentOrders
+
+   /**
+    * Returns the sales figures behind the manager reports, or null when
+    * they are turned off (-Dpizzastore.salesAggregator=false).
+    */
+   public SalesAggregator getSales () {
+      return this._sales;
+   }//end getSales
+
+   /**
+    * Returns the periodic metrics dump, or null when none is configured.
+    */
+   public Metrics.Dumper getMetricsDumper () {
+      return this._metricsDumper;
+   }//end getMetricsDumper
+
+   /**
+    * Returns the item suggestions shown when an order is started.
+    */
+   public ItemRecommender getRecommender () {
+      return this._recommender;
+   }//end getRecommender
+
+   /**
+    * Starts a session for a user whose credentials were just checked.
+    *
+    * @param login the user's login
+    * @param role the user's role as read at log in
+    * @return the new session
+    */
+   public Session openSession (String login, String role) {
+      return new Session (this, login, role, roleVersion (login));
+   }//end openSession
+
+   /**
+    * Tells every session of the given user to read its role again, e.g.
+    * because a manager just changed it.
+    */
+   public void invalidateRole (String login) {
+      AtomicLong version = this._roleVersions.get (login);
+      if (version == null) {
+         AtomicLong created = new AtomicLong ();
+         version = this._roleVersions.putIfAbsent (login, created);
+         if (version == null)
+            version = created;
+      }
+      version.incrementAndGet ();
+   }//end invalidateRole
+
+   long roleVersion (String login) {
+      AtomicLong version = this._roleVersions.get (login);
+      return version == null ? 0 : version.get ();
+   }//end roleVersion
+
+   /**
+    * Returns a new order ID, usually without touching the database.
+    *
+    * @return an orderID no other session will get
+    * @throws java.sql.SQLException when a new block of IDs cannot be reserved
+    */
+   public int nextOrderID () throws SQLException {
+      return this._orderIds.next ();
+   }//end nextOrderID
+
+   /**
+    * Places an order as one transaction: all item prices are resolved with
+    * a single set-based lookup, then the FoodOrder header is inserted and
+    * every ItemsInOrder row goes out in one JDBC batch, followed by a single
+    * commit. Repeated item names are merged into one line. Nothing is
+    * written when any item is not on the menu.
+    *
+    * @param login the customer placing the order
+    * @param storeID the store the order is placed at
+    * @param itemNames the ordered item names, one per line
+    * @param quantities the quantity of each line
+    * @return the committed order
+    * @throws java.sql.SQLException when an item is unknown or a statement fails
+    */
+   public PlacedOrder submitOrder (final String login, final int storeID,
+                                   List<String> itemNames, List<Integer> quantities) throws SQLException {
+      Metrics.Metric metric = Metrics.operation ("placeOrder");
+      long start = System.nanoTime ();
+      long rowCount = -1;
+      try {
+         if (itemNames.isEmpty ()) {
+            throw new SQLException ("An order needs at least one item");
+         }
+         final Map<String, Integer> lines = new LinkedHashMap<String, Integer> ();
+         for (int i = 0; i < itemNames.size (); ++i) {
+            Integer previous = lines.get (itemNames.get (i));
+            lines.put (itemNames.get (i), quantities.get (i) + (previous == null ? 0 : previous));
+         }
+         final int orderID = nextOrderID ();
+
+         PlacedOrder placed = executeInTransaction (new ConnectionPool.Work<PlacedOrder>() {
+            public PlacedOrder run (PooledConnection conn) throws SQLException {
+               Map<String, BigDecimal> menuPrices = lookupPrices (conn, lines.keySet ());
+
+               List<String> names = new ArrayList<String> (lines.keySet ());
+               List<Integer> counts = new ArrayList<Integer> (lines.values ());
+               List<BigDecimal> prices = new ArrayList<BigDecimal> ();
+               List<String> unknown = new ArrayList<String> ();
+               BigDecimal total = BigDecimal.ZERO;
+               for (int i = 0; i < names.size (); ++i) {
+                  BigDecimal price = menuPrices.get (names.get (i));
+                  if (price == null) {
+                     unknown.add (names.get (i));
+                     continue;
+                  }
+                  prices.add (price);
+                  total = total.add (price.multiply (BigDecimal.valueOf (counts.get (i))));
+               }
+               if (!unknown.isEmpty ()) {
+                  throw new SQLException ("Not on the menu: " + String.join (", ", unknown));
+               }
+
+               String insertOrder = "INSERT INTO FoodOrder (orderID, login, storeID, totalPrice, orderTimestamp, orderStatus) "
+                  + "VALUES (?, ?, ?, ?, NOW(), 'incomplete') RETURNING orderTimestamp";
+               Timestamp placedAt = null;
+               Metrics.Metric statement = Metrics.sql (insertOrder);
+               long sent = System.nanoTime ();
+               ResultSet rs = null;
+               try {
+                  rs = conn.prepare (insertOrder, orderID, login, storeID, total).executeQuery ();
+                  rs.next ();
+                  placedAt = rs.getTimestamp (1);
+               } finally {
+                  if (rs != null)
+                     rs.close ();
+                  statement.record (sent, 1, placedAt != null);
+               }
+
+               String insertItems = "INSERT INTO ItemsInOrder (orderID, itemName, quantity) VALUES (?, ?, ?)";
+               statement = Metrics.sql (insertItems);
+               sent = System.nanoTime ();
+               boolean done = false;
+               PreparedStatement batch = conn.prepare (insertItems);
+               try {
+                  for (int i = 0; i < names.size (); ++i) {
+                     PooledConnection.bind (batch, orderID, names.get (i), counts.get (i));
+                     batch.addBatch ();
+                  }
+                  batch.executeBatch ();
+                  done = true;
+               } finally {
+                  batch.clearBatch ();
+                  statement.record (sent, names.size (), done);
+               }
+               return new PlacedOrder (orderID, login, storeID, total, placedAt, "incomplete", names, counts, prices);
+            }
+         });
+         this._router.wrote (login);
+         this._recentOrders.orderPlaced (new OrderSummary (placed));
+         if (this._sales != null)
+            this._sales.orderPlaced (placed);
+         this._recommender.orderPlaced (placed);
+         rowCount = placed.itemNames.size ();
+         return placed;
+      } finally {
+         metric.record (start, rowCount, rowCount >= 0);
+      }
+   }//end submitOrder
+
+   /**
+    * Sets the status of an order and updates the cached recent orders.
+    *
+    * In write-behind mode (-Dpizzastore.statusWriteBehind=true) the change
+    * is only queued and written with others a moment later; reads through
+    * this class see it right away. The order must exist and the status
+    * fit the column before it is queued, so the batch does not fail.
+    *
+    * @param orderID the order to update
+    * @param orderStatus the new status
+    * @return false when there is no such order
+    * @throws java.sql.SQLException when the status is too long or the update fails
+    */
+   public boolean setOrderStatus (int orderID, String orderStatus) throws SQLException {
+      Metrics.Metric metric = Metrics.operation ("updateOrderStatus");
+      long start = System.nanoTime ();
+      long rowCount = -1;
+      try {
+         if (orderStatus.length () > ORDER_STATUS_LENGTH)
+            throw new SQLException ("An order status can be at most " + ORDER_STATUS_LENGTH + " characters long");
+         synchronized (this._completedOrders) {
+            this._completedOrders.remove (orderID);
+         }
+         if (this._statusWriter != null) {
+            // a queued change for the order means it was looked up already
+            if (this._statusWriter.pendingStatus (orderID) == null
+                && executeQuery ("SELECT 1 FROM FoodOrder WHERE orderID = ?", orderID) == 0) {
+               rowCount = 0;
+               return false;
+            }
+            this._statusWriter.submit (orderID, orderStatus);
+            rowCount = 1;
+            return true;
+         }
+         // the old status comes back too, for the sales figures
+         List<List<String>> updated = executeQueryAndReturnResult (
+            "UPDATE FoodOrder f SET orderStatus = ? "
+               + "FROM (SELECT orderID, orderStatus FROM FoodOrder WHERE orderID = ? FOR UPDATE) old "
+               + "WHERE f.orderID = old.orderID RETURNING f.login, old.orderStatus", orderStatus, orderID);
+         rowCount = updated.size ();
+         if (updated.isEmpty ())
+            return false;
+         this._router.wrote (updated.get (0).get (0));
+         this._recentOrders.statusChanged (updated.get (0).get (0), orderID, orderStatus);
+         if (this._sales != null)
+            this._sales.statusChanged (updated.get (0).get (1), orderStatus);
+         return true;
+      } finally {
+         metric.record (start, rowCount, rowCount >= 0);
+      }
+   }//end setOrderStatus
+
+   /**
+    * Writes a batch of queued status changes for the OrderStatusWriter:
+    * one JDBC batch of UPDATEs and one commit, then the cached orders are
+    * brought up to date.
+    */
+   void writeStatuses (final Map<Integer, String> statuses) throws SQLException {
+      Map<Integer, String[]> owners = executeInTransaction (new ConnectionPool.Work<Map<Integer, String[]>>() {
+         public Map<Integer, String[]> run (PooledConnection conn) throws SQLException {
+            // whose orders they are and their old status, for the caches
+            // and the sales figures; locked until the batch commits
+            Object[] params = padToPowerOfTwo (statuses.keySet ());
+            String lockOrders = "SELECT orderID, login, orderStatus FROM FoodOrder WHERE orderID IN (" + placeholders (params.length) + ") FOR UPDATE";
+            Map<Integer, String[]> owners = new HashMap<Integer, String[]> ();
+            Metrics.Metric metric = Metrics.sql (lockOrders);
+            long start = System.nanoTime ();
+            boolean done = false;
+            ResultSet rs = null;
+            try {
+               rs = conn.prepare (lockOrders, params).executeQuery ();
+               while (rs.next ()) {
+                  owners.put (rs.getInt (1), new String[] {rs.getString (2), rs.getString (3)});
+               }
+               done = true;
+            } finally {
+               if (rs != null)
+                  rs.close ();
+               metric.record (start, owners.size (), done);
+            }
+
+            String updateStatus = "UPDATE FoodOrder SET orderStatus = ? WHERE orderID = ?";
+            metric = Metrics.sql (updateStatus);
+            start = System.nanoTime ();
+            done = false;
+            PreparedStatement batch = conn.prepare (updateStatus);
+            try {
+               for (Map.Entry<Integer, String> e : statuses.entrySet ()) {
+                  PooledConnection.bind (batch, e.getValue (), e.getKey ());
+                  batch.addBatch ();
+               }
+               batch.executeBatch ();
+               done = true;
+            } finally {
+               batch.clearBatch ();
+               metric.record (start, statuses.size (), done);
+            }
+            return owners;
+         }
+      });
+      for (Map.Entry<Integer, String[]> e : owners.entrySet ()) {
+         String orderStatus = statuses.get (e.getKey ());
+         this._router.wrote (e.getValue ()[0]);
+         this._recentOrders.statusChanged (e.getValue ()[0], e.getKey (), orderStatus);
+         if (this._sales != null)
+            this._sales.statusChanged (e.getValue ()[1], orderStatus);
+         synchronized (this._completedOrders) {
+            this._completedOrders.remove (e.getKey ());
+         }
+      }
+   }//end writeStatuses
+
+   /**
+    * Writes queued status changes now, e.g. before a query that reads
+    * orderStatus straight from the database.
+    */
+   public void flushStatusUpdates () throws SQLException {
+      if (this._statusWriter != null)
+         this._statusWriter.flush ();
+   }//end flushStatusUpdates
+
+   /**
+    * Returns the order with a queued status change applied, if it has one.
+    */
+   OrderSummary withPendingStatus (OrderSummary order) {
+      String status = this._statusWriter == null ? null : this._statusWriter.pendingStatus (order.orderID);
+      return status == null ? order : order.withStatus (status);
+   }//end withPendingStatus
+
+   /**
+    * Returns the newest orders of one user, or of every user when login
+    * is null, newest first, from the recent orders cache.
+    */
+   public List<OrderSummary> recentOrders (String login) throws SQLException {
+      Metrics.Metric metric = Metrics.operation ("viewRecentOrders");
+      long start = System.nanoTime ();
+      long rowCount = -1;
+      try {
+         List<OrderSummary> orders = login == null ? this._recentOrders.recentAll () : this._recentOrders.recent (login);
+         if (this._statusWriter != null) {
+            for (int i = 0; i < orders.size (); ++i) {
+               orders.set (i, withPendingStatus (orders.get (i)));
+            }
+         }
+         rowCount = orders.size ();
+         return orders;
+      } finally {
+         metric.record (start, rowCount, rowCount >= 0);
+      }
+   }//end recentOrders
+
+   /**
+    * Fetches an order with its line items and their current prices in one
+    * joined query. Complete orders are served from memory after the first
+    * fetch.
+    *
+    * @param orderID the order to fetch
+    * @param login only return the order if this user placed it, or null for any order
+    * @return the order, or null when there is no such order or another user placed it
+    * @throws java.sql.SQLException when the query fails
+    */
+   public OrderDetail fetchOrderDetail (int orderID, String login) throws SQLException {
+      Metrics.Metric metric = Metrics.operation ("viewOrderInfo");
+      long start = System.nanoTime ();
+      long rowCount = -1;
+      try {
+         OrderDetail detail;
+         synchronized (this._completedOrders) {
+            detail = this._completedOrders.get (orderID);
+         }
+         if (detail == null) {
+            detail = OrderDetail.fromTable (readQueryTyped (login,
+               "SELECT o.orderID, o.login, o.storeID, o.totalPrice, o.orderTimestamp, o.orderStatus, "
+                  + "i.itemName, i.quantity, m.price "
+                  + "FROM FoodOrder o LEFT JOIN ItemsInOrder i ON i.orderID = o.orderID "
+                  + "LEFT JOIN Items m ON m.itemName = i.itemName "
+                  + "WHERE o.orderID = ? ORDER BY i.itemName", orderID));
+            if (detail == null) {
+               rowCount = 0;
+               return null;
+            }
+            if (detail.isComplete ()) {
+               synchronized (this._completedOrders) {
+                  this._completedOrders.put (orderID, detail);
+               }
+            }
+         }
+         // someone else's order looks the same as a missing one
+         if (login != null && !login.equals (detail.order.login)) {
+            rowCount = 0;
+            return null;
+         }
+         rowCount = 1;
+         OrderSummary order = withPendingStatus (detail.order);
+         if (order != detail.order)
+            detail = new OrderDetail (order, detail.itemNames, detail.quantities, detail.prices);
+         return detail;
+      } finally {
+         metric.record (start, rowCount, rowCount >= 0);
+      }
+   }//end fetchOrderDetail
+
+   /**
+    * Fetches the price of every named item with one query. The IN list is
+    * padded to the next power of two by repeating the last name, so only a
+    * handful of statement shapes ever reach the statement cache.
+    *
+    * @return item name -> price, without entries for unknown items
+    */
+   static Map<String, BigDecimal> lookupPrices (PooledConnection conn, Collection<String> itemNames) throws SQLException {
+      Object[] params = padToPowerOfTwo (itemNames);
+      String sql = "SELECT itemName, price FROM Items WHERE itemName IN (" + placeholders (params.length) + ")";
+
+      Map<String, BigDecimal> prices = new HashMap<String, BigDecimal> ();
+      Metrics.Metric metric = Metrics.sql (sql);
+      long start = System.nanoTime ();
+      boolean done = false;
+      ResultSet rs = null;
+      try {
+         rs = conn.prepare (sql, params).executeQuery ();
+         while (rs.next ()) {
+            prices.put (rs.getString (1), rs.getBigDecimal (2));
+         }
+         done = true;
+      } finally {
+         if (rs != null)
+            rs.close ();
+         metric.record (start, prices.size (), done);
+      }
+      return prices;
+   }//end lookupPrices
+
+   /**
+    * Returns the values as IN list parameters, padded to the next power of
+    * two by repeating the last value. Padding limits the number of
+    * distinct statements the statement cache sees.
+    */
+   static Object[] padToPowerOfTwo (Collection<?> values) {
+      int width = Integer.highestOneBit (values.size ());
+      if (width < values.size ())
+         width <<= 1;
+      Object[] params = new Object[width];
+      int i = 0;
+      Object last = null;
+      for (Object value : values) {
+         params[i++] = last = value;
+      }
+      for (; i < width; ++i) {
+         params[i] = last;
+      }
+      return params;
+   }//end padToPowerOfTwo
+
+   // "?, ?, ..., ?" with n placeholders.
+   static String placeholders (int n) {
+      StringBuilder sql = new StringBuilder ();
+      for (int i = 0; i < n; ++i) {
+         sql.append (i == 0 ? "?" : ", ?");
+      }
+      return sql.toString ();
+   }//end placeholders
+
+   /**
+    * Fetches one page of order history, newest first, by seeking on
+    * (orderTimestamp, orderID) rather than skipping rows with OFFSET, so
+    * every page costs about the same however deep it is. The seeks are
+    * served by the matching composite indexes in create_indexes.sql.
+    *
+    * @param login only orders of this user, or null for every order
+    * @param pageSize the maximum number of orders on the page
+    * @param token a token from a previous page, or null for the newest orders
+    * @return the page with the tokens of its neighbours
+    * @throws java.sql.SQLException when the token is invalid or the query fails
+    */
+   public OrderPage fetchOrderPage (String login, int pageSize, String token) throws SQLException {
+      // a customer's own history is a different, far smaller read
+      Metrics.Metric metric = Metrics.operation (login == null ? "viewAllOrders" : "viewOrderHistory");
+      long start = System.nanoTime ();
+      long rowCount = -1;
+      try {
+         flushStatusUpdates ();
+         OrderPage.Cursor cursor = token == null ? null : OrderPage.decode (token);
+         boolean older = cursor == null || cursor.older;
+
+         StringBuilder sql = new StringBuilder (
+            "SELECT orderID, login, storeID, totalPrice, orderTimestamp, orderStatus FROM FoodOrder");
+         List<Object> params = new ArrayList<Object> ();
+         if (login != null) {
+            sql.append (" WHERE login = ?");
+            params.add (login);
+         }
+         if (cursor != null) {
+            sql.append (login != null ? " AND" : " WHERE");
+            sql.append (older ? " (orderTimestamp, orderID) < (?, ?)" : " (orderTimestamp, orderID) > (?, ?)");
+            params.add (cursor.orderTimestamp);
+            params.add (cursor.orderID);
+         }
+         // newer pages are read upwards from the cursor, then flipped
+         sql.append (older ? " ORDER BY orderTimestamp DESC, orderID DESC" : " ORDER BY orderTimestamp ASC, orderID ASC");
+         // one extra row tells whether there is anything beyond this page
+         sql.append (" LIMIT ?");
+         params.add (pageSize + 1);
+
+         ResultTable rows = readQueryTyped (login, sql.toString (), params.toArray ());
+         boolean more = rows.rowCount () > pageSize;
+         // newest first, without the look-ahead row
+         ResultTable orders = rows.view (0, Math.min (pageSize, rows.rowCount ()), !older);
+
+         String nextToken = null;
+         String prevToken = null;
+         int n = orders.rowCount ();
+         if (n > 0) {
+            if (older ? more : true) {
+               nextToken = OrderPage.encode (true, orders.getTimestamp (n - 1, 4), orders.getInt (n - 1, 0));
+            }
+            if (older ? cursor != null : more) {
+               prevToken = OrderPage.encode (false, orders.getTimestamp (0, 4), orders.getInt (0, 0));
+            }
+         }
+         rowCount = n;
+         return new OrderPage (orders, nextToken, prevToken);
+      } finally {
+         metric.record (start, rowCount, rowCount >= 0);
+      }
+   }//end fetchOrderPage
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
-    * @param sql the input SQL string
+    * @param sql the input SQL string, with '?' placeholders for values
+    * @param params the values bound to the placeholders
+    * @return the number of rows affected
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the update instruction
-      stmt.executeUpdate (sql);
-
-      // close the instruction
-      stmt.close ();
+   public int executeUpdate (final String sql, final Object... params) throws SQLException {
+      int rows = this._pool.execute (new ConnectionPool.Work<Integer>() {
+         public Integer run (PooledConnection conn) throws SQLException {
+            return conn.executeUpdate (sql, params);
+         }
+      });
+      // whose rows changed is unknown here, so every reader sees them
+      this._router.wrote (null);
+      return rows;
    }//end executeUpdate
 
+   /**
+    * Like executeUpdate(), for a write that only changes rows of the given
+    * user: only that user's reads go to the primary while the replica
+    * catches up.
+    *
+    * @param login the user whose rows the statement changes
+    * @param sql the input SQL string, with '?' placeholders for values
+    * @param params the values bound to the placeholders
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when update failed
+    */
+   public int writeUpdate (String login, final String sql, final Object... params) throws SQLException {
+      int rows = this._pool.execute (new ConnectionPool.Work<Integer>() {
+         public Integer run (PooledConnection conn) throws SQLException {
+            return conn.executeUpdate (sql, params);
+         }
+      });
+      this._router.wrote (login);
+      return rows;
+   }//end writeUpdate
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and outputs the results to
     * standard out.
     *
-    * @param query the input query string
+    * @param query the input query string, with '?' placeholders for values
+    * @param params the values bound to the placeholders
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-		 if(outputHeader){
-			for(int i = 1; i <= numCol; i++){
-			System.out.print(rsmd.getColumnName(i) + "\t");
-			}
-			System.out.println();
-			outputHeader = false;
-		 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close();
-      return rowCount;
+   public int executeQueryAndPrintResult (final String query, final Object... params) throws SQLException {
+      return this._pool.execute (new ConnectionPool.Work<Integer>() {
+         public Integer run (PooledConnection conn) throws SQLException {
+            return conn.executeQueryAndPrintResult (query, params);
+         }
+      });
    }//end executeQuery
 
    /**
@@ -133,62 +833,156 @@ public class PizzaStore {
     * method issues the query to the DBMS and returns the results as
     * a list of records. Each record in turn is a list of attribute values
     *
-    * @param query the input query string
+    * @param query the input query string, with '?' placeholders for values
+    * @param params the values bound to the placeholders
     * @return the query result as a list of records
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
-      List<List<String>> result  = new ArrayList<List<String>>();
-      while (rs.next()){
-        List<String> record = new ArrayList<String>();
-		for (int i=1; i<=numCol; ++i)
-			record.add(rs.getString (i));
-        result.add(record);
-      }//end while
-      stmt.close ();
-      return result;
+   public List<List<String>> executeQueryAndReturnResult (final String query, final Object... params) throws SQLException {
+      return this._pool.execute (new ConnectionPool.Work<List<List<String>>>() {
+         public List<List<String>> run (PooledConnection conn) throws SQLException {
+            return conn.executeQueryAndReturnResult (query, params);
+         }
+      });
    }//end executeQueryAndReturnResult
 
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and returns the results as a
+    * ResultTable: ids, amounts and timestamps stay numbers instead of
+    * becoming one String per cell.
+    *
+    * @param query the input query string, with '?' placeholders for values
+    * @param params the values bound to the placeholders
+    * @return the query result, column by column
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public ResultTable executeQueryTyped (final String query, final Object... params) throws SQLException {
+      return this._pool.execute (new ConnectionPool.Work<ResultTable>() {
+         public ResultTable run (PooledConnection conn) throws SQLException {
+            return conn.executeQueryTyped (query, params);
+         }
+      });
+   }//end executeQueryTyped
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the number of results
     *
-    * @param query the input query string
+    * @param query the input query string, with '?' placeholders for values
+    * @param params the values bound to the placeholders
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+   public int executeQuery (final String query, final Object... params) throws SQLException {
+      return this._pool.execute (new ConnectionPool.Work<Integer>() {
+         public Integer run (PooledConnection conn) throws SQLException {
+            return conn.executeQuery (query, params);
+         }
+      });
+   }
 
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) and hand
+    * its rows to the handler one at a time, as the driver fetches them
+    * through a server-side cursor. Use it for results too large to hold.
+    *
+    * @param query the input query string, with '?' placeholders for values
+    * @param handler called once per row
+    * @param params the values bound to the placeholders
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public long executeQueryStreaming (final String query, final PooledConnection.RowHandler handler,
+                                      final Object... params) throws SQLException {
+      return this._pool.execute (new ConnectionPool.Work<Long>() {
+         public Long run (PooledConnection conn) throws SQLException {
+            return conn.executeQueryStreaming (query, STREAMING_FETCH_SIZE, handler, params);
+         }
+      });
+   }//end executeQueryStreaming
 
-       int rowCount = 0;
+   /**
+    * Runs read-only work on a read replica, or on the primary when there
+    * are none, none is healthy, or the user wrote something moments ago.
+    *
+    * @param login the user the read is for, or null when it is for nobody in particular
+    * @param work statements that must not write
+    * @return whatever the work returns
+    * @throws java.sql.SQLException when the work fails
+    */
+   public <T> T read (String login, ConnectionPool.Work<T> work) throws SQLException {
+      return this._router.read (login, work);
+   }//end read
 
-       // iterates through the result set and count nuber of results.
-       while (rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
-   }
+   /**
+    * Starts work on the primary on its own thread and returns at once, so
+    * independent queries can run side by side. AsyncQueries.join() waits
+    * for the result and rethrows a failure as SQLException.
+    *
+    * @param work the statements to run
+    * @return the work's result, once it is done
+    */
+   public <T> CompletableFuture<T> executeAsync (ConnectionPool.Work<T> work) {
+      return this._async.execute (this._pool, work);
+   }//end executeAsync
+
+   /**
+    * Starts read-only work on its own thread, routed as read() does.
+    *
+    * @param login the user the read is for, or null when it is for nobody in particular
+    * @param work statements that must not write
+    * @return the work's result, once it is done
+    */
+   public <T> CompletableFuture<T> readAsync (String login, ConnectionPool.Work<T> work) {
+      return this._async.read (this._router, login, work);
+   }//end readAsync
+
+   /**
+    * Like executeQueryTyped(), started on its own thread and routed as
+    * read() does.
+    */
+   public CompletableFuture<ResultTable> readQueryTypedAsync (String login, final String query, final Object... params) {
+      return readAsync (login, new ConnectionPool.Work<ResultTable>() {
+         public ResultTable run (PooledConnection conn) throws SQLException {
+            return conn.executeQueryTyped (query, params);
+         }
+      });
+   }//end readQueryTypedAsync
+
+   /**
+    * Like executeQueryAndReturnResult(), routed as read() does.
+    */
+   public List<List<String>> readQueryAndReturnResult (String login, final String query, final Object... params) throws SQLException {
+      return read (login, new ConnectionPool.Work<List<List<String>>>() {
+         public List<List<String>> run (PooledConnection conn) throws SQLException {
+            return conn.executeQueryAndReturnResult (query, params);
+         }
+      });
+   }//end readQueryAndReturnResult
+
+   /**
+    * Like executeQueryTyped(), routed as read() does.
+    */
+   public ResultTable readQueryTyped (String login, final String query, final Object... params) throws SQLException {
+      return read (login, new ConnectionPool.Work<ResultTable>() {
+         public ResultTable run (PooledConnection conn) throws SQLException {
+            return conn.executeQueryTyped (query, params);
+         }
+      });
+   }//end readQueryTyped
+
+   /**
+    * Like executeQueryStreaming(), routed as read() does.
+    */
+   public long readQueryStreaming (String login, final String query, final PooledConnection.RowHandler handler,
+                                   final Object... params) throws SQLException {
+      return read (login, new ConnectionPool.Work<Long>() {
+         public Long run (PooledConnection conn) throws SQLException {
+            return conn.executeQueryStreaming (query, STREAMING_FETCH_SIZE, handler, params);
+         }
+      });
+   }//end readQueryStreaming
 
    /**
     * Method to fetch the last value from sequence. This
@@ -199,26 +993,61 @@ public class PizzaStore {
     * @return current value of a sequence
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
-
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
+   public int getCurrSeqVal(final String sequence) throws SQLException {
+      return this._pool.execute (new ConnectionPool.Work<Integer>() {
+         public Integer run (PooledConnection conn) throws SQLException {
+            return conn.getCurrSeqVal (sequence);
+         }
+      });
    }
 
    /**
-    * Method to close the physical connection if it is open.
+    * Runs several statements on one borrowed connection, e.g. a read
+    * followed by a write that depends on it.
+    *
+    * @param work the statements to run
+    * @return whatever the work returns
+    * @throws java.sql.SQLException when any statement fails
+    */
+   public <T> T execute (ConnectionPool.Work<T> work) throws SQLException {
+      return this._pool.execute (work);
+   }//end execute
+
+   /**
+    * Runs several statements as one transaction on one borrowed connection.
+    *
+    * @param work the statements to run
+    * @return whatever the work returns
+    * @throws java.sql.SQLException when any statement or the commit fails
+    */
+   public <T> T executeInTransaction (ConnectionPool.Work<T> work) throws SQLException {
+      return this._pool.executeInTransaction (work);
+   }//end executeInTransaction
+
+   /**
+    * Method to close the pooled connections.
     */
    public void cleanup(){
-      try{
-         if (this._connection != null){
-            this._connection.close ();
-         }//end if
-      }catch (SQLException e){
-         // ignored.
-      }//end try
+      // queued status changes must reach the database before the pool closes
+      if (this._statusWriter != null){
+         this._statusWriter.close ();
+      }//end if
+      if (this._sales != null){
+         this._sales.close ();
+      }//end if
+      if (this._async != null){
+         this._async.close ();
+      }//end if
+      if (this._router != null){
+         this._router.close ();
+      }//end if
+      // the last dump includes the writes flushed above
+      if (this._metricsDumper != null){
+         this._metricsDumper.close ();
+      }//end if
+      if (this._pool != null){
+         this._pool.close ();
+      }//end if
    }//end cleanup
 
    /**
@@ -256,7 +1085,7 @@ public class PizzaStore {
             System.out.println("1. Create user");
             System.out.println("2. Log in");
             System.out.println("9. < EXIT");
-            String authorisedUser = null;
+            Session authorisedUser = null;
             switch (readChoice()){
                case 1: CreateUser(esql); break;
                case 2: authorisedUser = LogIn(esql); break;
@@ -283,14 +1112,16 @@ public class PizzaStore {
                 //**the following functionalities should ony be able to be used by managers**
                 System.out.println("10. Update Menu");
                 System.out.println("11. Update User");
+                System.out.println("12. Sales Reports");
+                System.out.println("13. Metrics");
 
                 System.out.println(".........................");
                 System.out.println("20. Log out");
                 switch (readChoice()){
-                   case 1: viewProfile(esql, authorisedUser); break;
-                   case 2: updateProfile(esql, authorisedUser); break;
+                   case 1: viewProfile(esql, authorisedUser.login); break;
+                   case 2: updateProfile(esql, authorisedUser.login); break;
                    case 3: viewMenu(esql); break;
-                   case 4: placeOrder(esql, authorisedUser); break;
+                   case 4: placeOrder(esql, authorisedUser.login); break;
                    case 5: viewAllOrders(esql, authorisedUser); break;
                    case 6: viewRecentOrders(esql, authorisedUser); break;
                    case 7: viewOrderInfo(esql, authorisedUser); break;
@@ -298,6 +1129,8 @@ public class PizzaStore {
                    case 9: updateOrderStatus(esql, authorisedUser); break;
                    case 10: updateMenu(esql, authorisedUser); break;
                    case 11: updateUser(esql, authorisedUser); break;
+                   case 12: salesReports(esql, authorisedUser); break;
+                   case 13: viewMetrics(esql, authorisedUser); break;
 
 
 
@@ -368,19 +1201,24 @@ public class PizzaStore {
       } catch(Exception e){
          System.out.println("Your input is invalid!");
       }
+      Metrics.Metric metric = Metrics.operation("CreateUser");
+      long start = System.nanoTime();
+      long rowCount = -1;
       try{
-         esql.executeUpdate("INSERT INTO Users VALUES(\'" + login + "\', \'" + password + "\', \'Customer\', \'\', " + phonenum+");");
+         rowCount = esql.writeUpdate(login, "INSERT INTO Users VALUES(?, ?, 'Customer', '', ?)", login, password, String.valueOf(phonenum));
       } catch(Exception e){
          System.out.println("Error: " + e.getMessage());
+      } finally {
+         metric.record(start, rowCount, rowCount >= 0);
       }
    }//end CreateUser
 
 
    /*
     * Check log in credentials for an existing user
-    * @return User login or null is the user does not exist
+    * @return the user's Session or null is the user does not exist
     **/
-   public static String LogIn(PizzaStore esql){
+   public static Session LogIn(PizzaStore esql){
       String login = "";
       String password = "";
       while(login == ""){
@@ -393,29 +1231,44 @@ public class PizzaStore {
             System.out.println("Your input is invalid!");
          }
       }  
+      Metrics.Metric metric = Metrics.operation("LogIn");
+      long start = System.nanoTime();
+      long rowCount = -1;
       try{
-         List<List<String>> result = esql.executeQueryAndReturnResult("SELECT login FROM Users WHERE login = \'" + login + "\' and password = \'"+ password + "\';");
-         return(result.get(0).get(0));
+         List<List<String>> result = esql.readQueryAndReturnResult(login, "SELECT login, role FROM Users WHERE login = ? and password = ?", login, password);
+         // a wrong password throws here and counts as a failed LogIn
+         Session session = esql.openSession(result.get(0).get(0), result.get(0).get(1));
+         rowCount = result.size();
+         return(session);
       } catch(Exception e){
          System.out.println(e.getMessage());
          return(null);
+      } finally {
+         metric.record(start, rowCount, rowCount >= 0);
       }
    }//end
 
 // Rest of the functions definition go in here
 
    public static void viewProfile(PizzaStore esql, String login) {
+      Metrics.Metric metric = Metrics.operation("viewProfile");
+      long start = System.nanoTime();
+      long rowCount = -1;
+      List<List<String>> profileitems = null;
       try {
-         String query = "SELECT * FROM Users WHERE login='" + login + "'";
-         List<List<String>> profileitems = null;
-         profileitems = esql.executeQueryAndReturnResult(query);
-
-         String[] headers = {"login:", "password:", "role:", "favoriteitems:", "phonenum:"};
-
-         printformatted(headers, profileitems);
+         profileitems = esql.readQueryAndReturnResult(login, "SELECT * FROM Users WHERE login = ?", login);
+         rowCount = profileitems.size();
       } catch (Exception e) {
          System.err.println(e.getMessage());
+         return;
+      } finally {
+         // the query only, not the printing
+         metric.record(start, rowCount, rowCount >= 0);
       }
+
+      String[] headers = {"login:", "password:", "role:", "favoriteitems:", "phonenum:"};
+
+      printformatted(headers, profileitems);
    }
 
    public static void updateProfile(PizzaStore esql, String login) {
@@ -437,8 +1290,7 @@ public class PizzaStore {
       try{   
          System.out.print("Enter new phone number: ");
          String newPhone = in.readLine();
-         String query = "UPDATE Users SET phoneNum='" + newPhone + "' WHERE login='" + login + "'";
-         esql.executeUpdate(query);
+         esql.writeUpdate(login, "UPDATE Users SET phoneNum = ? WHERE login = ?", newPhone, login);
          System.out.println("Profile updated successfully.");
       } catch(Exception e){
          System.out.println(e.getMessage());
@@ -448,8 +1300,7 @@ public class PizzaStore {
       try{
          System.out.print("Enter new password: ");
          String newpassword = in.readLine();
-         String query = "UPDATE Users SET password ='" + newpassword + "' WHERE login='" + login + "'";
-         esql.executeUpdate(query);
+         esql.writeUpdate(login, "UPDATE Users SET password = ? WHERE login = ?", newpassword, login);
          System.out.println("Profile updated successfully.");
       } catch(Exception e){
          System.out.println(e.getMessage());
@@ -459,8 +1310,7 @@ public class PizzaStore {
       try{
          System.out.print("Enter new favorite item: ");
          String newitem = in.readLine();
-         String query = "UPDATE Users SET favoriteItems ='" + newitem.replace("'", "''") + "' WHERE login='" + login + "'";
-         esql.executeUpdate(query);
+         esql.writeUpdate(login, "UPDATE Users SET favoriteItems = ? WHERE login = ?", newitem, login);
          System.out.println("Profile updated successfully.");
       } catch(Exception e){
          System.out.println(e.getMessage());
@@ -480,10 +1330,12 @@ public class PizzaStore {
             System.out.println("3. Filter type");
             System.out.println("4. Flip order");
             System.out.println("5. Stop viewing");
+            System.out.println("6. Search ingredients and keywords");
             switch(readChoice()){
                case 1: viewall(esql, order); break;
                case 2: filterprice(esql, order); break;
                case 3: filtertype(esql, order); break;
+               case 6: searchMenu(esql, order); break;
                case 4: 
                   if(order.equals("ASC")){
                      order = "DESC";
@@ -501,14 +1353,11 @@ public class PizzaStore {
 
    public static void viewall(PizzaStore esql, String order){
       try{
-         String query = "SELECT * FROM Items ORDER BY price "+ order;
-         List<List<String>> items = null;
-         items = esql.executeQueryAndReturnResult(query);
-         
+         List<MenuItem> items = esql.getMenu().snapshot().all(order.equals("ASC"));
 
          String[] headers = {"itemname:", "ingredients:", "typeofitem:", "price:", "description?:"};
 
-         printformatted(headers, items);
+         printformatted(headers, MenuCatalog.rows(items));
       } catch(Exception e){
          System.out.println(e.getMessage());
       }
@@ -517,12 +1366,11 @@ public class PizzaStore {
       try{
          System.out.println("Enter price: ");
          String price = in.readLine();
-         List<List<String>> items = null;
-         items = esql.executeQueryAndReturnResult("SELECT * FROM Items WHERE price <= " + price + " ORDER BY price " + order + ";");
+         List<MenuItem> items = esql.getMenu().snapshot().atMost(new BigDecimal(price.trim()), order.equals("ASC"));
 
          String[] headers = {"itemname:", "ingredients:", "typeofitem:", "price:", "description?:"};
          
-         printformatted(headers, items);
+         printformatted(headers, MenuCatalog.rows(items));
       } catch(Exception e){
          System.out.println("Enter valid price!");
       }
@@ -531,19 +1379,63 @@ public class PizzaStore {
       try{
          System.out.println("Enter item type: ");
          String type = in.readLine();
-         List<List<String>> items = null;
-         items = esql.executeQueryAndReturnResult("SELECT * FROM Items WHERE TRIM(typeOfItem) = \'" + type + "\' ORDER BY price " + order + ";");
+         List<MenuItem> items = esql.getMenu().snapshot().ofType(type, order.equals("ASC"));
 
          String[] headers = {"itemname:", "ingredients:", "typeofitem:", "price:", "description?:"};
 
-         printformatted(headers, items);
+         printformatted(headers, MenuCatalog.rows(items));
       } catch(Exception e){
          System.out.println("Enter valid item type!");
       }
    }
+   public static void searchMenu(PizzaStore esql, String order){
+      try{
+         MenuSearchIndex index = esql.getMenu().snapshot().search();
+         System.out.println("Ingredients: " + String.join(", ", index.ingredients()));
+         System.out.println("Enter ingredients the item must have, seperated by comma (or leave empty): ");
+         List<String> with = splitList(in.readLine());
+         System.out.println("Enter ingredients the item must not have, seperated by comma (or leave empty): ");
+         List<String> without = splitList(in.readLine());
+         System.out.println("Enter description keywords (or leave empty): ");
+         List<String> keywords = splitList(in.readLine());
+         List<MenuItem> items = index.search(with, without, keywords, order.equals("ASC"));
+
+         String[] headers = {"itemname:", "ingredients:", "typeofitem:", "price:", "description?:"};
+
+         if(items.isEmpty()){
+            System.out.println("No items match.");
+         } else{
+            printformatted(headers, MenuCatalog.rows(items));
+         }
+      } catch(Exception e){
+         System.out.println(e.getMessage());
+      }
+   }
+
+   // the non-empty comma-separated parts of a line.
+   static List<String> splitList(String line){
+      List<String> parts = new ArrayList<String>();
+      if(line != null){
+         for(String part : line.split(",")){
+            if(!part.trim().isEmpty()){
+               parts.add(part.trim());
+            }
+         }
+      }
+      return parts;
+   }
 
    public static void placeOrder(PizzaStore esql, String login) {
       try {
+         // answered from memory, empty while the order history is still loading
+         ItemRecommender.Suggestions suggestions = esql.getRecommender().suggest(login, ItemRecommender.DEFAULT_SUGGESTIONS);
+         if (!suggestions.usual.isEmpty()) {
+            System.out.println("Your usual: " + String.join(", ", suggestions.usual));
+         }
+         if (!suggestions.together.isEmpty()) {
+            System.out.println((suggestions.usual.isEmpty() ? "Popular: " : "Often ordered together: ")
+                               + String.join(", ", suggestions.together));
+         }
          System.out.print("Enter store ID: ");
          int storeID = Integer.parseInt(in.readLine().trim());
          boolean ordering = true;
@@ -552,12 +1444,10 @@ public class PizzaStore {
          
          List<String> itemNames = new ArrayList<String>();
          List<Integer> quantities = new ArrayList<Integer>();
-         List<Double> prices = new ArrayList<Double>();
-         double totalPrice = 0.0;
 
          while(ordering){  
             System.out.print("Enter item name or enter 1 to stop ordering: ");
-            itemName = in.readLine().trim().replace("'", "''");
+            itemName = in.readLine().trim();
             
             if(itemName.equals("1")){
                ordering = false;
@@ -576,99 +1466,86 @@ public class PizzaStore {
             }
          }
 
-         
-
-         // Get item price
-         for (int i = 0; i < itemNames.size(); i++) {
-            String priceQuery = "SELECT price FROM Items WHERE itemName = '" + itemNames.get(i) + "'";
-            List<List<String>> priceResult = esql.executeQueryAndReturnResult(priceQuery);
-            double price = Double.parseDouble(priceResult.get(0).get(0));
-            if (priceResult.isEmpty()) {
-                  System.out.println(itemNames.get(i) + " not found, skipping item.");
-                  prices.add(0.0);
-            } else{
-               prices.add(price);
-            }
-            totalPrice += prices.get(i) * quantities.get(i);
-         }
-
-         System.out.println(totalPrice);
-
-         
-         
-
-         //Insert Order and get the new order ID
 
-         // Get the last inserted order ID
-         String orderIDQuery = "SELECT orderID FROM FoodOrder ORDER BY orderID DESC LIMIT 1";
-         List<List<String>> orderIDResult = esql.executeQueryAndReturnResult(orderIDQuery);
-
-         if (orderIDResult.isEmpty()) {
-               System.out.println("Order placement failed.");
-               return;
+         if (itemNames.isEmpty()) {
+            System.out.println("No items entered, order cancelled.");
+            return;
          }
 
-         int orderID = Integer.parseInt(orderIDResult.get(0).get(0)) + 1;
-         System.out.println(orderID);
-
-         String orderQuery = "INSERT INTO FoodOrder (orderID, login, storeID, totalPrice, orderTimestamp, orderStatus) " + "VALUES (\'" + orderID + "\', '" + login + "', " + storeID + ", " + totalPrice + ", NOW(), 'incompete')";
-         esql.executeUpdate(orderQuery);
-
-         //Insert Items in Order
-         for(int i = 0; i < itemNames.size(); i++){
-            System.out.println();
-            String itemsQuery = "INSERT INTO ItemsInOrder (orderID, itemName, quantity) " + "VALUES (" + orderID + ", '" + itemNames.get(i) + "', " + quantities.get(i) + ")";
-            esql.executeUpdate(itemsQuery);
-         }
-         
+         // prices, order header and line items go in as one transaction
+         PlacedOrder order = esql.submitOrder(login, storeID, itemNames, quantities);
 
-         System.out.println("Order placed successfully! Your Order ID is: " + orderID);
-         System.out.println("Total price: " + totalPrice);
+         System.out.println("Order placed successfully! Your Order ID is: " + order.orderID);
+         System.out.println("Total price: " + order.totalPrice);
       } catch (Exception e) {
          System.out.println("Error placing order: " + e.getMessage());
       }
    }
 
-   public static void viewAllOrders(PizzaStore esql, String login) {
+   public static void viewAllOrders(PizzaStore esql, Session session) {
       try {
-
-         String roleResult = returnrole(esql, login);
-
-         String query;
-         
-         if (roleResult.trim().equals("manager") || roleResult.trim().equals("driver")) {
-               query = "SELECT * FROM FoodOrder ORDER BY orderTimestamp DESC";
-         } else {
-               query = "SELECT * FROM FoodOrder WHERE TRIM(login) = \'" + login + "\' ORDER BY orderTimestamp DESC";
-         }
-
+         String login = session.isStaff() ? null : session.login;
          String[] headers = {"OrderID:", "placed by:", "storeID:", "totalPrice:", "orderTimestamp:", "orderStatus:"};
-         
-         
-         List<List<String>> orders = esql.executeQueryAndReturnResult(query);
-            
-         printformatted(headers, orders);
-            
-
+         int[] widths = {8, 12, 8, 11, 21, 12};
+
+         OrderPage page = esql.fetchOrderPage(login, ORDER_PAGE_SIZE, null);
+         boolean browsing = true;
+         while(browsing){
+            printformatted(headers, page.orders.asRows());
+            System.out.println("1. Next page");
+            System.out.println("2. Previous page");
+            System.out.println("3. Print full history");
+            System.out.println("4. Stop viewing");
+            switch(readChoice()){
+               case 1:
+                  if(page.nextToken == null){
+                     System.out.println("No older orders.");
+                  } else{
+                     page = esql.fetchOrderPage(login, ORDER_PAGE_SIZE, page.nextToken);
+                  }
+                  break;
+               case 2:
+                  if(page.prevToken == null){
+                     System.out.println("No newer orders.");
+                  } else{
+                     page = esql.fetchOrderPage(login, ORDER_PAGE_SIZE, page.prevToken);
+                  }
+                  break;
+               case 3:
+                  // the full history can be huge, so rows are printed as they arrive
+                  TableRenderer.Stream printer = table.stream(headers, widths, TableRenderer.DEFAULT_SAMPLE);
+                  esql.flushStatusUpdates();
+                  try {
+                     if (login == null) {
+                           esql.readQueryStreaming(null, "SELECT * FROM FoodOrder ORDER BY orderTimestamp DESC, orderID DESC", printer);
+                     } else {
+                           esql.readQueryStreaming(login, "SELECT * FROM FoodOrder WHERE login = ? ORDER BY orderTimestamp DESC, orderID DESC", printer, login);
+                     }
+                  } finally {
+                     printer.finish();
+                  }
+                  break;
+               case 4: browsing = false; break;
+            }
+         }
 
        } catch (Exception e) {
            System.err.println("Error retrieving orders: " + e.getMessage());
        }
    }
 
-   public static void viewRecentOrders(PizzaStore esql, String login) {
+   public static void viewRecentOrders(PizzaStore esql, Session session) {
       try {
-         String roleResult = returnrole(esql, login);
-         String query = "";
-         if (roleResult.trim().equals("manager") || roleResult.trim().equals("driver")) {
-               query = "SELECT * FROM FoodOrder ORDER BY orderTimestamp DESC LIMIT 5";
+         // served from memory; the cache is kept current by submitOrder and setOrderStatus
+         List<OrderSummary> orders;
+         if (session.isStaff()) {
+               orders = esql.recentOrders(null);
          } else {
-               query = "SELECT * FROM FoodOrder WHERE TRIM(login) = \'" + login + "\' ORDER BY orderTimestamp DESC LIMIT 5";
+               orders = esql.recentOrders(session.login);
          }
 
-         List<List<String>> orders = esql.executeQueryAndReturnResult(query);
          String[] headers = {"OrderID:", "placed by:", "storeID:", "totalPrice:", "orderTimestamp:", "orderStatus:"};
-         printformatted(headers, orders);
+         printformatted(headers, OrderSummary.rows(orders));
       } catch (Exception e) {
          System.err.println(e.getMessage());
       }
@@ -676,54 +1553,89 @@ public class PizzaStore {
    
    
    
-   public static void viewOrderInfo(PizzaStore esql, String login) {
+   public static void viewOrderInfo(PizzaStore esql, Session session) {
       String id = "";
       try{
          System.out.println("Enter Order ID: ");
          id = in.readLine();
-         String role = returnrole(esql, login);
-         System.out.println(role);
-         if(role.trim().equals("Customer")){
-            
-            String ordercustomer = esql.executeQueryAndReturnResult("SELECT u.login from Users u, Foodorder o WHERE o.orderID = \'" + id + "\' and u.login = o.login;").get(0).get(0);
-            if(!ordercustomer.equals(login)){
-               System.out.println("error, please only look up your own order!");
-            } else{
-               System.out.println(esql.executeQueryAndReturnResult("SELECT * FROM FoodOrder WHERE orderID = \'" + id + "\';"));
-            }
-         } else{
-            System.out.println(esql.executeQueryAndReturnResult("SELECT * FROM FoodOrder WHERE orderID = \'" + id + "\';"));
+         int orderID = Integer.parseInt(id.trim());
+         // customers may only look up their own orders
+         String owner = session.isCustomer() ? session.login : null;
+         OrderDetail detail = esql.fetchOrderDetail(orderID, owner);
+         if(detail == null){
+            System.out.println(owner == null ? "No order " + orderID : "error, please only look up your own order!");
+            return;
          }
-
+         String[] headers = {"OrderID:", "placed by:", "storeID:", "totalPrice:", "orderTimestamp:", "orderStatus:"};
+         printformatted(headers, OrderSummary.rows(Collections.singletonList(detail.order)));
+         String[] itemHeaders = {"Item:", "Quantity:", "Price now:"};
+         printformatted(itemHeaders, detail.itemRows());
 
       } catch(Exception e){
          System.out.println(e.getMessage());
       }
    }
    public static void viewStores(PizzaStore esql) {
-      List<List<String>> stores = null;
+      String[] headers = { "StoreID:", "Address:", "City:", "State:", "Open?:", "Review Score:" };
       try{
-         stores = esql.executeQueryAndReturnResult("SELECT * FROM Store ORDER BY storeID;");
-         String[] headers = { "StoreID:", "Address:", "City:", "State:", "Open?:", "Review Score:" };
-
-         printformatted(headers, stores);
+         StoreDirectory.Snapshot stores = esql.getStores().snapshot();
+         System.out.println("1. Find stores in a city");
+         System.out.println("2. Best reviewed open stores in a city");
+         System.out.println("3. Browse all stores");
+         int choice = readChoice();
+         switch(choice){
+            case 1: case 2: {
+               System.out.println("Enter city: ");
+               String city = in.readLine();
+               System.out.println("Enter state: ");
+               String state = in.readLine();
+               StoreDirectory.Group group = stores.inCity(Store.key(city), Store.key(state));
+               // best reviewed first; option 2 only shows the top open ones
+               List<Store> found = choice == 1 ? group.all : group.open.subList(0, Math.min(group.open.size(), 5));
+               if(found.isEmpty()){
+                  System.out.println("No " + (choice == 1 ? "" : "open ") + "stores in " + city.trim() + ", " + state.trim());
+               } else{
+                  printformatted(headers, StoreDirectory.rows(found));
+               }
+               break;
+            }
+            case 3: {
+               int pages = (stores.size() + ORDER_PAGE_SIZE - 1) / ORDER_PAGE_SIZE;
+               int page = 0;
+               boolean browsing = stores.size() > 0;
+               while(browsing){
+                  printformatted(headers, StoreDirectory.rows(stores.page(page, ORDER_PAGE_SIZE)));
+                  System.out.println("Page " + (page + 1) + " of " + pages);
+                  System.out.println("1. Next page");
+                  System.out.println("2. Previous page");
+                  System.out.println("3. Stop viewing");
+                  switch(readChoice()){
+                     case 1: if(page + 1 < pages) ++page; else System.out.println("Last page."); break;
+                     case 2: if(page > 0) --page; else System.out.println("First page."); break;
+                     case 3: browsing = false; break;
+                  }
+               }
+               break;
+            }
+            default: System.out.println("Unrecognized choice!"); break;
+         }
       } catch(Exception e){
          System.out.println(e.getMessage());
       }
    }
-   public static void updateOrderStatus(PizzaStore esql, String login) {
+   public static void updateOrderStatus(PizzaStore esql, Session session) {
       //check if user is manager/driver
       String orderID = "";
       String newOrderStatus = "";
       try{
-         String role = returnrole(esql, login);
-         System.out.println(role);
-         if (role.trim().equals("manager") || role.trim().equals("driver")) {
+         if (session.isStaff()) {
             System.out.println("Enter Order ID: ");
             orderID = in.readLine();
             System.out.println("Enter new Order Status:");
             newOrderStatus = in.readLine();
-            esql.executeUpdate("UPDATE FoodOrder SET orderStatus = \'" + newOrderStatus.trim() + "\' WHERE orderID = " + orderID + ";");
+            if(!esql.setOrderStatus(Integer.parseInt(orderID.trim()), newOrderStatus.trim())){
+               System.out.println("No order " + orderID.trim());
+            }
          } else{
             System.out.println("Error, must be manager or driver!");
          }
@@ -731,28 +1643,30 @@ public class PizzaStore {
          System.out.println(e.getMessage());
       }
    }
-   public static void updateMenu(PizzaStore esql, String login) {
-      String role = returnrole(esql, login);
-      if(role.trim().equals("manager")){
-         System.out.println("1. Create new item");
-         System.out.println("2. Remove an item");
-         System.out.println("3. Modify existing item");
-         switch(readChoice()){
-            case 1: createItem(esql); break;
-            case 2: removeItem(esql); break;
-            case 3: modifyItem(esql); break;
+   public static void updateMenu(PizzaStore esql, Session session) {
+      try{
+         if(session.isManager()){
+            System.out.println("1. Create new item");
+            System.out.println("2. Remove an item");
+            System.out.println("3. Modify existing item");
+            switch(readChoice()){
+               case 1: createItem(esql); break;
+               case 2: removeItem(esql); break;
+               case 3: modifyItem(esql); break;
+            }
+         } else{
+            System.out.println("error, must be manager to update menu!");
          }
-      } else{
-         System.out.println("error, must be manager to update menu!");
+      } catch(Exception e){
+         System.out.println(e.getMessage());
       }
    }
-   public static void updateUser(PizzaStore esql, String login) {
+   public static void updateUser(PizzaStore esql, Session session) {
       String oldlogin = "";
       String editing = "";
       String newvalue = "";
       try{
-         String role = returnrole(esql, login);
-         if(role.trim().equals("manager")){
+         if(session.isManager()){
             System.out.println("Enter login to edit user:");
             oldlogin = in.readLine();
             System.out.println("Edit role or login?: ");
@@ -761,9 +1675,14 @@ public class PizzaStore {
             newvalue = in.readLine();
 
             if(editing.equals("login")){
-               esql.executeUpdate("UPDATE Users SET \'" + editing + "\' = \'" + newvalue + "\' WHERE login = \'" + oldlogin + "\';");
+               esql.writeUpdate(newvalue, "UPDATE Users SET login = ? WHERE login = ?", newvalue, oldlogin);
+               // the replica still has the old login for a while
+               esql.getRouter().wrote(oldlogin);
+               esql.invalidateRole(oldlogin);
+               esql.invalidateRole(newvalue);
             } else if(editing.equals("role")){
-               esql.executeUpdate("UPDATE Users SET " + editing + " = \'" + newvalue + "\' WHERE login = \'" + oldlogin + "\';");
+               esql.writeUpdate(oldlogin, "UPDATE Users SET role = ? WHERE login = ?", newvalue.trim(), oldlogin);
+               esql.invalidateRole(oldlogin);
             }
          } else{
             System.out.println("must be manager to update role/login");
@@ -772,6 +1691,84 @@ public class PizzaStore {
          System.out.println(e.getMessage());
       }
    }
+   public static void salesReports(PizzaStore esql, Session session) {
+      try{
+         if(session.isManager()){
+            SalesAggregator sales = esql.getSales();
+            if(sales == null){
+               System.out.println("Sales reports are turned off.");
+               return;
+            }
+            System.out.println("1. Revenue and orders per store per day");
+            System.out.println("2. Top items by quantity");
+            System.out.println("3. Orders by status");
+            switch(readChoice()){
+               case 1: {
+                  System.out.println("Enter first day (yyyy-mm-dd): ");
+                  LocalDate from = LocalDate.parse(in.readLine().trim());
+                  System.out.println("Enter last day (yyyy-mm-dd): ");
+                  LocalDate to = LocalDate.parse(in.readLine().trim());
+                  System.out.println("Enter store ID, or leave empty for all stores: ");
+                  String store = in.readLine().trim();
+                  List<List<String>> rows = new ArrayList<List<String>>();
+                  for(SalesAggregator.StoreDay day : sales.storeDays(from, to, store.isEmpty() ? null : Integer.valueOf(store))){
+                     rows.add(Arrays.asList(day.day.toString(), String.valueOf(day.storeID),
+                                            String.valueOf(day.orders), day.revenue().toPlainString()));
+                  }
+                  printformatted(new String[] { "Day:", "StoreID:", "Orders:", "Revenue:" }, rows);
+                  break;
+               }
+               case 2: {
+                  List<List<String>> rows = new ArrayList<List<String>>();
+                  for(Map.Entry<String, Long> item : sales.topItems(10)){
+                     rows.add(Arrays.asList(item.getKey(), String.valueOf(item.getValue())));
+                  }
+                  printformatted(new String[] { "Item:", "Quantity:" }, rows);
+                  break;
+               }
+               case 3: {
+                  List<List<String>> rows = new ArrayList<List<String>>();
+                  for(Map.Entry<String, Long> status : sales.statuses().entrySet()){
+                     rows.add(Arrays.asList(status.getKey().isEmpty() ? "(none)" : status.getKey(), String.valueOf(status.getValue())));
+                  }
+                  printformatted(new String[] { "Status:", "Orders:" }, rows);
+                  break;
+               }
+               default: System.out.println("Unrecognized choice!"); break;
+            }
+         } else{
+            System.out.println("error, must be manager to view sales reports!");
+         }
+      } catch(Exception e){
+         System.out.println(e.getMessage());
+      }
+   }
+
+   public static void viewMetrics(PizzaStore esql, Session session) {
+      try{
+         if(session.isManager()){
+            if(!Metrics.ENABLED){
+               System.out.println("Metrics are turned off.");
+               return;
+            }
+            printformatted(new String[] { "Operation:", "count:", "errors:", "rows:", "mean:", "p50:", "p99:", "max:" },
+                           Metrics.rows(Metrics.operations(), 30));
+            printformatted(new String[] { "SQL:", "count:", "errors:", "rows:", "mean:", "p50:", "p99:", "max:" },
+                           Metrics.rows(Metrics.sqlShapes(), 60));
+            for(Map.Entry<String, Map<String, Number>> source : Metrics.gauges().entrySet()){
+               printformatted(new String[] { source.getKey() + ":", "value:" }, Metrics.gaugeRows(source.getValue()));
+            }
+            Metrics.Dumper dumper = esql.getMetricsDumper();
+            if(dumper != null){
+               System.out.println("Also written to " + dumper.file + " as " + (dumper.json ? "JSON" : "Prometheus text") + ".");
+            }
+         } else{
+            System.out.println("error, must be manager to view metrics!");
+         }
+      } catch(Exception e){
+         System.out.println(e.getMessage());
+      }
+   }
 
    public static void createItem(PizzaStore esql){
       String itemName = "";
@@ -782,17 +1779,19 @@ public class PizzaStore {
 
       try{
          System.out.println("Enter item name: ");
-         itemName = in.readLine().replace("'", "''");
+         itemName = in.readLine();
          System.out.println("Enter list of ingredients, seperated by comma: ");
-         ingredientlist = in.readLine().replace("'", "''");
+         ingredientlist = in.readLine();
          System.out.println("Enter item type: ");
          itemType = in.readLine();
          System.out.println("Enter item price: ");
          price = in.readLine();
          System.out.println("Enter item description: ");
-         description = in.readLine().replace("'", "''");
+         description = in.readLine();
 
-         esql.executeUpdate("INSERT INTO Items (itemName, ingredients, typeOfItem, price, description) VALUES(\'" + itemName + "\', \' " + ingredientlist + "\', " + "\' " + itemType + "\', " + price + ", \' " + description + "\');");
+         esql.executeUpdate("INSERT INTO Items (itemName, ingredients, typeOfItem, price, description) VALUES(?, ?, ?, ?, ?)",
+                            itemName.trim(), ingredientlist.trim(), itemType.trim(), new BigDecimal(price.trim()), description.trim());
+         esql.getMenu().reload();
       } catch(Exception e){
          System.out.println(e.getMessage());
       }
@@ -801,9 +1800,10 @@ public class PizzaStore {
       String itemName = "";
       try{
          System.out.println("Enter item name: ");
-         itemName = in.readLine().replace("'", "''");
+         itemName = in.readLine();
 
-         esql.executeUpdate("DELETE FROM Items where itemName = \'" + itemName + "\';");
+         esql.executeUpdate("DELETE FROM Items where itemName = ?", itemName);
+         esql.getMenu().reload();
       } catch(Exception e){
          System.out.println(e.getMessage());
       }
@@ -815,58 +1815,40 @@ public class PizzaStore {
 
       try{
          System.out.println("Enter item name: ");
-         itemName = in.readLine().replace("'", "''");
+         itemName = in.readLine();
          System.out.println("Enter field to change(Name, ingredients, type, price): ");
          field = in.readLine();
          System.out.println("Enter new value: ");
-         newOrderStatus = in.readLine().replace("'", "''");
+         newOrderStatus = in.readLine();
          
+         // column names cannot be bound, so only known columns are accepted
          if(field.toLowerCase().equals("name")){
-            esql.executeUpdate("UPDATE Items SET itemName" + " = \'" + newOrderStatus + "\' WHERE itemName = \'" + itemName + "\';");
+            esql.executeUpdate("UPDATE Items SET itemName = ? WHERE itemName = ?", newOrderStatus, itemName);
          } else if(field.toLowerCase().equals("type")){
-            esql.executeUpdate("UPDATE Items SET typeOfItem" + " = \'" + newOrderStatus + "\' WHERE itemName = \'" + itemName + "\';");
+            esql.executeUpdate("UPDATE Items SET typeOfItem = ? WHERE itemName = ?", newOrderStatus.trim(), itemName);
+         } else if(field.toLowerCase().equals("ingredients")){
+            esql.executeUpdate("UPDATE Items SET ingredients = ? WHERE itemName = ?", newOrderStatus.trim(), itemName);
+         } else if(field.toLowerCase().equals("price")){
+            esql.executeUpdate("UPDATE Items SET price = ? WHERE itemName = ?", new BigDecimal(newOrderStatus.trim()), itemName);
+         } else if(field.toLowerCase().equals("description")){
+            esql.executeUpdate("UPDATE Items SET description = ? WHERE itemName = ?", newOrderStatus.trim(), itemName);
          } else{
-            esql.executeUpdate("UPDATE Items SET " + field.toLowerCase() + " = \'" + newOrderStatus + "\' WHERE itemName = \'" + itemName + "\';");
+            System.out.println("Unknown field: " + field);
+            return;
          }
+         esql.getMenu().reload();
       } catch(Exception e){
          System.out.println(e.getMessage());
       }
    }
 
-   public static String returnrole(PizzaStore esql, String login){
-      try{   
-         String role = esql.executeQueryAndReturnResult("SELECT role FROM Users WHERE login = \'" + login + "\';").get(0).get(0);
-         return role;
-      } catch(Exception e){
-         System.out.println(e.getMessage());
-         return "";
-      } 
-   }
-   
+   /*
+    * Prints the rows under the headers, each column padded to its widest
+    * cell. Null cells print as empty.
+    **/
    public static void printformatted(String[] headers, List<List<String>> items){
-      int[] colWidths = new int[headers.length];
-      for (int i = 0; i < headers.length; i++) {
-            colWidths[i] = headers[i].length(); // Start with the header length
-         }
-
-         for (List<String> row : items) {
-            for (int i = 0; i < row.size(); i++) {
-               colWidths[i] = Math.max(colWidths[i], row.get(i).length());
-            }
-         }
-
-         for (int i = 0; i < headers.length; i++) {
-            System.out.print(String.format("%-" + (colWidths[i] + 2) + "s", headers[i]));
-         }
-         System.out.println();
-
-         for (List<String> row : items) {
-            for (int i = 0; i < row.size(); i++) {
-               System.out.print(String.format("%-" + (colWidths[i] + 2) + "s", row.get(i)));
-            }
-            System.out.println();
-         }
-   } 
+      table.print(headers, items);
+   }
 
 
 }//end PizzaStore
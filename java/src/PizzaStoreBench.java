@@ -0,0 +1,1393 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class holds the micro benchmarks for the data-access paths of
+ * PizzaStore. Each scenario runs an operation from N threads for a fixed
+ * time after a warm-up and prints throughput, latency percentiles, the
+ * allocation rate of the measuring threads and the collections meanwhile.
+ *
+ * Usage: java PizzaStoreBench <scenario> [options]
+ *
+ * Scenarios that need no database simulate the round trip with
+ * -Dbench.rttMicros (default 200). With -Dbench.results=FILE every run
+ * is also appended to FILE as a CSV line labelled -Dbench.label, to
+ * compare revisions.
+ */
+public class PizzaStoreBench {
+
+   static final long WARMUP_MS = Long.getLong("bench.warmupMs", 1000);
+   static final long DURATION_MS = Long.getLong("bench.durationMs", 3000);
+   static final long RTT_MICROS = Long.getLong("bench.rttMicros", 200);
+   static final String RESULTS_FILE = System.getProperty("bench.results");
+   static final String RESULTS_LABEL = System.getProperty("bench.label", "");
+
+   /**
+    * One benchmarked operation, called repeatedly by every thread.
+    */
+   interface Op {
+      void run(int thread) throws Exception;
+   }
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 1) {
+         System.err.println(
+            "Usage: java [-classpath <classpath>] " + PizzaStoreBench.class.getName() + " <scenario> [options]\n"
+            + "  orderids [threads,...]     order ID allocation, hi/lo blocks vs one round trip per ID\n"
+            + "  placeorder <dbname> <port> <user> [threads,...]\n"
+            + "                             6-item order, per-statement autocommit vs submitOrder()\n"
+            + "  orderpages <dbname> <port> <user> [pageSize]\n"
+            + "                             order history page at increasing depth, keyset vs OFFSET\n"
+            + "  results [rows]             materializing FoodOrder rows, List<List<String>> vs ResultTable\n"
+            + "  render [rows]              printing a Store table, String.format per cell vs TableRenderer\n"
+            + "  recentorders [users]       View Past 5 Order IDs, sort-limit query vs RecentOrdersCache\n"
+            + "  statuswrites [threads,...] order status updates, one commit each vs OrderStatusWriter\n"
+            + "  stores [count]             StoreDirectory lookups and updates over synthetic stores\n"
+            + "  sales [ordersPerDay]       SalesAggregator reports over a year of orders, placement with it on and off\n"
+            + "  menusearch [items]         ingredient/keyword search, MenuSearchIndex vs a LIKE-style scan\n"
+            + "  menusearch <dbname> <port> <user> [items]\n"
+            + "                             the same against real LIKE queries on a temporary table\n"
+            + "  recommend [orderLines]     ItemRecommender build from a streamed history, then suggestion latency\n"
+            + "  replicas <dbname> <port> <user> <replicaUrl,...> [threads,...]\n"
+            + "                             order history reads through ReplicaRouter, and read-your-writes checks\n"
+            + "  async [lookups]            independent lookups one after another vs fanned out with AsyncQueries\n"
+            + "  metrics [threads,...]      cost of recording Metrics, on a cached read and on a simulated round trip\n"
+            + "  app <dbname> <port> <user> [threads,...]\n"
+            + "                             every user-facing operation against the database; -Dbench.seedOrders=N\n"
+            + "                             first recreates it with N generated orders");
+         return;
+      }//end if
+
+      String scenario = args[0];
+      if (scenario.equals("orderids")) {
+         benchOrderIds(intList(args.length > 1 ? args[1] : "1,2,4,8,16"));
+      } else if (scenario.equals("placeorder") && args.length >= 4) {
+         PizzaStore esql = connect(args);
+         try {
+            benchPlaceOrder(esql, intList(args.length > 4 ? args[4] : "1,4,16"));
+         } finally {
+            esql.cleanup();
+         }
+      } else if (scenario.equals("orderpages") && args.length >= 4) {
+         PizzaStore esql = connect(args);
+         try {
+            benchOrderPages(esql, args.length > 4 ? Integer.parseInt(args[4]) : 20);
+         } finally {
+            esql.cleanup();
+         }
+      } else if (scenario.equals("results")) {
+         benchResults(args.length > 1 ? Integer.parseInt(args[1]) : 10000);
+      } else if (scenario.equals("render")) {
+         benchRender(args.length > 1 ? Integer.parseInt(args[1]) : 1000);
+      } else if (scenario.equals("recentorders")) {
+         benchRecentOrders(args.length > 1 ? Integer.parseInt(args[1]) : 20000);
+      } else if (scenario.equals("statuswrites")) {
+         benchStatusWrites(intList(args.length > 1 ? args[1] : "1,8"));
+      } else if (scenario.equals("stores")) {
+         benchStores(args.length > 1 ? Integer.parseInt(args[1]) : 100000);
+      } else if (scenario.equals("menusearch") && args.length >= 4) {
+         PizzaStore esql = connect(args);
+         try {
+            benchMenuSearch(esql, args.length > 4 ? Integer.parseInt(args[4]) : 50000);
+         } finally {
+            esql.cleanup();
+         }
+      } else if (scenario.equals("menusearch")) {
+         benchMenuSearch(null, args.length > 1 ? Integer.parseInt(args[1]) : 50000);
+      } else if (scenario.equals("replicas") && args.length >= 5) {
+         System.setProperty("pizzastore.replicas", args[4]);
+         PizzaStore esql = connect(args);
+         try {
+            benchReplicas(esql, intList(args.length > 5 ? args[5] : "1,8"));
+         } finally {
+            esql.cleanup();
+         }
+      } else if (scenario.equals("app") && args.length >= 4) {
+         long seedOrders = Long.getLong("bench.seedOrders", 0);
+         if (seedOrders > 0) {
+            seed(args, seedOrders);
+         }
+         PizzaStore esql = connect(args);
+         try {
+            benchApp(esql, intList(args.length > 4 ? args[4] : "1,8"));
+         } finally {
+            esql.cleanup();
+         }
+      } else if (scenario.equals("metrics")) {
+         benchMetrics(intList(args.length > 1 ? args[1] : "1,8"));
+      } else if (scenario.equals("async")) {
+         benchAsync(args.length > 1 ? Integer.parseInt(args[1]) : 4);
+      } else if (scenario.equals("recommend")) {
+         benchRecommend(args.length > 1 ? Integer.parseInt(args[1]) : 10000000);
+      } else if (scenario.equals("sales")) {
+         benchSales(args.length > 1 ? Integer.parseInt(args[1]) : 2000);
+      } else {
+         System.err.println("Unknown scenario or missing arguments: " + scenario);
+      }
+   }//end main
+
+   /*
+    * Compares handing out order IDs from hi/lo blocks of different sizes.
+    * A block size of 1 means one simulated round trip per order, which is
+    * what the old MAX(orderID)+1 query cost.
+    **/
+   static void benchOrderIds(List<Integer> threadCounts) throws Exception {
+      int[] blockSizes = {1, 50, 1000};
+      for (int blockSize : blockSizes) {
+         for (int threads : threadCounts) {
+            final AtomicLong sequence = new AtomicLong();
+            final OrderIdAllocator allocator = new OrderIdAllocator(new OrderIdAllocator.BlockSource() {
+               public long nextBlock() throws SQLException {
+                  simulateRoundTrip();
+                  return sequence.incrementAndGet();
+               }
+            }, blockSize);
+            run("orderids block=" + blockSize, threads, new Op() {
+               public void run(int thread) throws Exception {
+                  allocator.next();
+               }
+            });
+         }
+      }
+   }//end benchOrderIds
+
+   /*
+    * Compares placing a 6-item order the way placeOrder used to (one price
+    * query per item, then one autocommitted INSERT per row) with the single
+    * transaction of submitOrder(). Both write real orders.
+    **/
+   static void benchPlaceOrder(final PizzaStore esql, List<Integer> threadCounts) throws Exception {
+      final String login = esql.executeQueryAndReturnResult("SELECT login FROM Users LIMIT 1").get(0).get(0);
+      final int storeID = Integer.parseInt(esql.executeQueryAndReturnResult("SELECT storeID FROM Store LIMIT 1").get(0).get(0));
+      final List<String> items = new ArrayList<String>();
+      final List<Integer> quantities = new ArrayList<Integer>();
+      for (List<String> row : esql.executeQueryAndReturnResult("SELECT itemName FROM Items ORDER BY itemName LIMIT 6")) {
+         items.add(row.get(0));
+         quantities.add(1 + items.size() % 3);
+      }
+
+      for (int threads : threadCounts) {
+         run("placeorder legacy", threads, new Op() {
+            public void run(int thread) throws Exception {
+               double total = 0.0;
+               for (int i = 0; i < items.size(); ++i) {
+                  List<List<String>> price = esql.executeQueryAndReturnResult("SELECT price FROM Items WHERE itemName = ?", items.get(i));
+                  total += Double.parseDouble(price.get(0).get(0)) * quantities.get(i);
+               }
+               int orderID = esql.nextOrderID();
+               esql.executeUpdate("INSERT INTO FoodOrder (orderID, login, storeID, totalPrice, orderTimestamp, orderStatus) VALUES (?, ?, ?, ?, NOW(), 'incomplete')",
+                                  orderID, login, storeID, total);
+               for (int i = 0; i < items.size(); ++i) {
+                  esql.executeUpdate("INSERT INTO ItemsInOrder (orderID, itemName, quantity) VALUES (?, ?, ?)",
+                                     orderID, items.get(i), quantities.get(i));
+               }
+            }
+         });
+         run("placeorder submitOrder", threads, new Op() {
+            public void run(int thread) throws Exception {
+               esql.submitOrder(login, storeID, items, quantities);
+            }
+         });
+      }
+   }//end benchPlaceOrder
+
+   /*
+    * Fetches one page of the full order history at increasing depths, once
+    * with a keyset token and once with OFFSET. Keyset latency should stay
+    * flat while OFFSET grows with the number of skipped rows.
+    **/
+   static void benchOrderPages(final PizzaStore esql, final int pageSize) throws Exception {
+      // a customer without orders gets an empty first page, not an error
+      OrderPage none = esql.fetchOrderPage("bench-no-orders", pageSize, null);
+      if (none.orders.rowCount() != 0 || none.nextToken != null || none.prevToken != null) {
+         throw new IllegalStateException("orderpages: expected an empty page for a customer without orders");
+      }
+      long orders = Long.parseLong(esql.executeQueryAndReturnResult("SELECT COUNT(*) FROM FoodOrder").get(0).get(0));
+      for (long depth = 1; depth * pageSize < orders; depth *= 10) {
+         final long skipped = depth * pageSize;
+         // the token a reader would hold after paging down to this depth
+         List<List<String>> boundary = esql.executeQueryAndReturnResult(
+            "SELECT orderTimestamp, orderID FROM FoodOrder ORDER BY orderTimestamp DESC, orderID DESC LIMIT 1 OFFSET ?",
+            skipped - 1);
+         final String token = OrderPage.encode(true, Timestamp.valueOf(boundary.get(0).get(0)),
+                                               Integer.parseInt(boundary.get(0).get(1)));
+         run("orderpages keyset page=" + (depth + 1), 1, new Op() {
+            public void run(int thread) throws Exception {
+               esql.fetchOrderPage(null, pageSize, token);
+            }
+         });
+         run("orderpages offset page=" + (depth + 1), 1, new Op() {
+            public void run(int thread) throws Exception {
+               esql.executeQueryAndReturnResult(
+                  "SELECT orderID, login, storeID, totalPrice, orderTimestamp, orderStatus FROM FoodOrder "
+                     + "ORDER BY orderTimestamp DESC, orderID DESC LIMIT ? OFFSET ?", pageSize + 1, skipped);
+            }
+         });
+      }
+   }//end benchOrderPages
+
+   /*
+    * Reads the same FoodOrder-shaped rows into List<List<String>> and then
+    * parses the ids, totals and timestamps the way callers used to, versus
+    * reading them into a ResultTable and using its typed getters. The rows
+    * come from an in-memory ResultSet that parses text like the driver
+    * does, so only the materialization differs.
+    **/
+   static void benchResults(final int rows) throws Exception {
+      final String[] names = {"orderid", "login", "storeid", "totalprice", "ordertimestamp", "orderstatus"};
+      final int[] types = {Types.INTEGER, Types.VARCHAR, Types.INTEGER, Types.NUMERIC, Types.TIMESTAMP, Types.CHAR};
+      final String[][] data = new String[rows][];
+      Random random = new Random(42);
+      for (int r = 0; r < rows; ++r) {
+         data[r] = new String[] {
+            String.valueOf(10000 + r), "user" + random.nextInt(1000), String.valueOf(1 + random.nextInt(1000)),
+            (1 + random.nextInt(60)) + "." + (10 + random.nextInt(90)),
+            "2024-0" + (1 + random.nextInt(9)) + "-1" + random.nextInt(10) + " 1" + random.nextInt(10) + ":3" + random.nextInt(10) + ":00",
+            "complete"
+         };
+      }
+
+      // views of an empty table are empty, either way round
+      ResultTable empty = ResultTable.read(fakeResultSet(names, types, new String[0][]));
+      if (empty.view(0, 0, false).rowCount() != 0 || empty.view(0, 0, true).rowCount() != 0) {
+         throw new IllegalStateException("results: a view of an empty table is not empty");
+      }
+
+      Op legacy = new Op() {
+         public void run(int thread) throws Exception {
+            ResultSet rs = fakeResultSet(names, types, data);
+            List<List<String>> result = new ArrayList<List<String>>();
+            while (rs.next()) {
+               List<String> record = new ArrayList<String>();
+               for (int i = 1; i <= names.length; ++i)
+                  record.add(rs.getString(i));
+               result.add(record);
+            }
+            long sink = 0;
+            for (List<String> row : result) {
+               sink += Integer.parseInt(row.get(0)) + Integer.parseInt(row.get(2));
+               sink += (long) (Double.parseDouble(row.get(3)) * 100);
+               sink += Timestamp.valueOf(row.get(4)).getTime();
+            }
+            consume(sink);
+         }
+      };
+      Op typed = new Op() {
+         public void run(int thread) throws Exception {
+            ResultTable table = ResultTable.read(fakeResultSet(names, types, data));
+            long sink = 0;
+            for (int r = 0; r < table.rowCount(); ++r) {
+               sink += table.getInt(r, 0) + table.getInt(r, 2);
+               sink += table.getUnscaled(r, 3);
+               sink += table.getEpochMicros(r, 4);
+            }
+            consume(sink);
+         }
+      };
+
+      LatencyHistogram l = run("results List<List<String>>", 1, legacy);
+      System.out.println(String.format("%-40s %.0f ns/row %.0f bytes/row", "", l.mean() / rows, allocatedPerCall(legacy, 20) / rows));
+      LatencyHistogram t = run("results ResultTable", 1, typed);
+      System.out.println(String.format("%-40s %.0f ns/row %.0f bytes/row", "", t.mean() / rows, allocatedPerCall(typed, 20) / rows));
+   }//end benchResults
+
+   /*
+    * Compares printing a table of stores the way printformatted() used to,
+    * one String.format() and one print() per cell on a line-flushed stream,
+    * with TableRenderer. Both write to /dev/null. Every tenth row has a
+    * NULL review score, which the old code could only print as "null".
+    **/
+   static void benchRender(final int rows) throws Exception {
+      final String[] headers = { "StoreID:", "Address:", "City:", "State:", "Open?:", "Review Score:" };
+      final List<List<String>> stores = new ArrayList<List<String>>(rows);
+      Random random = new Random(42);
+      for (int r = 0; r < rows; ++r) {
+         List<String> row = new ArrayList<String>(6);
+         row.add(String.valueOf(r + 1));
+         row.add((100 + random.nextInt(9900)) + " Main Street");
+         row.add("City" + random.nextInt(500));
+         row.add("CA");
+         row.add(random.nextBoolean() ? "yes" : "no");
+         row.add(r % 10 == 0 ? null : String.valueOf(random.nextInt(5)) + "." + random.nextInt(10));
+         stores.add(row);
+      }
+      final PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream("/dev/null")), true);
+      final TableRenderer renderer = new TableRenderer(
+         new BufferedWriter(new OutputStreamWriter(new FileOutputStream("/dev/null")), 1 << 16));
+
+      Op legacy = new Op() {
+         public void run(int thread) {
+            int[] colWidths = new int[headers.length];
+            for (int i = 0; i < headers.length; i++) {
+               colWidths[i] = headers[i].length();
+            }
+            for (List<String> row : stores) {
+               for (int i = 0; i < row.size(); i++) {
+                  colWidths[i] = Math.max(colWidths[i], String.valueOf(row.get(i)).length());
+               }
+            }
+            for (int i = 0; i < headers.length; i++) {
+               out.print(String.format("%-" + (colWidths[i] + 2) + "s", headers[i]));
+            }
+            out.println();
+            for (List<String> row : stores) {
+               for (int i = 0; i < row.size(); i++) {
+                  out.print(String.format("%-" + (colWidths[i] + 2) + "s", row.get(i)));
+               }
+               out.println();
+            }
+         }
+      };
+      Op rendered = new Op() {
+         public void run(int thread) {
+            renderer.print(headers, stores);
+         }
+      };
+
+      LatencyHistogram l = run("render String.format", 1, legacy);
+      System.out.println(String.format("%-40s %.0f ns/row %.0f bytes/row", "", l.mean() / rows, allocatedPerCall(legacy, 20) / rows));
+      LatencyHistogram t = run("render TableRenderer", 1, rendered);
+      System.out.println(String.format("%-40s %.0f ns/row %.0f bytes/row", "", t.mean() / rows, allocatedPerCall(rendered, 20) / rows));
+   }//end benchRender
+
+   /*
+    * Compares answering View Past 5 Order IDs with a simulated sort-limit
+    * query every time against RecentOrdersCache. Users are picked with a
+    * skew (a few users are very active) and one call in ten places an
+    * order instead, which updates the cache in place.
+    **/
+   static void benchRecentOrders(final int users) throws Exception {
+      final AtomicLong nextOrderID = new AtomicLong(10000);
+      final Timestamp base = Timestamp.valueOf("2024-01-01 00:00:00");
+      final RecentOrdersCache.Loader loader = new RecentOrdersCache.Loader() {
+         public List<OrderSummary> load(String login, int limit) throws SQLException {
+            simulateRoundTrip();
+            List<OrderSummary> orders = new ArrayList<OrderSummary>(limit);
+            for (int i = 0; i < limit; ++i) {
+               orders.add(new OrderSummary(i + 1, login == null ? "user0" : login, 1, new BigDecimal("12.50"),
+                                           new Timestamp(base.getTime() - i * 60000L), "complete"));
+            }
+            return orders;
+         }
+      };
+      final RecentOrdersCache cache = new RecentOrdersCache(loader, RecentOrdersCache.DEFAULT_DEPTH,
+         Math.max(1, users / 2), RecentOrdersCache.DEFAULT_TTL_MS);
+
+      int threads = 8;
+      run("recentorders query", threads, new Op() {
+         public void run(int thread) throws Exception {
+            loader.load(skewedUser(users), RecentOrdersCache.DEFAULT_DEPTH);
+         }
+      });
+      run("recentorders cache", threads, new Op() {
+         public void run(int thread) throws Exception {
+            String login = skewedUser(users);
+            if (ThreadLocalRandom.current().nextInt(10) == 0) {
+               cache.orderPlaced(new OrderSummary((int) nextOrderID.incrementAndGet(), login, 1, new BigDecimal("9.99"),
+                                                  new Timestamp(System.currentTimeMillis()), "incomplete"));
+            } else {
+               cache.recent(login);
+            }
+         }
+      });
+      System.out.println(String.format("%-40s %s", "", cache.stats()));
+   }//end benchRecentOrders
+
+   /*
+    * Measures what Metrics adds to an operation: a View Past 5 Order IDs
+    * served from the RecentOrdersCache, the cheapest operation there is,
+    * and a simulated round trip, which is what every other one waits for.
+    * Each is run bare and with the recording PizzaStore does around it:
+    * one operation metric, plus one SQL metric for the round trip.
+    **/
+   static void benchMetrics(List<Integer> threadCounts) throws Exception {
+      final int users = 20000;
+      final Timestamp base = Timestamp.valueOf("2024-01-01 00:00:00");
+      final RecentOrdersCache cache = new RecentOrdersCache(new RecentOrdersCache.Loader() {
+         public List<OrderSummary> load(String login, int limit) throws SQLException {
+            List<OrderSummary> orders = new ArrayList<OrderSummary>(limit);
+            for (int i = 0; i < limit; ++i) {
+               orders.add(new OrderSummary(i + 1, login == null ? "user0" : login, 1, new BigDecimal("12.50"),
+                                           new Timestamp(base.getTime() - i * 60000L), "complete"));
+            }
+            return orders;
+         }
+      }, RecentOrdersCache.DEFAULT_DEPTH, users, RecentOrdersCache.DEFAULT_TTL_MS);
+      final String sql = "SELECT orderID, login, storeID, totalPrice, orderTimestamp, orderStatus FROM FoodOrder WHERE login = ?";
+
+      for (int threads : threadCounts) {
+         LatencyHistogram bare = run("metrics cached read", threads, new Op() {
+            public void run(int thread) throws Exception {
+               cache.recent(skewedUser(users));
+            }
+         });
+         LatencyHistogram recorded = run("metrics cached read, recorded", threads, new Op() {
+            public void run(int thread) throws Exception {
+               Metrics.Metric metric = Metrics.operation("bench.cachedRead");
+               long start = System.nanoTime();
+               List<OrderSummary> orders = cache.recent(skewedUser(users));
+               metric.record(start, orders.size(), true);
+            }
+         });
+         printOverhead(bare, recorded);
+
+         bare = run("metrics round trip", threads, new Op() {
+            public void run(int thread) throws Exception {
+               simulateRoundTrip();
+            }
+         });
+         recorded = run("metrics round trip, recorded", threads, new Op() {
+            public void run(int thread) throws Exception {
+               Metrics.Metric operation = Metrics.operation("bench.roundTrip");
+               long start = System.nanoTime();
+               Metrics.Metric statement = Metrics.sql(sql);
+               long sent = System.nanoTime();
+               simulateRoundTrip();
+               statement.record(sent, 5, true);
+               operation.record(start, 5, true);
+            }
+         });
+         printOverhead(bare, recorded);
+      }
+      Metrics.reset();
+   }//end benchMetrics
+
+   // the medians, which preemption on a busy machine disturbs less than the means.
+   static void printOverhead(LatencyHistogram bare, LatencyHistogram recorded) {
+      long added = recorded.percentile(50) - bare.percentile(50);
+      System.out.println(String.format("%-40s p50 %+dns (%+.1f%%), mean %+.1f%%", "", added,
+         100.0 * added / bare.percentile(50), 100 * (recorded.mean() - bare.mean()) / bare.mean()));
+   }//end printOverhead
+
+   /*
+    * Compares one autocommitted UPDATE per status change with the
+    * write-behind OrderStatusWriter at the same update rate: each thread
+    * issues one change per simulated round trip. A commit costs one round
+    * trip either way; changes hit 2000 active orders, so some coalesce.
+    **/
+   static void benchStatusWrites(List<Integer> threadCounts) throws Exception {
+      final String[] statuses = {"incomplete", "preparing", "out for delivery", "complete"};
+      for (int threads : threadCounts) {
+         final AtomicLong commits = new AtomicLong();
+         final AtomicLong updates = new AtomicLong();
+         long start = System.nanoTime();
+         run("statuswrites commit each", threads, new Op() {
+            public void run(int thread) throws Exception {
+               simulateRoundTrip();
+               commits.incrementAndGet();
+               updates.incrementAndGet();
+            }
+         });
+         printCommits(commits.get(), updates.get(), System.nanoTime() - start);
+
+         final AtomicLong batchCommits = new AtomicLong();
+         final AtomicLong batchUpdates = new AtomicLong();
+         final OrderStatusWriter writer = new OrderStatusWriter(new OrderStatusWriter.Sink() {
+            public void write(Map<Integer, String> batch) throws SQLException {
+               simulateRoundTrip();
+               batchCommits.incrementAndGet();
+            }
+         }, OrderStatusWriter.DEFAULT_FLUSH_MS, OrderStatusWriter.DEFAULT_BATCH_SIZE);
+         start = System.nanoTime();
+         run("statuswrites write-behind", threads, new Op() {
+            public void run(int thread) throws Exception {
+               // same update rate as above: the caller still waits one round trip per change
+               simulateRoundTrip();
+               ThreadLocalRandom random = ThreadLocalRandom.current();
+               writer.submit(10000 + random.nextInt(2000), statuses[random.nextInt(statuses.length)]);
+               batchUpdates.incrementAndGet();
+            }
+         });
+         writer.close();
+         printCommits(batchCommits.get(), batchUpdates.get(), System.nanoTime() - start);
+         System.out.println(String.format("%-40s %s", "", writer));
+      }
+   }//end benchStatusWrites
+
+   static void printCommits(long commits, long updates, long elapsedNanos) {
+      System.out.println(String.format("%-40s commits/s=%.0f updates/commit=%.1f", "",
+                                       commits / (elapsedNanos / 1e9), commits == 0 ? 0.0 : (double) updates / commits));
+   }//end printCommits
+
+   /*
+    * Measures StoreDirectory over count synthetic stores spread over 50
+    * states with 200 cities each: building it, the lookups a customer
+    * choosing a store makes, and publishing a single changed store.
+    **/
+   static void benchStores(int count) throws Exception {
+      final int states = 50;
+      final int citiesPerState = 200;
+      Random random = new Random(42);
+      List<Store> stores = new ArrayList<Store>(count);
+      for (int i = 0; i < count; ++i) {
+         stores.add(new Store(i + 1, (100 + random.nextInt(9900)) + " Main Street",
+                              "City" + random.nextInt(citiesPerState), "State" + random.nextInt(states),
+                              random.nextInt(4) == 0 ? "no" : "yes", random.nextInt(10) == 0 ? null : String.valueOf(1 + random.nextInt(5))));
+      }
+      long start = System.nanoTime();
+      final StoreDirectory.Snapshot snapshot = StoreDirectory.build(stores);
+      System.out.println(String.format("%-40s %d stores in %.1f ms", "stores build", count, (System.nanoTime() - start) / 1e6));
+
+      final String[] cityKeys = new String[citiesPerState];
+      final String[] stateKeys = new String[states];
+      for (int i = 0; i < citiesPerState; ++i) cityKeys[i] = Store.key("City" + i);
+      for (int i = 0; i < states; ++i) stateKeys[i] = Store.key("State" + i);
+      final Store[] top = new Store[5];
+      final int size = count;
+
+      Op inCity = new Op() {
+         public void run(int thread) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            consume(snapshot.inCity(cityKeys[random.nextInt(cityKeys.length)], stateKeys[random.nextInt(stateKeys.length)]).open.size());
+         }
+      };
+      Op top5 = new Op() {
+         public void run(int thread) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            consume(snapshot.inCity(cityKeys[random.nextInt(cityKeys.length)], stateKeys[random.nextInt(stateKeys.length)])
+                       .top(5, true, top));
+         }
+      };
+      Op find = new Op() {
+         public void run(int thread) {
+            Store store = snapshot.find(1 + ThreadLocalRandom.current().nextInt(size));
+            consume(store == null ? 0 : store.storeID);
+         }
+      };
+      Op[] ops = {inCity, top5, find};
+      String[] names = {"stores inCity open", "stores top 5 open", "stores find by ID"};
+      for (int i = 0; i < ops.length; ++i) {
+         run(names[i], 1, ops[i]);
+         System.out.println(String.format("%-40s %.0f ns/op without timing overhead, %.1f bytes/op", "",
+                                          nanosPerCall(ops[i], 10000000), allocatedPerCall(ops[i], 100000)));
+      }
+
+      // a store moving to another city, published incrementally
+      StoreDirectory directory = new StoreDirectory(null);
+      directory.publish(snapshot);
+      int updates = 5000;
+      for (int round = 0; round < 2; ++round) {
+         // the first round warms up the JIT
+         start = System.nanoTime();
+         for (int i = 0; i < updates; ++i) {
+            int id = 1 + random.nextInt(count);
+            directory.upsert(new Store(id, "1 Moved Street", "City" + random.nextInt(citiesPerState),
+                                       "State" + random.nextInt(states), "yes", "5"));
+         }
+      }
+      System.out.println(String.format("%-40s %.1f us/update", "stores upsert", (System.nanoTime() - start) / 1e3 / updates));
+   }//end benchStores
+
+   /*
+    * Feeds a year of synthetic orders over 100 stores into a
+    * SalesAggregator backed by an in-memory summary, flushes, and times
+    * each manager report. Then compares placing orders (one simulated
+    * round trip each) with the aggregator off and on.
+    **/
+   static void benchSales(int ordersPerDay) throws Exception {
+      final int stores = 100;
+      final String[] items = new String[40];
+      for (int i = 0; i < items.length; ++i) items[i] = "Item " + i;
+      final String[] statuses = {"incomplete", "preparing", "out for delivery", "complete"};
+      final AtomicLong flushes = new AtomicLong();
+      SalesAggregator.Backend backend = new SalesAggregator.Backend() {
+         final SalesAggregator.Totals stored = new SalesAggregator.Totals();
+
+         public synchronized SalesAggregator.Totals load() {
+            SalesAggregator.Totals copy = new SalesAggregator.Totals();
+            for (Map.Entry<Long, long[]> e : this.stored.storeDays.entrySet()) {
+               copy.storeDays.put(e.getKey(), e.getValue().clone());
+            }
+            copy.items.putAll(this.stored.items);
+            copy.statuses.putAll(this.stored.statuses);
+            return copy;
+         }
+
+         public synchronized void write(SalesAggregator.Totals deltas) {
+            simulateRoundTrip();
+            flushes.incrementAndGet();
+            for (Map.Entry<Long, long[]> e : deltas.storeDays.entrySet()) {
+               long[] day = this.stored.storeDays.get(e.getKey());
+               if (day == null) this.stored.storeDays.put(e.getKey(), day = new long[2]);
+               day[0] += e.getValue()[0];
+               day[1] += e.getValue()[1];
+            }
+            add(this.stored.items, deltas.items);
+            add(this.stored.statuses, deltas.statuses);
+         }
+
+         private void add(Map<String, Long> to, Map<String, Long> deltas) {
+            for (Map.Entry<String, Long> e : deltas.entrySet()) {
+               Long value = to.get(e.getKey());
+               to.put(e.getKey(), (value == null ? 0 : value) + e.getValue());
+            }
+         }
+      };
+
+      // half of the year goes through a flush, the rest is still in the counters
+      SalesAggregator sales = new SalesAggregator(backend, 0);
+      Random random = new Random(42);
+      LocalDate first = LocalDate.of(2025, 1, 1);
+      long start = System.nanoTime();
+      int orderID = 0;
+      for (int d = 0; d < 365; ++d) {
+         Timestamp day = Timestamp.valueOf(first.plusDays(d).atTime(12, 0));
+         for (int i = 0; i < ordersPerDay; ++i) {
+            sales.orderPlaced(syntheticOrder(++orderID, 1 + random.nextInt(stores), day, items, random));
+            if (random.nextInt(4) != 0) sales.statusChanged("incomplete", statuses[1 + random.nextInt(3)]);
+         }
+         if (d == 182) sales.flush();
+      }
+      System.out.println(String.format("%-40s %d orders in %.1f ms", "sales feed", orderID, (System.nanoTime() - start) / 1e6));
+
+      final LocalDate last = first.plusDays(364);
+      final SalesAggregator reports = sales;
+      Op[] ops = {
+         new Op() { public void run(int thread) throws Exception { consume(reports.storeDays(first, last, null).size()); } },
+         new Op() { public void run(int thread) throws Exception { consume(reports.storeDays(first, last, 7).size()); } },
+         new Op() { public void run(int thread) throws Exception { consume(reports.topItems(10).size()); } },
+         new Op() { public void run(int thread) throws Exception { consume(reports.statuses().size()); } },
+      };
+      String[] names = {"sales year, all stores", "sales year, one store", "sales top 10 items", "sales by status"};
+      for (int i = 0; i < ops.length; ++i) {
+         for (int round = 0; round < 2; ++round) {
+            // the first round warms up the JIT
+            start = System.nanoTime();
+            int calls = 20;
+            for (int c = 0; c < calls; ++c) ops[i].run(0);
+            if (round == 1) {
+               System.out.println(String.format("%-40s %.3f ms/report", names[i], (System.nanoTime() - start) / 1e6 / calls));
+            }
+         }
+      }
+
+      for (int threads : new int[] {1, 16}) {
+         for (final boolean on : new boolean[] {false, true}) {
+            final SalesAggregator aggregator = on ? new SalesAggregator(backend, SalesAggregator.DEFAULT_FLUSH_MS) : null;
+            final AtomicLong ids = new AtomicLong(orderID);
+            run("sales placeorder aggregator " + (on ? "on" : "off"), threads, new Op() {
+               public void run(int thread) throws Exception {
+                  // the order's transaction
+                  simulateRoundTrip();
+                  ThreadLocalRandom random = ThreadLocalRandom.current();
+                  PlacedOrder order = syntheticOrder((int) ids.incrementAndGet(), 1 + random.nextInt(stores),
+                                                     new Timestamp(System.currentTimeMillis()), items, random);
+                  if (aggregator != null) aggregator.orderPlaced(order);
+               }
+            });
+            if (aggregator != null) aggregator.close();
+         }
+      }
+      System.out.println(String.format("%-40s %d", "sales flushes", flushes.get()));
+   }//end benchSales
+
+   /*
+    * Runs three menu searches over a synthetic menu: one ingredient; two
+    * ingredients but not a third; an ingredient plus a description
+    * keyword. MenuSearchIndex answers them with BitSet operations. Without
+    * a database the SQL side is approximated by scanning every item with
+    * case-folded substring tests plus a simulated round trip, the work an
+    * ILIKE '%...%' filter does; with one the LIKE queries run for real
+    * against a temporary copy of the menu.
+    **/
+   static void benchMenuSearch(PizzaStore esql, int count) throws Exception {
+      Random random = new Random(42);
+      final List<MenuItem> items = new ArrayList<MenuItem>(count);
+      for (int i = 0; i < count; ++i) {
+         StringBuilder ingredients = new StringBuilder();
+         int parts = 3 + random.nextInt(6);
+         for (int p = 0; p < parts; ++p) {
+            // fixed width names, so no name is a substring of another
+            String ingredient = String.format("Topping %03d", (int) (300 * Math.pow(random.nextDouble(), 2)));
+            if (ingredients.indexOf(ingredient) >= 0) continue;
+            if (ingredients.length() > 0) ingredients.append(", ");
+            ingredients.append(ingredient);
+         }
+         StringBuilder description = new StringBuilder("A");
+         int words = 6 + random.nextInt(7);
+         for (int w = 0; w < words; ++w) {
+            description.append(String.format(" w%04d", (int) (1000 * Math.pow(random.nextDouble(), 2))));
+         }
+         items.add(new MenuItem("Item " + i, ingredients.toString(), "type" + random.nextInt(8),
+                                BigDecimal.valueOf(100 + random.nextInt(3000), 2), description.toString()));
+      }
+      MenuCatalog.Snapshot built = null;
+      for (int round = 0; round < 3; ++round) {
+         // the first rounds warm up the JIT
+         long start = System.nanoTime();
+         built = new MenuCatalog.Snapshot(items);
+         if (round == 2) {
+            System.out.println(String.format("%-40s %d items in %.1f ms", "menusearch build snapshot + index", count,
+                                             (System.nanoTime() - start) / 1e6));
+         }
+      }
+      final MenuCatalog.Snapshot snapshot = built;
+
+      final List<String> none = new ArrayList<String>();
+      final List<List<String>> with = new ArrayList<List<String>>();
+      final List<List<String>> without = new ArrayList<List<String>>();
+      final List<List<String>> keywords = new ArrayList<List<String>>();
+      String[] names = {"one ingredient", "two ingredients, not a third", "ingredient + keyword"};
+      with.add(Arrays.asList("topping 010"));
+      without.add(none);
+      keywords.add(none);
+      with.add(Arrays.asList("Topping 003", "Topping 020"));
+      without.add(Arrays.asList("Topping 001"));
+      keywords.add(none);
+      with.add(Arrays.asList("Topping 005"));
+      without.add(none);
+      keywords.add(Arrays.asList("w0042"));
+
+      for (int q = 0; q < names.length; ++q) {
+         final int query = q;
+         final MenuSearchIndex index = snapshot.search();
+         int found = index.matches(with.get(q), without.get(q), keywords.get(q)).cardinality();
+         run("menusearch index " + names[q], 1, new Op() {
+            public void run(int thread) {
+               consume(index.search(with.get(query), without.get(query), keywords.get(query), true).size());
+            }
+         });
+         if (esql == null) {
+            run("menusearch scan " + names[q], 1, new Op() {
+               public void run(int thread) {
+                  simulateRoundTrip();
+                  int matches = 0;
+                  for (MenuItem item : items) {
+                     if (likeAll(item, with.get(query), without.get(query), keywords.get(query))) ++matches;
+                  }
+                  consume(matches);
+               }
+            });
+         }
+         System.out.println(String.format("%-40s %d matches", "", found));
+      }
+      if (esql == null) {
+         return;
+      }
+
+      // a temporary table lives on one connection, so the SQL side runs in one unit of work
+      esql.getPool().execute(new ConnectionPool.Work<Void>() {
+         public Void run(PooledConnection conn) throws SQLException {
+            conn.executeUpdate("CREATE TEMPORARY TABLE BenchItems (LIKE Items INCLUDING ALL)");
+            try {
+               PreparedStatement insert = conn.prepare(
+                  "INSERT INTO BenchItems (itemName, ingredients, typeOfItem, price, description) VALUES (?, ?, ?, ?, ?)");
+               for (int i = 0; i < items.size(); ++i) {
+                  MenuItem item = items.get(i);
+                  PooledConnection.bind(insert, item.itemName, item.ingredients, item.typeOfItem, item.price, item.description);
+                  insert.addBatch();
+                  if (i % 1000 == 999 || i == items.size() - 1) insert.executeBatch();
+               }
+               insert.clearBatch();
+               conn.executeUpdate("ANALYZE BenchItems");
+               for (int q = 0; q < with.size(); ++q) {
+                  StringBuilder sql = new StringBuilder("SELECT * FROM BenchItems WHERE TRUE");
+                  List<Object> params = new ArrayList<Object>();
+                  for (String ingredient : with.get(q)) {
+                     sql.append(" AND ingredients ILIKE ?");
+                     params.add("%" + ingredient + "%");
+                  }
+                  for (String ingredient : without.get(q)) {
+                     sql.append(" AND ingredients NOT ILIKE ?");
+                     params.add("%" + ingredient + "%");
+                  }
+                  for (String keyword : keywords.get(q)) {
+                     sql.append(" AND description ILIKE ?");
+                     params.add("%" + keyword + "%");
+                  }
+                  sql.append(" ORDER BY price, itemName");
+                  LatencyHistogram latencies = new LatencyHistogram();
+                  int rows = 0;
+                  for (int i = 0; i < 60; ++i) {
+                     long begin = System.nanoTime();
+                     rows = conn.executeQueryTyped(sql.toString(), params.toArray()).rowCount();
+                     // the first runs warm up caches and the JIT
+                     if (i >= 10) latencies.recordSince(begin);
+                  }
+                  System.out.println(String.format("%-40s %s (%d rows)", "menusearch LIKE " + names[q], latencies, rows));
+               }
+            } finally {
+               conn.executeUpdate("DROP TABLE BenchItems");
+            }
+            return null;
+         }
+      });
+   }//end benchMenuSearch
+
+   // the filter ILIKE '%...%' applies to one row.
+   static boolean likeAll(MenuItem item, List<String> with, List<String> without, List<String> keywords) {
+      String ingredients = item.ingredients.toLowerCase(Locale.ROOT);
+      for (String ingredient : with) {
+         if (!ingredients.contains(ingredient.toLowerCase(Locale.ROOT))) return false;
+      }
+      for (String ingredient : without) {
+         if (ingredients.contains(ingredient.toLowerCase(Locale.ROOT))) return false;
+      }
+      if (!keywords.isEmpty()) {
+         String description = item.description.toLowerCase(Locale.ROOT);
+         for (String keyword : keywords) {
+            if (!description.contains(keyword.toLowerCase(Locale.ROOT))) return false;
+         }
+      }
+      return true;
+   }//end likeAll
+
+   /*
+    * Reads order history pages for random customers through the router,
+    * which spreads them over the replicas, then places orders and reads
+    * each back at once as its customer, which must hit the primary. Works
+    * with real streaming replicas or with a second database loaded with
+    * the same data standing in for one.
+    **/
+   static void benchReplicas(final PizzaStore esql, List<Integer> threadCounts) throws Exception {
+      final List<List<String>> logins = esql.executeQueryAndReturnResult("SELECT login FROM Users LIMIT 1000");
+      final List<List<String>> stores = esql.executeQueryAndReturnResult("SELECT storeID FROM Store LIMIT 1");
+      final List<List<String>> items = esql.executeQueryAndReturnResult("SELECT itemName FROM Items LIMIT 1");
+      // let the health checker look at every replica once
+      Thread.sleep(ReplicaRouter.DEFAULT_HEALTH_CHECK_MS);
+      for (int threads : threadCounts) {
+         run("replicas routed order page", threads, new Op() {
+            public void run(int thread) throws Exception {
+               String login = logins.get(ThreadLocalRandom.current().nextInt(logins.size())).get(0);
+               consume(esql.fetchOrderPage(login, 20, null).orders.rowCount());
+            }
+         });
+         System.out.println(String.format("%-40s %s", "", esql.getRouter()));
+      }
+
+      int stale = 0;
+      int checks = 50;
+      for (int i = 0; i < checks; ++i) {
+         String login = logins.get(i % logins.size()).get(0);
+         PlacedOrder order = esql.submitOrder(login, Integer.parseInt(stores.get(0).get(0).trim()),
+                                              Arrays.asList(items.get(0).get(0)), Arrays.asList(1));
+         if (esql.fetchOrderDetail(order.orderID, login) == null) {
+            ++stale;
+         }
+      }
+      System.out.println(String.format("%-40s %d of %d orders not found right after placing them", "replicas read-your-writes",
+                                       stale, checks));
+      System.out.println(String.format("%-40s %s", "", esql.getRouter()));
+   }//end benchReplicas
+
+   /*
+    * A flow needing several independent lookups, each one simulated
+    * round trip: one after another, then fanned out through AsyncQueries
+    * on the configured executor, with no cap and with a cap of two per
+    * database.
+    **/
+   static void benchAsync(final int lookups) throws Exception {
+      final Callable<Integer> lookup = new Callable<Integer>() {
+         public Integer call() {
+            simulateRoundTrip();
+            return 1;
+         }
+      };
+      run("async " + lookups + " lookups sequential", 1, new Op() {
+         public void run(int thread) throws Exception {
+            for (int i = 0; i < lookups; ++i) consume(lookup.call());
+         }
+      });
+      for (int cap : new int[] {0, 2}) {
+         System.setProperty("pizzastore.async.maxConcurrent", String.valueOf(cap));
+         final AsyncQueries async = AsyncQueries.fromSystemProperties();
+         for (int threads : new int[] {1, 16}) {
+            run("async " + lookups + " lookups fan-out cap=" + (cap == 0 ? "none" : String.valueOf(cap)), threads, new Op() {
+               public void run(int thread) throws Exception {
+                  List<CompletableFuture<Integer>> futures = new ArrayList<CompletableFuture<Integer>>(lookups);
+                  for (int i = 0; i < lookups; ++i) futures.add(async.submit("db", 1000, lookup));
+                  for (CompletableFuture<Integer> future : futures) consume(AsyncQueries.join(future));
+               }
+            });
+         }
+         System.out.println(String.format("%-40s %s", "", async));
+         async.close();
+      }
+   }//end benchAsync
+
+   /*
+    * Feeds orderLines synthetic order lines (100k customers, 200 items,
+    * one to eight lines per order) through the path the startup pass
+    * takes, then measures suggest() and counting a newly placed order.
+    **/
+   static void benchRecommend(int orderLines) throws Exception {
+      final String[] items = new String[200];
+      for (int i = 0; i < items.length; ++i) items[i] = "Item " + i;
+      final int users = 100000;
+      String[] logins = new String[users];
+      for (int i = 0; i < users; ++i) logins[i] = "user" + i;
+
+      final ItemRecommender recommender = new ItemRecommender();
+      recommender.beginLoad();
+      Random random = new Random(42);
+      String[] names = new String[8];
+      int[] quantities = new int[8];
+      System.gc();
+      long heapBefore = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+      long start = System.nanoTime();
+      int orderID = 0;
+      for (int lines = 0; lines < orderLines; ) {
+         int size = 0;
+         int wanted = 1 + random.nextInt(8);
+         for (int i = 0; i < wanted; ++i) {
+            String name = items[(int) (items.length * Math.pow(random.nextDouble(), 3))];
+            boolean seen = false;
+            for (int j = 0; j < size; ++j) seen |= names[j] == name;
+            if (seen) continue;
+            names[size] = name;
+            quantities[size++] = 1 + random.nextInt(3);
+         }
+         recommender.loadedOrder(++orderID, logins[(int) (users * Math.pow(random.nextDouble(), 2))], names, quantities, size);
+         lines += size;
+      }
+      recommender.endLoad(true);
+      long elapsed = System.nanoTime() - start;
+      System.gc();
+      long heapAfter = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+      System.out.println(String.format("%-40s %d lines in %.0f ms (%.0f ns/line), ~%.0f MB retained, %s", "recommend build",
+                                       orderLines, elapsed / 1e6, (double) elapsed / orderLines,
+                                       (heapAfter - heapBefore) / 1e6, recommender));
+
+      for (int threads : new int[] {1, 8}) {
+         run("recommend suggest", threads, new Op() {
+            public void run(int thread) {
+               ItemRecommender.Suggestions suggestions = recommender.suggest(skewedUser(users), ItemRecommender.DEFAULT_SUGGESTIONS);
+               consume(suggestions.together.size());
+            }
+         });
+      }
+      final AtomicLong ids = new AtomicLong(orderID);
+      run("recommend orderPlaced", 1, new Op() {
+         public void run(int thread) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            recommender.orderPlaced(syntheticOrder((int) ids.incrementAndGet(), 1, new Timestamp(System.currentTimeMillis()),
+                                                   items, random));
+         }
+      });
+   }//end benchRecommend
+
+   // an order of one to four distinct items, low numbered items far more often.
+   /*
+    * Runs each operation a PizzaStore user triggers, the way the menu
+    * handlers call it, against whatever the database holds: log in, role
+    * check (cached, and re-read), menu browse and filters, placing an
+    * order, recent orders, the first history page of a customer and of
+    * staff, order detail, status update, and rendering a history page
+    * with the TableRenderer printformatted uses, into /dev/null.
+    * Users, stores and orders are sampled from the database up front;
+    * users are picked with a skew, so a few are much more active.
+    */
+   static void benchApp(final PizzaStore esql, List<Integer> threadCounts) throws Exception {
+      final List<List<String>> users = esql.executeQueryAndReturnResult(
+         "SELECT login, password, role FROM Users ORDER BY random() LIMIT 1000");
+      List<List<String>> storeRows = esql.executeQueryAndReturnResult(
+         "SELECT storeID FROM Store ORDER BY random() LIMIT 1000");
+      List<List<String>> orderRows = esql.executeQueryAndReturnResult(
+         "SELECT orderID FROM FoodOrder ORDER BY random() LIMIT 10000");
+      if (users.isEmpty() || storeRows.isEmpty() || orderRows.isEmpty()) {
+         System.err.println("The database needs users, stores and orders; seed it with -Dbench.seedOrders=N");
+         return;
+      }
+      final int[] stores = new int[storeRows.size()];
+      for (int i = 0; i < stores.length; ++i) {
+         stores[i] = Integer.parseInt(storeRows.get(i).get(0).trim());
+      }
+      final int[] orders = new int[orderRows.size()];
+      for (int i = 0; i < orders.length; ++i) {
+         orders[i] = Integer.parseInt(orderRows.get(i).get(0).trim());
+      }
+      final List<MenuItem> menu = esql.getMenu().snapshot().all(true);
+      final BigDecimal medianPrice = menu.get(menu.size() / 2).price;
+      final String[] statuses = {"preparing", "out for delivery", "complete"};
+      final String[] orderHeaders = {"OrderID:", "placed by:", "storeID:", "totalPrice:", "orderTimestamp:", "orderStatus:"};
+      final OrderPage staffPage = esql.fetchOrderPage(null, PizzaStore.ORDER_PAGE_SIZE, null);
+      final TableRenderer renderer = new TableRenderer(
+         new BufferedWriter(new OutputStreamWriter(new FileOutputStream("/dev/null")), 1 << 16));
+
+      final Session[] sessions = new Session[users.size()];
+      for (int i = 0; i < sessions.length; ++i) {
+         sessions[i] = esql.openSession(users.get(i).get(0), users.get(i).get(2));
+      }
+
+      String[] names = {
+         "app login", "app role check", "app role check, re-read", "app menu browse", "app menu filter price",
+         "app menu filter type", "app place order", "app recent orders", "app order history page",
+         "app all orders page (staff)", "app order detail", "app status update", "app render order page",
+      };
+      Op[] ops = {
+         new Op() { public void run(int thread) throws Exception {
+            List<String> user = users.get(skewed(users.size()));
+            consume(esql.readQueryAndReturnResult(user.get(0), "SELECT login, role FROM Users WHERE login = ? and password = ?",
+                                                  user.get(0), user.get(1)).size());
+         } },
+         new Op() { public void run(int thread) throws Exception {
+            consume(sessions[skewed(sessions.length)].role().length());
+         } },
+         new Op() { public void run(int thread) throws Exception {
+            Session session = sessions[skewed(sessions.length)];
+            esql.invalidateRole(session.login);
+            consume(session.role().length());
+         } },
+         new Op() { public void run(int thread) throws Exception {
+            consume(MenuCatalog.rows(esql.getMenu().snapshot().all(true)).size());
+         } },
+         new Op() { public void run(int thread) throws Exception {
+            consume(MenuCatalog.rows(esql.getMenu().snapshot().atMost(medianPrice, true)).size());
+         } },
+         new Op() { public void run(int thread) throws Exception {
+            consume(MenuCatalog.rows(esql.getMenu().snapshot().ofType("entree", false)).size());
+         } },
+         new Op() { public void run(int thread) throws Exception {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            List<String> names = new ArrayList<String>();
+            List<Integer> quantities = new ArrayList<Integer>();
+            for (int i = 1 + random.nextInt(3); i > 0; --i) {
+               String name = menu.get(random.nextInt(menu.size())).itemName;
+               if (!names.contains(name)) {
+                  names.add(name);
+                  quantities.add(1 + random.nextInt(3));
+               }
+            }
+            consume(esql.submitOrder(users.get(skewed(users.size())).get(0), stores[random.nextInt(stores.length)],
+                                     names, quantities).orderID);
+         } },
+         new Op() { public void run(int thread) throws Exception {
+            consume(esql.recentOrders(users.get(skewed(users.size())).get(0)).size());
+         } },
+         new Op() { public void run(int thread) throws Exception {
+            consume(esql.fetchOrderPage(users.get(skewed(users.size())).get(0), PizzaStore.ORDER_PAGE_SIZE, null).orders.rowCount());
+         } },
+         new Op() { public void run(int thread) throws Exception {
+            consume(esql.fetchOrderPage(null, PizzaStore.ORDER_PAGE_SIZE, null).orders.rowCount());
+         } },
+         new Op() { public void run(int thread) throws Exception {
+            OrderDetail detail = esql.fetchOrderDetail(orders[ThreadLocalRandom.current().nextInt(orders.length)], null);
+            consume(detail == null ? 0 : detail.itemRows().size());
+         } },
+         new Op() { public void run(int thread) throws Exception {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            consume(esql.setOrderStatus(orders[random.nextInt(orders.length)], statuses[random.nextInt(statuses.length)]) ? 1 : 0);
+         } },
+         new Op() { public void run(int thread) throws Exception {
+            synchronized (renderer) {
+               renderer.print(orderHeaders, staffPage.orders.asRows());
+            }
+         } },
+      };
+      for (int i = 0; i < ops.length; ++i) {
+         for (int threads : threadCounts) {
+            run(names[i], threads, ops[i]);
+         }
+      }
+      esql.flushStatusUpdates();
+   }//end benchApp
+
+   // 0 .. n-1, low numbers far more often than high ones.
+   static int skewed(int n) {
+      double u = ThreadLocalRandom.current().nextDouble();
+      return (int) (n * u * u * u);
+   }
+
+   /**
+    * Recreates the database's tables and fills them with DataGenerator at
+    * the given number of orders, for the app scenario.
+    */
+   static void seed(String[] args, long orders) throws Exception {
+      int writers = Integer.getInteger("pizzastore.load.writers", BulkLoader.DEFAULT_WRITERS);
+      ConnectionPool pool = BulkLoader.connect(args[1], args[2], args[3], writers);
+      try {
+         DataGenerator generator = new DataGenerator(
+            Long.getLong("pizzastore.gen.seed", DataGenerator.DEFAULT_SEED), orders,
+            (int) Math.max(1, orders / 10), (int) Math.max(10, orders / 10000), DataGenerator.DEFAULT_DAYS,
+            DataGenerator.readMenu(new File(System.getProperty("pizzastore.gen.menu", "data/items.csv"))),
+            Runtime.getRuntime().availableProcessors());
+         BulkLoader loader = new BulkLoader(pool, null, new File(System.getProperty("bench.sqlDir", "sql/src")),
+                                            Integer.getInteger("pizzastore.load.chunkSize", BulkLoader.DEFAULT_CHUNK_SIZE), writers);
+         generator.load(loader, writers, true);
+      } finally {
+         pool.close();
+      }
+   }//end seed
+
+   static PlacedOrder syntheticOrder(int orderID, int storeID, Timestamp at, String[] items, Random random) {
+      int lines = 1 + random.nextInt(4);
+      List<String> names = new ArrayList<String>(lines);
+      List<Integer> quantities = new ArrayList<Integer>(lines);
+      List<BigDecimal> prices = new ArrayList<BigDecimal>(lines);
+      long cents = 0;
+      for (int i = 0; i < lines; ++i) {
+         String name = items[(int) (items.length * Math.pow(random.nextDouble(), 3))];
+         if (names.contains(name)) continue;
+         int quantity = 1 + random.nextInt(3);
+         names.add(name);
+         quantities.add(quantity);
+         prices.add(BigDecimal.valueOf(899, 2));
+         cents += 899L * quantity;
+      }
+      return new PlacedOrder(orderID, "user" + orderID % 1000, storeID, BigDecimal.valueOf(cents, 2), at,
+                             "incomplete", names, quantities, prices);
+   }//end syntheticOrder
+
+   // user0 .. user<users-1>, low numbers far more often than high ones.
+   static String skewedUser(int users) {
+      return "user" + skewed(users);
+   }
+
+   /**
+    * Returns the average time of one call of the operation, timing the
+    * whole loop rather than each call.
+    */
+   static double nanosPerCall(Op op, int calls) throws Exception {
+      for (int i = 0; i < calls / 10; ++i) {
+         op.run(0);
+      }
+      long start = System.nanoTime();
+      for (int i = 0; i < calls; ++i) {
+         op.run(0);
+      }
+      return (double) (System.nanoTime() - start) / calls;
+   }//end nanosPerCall
+
+   /**
+    * Returns the average number of bytes the current thread allocates per
+    * call of the operation.
+    */
+   static double allocatedPerCall(Op op, int calls) throws Exception {
+      com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+      long id = Thread.currentThread().getId();
+      op.run(0);
+      long before = threads.getThreadAllocatedBytes(id);
+      for (int i = 0; i < calls; ++i) {
+         op.run(0);
+      }
+      return (double) (threads.getThreadAllocatedBytes(id) - before) / calls;
+   }//end allocatedPerCall
+
+   static volatile long blackhole;
+
+   // keeps the JIT from discarding a computed result.
+   static void consume(long value) {
+      blackhole ^= value;
+   }
+
+   /**
+    * Returns a forward-only ResultSet over in-memory text cells. Typed
+    * getters parse the text, the way the PostgreSQL driver does.
+    */
+   static ResultSet fakeResultSet(final String[] names, final int[] types, final String[][] data) {
+      final ResultSetMetaData meta = (ResultSetMetaData) Proxy.newProxyInstance(
+         PizzaStoreBench.class.getClassLoader(), new Class<?>[] {ResultSetMetaData.class}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+               String m = method.getName();
+               if (m.equals("getColumnCount")) return names.length;
+               if (m.equals("getColumnName")) return names[(Integer) args[0] - 1];
+               if (m.equals("getColumnType")) return types[(Integer) args[0] - 1];
+               if (m.equals("getPrecision")) return types[(Integer) args[0] - 1] == Types.NUMERIC ? 10 : 0;
+               if (m.equals("getScale")) return types[(Integer) args[0] - 1] == Types.NUMERIC ? 2 : 0;
+               throw new UnsupportedOperationException(m);
+            }
+         });
+      return (ResultSet) Proxy.newProxyInstance(
+         PizzaStoreBench.class.getClassLoader(), new Class<?>[] {ResultSet.class}, new InvocationHandler() {
+            int row = -1;
+            String last;
+
+            public Object invoke(Object proxy, Method method, Object[] args) {
+               String m = method.getName();
+               if (m.equals("next")) return ++row < data.length;
+               if (m.equals("getMetaData")) return meta;
+               if (m.equals("wasNull")) return last == null;
+               if (m.equals("close")) return null;
+               last = data[row][(Integer) args[0] - 1];
+               if (m.equals("getString")) return last == null ? null : new String(last);
+               if (m.equals("getInt")) return last == null ? 0 : Integer.parseInt(last);
+               if (m.equals("getLong")) return last == null ? 0L : Long.parseLong(last);
+               if (m.equals("getDouble")) return last == null ? 0.0 : Double.parseDouble(last);
+               if (m.equals("getBigDecimal")) return last == null ? null : new BigDecimal(last);
+               if (m.equals("getTimestamp")) return last == null ? null : Timestamp.valueOf(last);
+               throw new UnsupportedOperationException(m);
+            }
+         });
+   }//end fakeResultSet
+
+   /**
+    * Opens a PizzaStore on the <dbname> <port> <user> arguments that follow
+    * the scenario name. The pool is sized for the largest thread count.
+    */
+   static PizzaStore connect(String[] args) throws Exception {
+      Class.forName("org.postgresql.Driver");
+      ConnectionPool.Settings settings = ConnectionPool.Settings.fromSystemProperties(
+         "jdbc:postgresql://localhost:" + args[2] + "/" + args[1], args[3], "");
+      settings.maxSize = Math.max(settings.maxSize, Integer.getInteger("bench.poolSize", 32));
+      return new PizzaStore(settings);
+   }//end connect
+
+   /**
+    * Runs the operation from the given number of threads, first for
+    * WARMUP_MS without measuring, then for DURATION_MS, and prints a line
+    * with throughput and latency percentiles.
+    *
+    * @return the latency histogram of the measured phase
+    */
+   static LatencyHistogram run(String name, int threads, final Op op) throws Exception {
+      final LatencyHistogram latencies = new LatencyHistogram();
+      final AtomicBoolean measuring = new AtomicBoolean(false);
+      final AtomicBoolean stop = new AtomicBoolean(false);
+      final AtomicLong errors = new AtomicLong();
+      final CountDownLatch done = new CountDownLatch(threads);
+      long[] workers = new long[threads];
+
+      for (int t = 0; t < threads; ++t) {
+         final int thread = t;
+         Thread worker = new Thread(new Runnable() {
+            public void run() {
+               try {
+                  while (!stop.get()) {
+                     long start = System.nanoTime();
+                     try {
+                        op.run(thread);
+                     } catch (Exception e) {
+                        if (errors.getAndIncrement() == 0) {
+                           e.printStackTrace();
+                        }
+                     }
+                     if (measuring.get()) {
+                        latencies.recordSince(start);
+                     }
+                  }
+               } finally {
+                  done.countDown();
+               }
+            }
+         }, "bench-" + name + "-" + t);
+         worker.setDaemon(true);
+         worker.start();
+         workers[t] = worker.getId();
+      }//end for
+
+      Thread.sleep(WARMUP_MS);
+      long allocatedBefore = allocatedBytes(workers);
+      long[] gcBefore = gcCountAndMillis();
+      measuring.set(true);
+      long start = System.nanoTime();
+      Thread.sleep(DURATION_MS);
+      measuring.set(false);
+      long elapsed = System.nanoTime() - start;
+      long allocated = allocatedBytes(workers) - allocatedBefore;
+      long[] gc = gcCountAndMillis();
+      stop.set(true);
+      done.await();
+
+      double seconds = elapsed / 1e9;
+      double opsPerSecond = latencies.count() / seconds;
+      double bytesPerOp = (double) allocated / Math.max(1, latencies.count());
+      double allocMBPerSecond = allocated / seconds / (1 << 20);
+      System.out.println(String.format("%-40s threads=%-3d ops/s=%-12.0f errors=%d %s alloc=%.1fMB/s %.0fB/op gc=%d/%dms",
+         name, threads, opsPerSecond, errors.get(), latencies, allocMBPerSecond, bytesPerOp,
+         gc[0] - gcBefore[0], gc[1] - gcBefore[1]));
+      appendResult(name, threads, opsPerSecond, errors.get(), latencies, bytesPerOp, allocMBPerSecond);
+      return latencies;
+   }//end run
+
+   /**
+    * Returns the bytes the threads have allocated so far, as the GC
+    * profiler of a benchmark harness would count them.
+    */
+   static long allocatedBytes(long[] threadIds) {
+      com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+      long total = 0;
+      for (long bytes : threads.getThreadAllocatedBytes(threadIds)) {
+         total += Math.max(0, bytes);
+      }
+      return total;
+   }//end allocatedBytes
+
+   // collections so far and the milliseconds they took, over all collectors.
+   static long[] gcCountAndMillis() {
+      long[] totals = new long[2];
+      for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+         totals[0] += Math.max(0, gc.getCollectionCount());
+         totals[1] += Math.max(0, gc.getCollectionTime());
+      }
+      return totals;
+   }//end gcCountAndMillis
+
+   /**
+    * Appends one measured run as a CSV line to the -Dbench.results file,
+    * if set, so runs on different revisions can be compared. Lines carry
+    * -Dbench.label, e.g. a commit hash.
+    */
+   static synchronized void appendResult(String name, int threads, double opsPerSecond, long errors,
+                                         LatencyHistogram latencies, double bytesPerOp, double allocMBPerSecond) {
+      if (RESULTS_FILE == null) {
+         return;
+      }
+      File file = new File(RESULTS_FILE);
+      boolean header = !file.exists() || file.length() == 0;
+      try {
+         Writer out = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8);
+         try {
+            if (header) {
+               out.write("label,scenario,threads,opsPerSecond,errors,meanNanos,p50Nanos,p90Nanos,p99Nanos,p999Nanos,maxNanos,"
+                         + "bytesPerOp,allocMBPerSecond\n");
+            }
+            out.write(String.format(Locale.ROOT, "%s,\"%s\",%d,%.1f,%d,%.0f,%d,%d,%d,%d,%d,%.1f,%.1f%n",
+               RESULTS_LABEL, name.replace("\"", "\"\""), threads, opsPerSecond, errors, latencies.mean(),
+               latencies.percentile(50), latencies.percentile(90), latencies.percentile(99), latencies.percentile(99.9),
+               latencies.max(), bytesPerOp, allocMBPerSecond));
+         } finally {
+            out.close();
+         }
+      } catch (IOException e) {
+         System.err.println("Unable to write " + RESULTS_FILE + ": " + e.getMessage());
+      }
+   }//end appendResult
+
+   static void simulateRoundTrip() {
+      if (RTT_MICROS > 0) {
+         LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(RTT_MICROS));
+      }
+   }//end simulateRoundTrip
+
+   static List<Integer> intList(String csv) {
+      List<Integer> values = new ArrayList<Integer>();
+      for (String part : csv.split(",")) {
+         values.add(Integer.parseInt(part.trim()));
+      }
+      return values;
+   }//end intList
+}//end PizzaStoreBench
@@ -0,0 +1,41 @@
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class describes an order that has been committed to FoodOrder and
+ * ItemsInOrder by PizzaStore.submitOrder().
+ */
+public class PlacedOrder {
+
+   public final int orderID;
+   public final String login;
+   public final int storeID;
+   public final BigDecimal totalPrice;
+   public final Timestamp orderTimestamp;
+   public final String orderStatus;
+
+   // line items, in the order they were entered; names are unique.
+   public final List<String> itemNames;
+   public final List<Integer> quantities;
+   public final List<BigDecimal> prices;
+
+   PlacedOrder(int orderID, String login, int storeID, BigDecimal totalPrice, Timestamp orderTimestamp,
+               String orderStatus, List<String> itemNames, List<Integer> quantities, List<BigDecimal> prices) {
+      this.orderID = orderID;
+      this.login = login;
+      this.storeID = storeID;
+      this.totalPrice = totalPrice;
+      this.orderTimestamp = orderTimestamp;
+      this.orderStatus = orderStatus;
+      this.itemNames = Collections.unmodifiableList(itemNames);
+      this.quantities = Collections.unmodifiableList(quantities);
+      this.prices = Collections.unmodifiableList(prices);
+   }//end PlacedOrder
+
+   public String toString() {
+      return "order " + this.orderID + " by " + this.login + " at store " + this.storeID
+         + ", " + this.itemNames.size() + " item(s), total " + this.totalPrice;
+   }
+}//end PlacedOrder
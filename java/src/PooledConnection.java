@@ -0,0 +1,423 @@
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class is one physical connection owned by a ConnectionPool, together
+ * with its prepared statement cache. It carries the same query helpers as
+ * PizzaStore so that a unit of work can issue several statements on the
+ * connection it borrowed.
+ *
+ * A pooled connection is used by one thread at a time: the one that
+ * borrowed it, until it is released back to the pool.
+ */
+public class PooledConnection {
+
+   /**
+    * Receives the rows of a streamed query one at a time.
+    */
+   public interface RowHandler {
+      /**
+       * Called once per row, with the result set positioned on it. The
+       * result set must not be advanced or kept after returning.
+       */
+      void row(ResultSet rs) throws SQLException;
+   }
+
+   // cursor declared by executeQueryStreaming() when the driver cannot stream.
+   static final String STREAM_CURSOR = "pizzastore_stream";
+
+   // reference to physical database connection.
+   private final Connection _connection;
+
+   // prepared statements of _connection, keyed by SQL text.
+   private final StatementCache _statements;
+
+   // false once the driver has refused setFetchSize; streaming then
+   // declares STREAM_CURSOR itself.
+   private boolean _driverFetchSize = true;
+
+   // bookkeeping maintained by the pool, all in System.nanoTime() units.
+   final long createdAt;
+   volatile long lastUsedAt;
+   volatile long borrowedAt;
+
+   // the current borrower's thread and, with Settings.leakTrace, where
+   // it obtained this connection; for leak reports.
+   volatile String borrowedBy;
+   volatile Throwable borrowTrace;
+   volatile boolean leakReported;
+
+   PooledConnection(Connection connection, int statementCacheSize) {
+      this._connection = connection;
+      this._statements = new StatementCache(connection, statementCacheSize);
+      this.createdAt = System.nanoTime();
+      this.lastUsedAt = this.createdAt;
+   }//end PooledConnection
+
+   /**
+    * Returns the underlying JDBC connection, e.g. to control transactions.
+    * It must not be closed by the caller.
+    */
+   public Connection getConnection() {
+      return this._connection;
+   }
+
+   public StatementCache getStatementCache() {
+      return this._statements;
+   }
+
+   /**
+    * Binds the given values to the '?' placeholders of a prepared statement,
+    * in order. The setter is picked from the Java type of each value, so
+    * numbers reach the DBMS as numbers rather than quoted strings.
+    *
+    * @param stmt the statement to bind
+    * @param params the values, one per placeholder
+    * @throws java.sql.SQLException when a value cannot be bound
+    */
+   static void bind (PreparedStatement stmt, Object... params) throws SQLException {
+      for (int i = 0; i < params.length; ++i) {
+         Object value = params[i];
+         int index = i + 1;
+         if (value == null)
+            stmt.setNull (index, Types.VARCHAR);
+         else if (value instanceof String)
+            stmt.setString (index, (String) value);
+         else if (value instanceof Integer)
+            stmt.setInt (index, ((Integer) value).intValue ());
+         else if (value instanceof Long)
+            stmt.setLong (index, ((Long) value).longValue ());
+         else if (value instanceof Double)
+            stmt.setDouble (index, ((Double) value).doubleValue ());
+         else if (value instanceof BigDecimal)
+            stmt.setBigDecimal (index, (BigDecimal) value);
+         else if (value instanceof Boolean)
+            stmt.setBoolean (index, ((Boolean) value).booleanValue ());
+         else if (value instanceof Timestamp)
+            stmt.setTimestamp (index, (Timestamp) value);
+         else if (value instanceof java.sql.Date)
+            stmt.setDate (index, (java.sql.Date) value);
+         else
+            throw new SQLException ("Unsupported parameter type at index " + index + ": " + value.getClass ().getName ());
+      }//end for
+   }//end bind
+
+   /**
+    * Returns the cached statement for the SQL text with the values bound.
+    * The statement belongs to the cache and must not be closed.
+    */
+   public PreparedStatement prepare (String sql, Object... params) throws SQLException {
+      PreparedStatement stmt = this._statements.prepare (sql);
+      bind (stmt, params);
+      return stmt;
+   }//end prepare
+
+   /**
+    * Method to execute an update SQL statement.  Update SQL instructions
+    * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
+    *
+    * @param sql the input SQL string, with '?' placeholders for values
+    * @param params the values bound to the placeholders
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      Metrics.Metric metric = Metrics.sql (sql);
+      long start = System.nanoTime ();
+      int rowCount = -1;
+      try {
+         rowCount = prepare (sql, params).executeUpdate ();
+         return rowCount;
+      } finally {
+         metric.record (start, rowCount, rowCount >= 0);
+      }
+   }//end executeUpdate
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and outputs the results to
+    * standard out.
+    *
+    * @param query the input query string, with '?' placeholders for values
+    * @param params the values bound to the placeholders
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+      Metrics.Metric metric = Metrics.sql (query);
+      long start = System.nanoTime ();
+      int rowCount = -1;
+      ResultSet rs = null;
+      try {
+         rs = prepare (query, params).executeQuery ();
+         /*
+          ** obtains the metadata object for the returned result set.  The metadata
+          ** contains row and column info.
+          */
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+         int rows = 0;
+
+         // iterates through the result set and output them to standard out.
+         boolean outputHeader = true;
+         while (rs.next()){
+            if(outputHeader){
+               for(int i = 1; i <= numCol; i++){
+                  System.out.print(rsmd.getColumnName(i) + "\t");
+               }
+               System.out.println();
+               outputHeader = false;
+            }
+            for (int i=1; i<=numCol; ++i)
+               System.out.print (rs.getString (i) + "\t");
+            System.out.println ();
+            ++rows;
+         }//end while
+         rowCount = rows;
+         return rowCount;
+      } finally {
+         if (rs != null)
+            rs.close ();
+         metric.record (start, rowCount, rowCount >= 0);
+      }
+   }//end executeQueryAndPrintResult
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and returns the results as
+    * a list of records. Each record in turn is a list of attribute values
+    *
+    * @param query the input query string, with '?' placeholders for values
+    * @param params the values bound to the placeholders
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+      Metrics.Metric metric = Metrics.sql (query);
+      long start = System.nanoTime ();
+      int rowCount = -1;
+      ResultSet rs = null;
+      try {
+         rs = prepare (query, params).executeQuery ();
+         /*
+          ** obtains the metadata object for the returned result set.  The metadata
+          ** contains row and column info.
+          */
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+
+         // iterates through the result set and saves the data returned by the query.
+         List<List<String>> result  = new ArrayList<List<String>>();
+         while (rs.next()){
+            List<String> record = new ArrayList<String>(numCol);
+            for (int i=1; i<=numCol; ++i)
+               record.add(rs.getString (i));
+            result.add(record);
+         }//end while
+         rowCount = result.size ();
+         return result;
+      } finally {
+         if (rs != null)
+            rs.close ();
+         metric.record (start, rowCount, rowCount >= 0);
+      }
+   }//end executeQueryAndReturnResult
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and returns the results as a
+    * ResultTable, each column read with its own JDBC getter into a
+    * primitive array.
+    *
+    * @param query the input query string, with '?' placeholders for values
+    * @param params the values bound to the placeholders
+    * @return the query result, column by column
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public ResultTable executeQueryTyped (String query, Object... params) throws SQLException {
+      Metrics.Metric metric = Metrics.sql (query);
+      long start = System.nanoTime ();
+      int rowCount = -1;
+      ResultSet rs = null;
+      try {
+         rs = prepare (query, params).executeQuery ();
+         ResultTable table = ResultTable.read (rs);
+         rowCount = table.rowCount ();
+         return table;
+      } finally {
+         if (rs != null)
+            rs.close ();
+         metric.record (start, rowCount, rowCount >= 0);
+      }
+   }//end executeQueryTyped
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) without
+    * materializing its result. The query runs inside a transaction and is
+    * read through a server-side cursor fetchSize rows at a time, each row
+    * handed to the handler as it arrives. Memory use does not grow with
+    * the row count.
+    *
+    * Drivers that honour setFetchSize keep the cursor themselves. Others,
+    * such as the bundled pg73jdbc3, refuse it; the query is then wrapped
+    * in an explicit DECLARE ... CURSOR and read with FETCH FORWARD.
+    *
+    * @param query the input query string, with '?' placeholders for values
+    * @param fetchSize rows per round trip to the server
+    * @param handler called once per row
+    * @param params the values bound to the placeholders
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public long executeQueryStreaming (String query, int fetchSize, RowHandler handler, Object... params) throws SQLException {
+      Metrics.Metric metric = Metrics.sql (query);
+      long start = System.nanoTime ();
+      fetchSize = Math.max (1, fetchSize);
+      boolean autoCommit = this._connection.getAutoCommit ();
+      if (autoCommit) {
+         // cursors only live inside a transaction
+         this._connection.setAutoCommit (false);
+      }
+      long rowCount = -1;
+      try {
+         if (this._driverFetchSize)
+            rowCount = streamWithFetchSize (query, fetchSize, handler, params);
+         if (rowCount < 0)
+            rowCount = streamWithCursor (query, fetchSize, handler, params);
+      } finally {
+         try {
+            if (autoCommit) {
+               try {
+                  if (rowCount >= 0)
+                     this._connection.commit ();
+                  else
+                     this._connection.rollback ();
+               } finally {
+                  this._connection.setAutoCommit (true);
+               }
+            }
+         } finally {
+            // includes the handler's time, e.g. printing each row
+            metric.record (start, rowCount, rowCount >= 0);
+         }
+      }
+      return rowCount;
+   }//end executeQueryStreaming
+
+   // streams with the driver's own cursor, or returns -1 without running
+   // anything when the driver does not implement setFetchSize.
+   private long streamWithFetchSize (String query, int fetchSize, RowHandler handler, Object... params) throws SQLException {
+      PreparedStatement stmt = prepare (query, params);
+      try {
+         stmt.setFetchSize (fetchSize);
+      } catch (SQLException e) {
+         // pg73jdbc3: "This method is not yet implemented."
+         this._driverFetchSize = false;
+         return -1;
+      }
+      long rowCount = handleRows (stmt.executeQuery (), handler);
+      // the statement is cached; other callers read whole results
+      stmt.setFetchSize (0);
+      return rowCount;
+   }//end streamWithFetchSize
+
+   // streams through an explicit cursor, fetchSize rows per FETCH.
+   private long streamWithCursor (String query, int fetchSize, RowHandler handler, Object... params) throws SQLException {
+      prepare ("DECLARE " + STREAM_CURSOR + " CURSOR FOR " + query, params).execute ();
+      PreparedStatement fetch = prepare ("FETCH FORWARD " + fetchSize + " FROM " + STREAM_CURSOR);
+      long rowCount = 0;
+      long fetched;
+      do {
+         fetched = handleRows (fetch.executeQuery (), handler);
+         rowCount += fetched;
+      } while (fetched == fetchSize);
+      // the transaction may go on, e.g. inside executeInTransaction()
+      prepare ("CLOSE " + STREAM_CURSOR).execute ();
+      return rowCount;
+   }//end streamWithCursor
+
+   // hands every row to the handler, then closes the result set.
+   private static long handleRows (ResultSet rs, RowHandler handler) throws SQLException {
+      long rowCount = 0;
+      try {
+         while (rs.next ()) {
+            handler.row (rs);
+            ++rowCount;
+         }//end while
+      } finally {
+         rs.close ();
+      }
+      return rowCount;
+   }//end handleRows
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and returns the number of results
+    *
+    * @param query the input query string, with '?' placeholders for values
+    * @param params the values bound to the placeholders
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQuery (String query, Object... params) throws SQLException {
+      Metrics.Metric metric = Metrics.sql (query);
+      long start = System.nanoTime ();
+      int rowCount = 0;
+      boolean done = false;
+      ResultSet rs = null;
+
+      // iterates through the result set and count nuber of results.
+      try {
+         rs = prepare (query, params).executeQuery ();
+         while (rs.next()){
+            rowCount++;
+         }//end while
+         done = true;
+      } finally {
+         if (rs != null)
+            rs.close ();
+         metric.record (start, rowCount, done);
+      }
+      return rowCount;
+   }//end executeQuery
+
+   /**
+    * Method to fetch the last value from sequence. This
+    * method issues the query to the DBMS and returns the current
+    * value of sequence used for autogenerated keys
+    *
+    * @param sequence name of the DB sequence
+    * @return current value of a sequence
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int getCurrSeqVal (String sequence) throws SQLException {
+      ResultSet rs = prepare ("SELECT currval(CAST(? AS regclass))", sequence).executeQuery ();
+      try {
+         if (rs.next())
+            return rs.getInt(1);
+         return -1;
+      } finally {
+         rs.close ();
+      }
+   }//end getCurrSeqVal
+
+   /**
+    * Closes the cached statements and the physical connection.
+    */
+   void close () {
+      this._statements.clear ();
+      try {
+         this._connection.close ();
+      } catch (SQLException e) {
+         // ignored.
+      }
+   }//end close
+}//end PooledConnection
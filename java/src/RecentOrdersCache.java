@@ -0,0 +1,359 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class remembers the newest orders of each user, so "View Past 5
+ * Order IDs" does not run a sort-limit query on FoodOrder every time.
+ *
+ * Each user gets a ring buffer of their newest depth orders, filled from
+ * the database on first access. Users are evicted least recently used
+ * first once maxUsers are cached. Managers and drivers see every order, so
+ * there is one more ring for all users together.
+ *
+ * The rings are kept current in place: PizzaStore calls orderPlaced() after
+ * an order commits and statusChanged() after a status update. Writes made
+ * by other processes are picked up when a ring is older than ttlMs.
+ */
+public class RecentOrdersCache {
+
+   static final int DEFAULT_DEPTH = 5;
+   static final int DEFAULT_MAX_USERS = 10000;
+   static final long DEFAULT_TTL_MS = 30000;
+
+   // rough heap cost of one OrderSummary without its strings, see stats().
+   private static final int ORDER_BYTES = 176;
+   private static final int RING_BYTES = 64;
+
+   /**
+    * Reads the newest orders, normally from FoodOrder.
+    */
+   public interface Loader {
+      /**
+       * Returns up to limit orders of the user, or of every user when login
+       * is null, newest first.
+       */
+      List<OrderSummary> load(String login, int limit) throws SQLException;
+   }
+
+   /**
+    * A point in time view of the cache counters.
+    */
+   public static final class Stats {
+      public final long hits;
+      public final long misses;
+      public final int users;
+      public final int orders;
+      public final long estimatedBytes;
+
+      Stats(long hits, long misses, int users, int orders, long estimatedBytes) {
+         this.hits = hits;
+         this.misses = misses;
+         this.users = users;
+         this.orders = orders;
+         this.estimatedBytes = estimatedBytes;
+      }
+
+      public double hitRatio() {
+         long total = this.hits + this.misses;
+         return total == 0 ? 0.0 : (double) this.hits / total;
+      }
+
+      public String toString() {
+         return String.format("hits=%d misses=%d hitRatio=%.3f users=%d orders=%d bytes~%d",
+                              this.hits, this.misses, hitRatio(), this.users, this.orders, this.estimatedBytes);
+      }
+   }//end Stats
+
+   // newest orders first, in a circular array; guarded by its own monitor.
+   private static final class Ring {
+      final OrderSummary[] slots;
+      int head;
+      int size;
+      boolean loaded;
+      long loadedAt;
+
+      Ring(int depth) {
+         this.slots = new OrderSummary[depth];
+      }
+
+      OrderSummary get(int i) {
+         return this.slots[(this.head + i) % this.slots.length];
+      }
+
+      // makes order the newest entry, dropping the oldest when full.
+      void push(OrderSummary order) {
+         this.head = (this.head + this.slots.length - 1) % this.slots.length;
+         this.slots[this.head] = order;
+         this.size = Math.min(this.size + 1, this.slots.length);
+      }
+
+      void add(OrderSummary order) {
+         for (int i = 0; i < this.size; ++i) {
+            if (get(i).orderID == order.orderID) {
+               this.slots[(this.head + i) % this.slots.length] = order;
+               return;
+            }
+         }
+         if (this.size == 0 || order.newerThan(get(0))) {
+            push(order);
+            return;
+         }
+         // out of order, e.g. clocks of two writers differ: re-sort
+         List<OrderSummary> orders = list();
+         orders.add(order);
+         fill(orders);
+      }//end add
+
+      boolean setStatus(int orderID, String orderStatus) {
+         for (int i = 0; i < this.size; ++i) {
+            int slot = (this.head + i) % this.slots.length;
+            if (this.slots[slot].orderID == orderID) {
+               this.slots[slot] = this.slots[slot].withStatus(orderStatus);
+               return true;
+            }
+         }
+         return false;
+      }//end setStatus
+
+      void fill(List<OrderSummary> orders) {
+         List<OrderSummary> sorted = new ArrayList<OrderSummary>(orders);
+         Collections.sort(sorted, NEWEST_FIRST);
+         Arrays.fill(this.slots, null);
+         this.head = 0;
+         this.size = Math.min(sorted.size(), this.slots.length);
+         for (int i = 0; i < this.size; ++i) {
+            this.slots[i] = sorted.get(i);
+         }
+      }//end fill
+
+      List<OrderSummary> list() {
+         List<OrderSummary> orders = new ArrayList<OrderSummary>(this.size + 1);
+         for (int i = 0; i < this.size; ++i) {
+            orders.add(get(i));
+         }
+         return orders;
+      }
+   }//end Ring
+
+   static final Comparator<OrderSummary> NEWEST_FIRST = new Comparator<OrderSummary>() {
+      public int compare(OrderSummary a, OrderSummary b) {
+         return a.newerThan(b) ? -1 : b.newerThan(a) ? 1 : 0;
+      }
+   };
+
+   private final Loader _loader;
+   private final int _depth;
+   private final long _ttlNanos;
+
+   // login -> ring, least recently used first; guarded by itself.
+   private final LinkedHashMap<String, Ring> _byLogin;
+
+   // every user's orders, for staff.
+   private final Ring _all;
+
+   private final AtomicLong _hits = new AtomicLong();
+   private final AtomicLong _misses = new AtomicLong();
+
+   /**
+    * Creates a new cache
+    *
+    * @param loader where orders are read from on a miss
+    * @param depth how many orders are kept per user
+    * @param maxUsers how many users are cached at most
+    * @param ttlMs how long a ring is trusted without being reloaded
+    */
+   public RecentOrdersCache(Loader loader, int depth, final int maxUsers, long ttlMs) {
+      if (depth <= 0 || maxUsers <= 0) {
+         throw new IllegalArgumentException("depth and maxUsers must be positive: " + depth + ", " + maxUsers);
+      }
+      this._loader = loader;
+      this._depth = depth;
+      this._ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+      this._byLogin = new LinkedHashMap<String, Ring>(16, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<String, Ring> eldest) {
+            return size() > maxUsers;
+         }
+      };
+      this._all = new Ring(depth);
+   }//end RecentOrdersCache
+
+   /**
+    * Returns a cache reading FoodOrder through the pool, sized from the
+    * -Dpizzastore.recentOrders.* system properties.
+    */
+   public static RecentOrdersCache forDatabase(final ConnectionPool pool) {
+      Loader loader = new Loader() {
+         public List<OrderSummary> load(final String login, final int limit) throws SQLException {
+            ResultTable table = pool.execute(new ConnectionPool.Work<ResultTable>() {
+               public ResultTable run(PooledConnection conn) throws SQLException {
+                  String columns = "SELECT orderID, login, storeID, totalPrice, orderTimestamp, orderStatus FROM FoodOrder";
+                  String order = " ORDER BY orderTimestamp DESC, orderID DESC LIMIT ?";
+                  if (login == null) {
+                     return conn.executeQueryTyped(columns + order, limit);
+                  }
+                  return conn.executeQueryTyped(columns + " WHERE login = ?" + order, login, limit);
+               }
+            });
+            List<OrderSummary> orders = new ArrayList<OrderSummary>(table.rowCount());
+            for (int r = 0; r < table.rowCount(); ++r) {
+               orders.add(OrderSummary.fromTable(table, r));
+            }
+            return orders;
+         }
+      };
+      return new RecentOrdersCache(loader,
+         Integer.getInteger("pizzastore.recentOrders.depth", DEFAULT_DEPTH),
+         Integer.getInteger("pizzastore.recentOrders.maxUsers", DEFAULT_MAX_USERS),
+         Long.getLong("pizzastore.recentOrders.ttlMs", DEFAULT_TTL_MS));
+   }//end forDatabase
+
+   /**
+    * Returns the newest orders of one user, newest first.
+    *
+    * @param login the user
+    * @return up to depth orders
+    * @throws java.sql.SQLException when the orders have to be loaded and that fails
+    */
+   public List<OrderSummary> recent(String login) throws SQLException {
+      Ring ring;
+      synchronized (this._byLogin) {
+         ring = this._byLogin.get(login);
+         if (ring == null) {
+            ring = new Ring(this._depth);
+            this._byLogin.put(login, ring);
+         }
+      }
+      return read(ring, login);
+   }//end recent
+
+   /**
+    * Returns the newest orders of all users, newest first.
+    */
+   public List<OrderSummary> recentAll() throws SQLException {
+      return read(this._all, null);
+   }
+
+   /**
+    * Records a newly committed order.
+    */
+   public void orderPlaced(OrderSummary order) {
+      Ring ring = cached(order.login);
+      if (ring != null) {
+         synchronized (ring) {
+            if (ring.loaded) ring.add(order);
+         }
+      }
+      synchronized (this._all) {
+         if (this._all.loaded) this._all.add(order);
+      }
+   }//end orderPlaced
+
+   /**
+    * Records a committed status change of an order placed by login.
+    */
+   public void statusChanged(String login, int orderID, String orderStatus) {
+      Ring ring = cached(login);
+      if (ring != null) {
+         synchronized (ring) {
+            ring.setStatus(orderID, orderStatus);
+         }
+      }
+      synchronized (this._all) {
+         this._all.setStatus(orderID, orderStatus);
+      }
+   }//end statusChanged
+
+   /**
+    * Forgets everything, e.g. after orders were changed behind our back.
+    */
+   public void clear() {
+      synchronized (this._byLogin) {
+         this._byLogin.clear();
+      }
+      synchronized (this._all) {
+         this._all.loaded = false;
+      }
+   }//end clear
+
+   /**
+    * Returns the hit and miss counts and an estimate of the heap used by
+    * the cached orders, each order counted once even when it sits in both
+    * its user's ring and the global one.
+    */
+   public Stats stats() {
+      List<Ring> rings;
+      synchronized (this._byLogin) {
+         rings = new ArrayList<Ring>(this._byLogin.values());
+      }
+      rings.add(this._all);
+      Set<OrderSummary> seen = Collections.newSetFromMap(new IdentityHashMap<OrderSummary, Boolean>());
+      long bytes = 0;
+      for (Ring ring : rings) {
+         bytes += RING_BYTES + 4L * this._depth;
+         synchronized (ring) {
+            for (int i = 0; i < ring.size; ++i) {
+               OrderSummary order = ring.get(i);
+               if (seen.add(order)) {
+                  bytes += ORDER_BYTES;
+                  for (String cell : order.row) {
+                     bytes += cell == null ? 0 : 40 + cell.length();
+                  }
+               }
+            }
+         }
+      }
+      return new Stats(this._hits.get(), this._misses.get(), rings.size() - 1, seen.size(), bytes);
+   }//end stats
+
+   /**
+    * Returns stats() as Metrics gauges, for the metrics screen and dump.
+    */
+   public Metrics.Gauges gauges() {
+      return new Metrics.Gauges() {
+         public Map<String, Number> read() {
+            Stats s = stats();
+            Map<String, Number> gauges = new LinkedHashMap<String, Number>();
+            gauges.put("hits", s.hits);
+            gauges.put("misses", s.misses);
+            gauges.put("hitRatio", s.hitRatio());
+            gauges.put("users", s.users);
+            gauges.put("orders", s.orders);
+            gauges.put("estimatedBytes", s.estimatedBytes);
+            return gauges;
+         }
+      };
+   }//end gauges
+
+   private Ring cached(String login) {
+      synchronized (this._byLogin) {
+         return this._byLogin.get(login);
+      }
+   }
+
+   // the ring's lock is held while loading, so updates for the same user
+   // wait for the load instead of being applied to an empty ring and lost.
+   private List<OrderSummary> read(Ring ring, String login) throws SQLException {
+      synchronized (ring) {
+         long now = System.nanoTime();
+         if (ring.loaded && now - ring.loadedAt < this._ttlNanos) {
+            this._hits.incrementAndGet();
+         } else {
+            this._misses.incrementAndGet();
+            ring.fill(this._loader.load(login, this._depth));
+            ring.loaded = true;
+            ring.loadedAt = now;
+         }
+         return ring.list();
+      }
+   }//end read
+}//end RecentOrdersCache
@@ -0,0 +1,410 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class sends read-only work to read replicas and everything else to
+ * the primary. Replicas are taken round-robin, skipping the ones the
+ * health checker found down or lagging more than maxLagMs behind. A read
+ * whose replica fails at the connection level is retried on the next
+ * one, and on the primary when none is left. A connection failure is told
+ * from a failed statement by its SQLState or, when the driver sets none,
+ * by whether the connection still answers SELECT 1.
+ *
+ * A user's reads go to the primary for maxLagMs after that user wrote, so
+ * an order just placed or a profile just changed is never read back
+ * stale. wrote(null) pins every user, for writes that cannot name one.
+ *
+ * With no replicas every call goes to the primary and nothing else runs.
+ */
+public class ReplicaRouter {
+
+   static final long DEFAULT_MAX_LAG_MS = 5000;
+   static final long DEFAULT_HEALTH_CHECK_MS = 2000;
+
+   // on a standby: how far replay is behind, 0 when it has replayed all it
+   // received. On a database that is not a standby (a stand-in): 0.
+   static final String LAG_QUERY =
+      "SELECT CASE WHEN NOT pg_is_in_recovery() OR pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 "
+         + "ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000, 0) END";
+
+   /**
+    * One replica and what the router knows about it.
+    */
+   public static final class Replica {
+      public final ConnectionPool pool;
+      volatile boolean healthy = true;
+      volatile long lagMs = 0;
+      final AtomicLong reads = new AtomicLong();
+      final AtomicLong failures = new AtomicLong();
+
+      Replica(ConnectionPool pool) {
+         this.pool = pool;
+      }
+
+      public boolean isHealthy() {
+         return this.healthy;
+      }
+
+      public String toString() {
+         return this.pool.getSettings().url + (this.healthy ? " up" : " down") + " lag=" + this.lagMs
+            + "ms reads=" + this.reads.get() + " failures=" + this.failures.get();
+      }
+   }//end Replica
+
+   private final ConnectionPool _primary;
+   private final Replica[] _replicas;
+   private final long _maxLagNanos;
+   private final AtomicInteger _next = new AtomicInteger();
+
+   // login -> System.nanoTime() until which its reads go to the primary.
+   private final ConcurrentHashMap<String, Long> _pinned = new ConcurrentHashMap<String, Long>();
+
+   // the same for every user, set by wrote(null); 0 when unset.
+   private volatile long _pinnedAll = 0;
+
+   private final AtomicLong _primaryReads = new AtomicLong();
+   private volatile boolean _closed = false;
+   private final Thread _checker;
+
+   /**
+    * Creates a router and, when there are replicas, starts checking them.
+    *
+    * @param primary where writes and pinned reads go
+    * @param replicas the read replicas, possibly none
+    * @param maxLagMs how far behind a replica may be, and how long a writer is pinned
+    * @param healthCheckMs how often replicas are checked
+    */
+   public ReplicaRouter(ConnectionPool primary, List<ConnectionPool> replicas, long maxLagMs, final long healthCheckMs) {
+      this._primary = primary;
+      this._replicas = new Replica[replicas.size()];
+      for (int i = 0; i < this._replicas.length; ++i) {
+         this._replicas[i] = new Replica(replicas.get(i));
+      }
+      this._maxLagNanos = TimeUnit.MILLISECONDS.toNanos(maxLagMs);
+      if (this._replicas.length > 0) {
+         this._checker = new Thread(new Runnable() {
+            public void run() {
+               while (!_closed) {
+                  checkReplicas();
+                  try {
+                     Thread.sleep(healthCheckMs);
+                  } catch (InterruptedException e) {
+                     return;
+                  }
+               }
+            }
+         }, "pizzastore-replica-checker");
+         this._checker.setDaemon(true);
+         this._checker.start();
+      } else {
+         this._checker = null;
+      }
+   }//end ReplicaRouter
+
+   /**
+    * Opens a pool per replica URL, with the primary's credentials and the
+    * -Dpizzastore.pool.* sizing, and routes between them and the primary.
+    * Lag and check interval come from -Dpizzastore.replicaMaxLagMs and
+    * -Dpizzastore.replicaHealthCheckMs.
+    *
+    * @throws java.sql.SQLException when a replica cannot be reached at startup
+    */
+   public static ReplicaRouter forUrls(ConnectionPool primary, List<String> replicaUrls) throws SQLException {
+      ConnectionPool.Settings settings = primary.getSettings();
+      List<ConnectionPool> replicas = new ArrayList<ConnectionPool>();
+      try {
+         for (String url : replicaUrls) {
+            replicas.add(new ConnectionPool(ConnectionPool.Settings.fromSystemProperties(url, settings.user, settings.password)));
+         }
+      } catch (SQLException e) {
+         for (ConnectionPool replica : replicas) {
+            replica.close();
+         }
+         throw e;
+      }
+      return new ReplicaRouter(primary, replicas,
+                               Long.getLong("pizzastore.replicaMaxLagMs", DEFAULT_MAX_LAG_MS),
+                               Long.getLong("pizzastore.replicaHealthCheckMs", DEFAULT_HEALTH_CHECK_MS));
+   }//end forUrls
+
+   /**
+    * Returns the replica URLs listed, comma-separated, in
+    * -Dpizzastore.replicas; none when it is not set.
+    */
+   public static List<String> replicaUrlsFromSystemProperties() {
+      List<String> urls = new ArrayList<String>();
+      String list = System.getProperty("pizzastore.replicas", "");
+      for (String url : list.split(",")) {
+         if (!url.trim().isEmpty()) {
+            urls.add(url.trim());
+         }
+      }
+      return urls;
+   }//end replicaUrlsFromSystemProperties
+
+   public ConnectionPool primary() {
+      return this._primary;
+   }
+
+   /**
+    * Runs read-only work on a replica, or on the primary when the user
+    * wrote recently or no replica is healthy.
+    *
+    * @param login the user the read is for, or null when it is for nobody in particular
+    * @param work statements that must not write
+    */
+   public <T> T read(String login, ConnectionPool.Work<T> work) throws SQLException {
+      if (this._replicas.length > 0 && !isPinned(login)) {
+         int start = this._next.getAndIncrement();
+         for (int i = 0; i < this._replicas.length; ++i) {
+            Replica replica = this._replicas[Math.floorMod(start + i, this._replicas.length)];
+            if (!replica.healthy) {
+               continue;
+            }
+            PooledConnection conn;
+            try {
+               conn = replica.pool.borrow();
+            } catch (SQLException e) {
+               markDown(replica, e);
+               continue;
+            }
+            try {
+               T result = work.run(conn);
+               replica.reads.incrementAndGet();
+               return result;
+            } catch (SQLException e) {
+               if (!isConnectionFailure(conn, e)) {
+                  throw e;
+               }
+               // reads can be repeated, so try the next replica
+               markDown(replica, e);
+            } finally {
+               replica.pool.release(conn);
+            }
+         }//end for
+      }
+      this._primaryReads.incrementAndGet();
+      return this._primary.execute(work);
+   }//end read
+
+   /**
+    * Returns the pool read() would try first for the user: the next
+    * healthy replica, or the primary. Also for long work done outside
+    * read(), e.g. a streaming pass at startup, which then gets no retry
+    * on another replica.
+    */
+   public ConnectionPool route(String login) {
+      if (this._replicas.length > 0 && !isPinned(login)) {
+         int start = this._next.getAndIncrement();
+         for (int i = 0; i < this._replicas.length; ++i) {
+            Replica replica = this._replicas[Math.floorMod(start + i, this._replicas.length)];
+            if (replica.healthy) {
+               return replica.pool;
+            }
+         }
+      }
+      return this._primary;
+   }//end route
+
+   /**
+    * Runs read-only work on a pool route() returned for the user. If the
+    * pool is a replica whose connection fails, the replica is marked down
+    * and read() takes the work over; any other failure is thrown, since
+    * the work would fail the same way elsewhere.
+    *
+    * @param pool what route(login) returned, possibly a while ago
+    * @param login the user the read is for, or null when it is for nobody in particular
+    * @param work statements that must not write
+    */
+   public <T> T readOn(ConnectionPool pool, String login, ConnectionPool.Work<T> work) throws SQLException {
+      Replica replica = null;
+      for (Replica candidate : this._replicas) {
+         if (candidate.pool == pool) {
+            replica = candidate;
+         }
+      }
+      if (replica == null) {
+         return pool.execute(work);
+      }
+      PooledConnection conn;
+      try {
+         conn = pool.borrow();
+      } catch (SQLException e) {
+         markDown(replica, e);
+         return read(login, work);
+      }
+      try {
+         T result = work.run(conn);
+         replica.reads.incrementAndGet();
+         return result;
+      } catch (SQLException e) {
+         if (!isConnectionFailure(conn, e)) {
+            throw e;
+         }
+         markDown(replica, e);
+      } finally {
+         pool.release(conn);
+      }
+      return read(login, work);
+   }//end readOn
+
+   /**
+    * Sends the user's reads to the primary until replicas have surely
+    * caught up with a write just committed.
+    *
+    * @param login the user who wrote, or null to pin every user
+    */
+   public void wrote(String login) {
+      if (this._replicas.length == 0) {
+         return;
+      }
+      long until = System.nanoTime() + this._maxLagNanos;
+      if (login == null) {
+         this._pinnedAll = until;
+      } else {
+         this._pinned.put(login, until);
+      }
+   }//end wrote
+
+   /**
+    * Checks every replica now: reachable and not lagging more than
+    * maxLagMs. Called by the checker thread; also drops expired pins.
+    */
+   void checkReplicas() {
+      for (final Replica replica : this._replicas) {
+         try {
+            long lag = replica.pool.execute(new ConnectionPool.Work<Long>() {
+               public Long run(PooledConnection conn) throws SQLException {
+                  ResultSet rs = conn.prepare(LAG_QUERY).executeQuery();
+                  try {
+                     rs.next();
+                     return (long) rs.getDouble(1);
+                  } finally {
+                     rs.close();
+                  }
+               }
+            });
+            replica.lagMs = lag;
+            boolean healthy = TimeUnit.MILLISECONDS.toNanos(lag) <= this._maxLagNanos;
+            if (healthy != replica.healthy) {
+               System.err.println("Replica " + replica.pool.getSettings().url + (healthy ? " is back" : " lags " + lag + " ms, not reading from it"));
+            }
+            replica.healthy = healthy;
+         } catch (SQLException e) {
+            markDown(replica, e);
+         }
+      }//end for
+      long now = System.nanoTime();
+      for (Map.Entry<String, Long> e : this._pinned.entrySet()) {
+         if (e.getValue() - now < 0) {
+            this._pinned.remove(e.getKey(), e.getValue());
+         }
+      }
+   }//end checkReplicas
+
+   /**
+    * Stops the checker and closes the replica pools, not the primary.
+    */
+   public void close() {
+      this._closed = true;
+      if (this._checker != null) {
+         this._checker.interrupt();
+      }
+      for (Replica replica : this._replicas) {
+         replica.pool.close();
+      }
+   }//end close
+
+   /**
+    * Returns the replicas in the order they were given.
+    */
+   public List<Replica> replicas() {
+      List<Replica> replicas = new ArrayList<Replica>();
+      for (Replica replica : this._replicas) {
+         replicas.add(replica);
+      }
+      return replicas;
+   }//end replicas
+
+   public String toString() {
+      StringBuilder s = new StringBuilder("primaryReads=").append(this._primaryReads.get());
+      for (Replica replica : this._replicas) {
+         s.append("; ").append(replica);
+      }
+      return s.toString();
+   }//end toString
+
+   private boolean isPinned(String login) {
+      long now = System.nanoTime();
+      if (this._pinnedAll != 0 && this._pinnedAll - now > 0) {
+         return true;
+      }
+      if (login == null) {
+         return false;
+      }
+      Long until = this._pinned.get(login);
+      return until != null && until - now > 0;
+   }//end isPinned
+
+   private void markDown(Replica replica, SQLException e) {
+      replica.failures.incrementAndGet();
+      if (replica.healthy) {
+         System.err.println("Replica " + replica.pool.getSettings().url + " is down, not reading from it: " + e.getMessage());
+      }
+      replica.healthy = false;
+   }//end markDown
+
+   /**
+    * Returns true when the SQLState says the connection or the server
+    * failed (class 08, or 57P for a shutdown), as opposed to the statement.
+    */
+   static boolean isConnectionFailure(SQLException e) {
+      String state = e.getSQLState();
+      return state != null && (state.startsWith("08") || state.startsWith("57P"));
+   }//end isConnectionFailure
+
+   // the connection broke, as opposed to the statement failing. Drivers
+   // that set no SQLState and leave a broken socket open, as pg73jdbc3
+   // does, are checked with a SELECT 1 on the same connection.
+   private static boolean isConnectionFailure(PooledConnection conn, SQLException e) {
+      if (isConnectionFailure(e)) {
+         return true;
+      }
+      try {
+         if (conn.getConnection().isClosed()) {
+            return true;
+         }
+      } catch (SQLException closed) {
+         return true;
+      }
+      return e.getSQLState() == null && !responds(conn);
+   }//end isConnectionFailure
+
+   // true when the connection still answers a trivial query.
+   private static boolean responds(PooledConnection conn) {
+      Statement stmt = null;
+      try {
+         stmt = conn.getConnection().createStatement();
+         stmt.executeQuery("SELECT 1").close();
+         return true;
+      } catch (SQLException e) {
+         return false;
+      } finally {
+         if (stmt != null) {
+            try {
+               stmt.close();
+            } catch (SQLException e) {
+               // ignored.
+            }
+         }
+      }
+   }//end responds
+}//end ReplicaRouter
@@ -0,0 +1,434 @@
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * This class holds a query result column by column, each column in a
+ * primitive array of its natural type, instead of one String per cell:
+ *
+ *  - INT       integer/smallint columns, in an int[]
+ *  - LONG      bigint columns, in a long[]
+ *  - DECIMAL   numeric columns, as unscaled longs at the column's scale,
+ *              e.g. prices and totals in cents; a column without a
+ *              usable precision and scale, such as unconstrained numeric
+ *              or SUM() of one, keeps a BigDecimal per cell instead
+ *  - DOUBLE    float columns, in a double[]
+ *  - TIMESTAMP timestamp columns, as microseconds since the epoch
+ *  - STRING    everything else
+ *
+ * Cells are read by (row, column) index without boxing. getString()
+ * formats any cell the way PostgreSQL prints it, for display only.
+ *
+ * A table may be a view on part of another one, see view().
+ */
+public class ResultTable {
+
+   public enum Kind { INT, LONG, DECIMAL, DOUBLE, TIMESTAMP, STRING }
+
+   // scale() of a DECIMAL column whose cells each keep their own scale.
+   public static final int VARIABLE_SCALE = -1;
+
+   // digits an unscaled long always holds.
+   static final int MAX_FIXED_PRECISION = 18;
+
+   // one column; only the array matching its kind is used.
+   private static final class Column {
+      final String name;
+      final Kind kind;
+      final int scale;
+      int[] ints;
+      long[] longs;
+      double[] doubles;
+      BigDecimal[] decimals;
+      String[] strings;
+      BitSet nulls;
+
+      Column(String name, Kind kind, int scale, int capacity) {
+         this.name = name;
+         this.kind = kind;
+         this.scale = scale;
+         switch (kind) {
+            case INT: this.ints = new int[capacity]; break;
+            case DECIMAL:
+               if (scale == VARIABLE_SCALE) this.decimals = new BigDecimal[capacity];
+               else this.longs = new long[capacity];
+               break;
+            case LONG: case TIMESTAMP: this.longs = new long[capacity]; break;
+            case DOUBLE: this.doubles = new double[capacity]; break;
+            default: this.strings = new String[capacity]; break;
+         }
+      }
+
+      void grow(int capacity) {
+         if (this.ints != null) this.ints = Arrays.copyOf(this.ints, capacity);
+         if (this.longs != null) this.longs = Arrays.copyOf(this.longs, capacity);
+         if (this.doubles != null) this.doubles = Arrays.copyOf(this.doubles, capacity);
+         if (this.decimals != null) this.decimals = Arrays.copyOf(this.decimals, capacity);
+         if (this.strings != null) this.strings = Arrays.copyOf(this.strings, capacity);
+      }
+
+      void setNull(int row) {
+         if (this.nulls == null) {
+            this.nulls = new BitSet();
+         }
+         this.nulls.set(row);
+      }
+   }//end Column
+
+   private final Column[] _columns;
+
+   // rows [_from, _to) of the columns, optionally read backwards.
+   private final int _from;
+   private final int _to;
+   private final boolean _reversed;
+
+   private ResultTable(Column[] columns, int from, int to, boolean reversed) {
+      this._columns = columns;
+      this._from = from;
+      this._to = to;
+      this._reversed = reversed;
+   }//end ResultTable
+
+   /**
+    * Reads every remaining row of the result set. The result set is left
+    * open; closing it is up to the caller.
+    *
+    * @param rs the result set to read
+    * @return the typed table
+    * @throws java.sql.SQLException when a value cannot be read
+    */
+   public static ResultTable read(ResultSet rs) throws SQLException {
+      ResultSetMetaData rsmd = rs.getMetaData();
+      int numCol = rsmd.getColumnCount();
+      int capacity = 16;
+      Column[] columns = new Column[numCol];
+      for (int c = 0; c < numCol; ++c) {
+         Kind kind = kindOf(rsmd.getColumnType(c + 1));
+         int scale = kind == Kind.DECIMAL ? fixedScale(rsmd.getPrecision(c + 1), rsmd.getScale(c + 1)) : 0;
+         columns[c] = new Column(rsmd.getColumnName(c + 1), kind, scale, capacity);
+      }
+
+      int row = 0;
+      while (rs.next()) {
+         if (row == capacity) {
+            capacity <<= 1;
+            for (Column col : columns) {
+               col.grow(capacity);
+            }
+         }
+         for (int c = 0; c < numCol; ++c) {
+            Column col = columns[c];
+            int i = c + 1;
+            switch (col.kind) {
+               case INT:
+                  col.ints[row] = rs.getInt(i);
+                  break;
+               case LONG:
+                  col.longs[row] = rs.getLong(i);
+                  break;
+               case DOUBLE:
+                  col.doubles[row] = rs.getDouble(i);
+                  break;
+               case DECIMAL: {
+                  if (col.decimals != null) {
+                     col.decimals[row] = rs.getBigDecimal(i);
+                     break;
+                  }
+                  // parsed from the text form, skipping a BigDecimal per cell
+                  String value = rs.getString(i);
+                  if (value != null) {
+                     col.longs[row] = parseUnscaled(value, col.scale);
+                  }
+                  break;
+               }
+               case TIMESTAMP: {
+                  Timestamp value = rs.getTimestamp(i);
+                  if (value != null) {
+                     col.longs[row] = Math.floorDiv(value.getTime(), 1000L) * 1000000L + value.getNanos() / 1000;
+                  }
+                  break;
+               }
+               default:
+                  col.strings[row] = rs.getString(i);
+                  break;
+            }//end switch
+            if (rs.wasNull()) {
+               col.setNull(row);
+            }
+         }//end for
+         ++row;
+      }//end while
+      return new ResultTable(columns, 0, row, false);
+   }//end read
+
+   /**
+    * Returns the scale a numeric column's cells can share as unscaled
+    * longs, or VARIABLE_SCALE. Unconstrained numeric has no such scale:
+    * pg73jdbc3 reports precision 65535 and scale 65531 for it, newer
+    * drivers precision 0 and scale 0.
+    */
+   static int fixedScale(int precision, int scale) {
+      if (precision < 1 || precision > MAX_FIXED_PRECISION || scale < 0 || scale > precision) {
+         return VARIABLE_SCALE;
+      }
+      return scale;
+   }//end fixedScale
+
+   /**
+    * Parses a plain decimal such as "-12.5" into an unscaled long at the
+    * given scale ("-12.5" at scale 2 is -1250), rounding half up. Anything
+    * unusual goes through BigDecimal instead.
+    */
+   static long parseUnscaled(String text, int scale) {
+      int n = text.length();
+      int i = 0;
+      boolean negative = false;
+      if (n > 0 && (text.charAt(0) == '-' || text.charAt(0) == '+')) {
+         negative = text.charAt(0) == '-';
+         i = 1;
+      }
+      long value = 0;
+      int fraction = -1;
+      boolean roundUp = false;
+      if (i == n || n - i > 18) {
+         return slowUnscaled(text, scale);
+      }
+      for (; i < n; ++i) {
+         char ch = text.charAt(i);
+         if (ch == '.' && fraction < 0) {
+            fraction = 0;
+         } else if (ch >= '0' && ch <= '9') {
+            if (fraction < scale) {
+               value = value * 10 + (ch - '0');
+               if (fraction >= 0) {
+                  ++fraction;
+               }
+            } else if (fraction == scale) {
+               // first dropped digit decides the rounding
+               roundUp = ch >= '5';
+               fraction = scale + 1;
+            }
+         } else {
+            return slowUnscaled(text, scale);
+         }
+      }//end for
+      for (int f = Math.max(fraction, 0); f < scale; ++f) {
+         value *= 10;
+      }
+      if (roundUp) {
+         ++value;
+      }
+      return negative ? -value : value;
+   }//end parseUnscaled
+
+   private static long slowUnscaled(String text, int scale) {
+      return new BigDecimal(text.trim()).setScale(scale, RoundingMode.HALF_UP).unscaledValue().longValue();
+   }
+
+   static Kind kindOf(int sqlType) {
+      switch (sqlType) {
+         case Types.INTEGER: case Types.SMALLINT: case Types.TINYINT:
+            return Kind.INT;
+         case Types.BIGINT:
+            return Kind.LONG;
+         case Types.NUMERIC: case Types.DECIMAL:
+            return Kind.DECIMAL;
+         case Types.REAL: case Types.FLOAT: case Types.DOUBLE:
+            return Kind.DOUBLE;
+         case Types.TIMESTAMP:
+            return Kind.TIMESTAMP;
+         default:
+            return Kind.STRING;
+      }
+   }//end kindOf
+
+   /**
+    * Returns rows [from, to) of this table without copying, read backwards
+    * when reversed is set.
+    */
+   public ResultTable view(int from, int to, boolean reversed) {
+      if (from < 0 || to > rowCount() || from > to) {
+         throw new IndexOutOfBoundsException("rows " + from + ".." + to + " of " + rowCount());
+      }
+      if (from == to) {
+         // no row to locate, and from may be rowCount(), e.g. 0 of 0
+         return new ResultTable(this._columns, this._from, this._from, this._reversed != reversed);
+      }
+      int first = physical(from);
+      int last = physical(to - 1);
+      int lo = Math.min(first, last);
+      int hi = Math.max(first, last) + 1;
+      return new ResultTable(this._columns, lo, hi, this._reversed != reversed);
+   }//end view
+
+   public int rowCount() {
+      return this._to - this._from;
+   }
+
+   public int columnCount() {
+      return this._columns.length;
+   }
+
+   public String columnName(int col) {
+      return this._columns[col].name;
+   }
+
+   public Kind kind(int col) {
+      return this._columns[col].kind;
+   }
+
+   /**
+    * Returns the number of decimal digits of a DECIMAL column, or
+    * VARIABLE_SCALE when each cell has its own.
+    */
+   public int scale(int col) {
+      return this._columns[col].scale;
+   }
+
+   public boolean isNull(int row, int col) {
+      BitSet nulls = this._columns[col].nulls;
+      return nulls != null && nulls.get(physical(row));
+   }
+
+   public int getInt(int row, int col) {
+      Column c = column(col, Kind.INT);
+      return c.ints[physical(row)];
+   }
+
+   /**
+    * Returns a LONG cell, or an INT cell widened.
+    */
+   public long getLong(int row, int col) {
+      Column c = this._columns[col];
+      if (c.kind == Kind.INT) {
+         return c.ints[physical(row)];
+      }
+      return column(col, Kind.LONG).longs[physical(row)];
+   }
+
+   /**
+    * Returns a DECIMAL cell as an unscaled long, e.g. cents for a price.
+    * Not for a column of VARIABLE_SCALE; use getBigDecimal() there.
+    */
+   public long getUnscaled(int row, int col) {
+      Column c = column(col, Kind.DECIMAL);
+      if (c.longs == null) {
+         throw new IllegalStateException("column " + c.name + " has no fixed scale");
+      }
+      return c.longs[physical(row)];
+   }
+
+   public BigDecimal getBigDecimal(int row, int col) {
+      if (isNull(row, col)) {
+         return null;
+      }
+      Column c = column(col, Kind.DECIMAL);
+      if (c.decimals != null) {
+         return c.decimals[physical(row)];
+      }
+      return BigDecimal.valueOf(c.longs[physical(row)], c.scale);
+   }
+
+   public double getDouble(int row, int col) {
+      return column(col, Kind.DOUBLE).doubles[physical(row)];
+   }
+
+   /**
+    * Returns a TIMESTAMP cell as microseconds since the epoch.
+    */
+   public long getEpochMicros(int row, int col) {
+      return column(col, Kind.TIMESTAMP).longs[physical(row)];
+   }
+
+   public Timestamp getTimestamp(int row, int col) {
+      if (isNull(row, col)) {
+         return null;
+      }
+      return toTimestamp(getEpochMicros(row, col));
+   }
+
+   /**
+    * Returns any cell as text, formatted like PostgreSQL prints it, or null.
+    */
+   public String getString(int row, int col) {
+      if (isNull(row, col)) {
+         return null;
+      }
+      Column c = this._columns[col];
+      int r = physical(row);
+      switch (c.kind) {
+         case INT: return Integer.toString(c.ints[r]);
+         case LONG: return Long.toString(c.longs[r]);
+         case DECIMAL:
+            if (c.decimals != null) return c.decimals[r].toPlainString();
+            return BigDecimal.valueOf(c.longs[r], c.scale).toPlainString();
+         case DOUBLE: return Double.toString(c.doubles[r]);
+         case TIMESTAMP: return formatTimestamp(toTimestamp(c.longs[r]));
+         default: return c.strings[r];
+      }
+   }//end getString
+
+   /**
+    * Returns the table as display rows for printformatted(). Cells are
+    * formatted when they are read, nothing is copied up front.
+    */
+   public List<List<String>> asRows() {
+      return new AbstractList<List<String>>() {
+         public List<String> get(final int row) {
+            if (row < 0 || row >= rowCount()) {
+               throw new IndexOutOfBoundsException("row " + row + ", size " + rowCount());
+            }
+            return new AbstractList<String>() {
+               public String get(int col) {
+                  return getString(row, col);
+               }
+
+               public int size() {
+                  return columnCount();
+               }
+            };
+         }
+
+         public int size() {
+            return rowCount();
+         }
+      };
+   }//end asRows
+
+   static Timestamp toTimestamp(long epochMicros) {
+      Timestamp ts = new Timestamp(Math.floorDiv(epochMicros, 1000000L) * 1000L);
+      ts.setNanos((int) Math.floorMod(epochMicros, 1000000L) * 1000);
+      return ts;
+   }//end toTimestamp
+
+   /**
+    * Formats a timestamp like PostgreSQL prints it: no ".0" for whole seconds.
+    */
+   static String formatTimestamp(Timestamp ts) {
+      String text = ts.toString();
+      return text.endsWith(".0") ? text.substring(0, text.length() - 2) : text;
+   }//end formatTimestamp
+
+   private int physical(int row) {
+      if (row < 0 || row >= rowCount()) {
+         throw new IndexOutOfBoundsException("row " + row + ", size " + rowCount());
+      }
+      return this._reversed ? this._to - 1 - row : this._from + row;
+   }//end physical
+
+   private Column column(int col, Kind kind) {
+      Column c = this._columns[col];
+      if (c.kind != kind) {
+         throw new IllegalStateException("column " + c.name + " is " + c.kind + ", not " + kind);
+      }
+      return c;
+   }//end column
+}//end ResultTable
@@ -0,0 +1,530 @@
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class keeps the sales figures managers report on, so reports never
+ * scan FoodOrder or ItemsInOrder:
+ *
+ *  - orders and revenue per store per day,
+ *  - quantity sold per item,
+ *  - number of orders per status.
+ *
+ * Committed orders and status changes are added to in-process counters.
+ * The counters are LongAdders, which stripe their cells across threads so
+ * concurrent placeOrder calls do not contend. A flusher adds what changed
+ * since the last flush to the summary tables (SalesByStoreDay, SalesByItem,
+ * OrdersByStatus) every flushMs, so the figures survive restarts.
+ *
+ * Reports add the counters to the summary tables as they were when last
+ * read. The tables are read again once that is reloadMs ago, or after
+ * reload(), so changes flushed by other processes show up within reloadMs.
+ */
+public class SalesAggregator {
+
+   static final long DEFAULT_FLUSH_MS = 5000;
+   static final long DEFAULT_RELOAD_MS = 30000;
+
+   /**
+    * A set of figures: the summary tables' contents or a flush's deltas.
+    */
+   public static final class Totals {
+      // storeDay() key -> {orders, revenue in cents}.
+      final Map<Long, long[]> storeDays = new HashMap<Long, long[]>();
+      final Map<String, Long> items = new HashMap<String, Long>();
+      final Map<String, Long> statuses = new HashMap<String, Long>();
+
+      boolean isEmpty() {
+         return this.storeDays.isEmpty() && this.items.isEmpty() && this.statuses.isEmpty();
+      }
+   }//end Totals
+
+   /**
+    * Where the figures are kept between runs, normally the summary tables.
+    */
+   public interface Backend {
+      Totals load() throws SQLException;
+
+      /**
+       * Adds the deltas to what is stored, in one transaction.
+       */
+      void write(Totals deltas) throws SQLException;
+   }
+
+   /**
+    * One row of the per store per day report.
+    */
+   public static final class StoreDay {
+      public final int storeID;
+      public final LocalDate day;
+      public final long orders;
+      public final long revenueCents;
+
+      StoreDay(int storeID, LocalDate day, long orders, long revenueCents) {
+         this.storeID = storeID;
+         this.day = day;
+         this.orders = orders;
+         this.revenueCents = revenueCents;
+      }
+
+      public BigDecimal revenue() {
+         return BigDecimal.valueOf(this.revenueCents, 2);
+      }
+   }//end StoreDay
+
+   // a running total and how much of it has been written out.
+   private static final class Counter {
+      final LongAdder total = new LongAdder();
+      // only touched by flush(), under its lock.
+      long flushed;
+   }
+
+   private static final class StoreDayCounter {
+      final Counter orders = new Counter();
+      final Counter cents = new Counter();
+   }
+
+   private final Backend _backend;
+
+   // what this process counted since it started.
+   private final ConcurrentHashMap<Long, StoreDayCounter> _storeDays = new ConcurrentHashMap<Long, StoreDayCounter>();
+   private final ConcurrentHashMap<String, Counter> _items = new ConcurrentHashMap<String, Counter>();
+   private final ConcurrentHashMap<String, Counter> _statuses = new ConcurrentHashMap<String, Counter>();
+
+   // the backend's figures less what this process flushed, read lazily
+   // and again once older than _reloadNanos (System.nanoTime() units).
+   private volatile Totals _base = null;
+   private volatile long _baseLoadedAt;
+   private final long _reloadNanos;
+
+   private final Object _flushLock = new Object();
+   private volatile boolean _closed = false;
+   private final Thread _flusher;
+
+   /**
+    * Creates a new aggregator that reads the backend once, see the other
+    * constructor.
+    */
+   public SalesAggregator(Backend backend, long flushMs) {
+      this(backend, flushMs, 0);
+   }
+
+   /**
+    * Creates a new aggregator and, when flushMs is positive, starts its
+    * flusher thread.
+    *
+    * @param reloadMs how long the backend's figures are trusted before reports read them again, 0 for ever
+    */
+   public SalesAggregator(Backend backend, final long flushMs, long reloadMs) {
+      this._backend = backend;
+      this._reloadNanos = TimeUnit.MILLISECONDS.toNanos(reloadMs);
+      if (flushMs > 0) {
+         this._flusher = new Thread(new Runnable() {
+            public void run() {
+               while (!_closed) {
+                  try {
+                     Thread.sleep(flushMs);
+                     flush();
+                  } catch (InterruptedException e) {
+                     return;
+                  } catch (Exception e) {
+                     System.err.println("Unable to write sales figures, will retry: " + e.getMessage());
+                  }
+               }
+            }
+         }, "pizzastore-sales-flusher");
+         this._flusher.setDaemon(true);
+         this._flusher.start();
+      } else {
+         this._flusher = null;
+      }
+   }//end SalesAggregator
+
+   /**
+    * Returns an aggregator backed by the summary tables of create_tables.sql.
+    */
+   public static SalesAggregator forDatabase(final ConnectionPool pool) {
+      Backend backend = new Backend() {
+         public Totals load() throws SQLException {
+            return pool.execute(new ConnectionPool.Work<Totals>() {
+               public Totals run(PooledConnection conn) throws SQLException {
+                  Totals totals = new Totals();
+                  ResultTable days = conn.executeQueryTyped("SELECT storeID, day, orderCount, revenue FROM SalesByStoreDay");
+                  for (int r = 0; r < days.rowCount(); ++r) {
+                     LocalDate day = LocalDate.parse(days.getString(r, 1));
+                     totals.storeDays.put(storeDay(days.getInt(r, 0), day),
+                        new long[] {days.getLong(r, 2), days.getUnscaled(r, 3)});
+                  }
+                  ResultTable items = conn.executeQueryTyped("SELECT itemName, quantity FROM SalesByItem");
+                  for (int r = 0; r < items.rowCount(); ++r) {
+                     totals.items.put(items.getString(r, 0), items.getLong(r, 1));
+                  }
+                  ResultTable statuses = conn.executeQueryTyped("SELECT orderStatus, orderCount FROM OrdersByStatus");
+                  for (int r = 0; r < statuses.rowCount(); ++r) {
+                     totals.statuses.put(statuses.getString(r, 0), statuses.getLong(r, 1));
+                  }
+                  return totals;
+               }
+            });
+         }
+
+         public void write(final Totals deltas) throws SQLException {
+            pool.executeInTransaction(new ConnectionPool.Work<Void>() {
+               public Void run(PooledConnection conn) throws SQLException {
+                  PreparedStatement days = conn.prepare(
+                     "INSERT INTO SalesByStoreDay (storeID, day, orderCount, revenue) VALUES (?, ?, ?, ?) "
+                        + "ON CONFLICT (storeID, day) DO UPDATE SET orderCount = SalesByStoreDay.orderCount + EXCLUDED.orderCount, "
+                        + "revenue = SalesByStoreDay.revenue + EXCLUDED.revenue");
+                  for (Map.Entry<Long, long[]> e : deltas.storeDays.entrySet()) {
+                     PooledConnection.bind(days, storeOf(e.getKey()), Date.valueOf(dayOf(e.getKey())),
+                                           e.getValue()[0], BigDecimal.valueOf(e.getValue()[1], 2));
+                     days.addBatch();
+                  }
+                  execute(days);
+                  PreparedStatement items = conn.prepare(
+                     "INSERT INTO SalesByItem (itemName, quantity) VALUES (?, ?) "
+                        + "ON CONFLICT (itemName) DO UPDATE SET quantity = SalesByItem.quantity + EXCLUDED.quantity");
+                  for (Map.Entry<String, Long> e : deltas.items.entrySet()) {
+                     PooledConnection.bind(items, e.getKey(), e.getValue());
+                     items.addBatch();
+                  }
+                  execute(items);
+                  PreparedStatement statuses = conn.prepare(
+                     "INSERT INTO OrdersByStatus (orderStatus, orderCount) VALUES (?, ?) "
+                        + "ON CONFLICT (orderStatus) DO UPDATE SET orderCount = OrdersByStatus.orderCount + EXCLUDED.orderCount");
+                  for (Map.Entry<String, Long> e : deltas.statuses.entrySet()) {
+                     PooledConnection.bind(statuses, e.getKey(), e.getValue());
+                     statuses.addBatch();
+                  }
+                  execute(statuses);
+                  return null;
+               }
+            });
+         }
+
+         private void execute(PreparedStatement batch) throws SQLException {
+            try {
+               batch.executeBatch();
+            } finally {
+               batch.clearBatch();
+            }
+         }
+      };
+      return new SalesAggregator(backend, Long.getLong("pizzastore.salesFlushMs", DEFAULT_FLUSH_MS),
+         Long.getLong("pizzastore.salesReloadMs", DEFAULT_RELOAD_MS));
+   }//end forDatabase
+
+   // the store in the high half, the day in the low half. The day is
+   // XORed with a hash of the store: Long.hashCode() folds the halves
+   // together, and plain store ^ day would put a year of 100 stores in a
+   // few hundred buckets.
+   static long storeDay(int storeID, LocalDate day) {
+      return ((long) storeID << 32) | (((int) day.toEpochDay() ^ storeID * 0x9E3779B9) & 0xffffffffL);
+   }
+
+   static int epochDayOf(long storeDay) {
+      return (int) storeDay ^ storeOf(storeDay) * 0x9E3779B9;
+   }
+
+   static int storeOf(long storeDay) {
+      return (int) (storeDay >>> 32);
+   }
+
+   static LocalDate dayOf(long storeDay) {
+      return LocalDate.ofEpochDay(epochDayOf(storeDay));
+   }
+
+   /**
+    * Counts a committed order.
+    */
+   public void orderPlaced(PlacedOrder order) {
+      long key = storeDay(order.storeID, order.orderTimestamp.toLocalDateTime().toLocalDate());
+      StoreDayCounter day = this._storeDays.get(key);
+      if (day == null) {
+         StoreDayCounter created = new StoreDayCounter();
+         day = this._storeDays.putIfAbsent(key, created);
+         if (day == null)
+            day = created;
+      }
+      day.orders.total.increment();
+      day.cents.total.add(order.totalPrice.movePointRight(2).longValue());
+      for (int i = 0; i < order.itemNames.size(); ++i) {
+         counter(this._items, order.itemNames.get(i)).total.add(order.quantities.get(i));
+      }
+      counter(this._statuses, order.orderStatus).total.increment();
+   }//end orderPlaced
+
+   /**
+    * Counts a committed status change.
+    *
+    * @param previous the status before the change, null when the order had none
+    */
+   public void statusChanged(String previous, String orderStatus) {
+      Counter from = counter(this._statuses, previous);
+      Counter to = counter(this._statuses, orderStatus);
+      if (from != to) {
+         from.total.decrement();
+         to.total.increment();
+      }
+   }//end statusChanged
+
+   /**
+    * Returns the per store per day figures between two days, both
+    * included, newest day first; only one store's when storeID is given.
+    */
+   public List<StoreDay> storeDays(LocalDate from, LocalDate to, Integer storeID) throws SQLException {
+      Totals base = base();
+      long lo = from.toEpochDay();
+      long hi = to.toEpochDay();
+      Map<Long, long[]> days = new HashMap<Long, long[]>();
+      if (storeID != null) {
+         // one store has at most a row per day, look them up
+         for (long day = lo; day <= hi; ++day) {
+            long key = storeDay(storeID, LocalDate.ofEpochDay(day));
+            add(days, key, base.storeDays.get(key), this._storeDays.get(key));
+         }
+      } else {
+         for (Map.Entry<Long, long[]> e : base.storeDays.entrySet()) {
+            long day = epochDayOf(e.getKey());
+            if (day >= lo && day <= hi) add(days, e.getKey(), e.getValue(), null);
+         }
+         for (Map.Entry<Long, StoreDayCounter> e : this._storeDays.entrySet()) {
+            long day = epochDayOf(e.getKey());
+            if (day >= lo && day <= hi) add(days, e.getKey(), null, e.getValue());
+         }
+      }
+      List<StoreDay> rows = new ArrayList<StoreDay>(days.size());
+      for (Map.Entry<Long, long[]> e : days.entrySet()) {
+         if (e.getValue()[0] != 0) {
+            rows.add(new StoreDay(storeOf(e.getKey()), dayOf(e.getKey()), e.getValue()[0], e.getValue()[1]));
+         }
+      }
+      Collections.sort(rows, new Comparator<StoreDay>() {
+         public int compare(StoreDay a, StoreDay b) {
+            int c = b.day.compareTo(a.day);
+            return c != 0 ? c : Integer.compare(a.storeID, b.storeID);
+         }
+      });
+      return rows;
+   }//end storeDays
+
+   /**
+    * Returns the k items sold most by quantity, most first.
+    */
+   public List<Map.Entry<String, Long>> topItems(int k) throws SQLException {
+      Map<String, Long> quantities = merge(base().items, this._items);
+      PriorityQueue<Map.Entry<String, Long>> top = new PriorityQueue<Map.Entry<String, Long>>(k + 1, BY_COUNT);
+      for (Map.Entry<String, Long> e : quantities.entrySet()) {
+         top.add(e);
+         if (top.size() > k) {
+            top.poll();
+         }
+      }
+      List<Map.Entry<String, Long>> items = new ArrayList<Map.Entry<String, Long>>(top);
+      Collections.sort(items, Collections.reverseOrder(BY_COUNT));
+      return items;
+   }//end topItems
+
+   /**
+    * Returns the number of orders in each status.
+    */
+   public Map<String, Long> statuses() throws SQLException {
+      return new TreeMap<String, Long>(merge(base().statuses, this._statuses));
+   }
+
+   /**
+    * Adds what was counted since the last flush to the backend.
+    *
+    * @throws java.sql.SQLException when the write fails; nothing is lost, the next flush retries
+    */
+   public void flush() throws SQLException {
+      synchronized (this._flushLock) {
+         Totals deltas = new Totals();
+         Map<Long, long[]> dayTotals = new HashMap<Long, long[]>();
+         for (Map.Entry<Long, StoreDayCounter> e : this._storeDays.entrySet()) {
+            long orders = e.getValue().orders.total.sum();
+            long cents = e.getValue().cents.total.sum();
+            dayTotals.put(e.getKey(), new long[] {orders, cents});
+            if (orders != e.getValue().orders.flushed || cents != e.getValue().cents.flushed) {
+               deltas.storeDays.put(e.getKey(), new long[] {orders - e.getValue().orders.flushed,
+                                                            cents - e.getValue().cents.flushed});
+            }
+         }
+         Map<String, Long> itemTotals = deltas(this._items, deltas.items);
+         Map<String, Long> statusTotals = deltas(this._statuses, deltas.statuses);
+         if (deltas.isEmpty()) {
+            return;
+         }
+         this._backend.write(deltas);
+
+         // only now is it written; adds made meanwhile go out next time
+         for (Map.Entry<Long, long[]> e : dayTotals.entrySet()) {
+            StoreDayCounter day = this._storeDays.get(e.getKey());
+            day.orders.flushed = e.getValue()[0];
+            day.cents.flushed = e.getValue()[1];
+         }
+         markFlushed(this._items, itemTotals);
+         markFlushed(this._statuses, statusTotals);
+      }
+   }//end flush
+
+   /**
+    * Reads the backend's figures again on the next report, without
+    * waiting for reloadMs.
+    */
+   public void reload() {
+      synchronized (this._flushLock) {
+         this._base = null;
+      }
+   }
+
+   /**
+    * Stops the flusher and writes what is left.
+    */
+   public void close() {
+      this._closed = true;
+      if (this._flusher != null) {
+         this._flusher.interrupt();
+         try {
+            this._flusher.join();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      }
+      try {
+         flush();
+      } catch (SQLException e) {
+         System.err.println("Lost unsaved sales figures: " + e.getMessage());
+      }
+   }//end close
+
+   static final Comparator<Map.Entry<String, Long>> BY_COUNT = new Comparator<Map.Entry<String, Long>>() {
+      public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+         int c = Long.compare(a.getValue(), b.getValue());
+         return c != 0 ? c : b.getKey().compareTo(a.getKey());
+      }
+   };
+
+   // the backend's figures without what this process had flushed when they
+   // were read, so base + counters never counts a flushed order twice.
+   // Later flushes do not change it, it predates them.
+   private Totals base() throws SQLException {
+      Totals base = this._base;
+      if (base == null || expired()) {
+         synchronized (this._flushLock) {
+            base = this._base;
+            if (base == null || expired()) {
+               base = this._backend.load();
+               Totals flushed = new Totals();
+               for (Map.Entry<Long, StoreDayCounter> e : this._storeDays.entrySet()) {
+                  flushed.storeDays.put(e.getKey(), new long[] {e.getValue().orders.flushed, e.getValue().cents.flushed});
+               }
+               for (Map.Entry<String, Counter> e : this._items.entrySet()) {
+                  flushed.items.put(e.getKey(), e.getValue().flushed);
+               }
+               for (Map.Entry<String, Counter> e : this._statuses.entrySet()) {
+                  flushed.statuses.put(e.getKey(), e.getValue().flushed);
+               }
+               subtract(base, flushed);
+               this._baseLoadedAt = System.nanoTime();
+               this._base = base;
+            }
+         }
+      }
+      return base;
+   }//end base
+
+   private boolean expired() {
+      return this._reloadNanos > 0 && System.nanoTime() - this._baseLoadedAt > this._reloadNanos;
+   }
+
+   private static void add(Map<Long, long[]> days, long key, long[] stored, StoreDayCounter counted) {
+      if (stored == null && counted == null) {
+         return;
+      }
+      long[] sum = days.get(key);
+      if (sum == null) {
+         days.put(key, sum = new long[2]);
+      }
+      if (stored != null) {
+         sum[0] += stored[0];
+         sum[1] += stored[1];
+      }
+      if (counted != null) {
+         sum[0] += counted.orders.total.sum();
+         sum[1] += counted.cents.total.sum();
+      }
+   }//end add
+
+   private static void subtract(Totals base, Totals flushed) {
+      for (Map.Entry<Long, long[]> e : flushed.storeDays.entrySet()) {
+         long[] stored = base.storeDays.get(e.getKey());
+         long[] reduced = stored == null ? new long[2] : stored.clone();
+         reduced[0] -= e.getValue()[0];
+         reduced[1] -= e.getValue()[1];
+         base.storeDays.put(e.getKey(), reduced);
+      }
+      subtract(base.items, flushed.items);
+      subtract(base.statuses, flushed.statuses);
+   }//end subtract
+
+   private static void subtract(Map<String, Long> base, Map<String, Long> flushed) {
+      for (Map.Entry<String, Long> e : flushed.entrySet()) {
+         Long stored = base.get(e.getKey());
+         base.put(e.getKey(), (stored == null ? 0 : stored) - e.getValue());
+      }
+   }
+
+   private static Map<String, Long> merge(Map<String, Long> base, Map<String, Counter> counted) {
+      Map<String, Long> merged = new HashMap<String, Long>(base);
+      for (Map.Entry<String, Counter> e : counted.entrySet()) {
+         Long stored = merged.get(e.getKey());
+         merged.put(e.getKey(), (stored == null ? 0 : stored) + e.getValue().total.sum());
+      }
+      return merged;
+   }//end merge
+
+   // fills deltas with what changed and returns the totals they were taken from.
+   private static Map<String, Long> deltas(Map<String, Counter> counters, Map<String, Long> deltas) {
+      Map<String, Long> totals = new HashMap<String, Long>();
+      for (Map.Entry<String, Counter> e : counters.entrySet()) {
+         long total = e.getValue().total.sum();
+         totals.put(e.getKey(), total);
+         if (total != e.getValue().flushed) {
+            deltas.put(e.getKey(), total - e.getValue().flushed);
+         }
+      }
+      return totals;
+   }//end deltas
+
+   private static void markFlushed(Map<String, Counter> counters, Map<String, Long> totals) {
+      for (Map.Entry<String, Long> e : totals.entrySet()) {
+         counters.get(e.getKey()).flushed = e.getValue();
+      }
+   }
+
+   private static Counter counter(ConcurrentHashMap<String, Counter> counters, String name) {
+      String key = name == null ? "" : name.trim();
+      Counter counter = counters.get(key);
+      if (counter == null) {
+         Counter created = new Counter();
+         counter = counters.putIfAbsent(key, created);
+         if (counter == null)
+            counter = created;
+      }
+      return counter;
+   }//end counter
+}//end SalesAggregator
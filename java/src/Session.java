@@ -0,0 +1,81 @@
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class is a logged in user. It remembers the user's role so menu
+ * actions can check permissions without asking the database every time.
+ *
+ * The cached role is read again when
+ *  - PizzaStore.invalidateRole() was called for this login, which this
+ *    process does whenever Update User changes it, or
+ *  - it is older than ROLE_TTL_MS, which bounds how long a change made
+ *    by another process (e.g. a manager demoting this user from another
+ *    terminal) can go unnoticed.
+ */
+public class Session {
+
+   // how long a role read from the database is trusted.
+   static final long ROLE_TTL_MS = Long.getLong("pizzastore.roleTtlMs", 30000);
+
+   public final String login;
+
+   private final PizzaStore _esql;
+
+   // trimmed Users.role; empty when the user no longer exists.
+   private volatile String _role;
+   private volatile long _roleReadAt;
+   private volatile long _roleVersion;
+
+   Session(PizzaStore esql, String login, String role, long roleVersion) {
+      this._esql = esql;
+      this.login = login;
+      this._role = role == null ? "" : role.trim();
+      this._roleVersion = roleVersion;
+      this._roleReadAt = System.nanoTime();
+   }//end Session
+
+   /**
+    * Returns the user's role, trimmed, re-reading it when the cached value
+    * was invalidated or expired.
+    *
+    * @return the role, or "" when the user no longer exists
+    * @throws java.sql.SQLException when the role has to be re-read and that fails
+    */
+   public String role() throws SQLException {
+      long version = this._esql.roleVersion(this.login);
+      long age = System.nanoTime() - this._roleReadAt;
+      if (version != this._roleVersion || age > TimeUnit.MILLISECONDS.toNanos(ROLE_TTL_MS)) {
+         List<List<String>> result = this._esql.executeQueryAndReturnResult(
+            "SELECT role FROM Users WHERE login = ?", this.login);
+         this._role = result.isEmpty() ? "" : result.get(0).get(0).trim();
+         this._roleVersion = version;
+         this._roleReadAt = System.nanoTime();
+      }
+      return this._role;
+   }//end role
+
+   public boolean isManager() throws SQLException {
+      return role().equalsIgnoreCase("manager");
+   }
+
+   public boolean isDriver() throws SQLException {
+      return role().equalsIgnoreCase("driver");
+   }
+
+   public boolean isCustomer() throws SQLException {
+      return role().equalsIgnoreCase("customer");
+   }
+
+   /**
+    * Returns true for managers and drivers, who may see and update every order.
+    */
+   public boolean isStaff() throws SQLException {
+      String role = role();
+      return role.equalsIgnoreCase("manager") || role.equalsIgnoreCase("driver");
+   }
+
+   public String toString() {
+      return this.login + " (" + this._role + ")";
+   }
+}//end Session
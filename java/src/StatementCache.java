@@ -0,0 +1,149 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.postgresql.PGStatement;
+
+/**
+ * This class keeps a bounded, least-recently-used set of prepared statements
+ * for one physical connection. Statements are keyed by their SQL text, so
+ * every query shape is parsed and planned by the DBMS once and then reused.
+ *
+ * The pg73 driver substitutes the values into the SQL text on the client
+ * unless a statement is switched to server-side PREPARE, so every SELECT,
+ * INSERT, UPDATE and DELETE is switched when it is first prepared. Other
+ * statements (DDL, DECLARE, FETCH, ...) cannot be PREPAREd and are sent as
+ * they are. -Dpizzastore.serverPrepare=false turns this off.
+ *
+ * A statement handed out by prepare() is owned by the cache: callers bind
+ * and execute it but must never close it themselves.
+ */
+public class StatementCache {
+
+   static final boolean SERVER_PREPARE = !"false".equals(System.getProperty("pizzastore.serverPrepare"));
+
+   // the connection every cached statement belongs to.
+   private final Connection _connection;
+
+   // maximum number of statements kept open at the same time.
+   private final int _capacity;
+
+   // SQL text -> prepared statement, ordered from least to most recently used.
+   private final LinkedHashMap<String, PreparedStatement> _statements;
+
+   private final AtomicLong _hits = new AtomicLong();
+   private final AtomicLong _misses = new AtomicLong();
+   private final AtomicLong _evictions = new AtomicLong();
+
+   /**
+    * Creates a new statement cache
+    *
+    * @param connection the connection statements are prepared on
+    * @param capacity the maximum number of cached statements
+    */
+   public StatementCache(Connection connection, int capacity) {
+      if (capacity <= 0) {
+         throw new IllegalArgumentException("capacity must be positive: " + capacity);
+      }
+      this._connection = connection;
+      this._capacity = capacity;
+      this._statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true);
+   }//end StatementCache
+
+   /**
+    * Returns the prepared statement for the given SQL text, preparing it on
+    * a miss. The least recently used statement is closed when the cache is
+    * full. Any parameters left over from the previous use are cleared.
+    *
+    * @param sql the SQL text with '?' placeholders
+    * @return a ready to bind prepared statement
+    * @throws java.sql.SQLException when the statement cannot be prepared
+    */
+   public synchronized PreparedStatement prepare(String sql) throws SQLException {
+      PreparedStatement stmt = this._statements.get(sql);
+      if (stmt != null) {
+         this._hits.incrementAndGet();
+         stmt.clearParameters();
+         return stmt;
+      }//end if
+
+      this._misses.incrementAndGet();
+      stmt = this._connection.prepareStatement(sql);
+      if (SERVER_PREPARE && stmt instanceof PGStatement && isPreparable(sql)) {
+         ((PGStatement) stmt).setUseServerPrepare(true);
+      }
+      this._statements.put(sql, stmt);
+
+      if (this._statements.size() > this._capacity) {
+         Iterator<Map.Entry<String, PreparedStatement>> eldest = this._statements.entrySet().iterator();
+         PreparedStatement evicted = eldest.next().getValue();
+         eldest.remove();
+         this._evictions.incrementAndGet();
+         closeQuietly(evicted);
+      }//end if
+      return stmt;
+   }//end prepare
+
+   /**
+    * Closes every cached statement. The cache stays usable afterwards.
+    */
+   public synchronized void clear() {
+      for (PreparedStatement stmt : this._statements.values()) {
+         closeQuietly(stmt);
+      }
+      this._statements.clear();
+   }//end clear
+
+   public synchronized int size() {
+      return this._statements.size();
+   }
+
+   public int capacity() {
+      return this._capacity;
+   }
+
+   public long hits() {
+      return this._hits.get();
+   }
+
+   public long misses() {
+      return this._misses.get();
+   }
+
+   public long evictions() {
+      return this._evictions.get();
+   }
+
+   public String toString() {
+      return "statements=" + size() + "/" + this._capacity
+         + " hits=" + hits() + " misses=" + misses() + " evictions=" + evictions();
+   }
+
+   // true for the statements PostgreSQL's PREPARE accepts.
+   static boolean isPreparable(String sql) {
+      int start = 0;
+      while (start < sql.length() && (Character.isWhitespace(sql.charAt(start)) || sql.charAt(start) == '(')) {
+         ++start;
+      }
+      int end = start;
+      while (end < sql.length() && Character.isLetter(sql.charAt(end))) {
+         ++end;
+      }
+      String keyword = sql.substring(start, end).toUpperCase(Locale.ROOT);
+      return keyword.equals("SELECT") || keyword.equals("INSERT") || keyword.equals("UPDATE")
+         || keyword.equals("DELETE") || keyword.equals("WITH") || keyword.equals("VALUES");
+   }//end isPreparable
+
+   private static void closeQuietly(PreparedStatement stmt) {
+      try {
+         stmt.close();
+      } catch (SQLException e) {
+         // ignored.
+      }
+   }
+}//end StatementCache
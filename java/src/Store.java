@@ -0,0 +1,57 @@
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * This class is one immutable row of the Store table.
+ */
+public class Store {
+
+   public final int storeID;
+   public final String address;
+   public final String city;
+   public final String state;
+   public final String isOpen;
+
+   // NaN when the store has no review score yet.
+   public final double reviewScore;
+
+   // isOpen is "yes".
+   public final boolean open;
+
+   // lower-cased city and state, the keys of StoreDirectory's indexes.
+   final String cityKey;
+   final String stateKey;
+
+   // the row as printformatted() expects it, built once.
+   public final List<String> row;
+
+   /**
+    * @param reviewScore the score as the database prints it, or null
+    */
+   Store(int storeID, String address, String city, String state, String isOpen, String reviewScore) {
+      this.storeID = storeID;
+      this.address = address;
+      this.city = city;
+      this.state = state;
+      this.isOpen = isOpen;
+      this.reviewScore = reviewScore == null ? Double.NaN : Double.parseDouble(reviewScore);
+      this.open = isOpen != null && isOpen.trim().equalsIgnoreCase("yes");
+      this.cityKey = key(city);
+      this.stateKey = key(state);
+      this.row = Collections.unmodifiableList(Arrays.asList(
+         String.valueOf(storeID), address, city, state, isOpen, reviewScore));
+   }//end Store
+
+   /**
+    * Returns the index key for a city or state name: trimmed, lower case.
+    */
+   public static String key(String name) {
+      return name == null ? "" : name.trim().toLowerCase(Locale.ROOT);
+   }
+
+   public String toString() {
+      return "store " + this.storeID + " (" + this.city + ", " + this.state + ")";
+   }
+}//end Store
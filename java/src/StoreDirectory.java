@@ -0,0 +1,385 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class keeps the Store table in memory so customers can find a store
+ * without dumping all of it: by city and state, open stores only, best
+ * reviewed first, or page by page.
+ *
+ * Like MenuCatalog, readers work on an immutable Snapshot. Within it
+ *  - stores are sorted by storeID for paging and binary search,
+ *  - each state and each (state, city) has a Group, found through hashed
+ *    indexes keyed by Store.key(), holding its stores and its open stores
+ *    best reviewed first.
+ *
+ * Lookups with prepared keys allocate nothing: the lists handed out are
+ * built with the snapshot. When a single store changes, upsert() and
+ * remove() publish a new snapshot that shares every group except the
+ * ones the store moved between, so a change costs far less than reload().
+ */
+public class StoreDirectory {
+
+   /**
+    * The stores of one state or one city.
+    */
+   public static final class Group {
+      // best reviewed first, see BY_REVIEW.
+      private final Store[] _all;
+      private final Store[] _open;
+      public final List<Store> all;
+      public final List<Store> open;
+
+      Group(List<Store> stores) {
+         this(sorted(stores.toArray(new Store[stores.size()])));
+      }
+
+      // all must already be ordered by BY_REVIEW.
+      private Group(Store[] all) {
+         int open = 0;
+         for (Store store : all) {
+            if (store.open) ++open;
+         }
+         Store[] openStores = new Store[open];
+         open = 0;
+         for (Store store : all) {
+            if (store.open) openStores[open++] = store;
+         }
+         this._all = all;
+         this._open = openStores;
+         this.all = Collections.unmodifiableList(Arrays.asList(all));
+         this.open = Collections.unmodifiableList(Arrays.asList(openStores));
+      }//end Group
+
+      /**
+       * Copies the k best reviewed stores, open ones only if openOnly, into
+       * out and returns how many were copied.
+       */
+      public int top(int k, boolean openOnly, Store[] out) {
+         Store[] stores = openOnly ? this._open : this._all;
+         int n = Math.min(Math.min(k, stores.length), out.length);
+         System.arraycopy(stores, 0, out, 0, n);
+         return n;
+      }
+
+      Group with(Store store) {
+         int at = -Arrays.binarySearch(this._all, store, BY_REVIEW) - 1;
+         Store[] all = new Store[this._all.length + 1];
+         System.arraycopy(this._all, 0, all, 0, at);
+         all[at] = store;
+         System.arraycopy(this._all, at, all, at + 1, this._all.length - at);
+         return new Group(all);
+      }
+
+      Group without(Store store) {
+         int at = Arrays.binarySearch(this._all, store, BY_REVIEW);
+         if (at < 0) {
+            return this;
+         }
+         Store[] all = new Store[this._all.length - 1];
+         System.arraycopy(this._all, 0, all, 0, at);
+         System.arraycopy(this._all, at + 1, all, at, all.length - at);
+         return new Group(all);
+      }
+
+      private static Store[] sorted(Store[] stores) {
+         Arrays.sort(stores, BY_REVIEW);
+         return stores;
+      }
+   }//end Group
+
+   static final Group EMPTY = new Group(Collections.<Store>emptyList());
+
+   /**
+    * One immutable version of the directory.
+    */
+   public static final class Snapshot {
+      private final Store[] _byId;
+      private final int[] _ids;
+
+      // state key -> group; state key -> city key -> group.
+      private final Map<String, Group> _byState;
+      private final Map<String, Map<String, Group>> _byCity;
+
+      public final List<Store> all;
+
+      Snapshot(Store[] byId, int[] ids, Map<String, Group> byState, Map<String, Map<String, Group>> byCity) {
+         this._byId = byId;
+         this._ids = ids;
+         this._byState = byState;
+         this._byCity = byCity;
+         this.all = Collections.unmodifiableList(Arrays.asList(byId));
+      }//end Snapshot
+
+      public int size() {
+         return this._byId.length;
+      }
+
+      /**
+       * Returns the store with the given ID, or null.
+       */
+      public Store find(int storeID) {
+         int i = Arrays.binarySearch(this._ids, storeID);
+         return i < 0 ? null : this._byId[i];
+      }
+
+      /**
+       * Returns the stores of a city; the keys come from Store.key().
+       */
+      public Group inCity(String cityKey, String stateKey) {
+         Map<String, Group> cities = this._byCity.get(stateKey);
+         Group group = cities == null ? null : cities.get(cityKey);
+         return group == null ? EMPTY : group;
+      }
+
+      /**
+       * Returns the stores of a state; the key comes from Store.key().
+       */
+      public Group inState(String stateKey) {
+         Group group = this._byState.get(stateKey);
+         return group == null ? EMPTY : group;
+      }
+
+      /**
+       * Returns page number page (from 0) of all stores by storeID.
+       */
+      public List<Store> page(int page, int pageSize) {
+         int from = Math.min(page * pageSize, this._byId.length);
+         int to = Math.min(from + pageSize, this._byId.length);
+         return this.all.subList(from, to);
+      }
+   }//end Snapshot
+
+   /**
+    * Best review score first, stores without a score last, then by storeID.
+    */
+   static final Comparator<Store> BY_REVIEW = new Comparator<Store>() {
+      public int compare(Store a, Store b) {
+         boolean aMissing = Double.isNaN(a.reviewScore);
+         boolean bMissing = Double.isNaN(b.reviewScore);
+         if (aMissing != bMissing) {
+            return aMissing ? 1 : -1;
+         }
+         int c = aMissing ? 0 : Double.compare(b.reviewScore, a.reviewScore);
+         return c != 0 ? c : Integer.compare(a.storeID, b.storeID);
+      }
+   };
+
+   static final Comparator<Store> BY_ID = new Comparator<Store>() {
+      public int compare(Store a, Store b) {
+         return Integer.compare(a.storeID, b.storeID);
+      }
+   };
+
+   private final ConnectionPool _pool;
+   private final AtomicReference<Snapshot> _current = new AtomicReference<Snapshot>();
+
+   public StoreDirectory(ConnectionPool pool) {
+      this._pool = pool;
+   }
+
+   /**
+    * Builds a snapshot from the given stores.
+    */
+   static Snapshot build(List<Store> stores) {
+      Store[] byId = stores.toArray(new Store[stores.size()]);
+      Arrays.sort(byId, BY_ID);
+
+      Map<String, List<Store>> states = new HashMap<String, List<Store>>();
+      Map<String, Map<String, List<Store>>> cities = new HashMap<String, Map<String, List<Store>>>();
+      for (Store store : byId) {
+         List<Store> state = states.get(store.stateKey);
+         if (state == null) {
+            state = new ArrayList<Store>();
+            states.put(store.stateKey, state);
+            cities.put(store.stateKey, new HashMap<String, List<Store>>());
+         }
+         state.add(store);
+         Map<String, List<Store>> inState = cities.get(store.stateKey);
+         List<Store> city = inState.get(store.cityKey);
+         if (city == null) {
+            city = new ArrayList<Store>();
+            inState.put(store.cityKey, city);
+         }
+         city.add(store);
+      }//end for
+
+      Map<String, Group> byState = new HashMap<String, Group>();
+      Map<String, Map<String, Group>> byCity = new HashMap<String, Map<String, Group>>();
+      for (Map.Entry<String, List<Store>> e : states.entrySet()) {
+         byState.put(e.getKey(), new Group(e.getValue()));
+         Map<String, Group> groups = new HashMap<String, Group>();
+         for (Map.Entry<String, List<Store>> c : cities.get(e.getKey()).entrySet()) {
+            groups.put(c.getKey(), new Group(c.getValue()));
+         }
+         byCity.put(e.getKey(), groups);
+      }
+      int[] ids = new int[byId.length];
+      for (int i = 0; i < byId.length; ++i) {
+         ids[i] = byId[i].storeID;
+      }
+      return new Snapshot(byId, ids, byState, byCity);
+   }//end build
+
+   /**
+    * Returns the current directory, loading it on first use.
+    *
+    * @return the latest published snapshot
+    * @throws java.sql.SQLException when the first load fails
+    */
+   public Snapshot snapshot() throws SQLException {
+      Snapshot snapshot = this._current.get();
+      return snapshot != null ? snapshot : reload();
+   }//end snapshot
+
+   /**
+    * Reads Store again and publishes the result.
+    *
+    * @return the newly published snapshot
+    * @throws java.sql.SQLException when Store cannot be read
+    */
+   public synchronized Snapshot reload() throws SQLException {
+      Snapshot snapshot = build(read(null));
+      this._current.set(snapshot);
+      return snapshot;
+   }//end reload
+
+   // makes snapshot the current one, e.g. one built without a database.
+   void publish(Snapshot snapshot) {
+      this._current.set(snapshot);
+   }
+
+   /**
+    * Reads one store row again after it was inserted, updated or deleted
+    * and publishes the change.
+    *
+    * @throws java.sql.SQLException when the row cannot be read
+    */
+   public synchronized void refresh(int storeID) throws SQLException {
+      List<Store> rows = read(storeID);
+      if (rows.isEmpty()) {
+         remove(storeID);
+      } else {
+         upsert(rows.get(0));
+      }
+   }//end refresh
+
+   /**
+    * Publishes a snapshot with the store added or replaced. Only the groups
+    * it leaves and joins are rebuilt.
+    */
+   public synchronized void upsert(Store store) throws SQLException {
+      Snapshot current = snapshot();
+      Store previous = current.find(store.storeID);
+      Store[] byId;
+      int[] ids;
+      int i = Arrays.binarySearch(current._ids, store.storeID);
+      if (i >= 0) {
+         byId = current._byId.clone();
+         byId[i] = store;
+         ids = current._ids;
+      } else {
+         int at = -i - 1;
+         byId = new Store[current._byId.length + 1];
+         System.arraycopy(current._byId, 0, byId, 0, at);
+         byId[at] = store;
+         System.arraycopy(current._byId, at, byId, at + 1, current._byId.length - at);
+         ids = new int[current._ids.length + 1];
+         System.arraycopy(current._ids, 0, ids, 0, at);
+         ids[at] = store.storeID;
+         System.arraycopy(current._ids, at, ids, at + 1, current._ids.length - at);
+      }
+      this._current.set(regroup(current, byId, ids, previous, store));
+   }//end upsert
+
+   /**
+    * Publishes a snapshot without the given store.
+    */
+   public synchronized void remove(int storeID) throws SQLException {
+      Snapshot current = snapshot();
+      int i = Arrays.binarySearch(current._ids, storeID);
+      if (i < 0) {
+         return;
+      }
+      Store[] byId = new Store[current._byId.length - 1];
+      System.arraycopy(current._byId, 0, byId, 0, i);
+      System.arraycopy(current._byId, i + 1, byId, i, byId.length - i);
+      int[] ids = new int[current._ids.length - 1];
+      System.arraycopy(current._ids, 0, ids, 0, i);
+      System.arraycopy(current._ids, i + 1, ids, i, ids.length - i);
+      this._current.set(regroup(current, byId, ids, current._byId[i], null));
+   }//end remove
+
+   /**
+    * Returns the display rows of the given stores, for printformatted().
+    */
+   public static List<List<String>> rows(final List<Store> stores) {
+      return new AbstractList<List<String>>() {
+         public List<String> get(int index) {
+            return stores.get(index).row;
+         }
+
+         public int size() {
+            return stores.size();
+         }
+      };
+   }//end rows
+
+   // copies the index maps, rebuilding the groups previous left and next joined.
+   private static Snapshot regroup(Snapshot current, Store[] byId, int[] ids, Store previous, Store next) {
+      Map<String, Group> byState = new HashMap<String, Group>(current._byState);
+      Map<String, Map<String, Group>> byCity = new HashMap<String, Map<String, Group>>(current._byCity);
+      if (previous != null) {
+         byState.put(previous.stateKey, without(byState.get(previous.stateKey), previous));
+         Map<String, Group> cities = new HashMap<String, Group>(byCity.get(previous.stateKey));
+         cities.put(previous.cityKey, without(cities.get(previous.cityKey), previous));
+         byCity.put(previous.stateKey, cities);
+      }
+      if (next != null) {
+         byState.put(next.stateKey, with(byState.get(next.stateKey), next));
+         Map<String, Group> cities = byCity.get(next.stateKey);
+         cities = cities == null ? new HashMap<String, Group>() : new HashMap<String, Group>(cities);
+         cities.put(next.cityKey, with(cities.get(next.cityKey), next));
+         byCity.put(next.stateKey, cities);
+      }
+      return new Snapshot(byId, ids, byState, byCity);
+   }//end regroup
+
+   private static Group without(Group group, Store store) {
+      return group.without(store);
+   }
+
+   private static Group with(Group group, Store store) {
+      return (group == null ? EMPTY : group).with(store);
+   }
+
+   // every store, or only storeID when given.
+   private List<Store> read(final Integer storeID) throws SQLException {
+      return this._pool.execute(new ConnectionPool.Work<List<Store>>() {
+         public List<Store> run(PooledConnection conn) throws SQLException {
+            String sql = "SELECT storeID, address, city, state, isOpen, reviewScore FROM Store";
+            ResultSet rs = storeID == null
+               ? conn.prepare(sql).executeQuery()
+               : conn.prepare(sql + " WHERE storeID = ?", storeID).executeQuery();
+            List<Store> stores = new ArrayList<Store>();
+            try {
+               while (rs.next()) {
+                  stores.add(new Store(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getString(4),
+                                       rs.getString(5), rs.getString(6)));
+               }
+            } finally {
+               rs.close();
+            }
+            return stores;
+         }
+      });
+   }//end read
+}//end StoreDirectory
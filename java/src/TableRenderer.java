@@ -0,0 +1,207 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class prints tables as left aligned, space padded columns, the way
+ * the menu screens show stores, orders and items. Every column is as wide
+ * as its widest cell plus two spaces.
+ *
+ * Output goes through one buffered writer and padding is copied from a
+ * shared run of spaces, so a cell costs a couple of write() calls and no
+ * format strings. The writer is flushed when a table is done, so prompts
+ * printed afterwards with System.out appear in order.
+ *
+ * NULL cells print as empty.
+ *
+ * For results too big to hold in memory, stream() sizes the columns from
+ * width hints and the first rows instead of the whole result.
+ */
+public class TableRenderer {
+
+   // rows buffered by stream() to size its columns.
+   static final int DEFAULT_SAMPLE = 100;
+
+   private static final String NEWLINE = System.lineSeparator();
+   private static final char[] SPACES = new char[256];
+   static {
+      Arrays.fill(SPACES, ' ');
+   }
+
+   private final Writer _out;
+
+   public TableRenderer(Writer out) {
+      this._out = out;
+   }
+
+   /**
+    * Returns a renderer writing to standard out.
+    */
+   public static TableRenderer stdout() {
+      return new TableRenderer(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
+   }
+
+   /**
+    * Prints a whole table. Widths are taken from every row, so the columns
+    * always line up.
+    *
+    * @param headers the column titles
+    * @param rows the cells, one list per row; null cells are allowed
+    */
+   public void print(String[] headers, List<List<String>> rows) {
+      int[] widths = new int[headers.length];
+      for (int i = 0; i < headers.length; i++) {
+         widths[i] = headers[i].length();
+      }
+      for (List<String> row : rows) {
+         int n = Math.min(row.size(), widths.length);
+         for (int i = 0; i < n; i++) {
+            widths[i] = Math.max(widths[i], length(row.get(i)));
+         }
+      }
+
+      try {
+         writeRow(headers, widths);
+         for (List<String> row : rows) {
+            writeRow(row, widths);
+         }
+         this._out.flush();
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+   }//end print
+
+   /**
+    * Returns a row handler that prints a streamed result as it arrives.
+    *
+    * The first sampleSize rows are held back to size the columns, then
+    * printed together with the header; later rows are written straight
+    * through. Column i is at least widthHints[i] wide, which keeps columns
+    * steady when the sample is not representative; a later value longer
+    * than its column is printed in full. finish() must be called at the
+    * end to print a result shorter than the sample and flush the output.
+    *
+    * @param headers the column titles
+    * @param widthHints minimum column widths, or null
+    * @param sampleSize how many rows to look at before printing
+    * @return the handler, to pass to executeQueryStreaming()
+    */
+   public Stream stream(String[] headers, int[] widthHints, int sampleSize) {
+      return new Stream(headers, widthHints, sampleSize);
+   }
+
+   /**
+    * A table being printed row by row, see stream().
+    */
+   public final class Stream implements PooledConnection.RowHandler {
+      private final String[] _headers;
+      private final int[] _widths;
+      private final int _sampleSize;
+      private List<String[]> _sample;
+
+      Stream(String[] headers, int[] widthHints, int sampleSize) {
+         this._headers = headers;
+         this._widths = new int[headers.length];
+         for (int i = 0; i < headers.length; i++) {
+            int hint = widthHints != null && i < widthHints.length ? widthHints[i] : 0;
+            this._widths[i] = Math.max(hint, headers[i].length());
+         }
+         this._sampleSize = Math.max(0, sampleSize);
+         this._sample = new ArrayList<String[]>(Math.min(this._sampleSize, DEFAULT_SAMPLE));
+      }
+
+      public void row(ResultSet rs) throws SQLException {
+         ResultSetMetaData rsmd = rs.getMetaData();
+         String[] cells = new String[rsmd.getColumnCount()];
+         for (int i = 0; i < cells.length; i++) {
+            cells[i] = rs.getString(i + 1);
+         }
+         row(cells);
+      }
+
+      public void row(String... cells) {
+         try {
+            if (this._sample == null) {
+               writeRow(cells, this._widths);
+               return;
+            }
+            this._sample.add(cells);
+            if (this._sample.size() >= this._sampleSize) {
+               flushSample();
+            }
+         } catch (IOException e) {
+            throw new UncheckedIOException(e);
+         }
+      }//end row
+
+      /**
+       * Prints whatever is still held back and flushes the output.
+       */
+      public void finish() {
+         try {
+            if (this._sample != null) {
+               flushSample();
+            }
+            TableRenderer.this._out.flush();
+         } catch (IOException e) {
+            throw new UncheckedIOException(e);
+         }
+      }//end finish
+
+      private void flushSample() throws IOException {
+         for (String[] cells : this._sample) {
+            int n = Math.min(cells.length, this._widths.length);
+            for (int i = 0; i < n; i++) {
+               this._widths[i] = Math.max(this._widths[i], length(cells[i]));
+            }
+         }
+         writeRow(this._headers, this._widths);
+         for (String[] cells : this._sample) {
+            writeRow(cells, this._widths);
+         }
+         this._sample = null;
+      }//end flushSample
+   }//end Stream
+
+   private void writeRow(String[] cells, int[] widths) throws IOException {
+      for (int i = 0; i < cells.length; i++) {
+         writeCell(cells[i], i < widths.length ? widths[i] : 0);
+      }
+      this._out.write(NEWLINE);
+   }
+
+   private void writeRow(List<String> cells, int[] widths) throws IOException {
+      int n = cells.size();
+      for (int i = 0; i < n; i++) {
+         writeCell(cells.get(i), i < widths.length ? widths[i] : 0);
+      }
+      this._out.write(NEWLINE);
+   }
+
+   // the cell, then spaces up to width + 2; at least one space after it.
+   private void writeCell(String cell, int width) throws IOException {
+      int len = 0;
+      if (cell != null) {
+         this._out.write(cell);
+         len = cell.length();
+      }
+      int pad = Math.max(1, width + 2 - len);
+      while (pad > 0) {
+         int n = Math.min(pad, SPACES.length);
+         this._out.write(SPACES, 0, n);
+         pad -= n;
+      }
+   }//end writeCell
+
+   private static int length(String cell) {
+      return cell == null ? 0 : cell.length();
+   }
+}//end TableRenderer
@@ -0,0 +1,498 @@
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class drives PizzaStore without a terminal: thousands of simulated
+ * sessions log in and use the application the way the menus would, so
+ * its throughput and latency can be measured under load.
+ *
+ * Each session is a user of one role, picked by the configured shares:
+ * customers browse the menu, place orders and look at their history,
+ * drivers page through all orders and update their status, managers view
+ * all orders, stores and sales. A session logs in, takes a visit of
+ * actions (ten on average) with a think time between them, and logs in
+ * again, until the run ends. Sessions run on virtual threads when the JVM
+ * has them, and start evenly spread over the ramp-up.
+ *
+ * Every reportSec a line shows the active sessions and the throughput,
+ * errors and latencies of that interval, which shows where adding
+ * sessions stops adding throughput. At the end each action gets a line.
+ *
+ * Usage: java WorkloadDriver <dbname> <port> <user>
+ *
+ *   -Dworkload.sessions=N        concurrent sessions (default 1000)
+ *   -Dworkload.mix=c,d,m         percent customers, drivers, managers (default 90,8,2)
+ *   -Dworkload.thinkMs=N         mean think time between actions (default 1000)
+ *   -Dworkload.rampUpSec=N       time over which sessions start (default 10)
+ *   -Dworkload.durationSec=N     run time after ramp-up (default 60)
+ *   -Dworkload.reportSec=N       interval report period (default 5)
+ *   -Dworkload.threads=virtual|platform
+ *
+ * Sessions share the application's connection pool; size it with
+ * -Dpizzastore.pool.maxSize. A session that times out waiting for a
+ * connection counts an error.
+ */
+public class WorkloadDriver {
+
+   static final double MEAN_VISIT_ACTIONS = 10;
+   static final String[] STATUSES = {"preparing", "out for delivery", "complete"};
+
+   /**
+    * One thing a simulated user does, e.g. one menu choice.
+    */
+   public static abstract class Action {
+      public final String name;
+
+      // how often it is picked among its role's actions.
+      public final int weight;
+
+      final LatencyHistogram latencies = new LatencyHistogram();
+      final AtomicLong errors = new AtomicLong();
+      final AtomicBoolean reported = new AtomicBoolean();
+
+      protected Action(String name, int weight) {
+         this.name = name;
+         this.weight = weight;
+      }
+
+      public abstract void run(User user) throws Exception;
+   }//end Action
+
+   /**
+    * A simulated user: its credentials and what its session has seen.
+    */
+   public static final class User {
+      public final String login;
+      public final String password;
+      public final String role;
+
+      // set by the log in action.
+      public Session session;
+
+      // the last order the user placed or looked at, 0 when none.
+      public int orderID;
+
+      User(String login, String password, String role) {
+         this.login = login;
+         this.password = password;
+         this.role = role;
+      }
+   }//end User
+
+   /**
+    * The users of one role, what they do, and their share of the sessions.
+    */
+   public static final class Role {
+      final String name;
+      final int share;
+      final List<String[]> users;
+      final Action[] actions;
+      final int totalWeight;
+
+      /**
+       * @param users login, password pairs to draw sessions from
+       */
+      public Role(String name, int share, List<String[]> users, Action... actions) {
+         this.name = name;
+         this.share = share;
+         this.users = users;
+         this.actions = actions;
+         int total = 0;
+         for (Action action : actions) {
+            total += action.weight;
+         }
+         this.totalWeight = total;
+      }
+
+      Action pick(ThreadLocalRandom random) {
+         int n = random.nextInt(this.totalWeight);
+         for (Action action : this.actions) {
+            n -= action.weight;
+            if (n < 0) {
+               return action;
+            }
+         }
+         return this.actions[this.actions.length - 1];
+      }
+   }//end Role
+
+   private final Action _login;
+   private final Role[] _roles;
+   private final int _sessions;
+   private final long _thinkNanos;
+   private final long _rampUpNanos;
+   private final long _durationNanos;
+   private final long _reportNanos;
+   private final boolean _virtual;
+
+   private final AtomicInteger _active = new AtomicInteger();
+   private final LatencyHistogram _interval = new LatencyHistogram();
+   private final AtomicLong _intervalErrors = new AtomicLong();
+
+   /**
+    * @param login logs the user in and sets its session; run at each visit
+    * @param roles the roles sessions are spread over by their shares
+    */
+   public WorkloadDriver(Action login, Role[] roles, int sessions, long thinkMs, long rampUpSec, long durationSec,
+                         long reportSec, boolean virtual) {
+      this._login = login;
+      this._roles = roles;
+      this._sessions = sessions;
+      this._thinkNanos = TimeUnit.MILLISECONDS.toNanos(thinkMs);
+      this._rampUpNanos = TimeUnit.SECONDS.toNanos(rampUpSec);
+      this._durationNanos = TimeUnit.SECONDS.toNanos(durationSec);
+      this._reportNanos = TimeUnit.SECONDS.toNanos(Math.max(1, reportSec));
+      this._virtual = virtual;
+   }//end WorkloadDriver
+
+   public static void main(String[] args) throws Exception {
+      if (args.length != 3) {
+         System.err.println(
+            "Usage: java [-classpath <classpath>] " + WorkloadDriver.class.getName() + " <dbname> <port> <user>");
+         return;
+      }
+      Class.forName("org.postgresql.Driver");
+      ConnectionPool.Settings settings = ConnectionPool.Settings.fromSystemProperties(
+         "jdbc:postgresql://localhost:" + args[1] + "/" + args[0], args[2], "");
+      PizzaStore esql = new PizzaStore(settings, ReplicaRouter.replicaUrlsFromSystemProperties());
+      try {
+         String[] mix = System.getProperty("workload.mix", "90,8,2").split(",");
+         WorkloadDriver driver = forStore(esql, Integer.parseInt(mix[0].trim()), Integer.parseInt(mix[1].trim()),
+                                          Integer.parseInt(mix[2].trim()));
+         driver.run();
+      } finally {
+         esql.cleanup();
+      }
+   }//end main
+
+   /**
+    * Returns a driver of the application's own operations, called the way
+    * the menu handlers call them, minus the printing. Users are sampled
+    * from the database, up to 10000 per role.
+    */
+   public static WorkloadDriver forStore(final PizzaStore esql, int customers, int drivers, int managers) throws SQLException {
+      final List<MenuItem> menu = esql.getMenu().snapshot().all(true);
+      final List<Store> stores = esql.getStores().snapshot().all;
+      if (menu.isEmpty() || stores.isEmpty()) {
+         throw new SQLException("The database needs items and stores to place orders");
+      }
+      final BigDecimal medianPrice = menu.get(menu.size() / 2).price;
+      final String[] types = {"entree", "drinks", "sides"};
+
+      Action login = new Action("log in", 0) {
+         public void run(User user) throws Exception {
+            List<List<String>> result = esql.readQueryAndReturnResult(user.login,
+               "SELECT login, role FROM Users WHERE login = ? and password = ?", user.login, user.password);
+            if (result.isEmpty()) {
+               throw new SQLException("Cannot log in as " + user.login);
+            }
+            user.session = esql.openSession(result.get(0).get(0), result.get(0).get(1));
+         }
+      };
+      Action browse = new Action("browse menu", 30) {
+         public void run(User user) throws Exception {
+            MenuCatalog.rows(esql.getMenu().snapshot().all(ThreadLocalRandom.current().nextBoolean())).size();
+         }
+      };
+      Action filterPrice = new Action("filter menu by price", 10) {
+         public void run(User user) throws Exception {
+            MenuCatalog.rows(esql.getMenu().snapshot().atMost(medianPrice, true)).size();
+         }
+      };
+      Action filterType = new Action("filter menu by type", 10) {
+         public void run(User user) throws Exception {
+            String type = types[ThreadLocalRandom.current().nextInt(types.length)];
+            MenuCatalog.rows(esql.getMenu().snapshot().ofType(type, true)).size();
+         }
+      };
+      Action placeOrder = new Action("place order", 15) {
+         public void run(User user) throws Exception {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            esql.getRecommender().suggest(user.login, ItemRecommender.DEFAULT_SUGGESTIONS);
+            List<String> names = new ArrayList<String>();
+            List<Integer> quantities = new ArrayList<Integer>();
+            for (int i = 1 + random.nextInt(3); i > 0; --i) {
+               String name = menu.get(random.nextInt(menu.size())).itemName;
+               if (!names.contains(name)) {
+                  names.add(name);
+                  quantities.add(1 + random.nextInt(3));
+               }
+            }
+            Store store = stores.get(random.nextInt(stores.size()));
+            user.orderID = esql.submitOrder(user.login, store.storeID, names, quantities).orderID;
+         }
+      };
+      Action recent = new Action("view recent orders", 15) {
+         public void run(User user) throws Exception {
+            List<OrderSummary> orders = esql.recentOrders(user.session.isStaff() ? null : user.login);
+            if (!orders.isEmpty()) {
+               user.orderID = orders.get(ThreadLocalRandom.current().nextInt(orders.size())).orderID;
+            }
+         }
+      };
+      Action history = new Action("view order history", 10) {
+         public void run(User user) throws Exception {
+            String login = user.session.isStaff() ? null : user.login;
+            OrderPage page = esql.fetchOrderPage(login, PizzaStore.ORDER_PAGE_SIZE, null);
+            if (page.nextToken != null && ThreadLocalRandom.current().nextBoolean()) {
+               page = esql.fetchOrderPage(login, PizzaStore.ORDER_PAGE_SIZE, page.nextToken);
+            }
+            if (page.orders.rowCount() > 0) {
+               user.orderID = page.orders.getInt(ThreadLocalRandom.current().nextInt(page.orders.rowCount()), 0);
+            }
+         }
+      };
+      Action detail = new Action("view order information", 10) {
+         public void run(User user) throws Exception {
+            if (user.orderID != 0) {
+               esql.fetchOrderDetail(user.orderID, user.session.isCustomer() ? user.login : null);
+            }
+         }
+      };
+      Action allOrders = new Action("view all orders", 40) {
+         public void run(User user) throws Exception {
+            if (!user.session.isStaff()) {
+               throw new SQLException(user.login + " is not staff");
+            }
+            OrderPage page = esql.fetchOrderPage(null, PizzaStore.ORDER_PAGE_SIZE, null);
+            if (page.orders.rowCount() > 0) {
+               user.orderID = page.orders.getInt(ThreadLocalRandom.current().nextInt(page.orders.rowCount()), 0);
+            }
+         }
+      };
+      Action updateStatus = new Action("update order status", 40) {
+         public void run(User user) throws Exception {
+            if (!user.session.isStaff()) {
+               throw new SQLException(user.login + " is not staff");
+            }
+            if (user.orderID != 0) {
+               esql.setOrderStatus(user.orderID, STATUSES[ThreadLocalRandom.current().nextInt(STATUSES.length)]);
+            }
+         }
+      };
+      Action viewStores = new Action("view stores", 20) {
+         public void run(User user) throws Exception {
+            Store store = stores.get(ThreadLocalRandom.current().nextInt(stores.size()));
+            esql.getStores().snapshot().inCity(Store.key(store.city), Store.key(store.state)).open.size();
+         }
+      };
+      Action sales = new Action("sales reports", 20) {
+         public void run(User user) throws Exception {
+            if (!user.session.isManager()) {
+               throw new SQLException(user.login + " is not a manager");
+            }
+            SalesAggregator aggregator = esql.getSales();
+            if (aggregator != null) {
+               LocalDate today = LocalDate.now();
+               aggregator.storeDays(today.minusDays(30), today, null);
+               aggregator.topItems(10);
+            }
+         }
+      };
+
+      Role[] roles = {
+         new Role("customer", customers, sampleUsers(esql, "customer"),
+                  browse, filterPrice, filterType, placeOrder, recent, history, detail),
+         new Role("driver", drivers, sampleUsers(esql, "driver"),
+                  allOrders, updateStatus, detail),
+         new Role("manager", managers, sampleUsers(esql, "manager"),
+                  allOrders, sales, viewStores, recent),
+      };
+      String threads = System.getProperty("workload.threads", "virtual");
+      return new WorkloadDriver(login, roles, Integer.getInteger("workload.sessions", 1000),
+                                Long.getLong("workload.thinkMs", 1000), Long.getLong("workload.rampUpSec", 10),
+                                Long.getLong("workload.durationSec", 60), Long.getLong("workload.reportSec", 5),
+                                !threads.equals("platform"));
+   }//end forStore
+
+   // up to 10000 login, password pairs of the role.
+   private static List<String[]> sampleUsers(PizzaStore esql, String role) throws SQLException {
+      List<String[]> users = new ArrayList<String[]>();
+      for (List<String> row : esql.executeQueryAndReturnResult(
+              "SELECT login, password FROM Users WHERE role = ? ORDER BY random() LIMIT 10000", role)) {
+         users.add(new String[] {row.get(0), row.get(1)});
+      }
+      return users;
+   }//end sampleUsers
+
+   /**
+    * Runs the workload: ramps the sessions up, runs them for the duration,
+    * prints interval lines meanwhile and a summary at the end.
+    */
+   public void run() throws Exception {
+      ExecutorService executor = this._virtual ? AsyncQueries.newVirtualThreadPerTaskExecutor() : null;
+      boolean virtual = executor != null;
+      if (executor == null) {
+         if (this._virtual) {
+            System.err.println("Warning - virtual threads need Java 21, running sessions on platform threads");
+         }
+         executor = AsyncQueries.newPlatformExecutor();
+      }
+      final long start = System.nanoTime();
+      final long measureFrom = start + this._rampUpNanos;
+      final long end = measureFrom + this._durationNanos;
+      final CountDownLatch done = new CountDownLatch(this._sessions);
+
+      int totalShare = 0;
+      for (Role role : this._roles) {
+         totalShare += role.users.isEmpty() ? 0 : role.share;
+      }
+      if (totalShare <= 0) {
+         throw new IllegalStateException("No role has both users and a share of the sessions");
+      }
+      System.out.println(String.format("%d sessions on %s threads, think %d ms, ramp-up %d s, duration %d s",
+         this._sessions, virtual ? "virtual" : "platform",
+         TimeUnit.NANOSECONDS.toMillis(this._thinkNanos), TimeUnit.NANOSECONDS.toSeconds(this._rampUpNanos),
+         TimeUnit.NANOSECONDS.toSeconds(this._durationNanos)));
+
+      for (int s = 0; s < this._sessions; ++s) {
+         // sessions take roles in proportion to the shares, interleaved
+         final Role role = roleOf(s, totalShare);
+         final long startAt = start + this._rampUpNanos * s / this._sessions;
+         executor.execute(new Runnable() {
+            public void run() {
+               try {
+                  session(role, startAt, measureFrom, end);
+               } finally {
+                  done.countDown();
+               }
+            }
+         });
+      }//end for
+
+      long nextReport = start + this._reportNanos;
+      while (!done.await(Math.max(0, nextReport - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+         report(nextReport - start);
+         nextReport += this._reportNanos;
+      }
+      executor.shutdown();
+      summary(TimeUnit.NANOSECONDS.toSeconds(this._durationNanos));
+   }//end run
+
+   // one simulated session: visits of a log in and a few actions until the end.
+   private void session(Role role, long startAt, long measureFrom, long end) {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      if (!sleepUntil(startAt)) {
+         return;
+      }
+      String[] credentials = role.users.get(random.nextInt(role.users.size()));
+      User user = new User(credentials[0], credentials[1], role.name);
+      this._active.incrementAndGet();
+      try {
+         while (System.nanoTime() < end) {
+            if (!perform(this._login, user, measureFrom)) {
+               if (!think(random, end)) {
+                  return;
+               }
+               continue;
+            }
+            // visits are geometric, MEAN_VISIT_ACTIONS long on average
+            do {
+               if (!think(random, end)) {
+                  return;
+               }
+               perform(role.pick(random), user, measureFrom);
+            } while (random.nextDouble() >= 1 / MEAN_VISIT_ACTIONS);
+         }//end while
+      } finally {
+         this._active.decrementAndGet();
+      }
+   }//end session
+
+   // runs and times one action; false when it failed.
+   private boolean perform(Action action, User user, long measureFrom) {
+      long start = System.nanoTime();
+      try {
+         action.run(user);
+      } catch (Exception e) {
+         if (!action.reported.getAndSet(true)) {
+            System.err.println(action.name + " failed: " + e.getMessage());
+         }
+         if (start >= measureFrom) {
+            action.errors.incrementAndGet();
+         }
+         this._intervalErrors.incrementAndGet();
+         return false;
+      }
+      long elapsed = System.nanoTime() - start;
+      this._interval.record(elapsed);
+      if (start >= measureFrom) {
+         action.latencies.record(elapsed);
+      }
+      return true;
+   }//end perform
+
+   // waits an exponential think time; false when the run ends first.
+   private boolean think(ThreadLocalRandom random, long end) {
+      long pause = (long) (-Math.log(1 - random.nextDouble()) * this._thinkNanos);
+      long until = System.nanoTime() + pause;
+      return sleepUntil(Math.min(until, end)) && until < end;
+   }//end think
+
+   private static boolean sleepUntil(long deadline) {
+      try {
+         long remaining;
+         while ((remaining = deadline - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.sleep(remaining);
+         }
+         return true;
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         return false;
+      }
+   }//end sleepUntil
+
+   private Role roleOf(int session, int totalShare) {
+      int n = (int) ((session * 0x9E3779B1L) % totalShare);
+      for (Role role : this._roles) {
+         if (role.users.isEmpty()) {
+            continue;
+         }
+         n -= role.share;
+         if (n < 0) {
+            return role;
+         }
+      }
+      return this._roles[0];
+   }//end roleOf
+
+   private void report(long elapsedNanos) {
+      double seconds = this._reportNanos / 1e9;
+      System.out.println(String.format("%5ds sessions=%-6d ops/s=%-10.0f errors=%-6d %s",
+         TimeUnit.NANOSECONDS.toSeconds(elapsedNanos), this._active.get(), this._interval.count() / seconds,
+         this._intervalErrors.getAndSet(0), this._interval));
+      this._interval.reset();
+   }//end report
+
+   private void summary(long seconds) {
+      System.out.println("after ramp-up, per action:");
+      List<Action> actions = new ArrayList<Action>();
+      actions.add(this._login);
+      for (Role role : this._roles) {
+         for (Action action : role.actions) {
+            if (!actions.contains(action)) {
+               actions.add(action);
+            }
+         }
+      }
+      long total = 0;
+      long errors = 0;
+      for (Action action : actions) {
+         total += action.latencies.count();
+         errors += action.errors.get();
+         System.out.println(String.format("%-26s ops/s=%-10.1f errors=%-6d %s", action.name,
+            action.latencies.count() / (double) Math.max(1, seconds), action.errors.get(), action.latencies));
+      }
+      System.out.println(String.format("%-26s ops/s=%-10.1f errors=%d", "total", total / (double) Math.max(1, seconds), errors));
+   }//end summary
+}//end WorkloadDriver
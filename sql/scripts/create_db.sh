@@ -1,7 +1,6 @@
 #!/bin/bash
 DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 #cs166_createdb $USER"_project_phase_3_DB"
-cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < $DIR/../src/create_tables.sql
-cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < $DIR/../src/create_indexes.sql
-cs166_psql -p $PGPORT $USER"_project_phase_3_DB" < $DIR/../src/load_data.sql
-
+# runs create_tables.sql, loads data/*.csv, then builds create_indexes.sql
+# and the sales summaries; load_data.sql does the same with server-side COPY
+JAVA_TOOL_OPTIONS="-Dpizzastore.load.createTables=true $JAVA_TOOL_OPTIONS" $DIR/../../java/scripts/load.sh $USER"_project_phase_3_DB" $PGPORT $USER
@@ -18,4 +18,9 @@ CREATE INDEX index_foodorder_orderTimestamp ON FoodOrder(orderTimestamp);
 
 --Indexes for ItemsInOrder table
 CREATE INDEX index_itemsinorder_itemName ON ItemsInOrder(itemName);
-CREATE INDEX index_itemsinorder_orderID ON ItemsInOrder(orderID);
\ No newline at end of file
+CREATE INDEX index_itemsinorder_orderID ON ItemsInOrder(orderID);
+
+--Composite indexes for order history, newest first: keyset pagination (PizzaStore.fetchOrderPage),
+--recent orders and full history. PizzaStore warns at start up when these are missing.
+CREATE INDEX index_foodorder_timestamp_id ON FoodOrder(orderTimestamp DESC, orderID DESC);
+CREATE INDEX index_foodorder_login_timestamp_id ON FoodOrder(login, orderTimestamp DESC, orderID DESC);
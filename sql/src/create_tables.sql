@@ -3,10 +3,14 @@ DROP TABLE IF EXISTS Items CASCADE;
 DROP TABLE IF EXISTS FoodOrder CASCADE;
 DROP TABLE IF EXISTS Store CASCADE;
 DROP TABLE IF EXISTS ItemsInOrder CASCADE;
+DROP SEQUENCE IF EXISTS foodorder_block_seq;
+DROP TABLE IF EXISTS SalesByStoreDay;
+DROP TABLE IF EXISTS SalesByItem;
+DROP TABLE IF EXISTS OrdersByStatus;
 
 CREATE TABLE Users ( login varchar(50) NOT NULL,
                      password varchar(30) NOT NULL,
-                     role char(20) NOT NULL,
+                     role varchar(20) NOT NULL,
                      favoriteItems text,
                      phoneNum varchar(20) NOT NULL,
                      PRIMARY KEY(login)
@@ -34,7 +38,7 @@ CREATE TABLE FoodOrder ( orderID integer NOT NULL,
                            storeID integer NOT NULL, --placedAt relationship
                            totalPrice decimal(10,2) NOT NULL,
                            orderTimestamp timestamp NOT NULL,
-                           orderStatus char(50),
+                           orderStatus varchar(50),
                            PRIMARY KEY(orderID),
                            FOREIGN KEY(login) REFERENCES Users(login)
                            ON DELETE CASCADE,
@@ -42,6 +46,10 @@ CREATE TABLE FoodOrder ( orderID integer NOT NULL,
                            ON DELETE CASCADE
 );
 
+--hands out blocks of orderIDs, see OrderIdAllocator.java; INCREMENT BY is
+--the block size and must match -Dpizzastore.orderIdBlockSize (default 50)
+CREATE SEQUENCE foodorder_block_seq INCREMENT BY 50 MINVALUE 0 START WITH 50;
+
 
 
 CREATE TABLE ItemsInOrder ( orderID integer NOT NULL,
@@ -53,3 +61,20 @@ CREATE TABLE ItemsInOrder ( orderID integer NOT NULL,
                            ON DELETE CASCADE
 );
 
+--sales summaries for manager reports, kept up to date by SalesAggregator.java
+CREATE TABLE SalesByStoreDay ( storeID integer NOT NULL,
+                           day date NOT NULL,
+                           orderCount bigint NOT NULL,
+                           revenue decimal(14,2) NOT NULL,
+                           PRIMARY KEY(storeID, day)
+);
+
+CREATE TABLE SalesByItem ( itemName varchar(50) NOT NULL,
+                           quantity bigint NOT NULL,
+                           PRIMARY KEY(itemName)
+);
+
+CREATE TABLE OrdersByStatus ( orderStatus varchar(50) NOT NULL, --'' for orders without one
+                           orderCount bigint NOT NULL,
+                           PRIMARY KEY(orderStatus)
+);
@@ -18,3 +18,27 @@ WITH DELIMITER ',' CSV HEADER;
 COPY ItemsInOrder
 FROM '/home/csmajs/mrela001/cs166_project_phase3/data/itemsinorder.csv'
 WITH DELIMITER ',' CSV HEADER;
+
+/* items.csv pads its values with spaces after the commas. Strip them so
+   lookups can compare columns directly and use their indexes. */
+UPDATE Items SET ingredients = TRIM(ingredients),
+                 typeOfItem = TRIM(typeOfItem),
+                 description = TRIM(description);
+UPDATE Users SET role = TRIM(role);
+UPDATE FoodOrder SET orderStatus = TRIM(orderStatus);
+
+/* Older versions of the application placed orders as 'incompete'. */
+UPDATE FoodOrder SET orderStatus = 'incomplete' WHERE orderStatus = 'incompete';
+
+/* Build the sales summaries from the loaded orders; from here on the
+   application adds to them as orders commit. */
+DELETE FROM SalesByStoreDay;
+DELETE FROM SalesByItem;
+DELETE FROM OrdersByStatus;
+INSERT INTO SalesByStoreDay (storeID, day, orderCount, revenue)
+SELECT storeID, CAST(orderTimestamp AS date), COUNT(*), SUM(totalPrice)
+FROM FoodOrder GROUP BY storeID, CAST(orderTimestamp AS date);
+INSERT INTO SalesByItem (itemName, quantity)
+SELECT itemName, SUM(quantity) FROM ItemsInOrder GROUP BY itemName;
+INSERT INTO OrdersByStatus (orderStatus, orderCount)
+SELECT COALESCE(orderStatus, ''), COUNT(*) FROM FoodOrder GROUP BY COALESCE(orderStatus, '');